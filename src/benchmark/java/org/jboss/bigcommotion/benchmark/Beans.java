@@ -0,0 +1,104 @@
+package org.jboss.bigcommotion.benchmark;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.logging.Logger;
+
+import javax.ejb.SessionContext;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * Wires the importer's EJBs together outside the container: fields are set the way the container
+ * would inject them and @PostConstruct methods are called by name.
+ */
+class Beans {
+
+	private Beans(){
+	}
+
+	static <T> T inject(T bean, String fieldName, Object value){
+		try {
+			Field field = bean.getClass().getDeclaredField(fieldName);
+			field.setAccessible(true);
+			field.set(bean, value);
+			return bean;
+		} catch (Exception e){
+			throw new IllegalStateException("Cannot set " + fieldName + " on " + bean.getClass().getName(), e);
+		}
+	}
+
+	static <T> T withLogger(T bean){
+		return inject(bean, "logger", Logger.getLogger(bean.getClass().getName()));
+	}
+
+	static <T> T postConstruct(T bean, String methodName){
+		try {
+			Method method = bean.getClass().getDeclaredMethod(methodName);
+			method.setAccessible(true);
+			method.invoke(bean);
+			return bean;
+		} catch (Exception e){
+			throw new IllegalStateException("Cannot call " + methodName + " on " + bean.getClass().getName(), e);
+		}
+	}
+
+	/**
+	 * @return a session context whose business object is the bean itself, so calls a bean makes
+	 * through the container to its own REQUIRES_NEW methods join the caller's transaction
+	 */
+	static SessionContext selfContext(final Object bean){
+		return (SessionContext) Proxy.newProxyInstance(Beans.class.getClassLoader(), new Class<?>[] { SessionContext.class },
+				new InvocationHandler(){
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args){
+						if (method.getName().equals("getBusinessObject"))
+							return bean;
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	/**
+	 * Stands in for the JTA registry when the entity manager is resource local: there is never a
+	 * current transaction, so beans apply their after-commit work immediately.
+	 */
+	static class NoTransactionRegistry implements TransactionSynchronizationRegistry {
+		@Override
+		public Object getTransactionKey(){
+			return null;
+		}
+
+		@Override
+		public void putResource(Object key, Object value){
+			throw new IllegalStateException("No transaction");
+		}
+
+		@Override
+		public Object getResource(Object key){
+			return null;
+		}
+
+		@Override
+		public void registerInterposedSynchronization(Synchronization sync){
+			throw new IllegalStateException("No transaction");
+		}
+
+		@Override
+		public int getTransactionStatus(){
+			return javax.transaction.Status.STATUS_NO_TRANSACTION;
+		}
+
+		@Override
+		public void setRollbackOnly(){
+			throw new IllegalStateException("No transaction");
+		}
+
+		@Override
+		public boolean getRollbackOnly(){
+			return false;
+		}
+	}
+}
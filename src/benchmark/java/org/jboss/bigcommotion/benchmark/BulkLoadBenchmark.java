@@ -0,0 +1,110 @@
+package org.jboss.bigcommotion.benchmark;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.jboss.bigcommotion.model.WebMetric;
+import org.jboss.bigcommotion.services.MetricBulkWriter;
+import org.jboss.bigcommotion.services.MetricDictionary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Inserting a month's metrics in one transaction against the in-memory H2 metrics-test persistence
+ * unit: <code>PERSIST_EACH</code> is the original persist-everything-then-flush, the others the
+ * MetricBulkWriter modes.  Each invocation inserts new rows into an emptied table, so the benchmark
+ * is timed single shot; inserts per second are <code>rows</code> over the time per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(3)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+public class BulkLoadBenchmark {
+
+	@Param({ "20000" })
+	public int rows;
+
+	@Param({ "PERSIST_EACH", "BATCHED_PERSIST", "MULTI_ROW_INSERT" })
+	public String path;
+
+	private EntityManagerFactory emf;
+	private final MetricDictionary dictionary = new MetricDictionary();
+	private List<WebMetric> metrics;
+
+	@Setup
+	public void setup(){
+		emf = Persistence.createEntityManagerFactory("metrics-test");
+	}
+
+	/**
+	 * With single shot timing an iteration is one invocation, so the metrics are generated and
+	 * encoded, and the table emptied, outside the timed call.
+	 */
+	@Setup(Level.Iteration)
+	public void prepareIteration(){
+		Date date = new Date();
+		metrics = new ArrayList<WebMetric>(rows);
+		for (int i = 0; i < rows; i++){
+			WebMetric metric = new WebMetric("/opt/data/jboss.org/Analytics jboss.org Pages 20131101-20131130.csv", "jboss.org", date);
+			metric.setPage("/project" + (i % 250) + "/docs/page-" + i);
+			metric.setProject("jboss.org");
+			metric.setPageViews(100000 - i);
+			metric.setUniquePageViews(50000 - i / 2);
+			metric.setEntrances(1000 + i);
+			metric.setAverageTimeOnPage(i % 600);
+			metric.setBounceRate(i % 100 + 0.25f);
+			metric.setPercentExit(i % 50 + 0.5f);
+			metrics.add(metric);
+		}
+		EntityManager em = emf.createEntityManager();
+		em.getTransaction().begin();
+		em.createQuery("DELETE FROM WebMetric").executeUpdate();
+		dictionary.encode(em, metrics);
+		em.getTransaction().commit();
+		em.close();
+	}
+
+	@TearDown
+	public void cleanup(){
+		emf.close();
+	}
+
+	@Benchmark
+	public int insert(){
+		EntityManager em = emf.createEntityManager();
+		em.getTransaction().begin();
+		int written;
+		if ("PERSIST_EACH".equals(path)){
+			for (WebMetric metric : metrics)
+				em.persist(metric);
+			em.flush();
+			written = metrics.size();
+		}
+		else {
+			MetricBulkWriter.Mode mode = MetricBulkWriter.Mode.valueOf(path);
+			written = new MetricBulkWriter(em, mode, MetricBulkWriter.DEFAULT_BATCH_SIZE).write(metrics);
+		}
+		em.getTransaction().commit();
+		em.close();
+		return written;
+	}
+}
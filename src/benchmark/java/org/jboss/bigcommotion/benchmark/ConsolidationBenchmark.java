@@ -0,0 +1,78 @@
+package org.jboss.bigcommotion.benchmark;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.bigcommotion.model.WebMetric;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Folding a report's rows into one metric per page with WebMetric.addMetrics, the way
+ * AnalyticsPageViewParser.addOrUpdateMetric does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(3)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ConsolidationBenchmark {
+
+	@Param({ "2500", "25000" })
+	public int rows;
+
+	/** Rows per distinct page. */
+	@Param({ "1", "4" })
+	public int duplication;
+
+	private List<WebMetric> metrics;
+
+	/**
+	 * Generated once per iteration, as a setup around each call would add its own timestamps and
+	 * synchronization to a call this short.  The first row of each page accumulates the others on every invocation,
+	 * which changes its values but not the work done.
+	 */
+	@Setup(Level.Iteration)
+	public void generate(){
+		Date date = new Date();
+		metrics = new ArrayList<WebMetric>(rows);
+		for (int i = 0; i < rows; i++){
+			WebMetric metric = new WebMetric("Analytics jboss.org Pages 20131101-20131130.csv", "jboss.org", date);
+			metric.setPage("/project" + (i / duplication % 97) + "/page" + (i / duplication));
+			metric.setPageViews(1000 + i);
+			metric.setUniquePageViews(500 + i);
+			metric.setEntrances(100 + i);
+			metric.setBounceRate(i % 100 + 0.5f);
+			metric.setPercentExit(i % 50 + 0.25f);
+			metrics.add(metric);
+		}
+	}
+
+	@Benchmark
+	public Map<String, WebMetric> consolidate(){
+		Map<String, WebMetric> consolidated = new HashMap<String, WebMetric>();
+		for (WebMetric metric : metrics){
+			WebMetric existing = consolidated.get(metric.getPage());
+			if (existing != null)
+				existing.addMetrics(metric);
+			else
+				consolidated.put(metric.getPage(), metric);
+		}
+		return consolidated;
+	}
+}
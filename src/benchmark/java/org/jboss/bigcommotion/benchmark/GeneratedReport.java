@@ -0,0 +1,77 @@
+package org.jboss.bigcommotion.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Writes a synthetic Google Analytics Pages export shaped like the monthly jboss.org reports:
+ * seven header lines, page rows with quoted thousands, and a trailing daily summary section.
+ * Pages are drawn from the paths the page rules and classification rules act on, so rule
+ * evaluation and consolidation do representative work.
+ */
+public class GeneratedReport {
+
+	private static final String[] SECTIONS = { "/weld", "/seam", "/drools", "/hibernate", "/infinispan", "/tools", "/jbossas",
+			"/resteasy", "/arquillian", "/jbpm", "/products/eap", "/developer", "/about", "/community" };
+	private static final String[] SUFFIXES = { "", "/", "/docs", "/docs/", "/downloads", "/download/4.1.html", "/index.html",
+			"/news/2013-11", "/community/forums" };
+
+	private GeneratedReport(){
+	}
+
+	/**
+	 * @param dir directory named after the site, as under /opt/data
+	 * @param rows number of page rows
+	 * @return the report, named the way GoogleAnalyticsImportSingleton expects
+	 */
+	public static File write(File dir, int rows) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create " + dir);
+		File report = new File(dir, "Analytics " + dir.getName() + " Pages 20131101-20131130.csv");
+		OutputStream out = new FileOutputStream(report);
+		try {
+			out.write(contents(dir.getName(), rows).getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+		return report;
+	}
+
+	public static String contents(String site, int rows){
+		Random random = new Random(rows);
+		StringBuilder csv = new StringBuilder(rows * 96);
+		csv.append("# ----------------------------------------\n");
+		csv.append("# ").append(site).append('\n');
+		csv.append("# Pages\n");
+		csv.append("# 20131101-20131130\n");
+		csv.append("# ----------------------------------------\n");
+		csv.append('\n');
+		csv.append("Page,Pageviews,Unique Pageviews,Avg. Time on Page,Entrances,Bounce Rate,% Exit,Page Value\n");
+		for (int i = 0; i < rows; i++){
+			String section = SECTIONS[random.nextInt(SECTIONS.length)];
+			String suffix = SUFFIXES[random.nextInt(SUFFIXES.length)];
+			if (i % 17 == 0)
+				csv.append("\"/search?q=").append(section.substring(1)).append(",docs\"");
+			else if (i % 23 == 0)
+				csv.append("/jbossorg-downloads/jboss-").append(i % 7).append(".0.0.final");
+			else
+				csv.append(section).append("/page").append(i % (rows / 4 + 1)).append(suffix);
+			long views = 200000 / (i + 1) + 1;
+			csv.append(",\"").append(String.format(Locale.US, "%,d", views)).append("\",");
+			csv.append(views * 3 / 4).append(',');
+			csv.append("00:0").append(i % 10).append(':').append(10 + i % 50).append(',');
+			csv.append(views / 3).append(',');
+			csv.append(i % 100).append('.').append(i % 10).append("0%,");
+			csv.append((i * 7) % 100).append(".25%,$0.00\n");
+		}
+		csv.append('\n');
+		csv.append("Day Index,Pageviews\n");
+		for (int day = 1; day <= 30; day++)
+			csv.append("11/").append(day).append("/13,\"").append(String.format(Locale.US, "%,d", 40000 + day * 13)).append("\"\n");
+		return csv.toString();
+	}
+}
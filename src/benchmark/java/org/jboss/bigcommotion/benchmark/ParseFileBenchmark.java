@@ -0,0 +1,175 @@
+package org.jboss.bigcommotion.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.jboss.bigcommotion.model.WebMetric;
+import org.jboss.bigcommotion.services.AnalyticsPageViewParser;
+import org.jboss.bigcommotion.services.ColumnarMetricStore;
+import org.jboss.bigcommotion.services.DictionaryService;
+import org.jboss.bigcommotion.services.IngestLedger;
+import org.jboss.bigcommotion.services.IngestMetrics;
+import org.jboss.bigcommotion.services.MetricDictionary;
+import org.jboss.bigcommotion.services.MetricRuleEngine;
+import org.jboss.bigcommotion.services.PageClassificationService;
+import org.jboss.bigcommotion.services.PageNormalizationCache;
+import org.jboss.bigcommotion.services.QueryCache;
+import org.jboss.bigcommotion.services.RollupService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * AnalyticsPageViewParser.parseFile end to end on a generated export: ledger check, tokenizing,
+ * page rules, classification, consolidation, the bulk insert and monthly rollups, against the in-memory H2
+ * metrics-test persistence unit.  With <code>normalizationCached</code> the normalization cache is
+ * kept between invocations, as on a re-import; without it every row goes through the rules.
+ * <p>
+ * Each invocation needs emptied tables, so the benchmark is timed single shot, one invocation per
+ * iteration, with the tables emptied by the iteration setup outside the timed call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(3)
+@Warmup(iterations = 10)
+@Measurement(iterations = 30)
+public class ParseFileBenchmark {
+
+	private static final String SITE = "jboss.org";
+
+	@Param({ "2500" })
+	public int rows;
+
+	@Param({ "false", "true" })
+	public boolean normalizationCached;
+
+	private File dir;
+	private File report;
+	private Date startDate = new Date();
+	private EntityManagerFactory emf;
+	private MetricRuleEngine ruleEngine;
+	private PageClassificationService classificationService;
+	private ConcurrentMap<Object, Object> normalizedPages = new ConcurrentHashMap<Object, Object>();
+	private PageNormalizationCache normalizationCache;
+	private IngestMetrics ingestMetrics;
+
+	private EntityManager em;
+	private AnalyticsPageViewParser parser;
+
+	@Setup
+	public void setup() throws IOException {
+		dir = new File(System.getProperty("java.io.tmpdir"), "metrics-benchmark-" + System.nanoTime() + File.separator + SITE);
+		report = GeneratedReport.write(dir, rows);
+		emf = Persistence.createEntityManagerFactory("metrics-test");
+		ingestMetrics = new IngestMetrics();
+		ruleEngine = Beans.postConstruct(Beans.withLogger(new MetricRuleEngine()), "setup");
+		Beans.inject(ruleEngine, "ingestMetrics", ingestMetrics);
+		// Seeds the rules table from the classpath on the first run
+		EntityManager rulesEm = emf.createEntityManager();
+		rulesEm.getTransaction().begin();
+		classificationService = Beans.withLogger(new PageClassificationService());
+		Beans.inject(classificationService, "em", rulesEm);
+		Beans.inject(classificationService, "txRegistry", new Beans.NoTransactionRegistry());
+		Beans.postConstruct(classificationService, "setup");
+		rulesEm.getTransaction().commit();
+		rulesEm.close();
+		// A plain map in place of the Infinispan cache
+		normalizationCache = Beans.withLogger(new PageNormalizationCache());
+		Beans.inject(normalizationCache, "cache", normalizedPages);
+		Beans.inject(normalizationCache, "ruleEngine", ruleEngine);
+		Beans.inject(normalizationCache, "classificationService", classificationService);
+	}
+
+	@Setup(Level.Iteration)
+	public void prepareIteration(){
+		em = emf.createEntityManager();
+		em.getTransaction().begin();
+		em.createQuery("DELETE FROM WebMetric").executeUpdate();
+		em.createQuery("DELETE FROM IngestLedgerEntry").executeUpdate();
+		em.createQuery("DELETE FROM ProjectMonthRollup").executeUpdate();
+		em.createQuery("DELETE FROM PageMonthRollup").executeUpdate();
+		em.getTransaction().commit();
+		em.clear();
+		if (!normalizationCached)
+			normalizedPages.clear();
+
+		IngestLedger ledger = Beans.withLogger(new IngestLedger());
+		Beans.inject(ledger, "em", em);
+		Beans.inject(ledger, "txRegistry", new Beans.NoTransactionRegistry());
+
+		RollupService rollups = Beans.withLogger(new RollupService());
+		Beans.inject(rollups, "em", em);
+		Beans.inject(rollups, "context", Beans.selfContext(rollups));
+		Beans.inject(rollups, "queryCache", new QueryCache(){
+			@Override
+			public void invalidate(String site, Collection<Date> months){
+				// No Infinispan container outside the server
+			}
+		});
+		Beans.inject(rollups, "columnarStore", new ColumnarMetricStore(){
+			@Override
+			public void invalidate(String site, Collection<Date> months){
+				// Nothing is cached outside the server
+			}
+		});
+
+		final MetricDictionary terms = new MetricDictionary();
+		DictionaryService dictionary = new DictionaryService(){
+			@Override
+			public void encode(Collection<WebMetric> metrics){
+				// New terms go in the import's own transaction outside the server
+				terms.encode(em, metrics);
+			}
+		};
+
+		parser = Beans.withLogger(new AnalyticsPageViewParser());
+		Beans.inject(parser, "em", em);
+		Beans.inject(parser, "ruleEngine", ruleEngine);
+		Beans.inject(parser, "classificationService", classificationService);
+		Beans.inject(parser, "normalizationCache", normalizationCache);
+		Beans.inject(parser, "ledger", ledger);
+		Beans.inject(parser, "rollups", rollups);
+		Beans.inject(parser, "ingestMetrics", ingestMetrics);
+		Beans.inject(parser, "dictionary", dictionary);
+	}
+
+	@TearDown(Level.Iteration)
+	public void closeEntityManager(){
+		em.close();
+	}
+
+	@TearDown
+	public void cleanup(){
+		emf.close();
+		report.delete();
+		dir.delete();
+		dir.getParentFile().delete();
+	}
+
+	@Benchmark
+	public void parseFile(){
+		em.getTransaction().begin();
+		parser.parseFile(SITE, report, startDate);
+		em.getTransaction().commit();
+	}
+}
@@ -0,0 +1,73 @@
+package org.jboss.bigcommotion.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.bigcommotion.util.PrecompiledRules;
+import org.kie.api.KieBase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What the first import waits for before its rules can run: compiling the "logic" KieBase from
+ * PageCleanup.drl and MetricAnalysis.xls, against deserializing the copy precompiled by the build.
+ * Each is timed once per fresh JVM, as it happens on deployment.  Reads the precompiled copy from
+ * target/classes, so run it after a build.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(10)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+public class RuleBaseStartupBenchmark {
+
+	private byte[] serialized;
+	private String fingerprint;
+
+	@Setup
+	public void setup() throws IOException {
+		// Read the file as it is rather than through PrecompiledRules.get(), which would load the
+		// Drools classes before either benchmark runs
+		InputStream in = getClass().getClassLoader().getResourceAsStream(PrecompiledRules.SERIALIZED_RESOURCE);
+		if (in == null)
+			throw new IllegalStateException(PrecompiledRules.SERIALIZED_RESOURCE + " is missing, build the project first");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				out.write(buffer, 0, read);
+		} finally {
+			in.close();
+		}
+		serialized = out.toByteArray();
+		fingerprint = new DataInputStream(new ByteArrayInputStream(serialized)).readUTF();
+	}
+
+	@Benchmark
+	public KieBase compile(){
+		KieBase kieBase = PrecompiledRules.compile();
+		kieBase.newStatelessKieSession();
+		return kieBase;
+	}
+
+	@Benchmark
+	public KieBase loadPrecompiled() throws IOException {
+		KieBase kieBase = PrecompiledRules.load(new ByteArrayInputStream(serialized), fingerprint);
+		kieBase.newStatelessKieSession();
+		return kieBase;
+	}
+}
@@ -0,0 +1,94 @@
+package org.jboss.bigcommotion.benchmark;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.bigcommotion.model.WebMetric;
+import org.jboss.bigcommotion.services.IngestMetrics;
+import org.jboss.bigcommotion.services.MetricRuleEngine;
+import org.kie.api.KieServices;
+import org.kie.api.runtime.KieContainer;
+import org.kie.api.runtime.StatelessKieSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Drools costs for the webmetrics-stateless session: creating the session from an already built
+ * container, executing it once per row as the parser originally did, and executing it in batches
+ * through MetricRuleEngine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(3)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RulesBenchmark {
+
+	private static final String STATELESS_SESSION_NAME = "webmetrics-stateless";
+
+	@Param({ "2500" })
+	public int rows;
+
+	private KieContainer kContainer;
+	private MetricRuleEngine ruleEngine;
+	private List<String> pages;
+
+	@Setup
+	public void setup(){
+		kContainer = KieServices.Factory.get().getKieClasspathContainer();
+		kContainer.newStatelessKieSession(STATELESS_SESSION_NAME);
+		ruleEngine = Beans.postConstruct(Beans.withLogger(new MetricRuleEngine()), "setup");
+		Beans.inject(ruleEngine, "ingestMetrics", new IngestMetrics());
+		pages = new ArrayList<String>(rows);
+		for (String line : GeneratedReport.contents("jboss.org", rows).split("\n")){
+			if (line.startsWith("/") || line.startsWith("\"/"))
+				pages.add(line.substring(0, line.indexOf(line.startsWith("\"") ? "\"," : ",")));
+		}
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public StatelessKieSession createSession(){
+		return kContainer.newStatelessKieSession(STATELESS_SESSION_NAME);
+	}
+
+	@Benchmark
+	public List<WebMetric> executePerRow(){
+		List<WebMetric> metrics = metrics();
+		StatelessKieSession session = kContainer.newStatelessKieSession(STATELESS_SESSION_NAME);
+		for (WebMetric metric : metrics)
+			session.execute(metric);
+		return metrics;
+	}
+
+	@Benchmark
+	public List<WebMetric> executeBatched(){
+		List<WebMetric> metrics = metrics();
+		ruleEngine.execute(metrics);
+		return metrics;
+	}
+
+	private List<WebMetric> metrics(){
+		Date date = new Date();
+		List<WebMetric> metrics = new ArrayList<WebMetric>(pages.size());
+		for (String page : pages){
+			WebMetric metric = new WebMetric("Analytics jboss.org Pages 20131101-20131130.csv", "jboss.org", date);
+			metric.setPage(page);
+			metric.setProject("jboss.org");
+			metrics.add(metric);
+		}
+		return metrics;
+	}
+}
@@ -0,0 +1,71 @@
+package org.jboss.bigcommotion.benchmark;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.bigcommotion.util.PageViewReportTokenizer;
+import org.jboss.bigcommotion.util.Resources;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * CSV decoding as done by AnalyticsPageViewParser: a whole export through the tokenizer, and the
+ * per-field String helpers in Resources that the tokenizer's primitive decoders replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(3)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TokenizerBenchmark {
+
+	private static final int HEADER_LINES = 7;
+
+	@Param({ "2500", "25000" })
+	public int rows;
+
+	private String export;
+
+	@Setup
+	public void generate(){
+		export = GeneratedReport.contents("jboss.org", rows);
+	}
+
+	@Benchmark
+	public long tokenizeExport() throws IOException {
+		PageViewReportTokenizer tokenizer = new PageViewReportTokenizer(new StringReader(export));
+		tokenizer.skipLines(HEADER_LINES);
+		long total = 0;
+		while (tokenizer.nextLine() && tokenizer.getFieldCount() >= 7){
+			total += tokenizer.getString(0).length();
+			total += tokenizer.getLong(1) + tokenizer.getLong(2) + tokenizer.getDuration(3) + tokenizer.getLong(4);
+			total += (long) (tokenizer.getPercentage(5) + tokenizer.getPercentage(6));
+		}
+		return total;
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public void stripQuotes(Blackhole blackhole){
+		blackhole.consume(Resources.stripQuotes("\"1,234,567\""));
+		blackhole.consume(Resources.stripQuotes("4567"));
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public Float parsePercentage(){
+		return Resources.parsePercentage("45.67%");
+	}
+}
@@ -0,0 +1,195 @@
+package org.jboss.bigcommotion.model;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.Version;
+
+/**
+ * Progress of re-importing the archived reports of a range of months, for one site or all of them.
+ * Each report's rows are replaced in a transaction of its own that also completes its ingest ledger
+ * entry, so the reports re-imported since {@link #getStartedAt()} are the ones whose ledger entries
+ * completed since then; the counts here are for reporting only.
+ */
+@Entity
+public class BackfillCheckpoint implements Serializable
+{
+
+	private static final long serialVersionUID = 2216508419931468032L;
+
+	public enum Status { RUNNING, COMPLETED, CANCELLED }
+
+	@Id
+	@GeneratedValue(strategy = GenerationType.AUTO)
+	@Column(name = "id", updatable = false, nullable = false)
+	private Long id = null;
+	@Version
+	@Column(name = "version")
+	private int version = 0;
+
+	@Enumerated(EnumType.STRING)
+	@Column(length = 16, nullable = false)
+	private Status status;
+
+	@Column(length = 128)
+	private String site;
+
+	@Temporal(TemporalType.DATE)
+	@Column(nullable = false)
+	private Date fromMonth;
+
+	@Temporal(TemporalType.DATE)
+	@Column(nullable = false)
+	private Date toMonth;
+
+	@Column
+	private int parallelism;
+
+	@Column
+	private int files;
+
+	@Column
+	private int skipped;
+
+	@Column
+	private int failed;
+
+	@Column
+	private long rowCount;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date startedAt;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date updatedAt;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date completedAt;
+
+	public BackfillCheckpoint(){
+
+	}
+
+	/**
+	 * @param site site to re-import, or null for every site
+	 * @param fromMonth first month to re-import
+	 * @param toMonth last month to re-import
+	 * @param parallelism number of reports re-imported at once
+	 */
+	public BackfillCheckpoint(String site, Date fromMonth, Date toMonth, int parallelism){
+		assert fromMonth != null && toMonth != null : "fromMonth and toMonth must be specified";
+		assert parallelism > 0 : "parallelism must be positive";
+		this.site = site;
+		this.fromMonth = MonthlyRollup.monthOf(fromMonth);
+		this.toMonth = MonthlyRollup.monthOf(toMonth);
+		this.parallelism = parallelism;
+		this.status = Status.RUNNING;
+		this.startedAt = new Date();
+		this.updatedAt = startedAt;
+	}
+
+	/**
+	 * Records reports finished since the last call: re-imported with <code>rowCount</code> metrics
+	 * between them, skipped as copies of other reports, or failed and left as they were.
+	 */
+	public void advance(int files, int skipped, int failed, long rowCount){
+		this.files += files;
+		this.skipped += skipped;
+		this.failed += failed;
+		this.rowCount += rowCount;
+		this.updatedAt = new Date();
+	}
+
+	public void complete(){
+		this.status = Status.COMPLETED;
+		this.updatedAt = new Date();
+		this.completedAt = updatedAt;
+	}
+
+	public void cancel(){
+		this.status = Status.CANCELLED;
+		this.updatedAt = new Date();
+		this.completedAt = updatedAt;
+	}
+
+	public Long getId()
+	{
+		return id;
+	}
+
+	public Status getStatus()
+	{
+		return status;
+	}
+
+	public String getSite()
+	{
+		return site;
+	}
+
+	public Date getFromMonth()
+	{
+		return fromMonth;
+	}
+
+	public Date getToMonth()
+	{
+		return toMonth;
+	}
+
+	public int getParallelism()
+	{
+		return parallelism;
+	}
+
+	public int getFiles()
+	{
+		return files;
+	}
+
+	public int getSkipped()
+	{
+		return skipped;
+	}
+
+	public int getFailed()
+	{
+		return failed;
+	}
+
+	public long getRowCount()
+	{
+		return rowCount;
+	}
+
+	public Date getStartedAt()
+	{
+		return startedAt;
+	}
+
+	public Date getUpdatedAt()
+	{
+		return updatedAt;
+	}
+
+	public Date getCompletedAt()
+	{
+		return completedAt;
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + " id: " + id + ", status: " + status + ", site: " + site + ", fromMonth: " + fromMonth
+				+ ", toMonth: " + toMonth + ", files: " + files + ", failed: " + failed;
+	}
+}
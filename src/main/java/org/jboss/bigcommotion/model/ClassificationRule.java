@@ -0,0 +1,130 @@
+package org.jboss.bigcommotion.model;
+
+import java.io.Serializable;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+import org.jboss.bigcommotion.util.PageClassifier;
+
+/**
+ * One page rewrite or project classification rule, applied in {@link #getPosition()} order.  The
+ * table is seeded from logic/PageClassification.rules when it is empty; after that the table is
+ * what the importer uses.  See that file for the meaning of each column.
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "UK_CLASSIFICATIONRULE_POSITION", columnNames = "position"))
+public class ClassificationRule implements Serializable
+{
+
+	private static final long serialVersionUID = 5120873367745012298L;
+
+	@Id
+	@GeneratedValue(strategy = GenerationType.AUTO)
+	@Column(name = "id", updatable = false, nullable = false)
+	private Long id = null;
+
+	@Column(nullable = false)
+	private int position;
+
+	@Enumerated(EnumType.STRING)
+	@Column(length = 8, nullable = false)
+	private PageClassifier.Action action;
+
+	@Enumerated(EnumType.STRING)
+	@Column(name = "matchType", length = 16, nullable = false)
+	private PageClassifier.Match match;
+
+	@Column(nullable = false)
+	private boolean ignoreCase;
+
+	@Column(length = 128, nullable = false)
+	private String site;
+
+	@Column(length = 128, nullable = false)
+	private String whenProject;
+
+	@Column(length = 512, nullable = false)
+	private String pattern;
+
+	@Column(name = "ruleValue", length = 512, nullable = false)
+	private String value;
+
+	public ClassificationRule(){
+
+	}
+
+	public ClassificationRule(int position, PageClassifier.Rule rule){
+		assert rule != null : "rule must be specified";
+		this.position = position;
+		this.action = rule.getAction();
+		this.match = rule.getMatch();
+		this.ignoreCase = rule.isIgnoreCase();
+		this.site = rule.getSite();
+		this.whenProject = rule.getWhenProject();
+		this.pattern = rule.getPattern();
+		this.value = rule.getValue();
+	}
+
+	public PageClassifier.Rule toRule(){
+		return new PageClassifier.Rule(action, match, ignoreCase, site, whenProject, pattern, value);
+	}
+
+	public Long getId()
+	{
+		return id;
+	}
+
+	public int getPosition()
+	{
+		return position;
+	}
+
+	public PageClassifier.Action getAction()
+	{
+		return action;
+	}
+
+	public PageClassifier.Match getMatch()
+	{
+		return match;
+	}
+
+	public boolean isIgnoreCase()
+	{
+		return ignoreCase;
+	}
+
+	public String getSite()
+	{
+		return site;
+	}
+
+	public String getWhenProject()
+	{
+		return whenProject;
+	}
+
+	public String getPattern()
+	{
+		return pattern;
+	}
+
+	public String getValue()
+	{
+		return value;
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + " id: " + id + ", position: " + position + ", " + toRule().toLine();
+	}
+}
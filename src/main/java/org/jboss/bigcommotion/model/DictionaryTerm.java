@@ -0,0 +1,94 @@
+package org.jboss.bigcommotion.model;
+
+import java.io.Serializable;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.TableGenerator;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * One distinct site, page, project or report file name.  WebMetric rows hold the id of each of
+ * their strings instead of the strings themselves, so the same URL is stored once rather than
+ * once per site, month and report.
+ * <p>
+ * Terms can be longer than a MySQL index allows, so they are unique on an MD5 of the term, as
+ * {@link PageMonthRollup} is.  Terms are never changed or removed once written.
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "UK_DICTIONARYTERM", columnNames = { "kind", "termKey" }))
+public class DictionaryTerm implements Serializable
+{
+
+	private static final long serialVersionUID = 2384213094857710134L;
+
+	public enum Kind { SITE, PAGE, PROJECT, FILE }
+
+	@Id
+	@TableGenerator(name = "DictionaryTermIds", table = "IdGenerator", pkColumnName = "name", valueColumnName = "nextId",
+			pkColumnValue = "DictionaryTerm", allocationSize = 50)
+	@GeneratedValue(strategy = GenerationType.TABLE, generator = "DictionaryTermIds")
+	@Column(name = "id", updatable = false, nullable = false)
+	private Integer id = null;
+
+	@Enumerated(EnumType.STRING)
+	@Column(length = 8, nullable = false, updatable = false)
+	private Kind kind;
+
+	@Column(length = 32, nullable = false, updatable = false)
+	private String termKey;
+
+	@Column(length = 1024, nullable = false, updatable = false)
+	private String term;
+
+	public DictionaryTerm(){
+
+	}
+
+	public DictionaryTerm(Kind kind, String term){
+		assert kind != null : "kind must be specified";
+		assert term != null : "term must be specified";
+		this.kind = kind;
+		this.term = term;
+		this.termKey = keyOf(term);
+	}
+
+	/**
+	 * @return hex encoded MD5 of the term, the same as MySQL's <code>MD5(term)</code>
+	 */
+	public static String keyOf(String term){
+		return PageMonthRollup.keyOf(term);
+	}
+
+	public Integer getId()
+	{
+		return id;
+	}
+
+	public Kind getKind()
+	{
+		return kind;
+	}
+
+	public String getTermKey()
+	{
+		return termKey;
+	}
+
+	public String getTerm()
+	{
+		return term;
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + " id: " + id + ", kind: " + kind + ", term: " + term;
+	}
+}
@@ -0,0 +1,181 @@
+package org.jboss.bigcommotion.model;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.Version;
+
+/**
+ * One row per report file sent to the import queue, with the size and modification time it had
+ * when it was sent, so a restart does not send it again and a changed file can be told apart.
+ */
+@Entity
+public class DispatchRecord implements Serializable
+{
+
+	private static final long serialVersionUID = 6409522018437102653L;
+
+	/**
+	 * DISPATCHED until the ingest ledger shows the file as processed, then SETTLED.
+	 */
+	public enum Status { DISPATCHED, SETTLED }
+
+	@Id
+	@GeneratedValue(strategy = GenerationType.AUTO)
+	@Column(name = "id", updatable = false, nullable = false)
+	private Long id = null;
+	@Version
+	@Column(name = "version")
+	private int version = 0;
+
+	@Column(nullable = false, unique = true)
+	private String path;
+
+	@Column
+	private String site;
+
+	@Column
+	private long length;
+
+	@Column
+	private long lastModified;
+
+	@Enumerated(EnumType.STRING)
+	@Column(length = 16, nullable = false)
+	private Status status;
+
+	@Column
+	private int attempts;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date dispatchedAt;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date settledAt;
+
+	public DispatchRecord(){
+
+	}
+
+	public DispatchRecord(String path, String site) {
+		this.setPath(path);
+		this.setSite(site);
+		this.setStatus(Status.DISPATCHED);
+	}
+
+	public Long getId()
+	{
+		return this.id;
+	}
+
+	public void setId(final Long id)
+	{
+		this.id = id;
+	}
+
+	public int getVersion()
+	{
+		return this.version;
+	}
+
+	public void setVersion(final int version)
+	{
+		this.version = version;
+	}
+
+	public String getPath()
+	{
+		return path;
+	}
+
+	public void setPath(final String path)
+	{
+		this.path = path;
+	}
+
+	public String getSite()
+	{
+		return site;
+	}
+
+	public void setSite(final String site)
+	{
+		this.site = site;
+	}
+
+	public long getLength()
+	{
+		return length;
+	}
+
+	public void setLength(final long length)
+	{
+		this.length = length;
+	}
+
+	public long getLastModified()
+	{
+		return lastModified;
+	}
+
+	public void setLastModified(final long lastModified)
+	{
+		this.lastModified = lastModified;
+	}
+
+	public Status getStatus()
+	{
+		return status;
+	}
+
+	public void setStatus(final Status status)
+	{
+		this.status = status;
+	}
+
+	public int getAttempts()
+	{
+		return attempts;
+	}
+
+	public void setAttempts(final int attempts)
+	{
+		this.attempts = attempts;
+	}
+
+	public Date getDispatchedAt()
+	{
+		return dispatchedAt;
+	}
+
+	public void setDispatchedAt(final Date dispatchedAt)
+	{
+		this.dispatchedAt = dispatchedAt;
+	}
+
+	public Date getSettledAt()
+	{
+		return settledAt;
+	}
+
+	public void setSettledAt(final Date settledAt)
+	{
+		this.settledAt = settledAt;
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + " path: " + path + ", status: " + status + ", attempts: " + attempts
+				+ ", dispatchedAt: " + dispatchedAt;
+	}
+}
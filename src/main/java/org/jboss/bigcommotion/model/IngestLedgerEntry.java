@@ -0,0 +1,256 @@
+package org.jboss.bigcommotion.model;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.Version;
+
+import org.hibernate.annotations.Index;
+
+/**
+ * One row per report file the importer has looked at, keyed by path and by a checksum of its contents.
+ */
+@Entity
+public class IngestLedgerEntry implements Serializable
+{
+
+	private static final long serialVersionUID = -3546201947813286741L;
+
+	public enum Status { PROCESSING, COMPLETED, FAILED, DUPLICATE }
+
+	@Id
+	@GeneratedValue(strategy = GenerationType.AUTO)
+	@Column(name = "id", updatable = false, nullable = false)
+	private Long id = null;
+	@Version
+	@Column(name = "version")
+	private int version = 0;
+
+	@Column(nullable = false, unique = true)
+	private String path;
+
+	// Null for files recorded before the ledger existed whose report is no longer on disk.
+	@Index(name = "IDX_INGESTLEDGER_CHECKSUM")
+	@Column(length = 40)
+	private String checksum;
+
+	@Enumerated(EnumType.STRING)
+	@Column(length = 16, nullable = false)
+	private Status status;
+
+	@Column
+	private String site;
+
+	@Temporal(TemporalType.DATE)
+	private Date reportDate;
+
+	@Column
+	private int rowCount;
+
+	@Column
+	private long durationMillis;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date startedAt;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date completedAt;
+
+	@Column
+	private String note;
+
+	// Chunked import the entry was last begun for; the chunks of any earlier one are not saved.
+	@Column(length = 36)
+	private String importId;
+
+	public IngestLedgerEntry(){
+
+	}
+
+	public IngestLedgerEntry(String path, String checksum, String site, Date reportDate, Status status) {
+		this.setPath(path);
+		this.setChecksum(checksum);
+		this.setSite(site);
+		this.setReportDate(reportDate);
+		this.setStatus(status);
+		this.setStartedAt(new Date());
+	}
+
+	public Long getId()
+	{
+		return this.id;
+	}
+
+	public void setId(final Long id)
+	{
+		this.id = id;
+	}
+
+	public int getVersion()
+	{
+		return this.version;
+	}
+
+	public void setVersion(final int version)
+	{
+		this.version = version;
+	}
+
+	public String getPath()
+	{
+		return path;
+	}
+
+	public void setPath(final String path)
+	{
+		this.path = path;
+	}
+
+	public String getChecksum()
+	{
+		return checksum;
+	}
+
+	public void setChecksum(final String checksum)
+	{
+		this.checksum = checksum;
+	}
+
+	public Status getStatus()
+	{
+		return status;
+	}
+
+	public void setStatus(final Status status)
+	{
+		this.status = status;
+	}
+
+	public String getSite()
+	{
+		return site;
+	}
+
+	public void setSite(final String site)
+	{
+		this.site = site;
+	}
+
+	public Date getReportDate()
+	{
+		return reportDate;
+	}
+
+	public void setReportDate(final Date reportDate)
+	{
+		this.reportDate = reportDate;
+	}
+
+	public int getRowCount()
+	{
+		return rowCount;
+	}
+
+	public void setRowCount(final int rowCount)
+	{
+		this.rowCount = rowCount;
+	}
+
+	public long getDurationMillis()
+	{
+		return durationMillis;
+	}
+
+	public void setDurationMillis(final long durationMillis)
+	{
+		this.durationMillis = durationMillis;
+	}
+
+	public Date getStartedAt()
+	{
+		return startedAt;
+	}
+
+	public void setStartedAt(final Date startedAt)
+	{
+		this.startedAt = startedAt;
+	}
+
+	public Date getCompletedAt()
+	{
+		return completedAt;
+	}
+
+	public void setCompletedAt(final Date completedAt)
+	{
+		this.completedAt = completedAt;
+	}
+
+	public String getNote()
+	{
+		return note;
+	}
+
+	public void setNote(final String note)
+	{
+		this.note = note;
+	}
+
+	public String getImportId()
+	{
+		return importId;
+	}
+
+	public void setImportId(final String importId)
+	{
+		this.importId = importId;
+	}
+
+	@Override
+	public boolean equals(Object that)
+	{
+		if (this == that)
+		{
+			return true;
+		}
+		if (that == null)
+		{
+			return false;
+		}
+		if (getClass() != that.getClass())
+		{
+			return false;
+		}
+		if (id != null)
+		{
+			return id.equals(((IngestLedgerEntry) that).id);
+		}
+		return super.equals(that);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		if (id != null)
+		{
+			return id.hashCode();
+		}
+		return super.hashCode();
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + " path: " + path + ", checksum: " + checksum + ", status: " + status
+				+ ", rowCount: " + rowCount + ", durationMillis: " + durationMillis;
+	}
+}
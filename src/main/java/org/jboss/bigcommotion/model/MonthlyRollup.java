@@ -0,0 +1,233 @@
+package org.jboss.bigcommotion.model;
+
+import java.io.Serializable;
+import java.util.Calendar;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.MappedSuperclass;
+import javax.persistence.TableGenerator;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.Version;
+
+/**
+ * Monthly totals of WebMetric rows.  Counters are additive, and bounce rate, exit rate and time
+ * on page are kept as pageview weighted sums so that adding a file's metrics, in any order,
+ * gives the same rates as computing them over every row at once.
+ */
+@MappedSuperclass
+public abstract class MonthlyRollup implements Serializable
+{
+
+	private static final long serialVersionUID = -1503390285047127714L;
+
+	@Id
+	@TableGenerator(name = "MonthlyRollupIds", table = "IdGenerator", pkColumnName = "name", valueColumnName = "nextId",
+			pkColumnValue = "MonthlyRollup", allocationSize = 500)
+	@GeneratedValue(strategy = GenerationType.TABLE, generator = "MonthlyRollupIds")
+	@Column(name = "id", updatable = false, nullable = false)
+	private Long id = null;
+	@Version
+	@Column(name = "version")
+	private int version = 0;
+
+	@Column(length = 128, nullable = false)
+	private String site;
+
+	@Temporal(TemporalType.DATE)
+	@Column(nullable = false)
+	private Date month;
+
+	@Column
+	private long pageViews;
+
+	@Column
+	private long uniquePageViews;
+
+	@Column
+	private long entrances;
+
+	// Sum of pageViews * rate over every row added
+	@Column
+	private double bounceRateWeight;
+
+	@Column
+	private double percentExitWeight;
+
+	@Column
+	private double timeOnPageWeight;
+
+	@Column
+	private int rowCount;
+
+	protected MonthlyRollup(){
+
+	}
+
+	protected MonthlyRollup(String site, Date month){
+		this.site = site;
+		this.month = monthOf(month);
+	}
+
+	/**
+	 * @return midnight on the first day of the date's month
+	 */
+	public static Date monthOf(Date date){
+		assert date != null : "date must be specified";
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(date);
+		calendar.set(Calendar.DAY_OF_MONTH, 1);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		return calendar.getTime();
+	}
+
+	/**
+	 * @return midnight on the first day of the following month
+	 */
+	public static Date nextMonth(Date month){
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(monthOf(month));
+		calendar.add(Calendar.MONTH, 1);
+		return calendar.getTime();
+	}
+
+	/**
+	 * Adds a metric's counters and weighted rates.
+	 */
+	public void add(WebMetric metric){
+		assert metric != null : "metric must be specified";
+		pageViews += metric.getPageViews();
+		uniquePageViews += metric.getUniquePageViews();
+		entrances += metric.getEntrances();
+		if (metric.getBounceRate() != null)
+			bounceRateWeight += metric.getPageViews() * metric.getBounceRate().doubleValue();
+		if (metric.getPercentExit() != null)
+			percentExitWeight += metric.getPageViews() * metric.getPercentExit().doubleValue();
+		timeOnPageWeight += (double) metric.getPageViews() * metric.getAverageTimeOnPage();
+		rowCount++;
+	}
+
+	/**
+	 * Adds another rollup's totals, for merging in memory before writing.
+	 */
+	public void add(MonthlyRollup other){
+		assert other != null : "other must be specified";
+		pageViews += other.pageViews;
+		uniquePageViews += other.uniquePageViews;
+		entrances += other.entrances;
+		bounceRateWeight += other.bounceRateWeight;
+		percentExitWeight += other.percentExitWeight;
+		timeOnPageWeight += other.timeOnPageWeight;
+		rowCount += other.rowCount;
+	}
+
+	/**
+	 * @return bounce rate as a percentage, weighted by pageviews
+	 */
+	public float getBounceRate(){
+		return pageViews == 0 ? 0f : (float) (bounceRateWeight / pageViews);
+	}
+
+	/**
+	 * @return exit rate as a percentage, weighted by pageviews
+	 */
+	public float getPercentExit(){
+		return pageViews == 0 ? 0f : (float) (percentExitWeight / pageViews);
+	}
+
+	/**
+	 * @return average time on page in seconds, weighted by pageviews
+	 */
+	public int getAverageTimeOnPage(){
+		return pageViews == 0 ? 0 : (int) Math.round(timeOnPageWeight / pageViews);
+	}
+
+	public Long getId()
+	{
+		return this.id;
+	}
+
+	public void setId(final Long id)
+	{
+		this.id = id;
+	}
+
+	public int getVersion()
+	{
+		return this.version;
+	}
+
+	public void setVersion(final int version)
+	{
+		this.version = version;
+	}
+
+	public String getSite()
+	{
+		return site;
+	}
+
+	public Date getMonth()
+	{
+		return month;
+	}
+
+	public long getPageViews()
+	{
+		return pageViews;
+	}
+
+	public long getUniquePageViews()
+	{
+		return uniquePageViews;
+	}
+
+	public long getEntrances()
+	{
+		return entrances;
+	}
+
+	public int getRowCount()
+	{
+		return rowCount;
+	}
+
+	@Override
+	public boolean equals(Object that)
+	{
+		if (this == that)
+		{
+			return true;
+		}
+		if (that == null)
+		{
+			return false;
+		}
+		if (getClass() != that.getClass())
+		{
+			return false;
+		}
+		if (id != null)
+		{
+			return id.equals(((MonthlyRollup) that).id);
+		}
+		return super.equals(that);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		if (id != null)
+		{
+			return id.hashCode();
+		}
+		return super.hashCode();
+	}
+}
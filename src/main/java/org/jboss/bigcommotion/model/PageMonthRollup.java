@@ -0,0 +1,92 @@
+package org.jboss.bigcommotion.model;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * Monthly totals for a page on a site.  Pages can be up to 512 characters, which is too long for
+ * a MySQL index alongside the site, so rows are keyed on an MD5 of the page instead.
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "UK_PAGEMONTHROLLUP", columnNames = { "site", "month", "pageKey" }))
+public class PageMonthRollup extends MonthlyRollup
+{
+
+	private static final long serialVersionUID = -2987106614012894523L;
+
+	@Column(length = 32, nullable = false)
+	private String pageKey;
+
+	@Column(length = 512, nullable = false)
+	private String page;
+
+	// Assigned by the classification rules, which always classify a page the same way
+	@Column(length = 128)
+	private String project;
+
+	public PageMonthRollup(){
+
+	}
+
+	public PageMonthRollup(String site, String page, Date month){
+		super(site, month);
+		this.page = page;
+		this.pageKey = keyOf(page);
+	}
+
+	/**
+	 * @return hex encoded MD5 of the page
+	 */
+	public static String keyOf(String page){
+		assert page != null : "page must be specified";
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(page.getBytes("UTF-8"));
+			char[] hex = new char[digest.length * 2];
+			for (int i = 0; i < digest.length; i++){
+				hex[i * 2] = Character.forDigit((digest[i] >> 4) & 0xf, 16);
+				hex[i * 2 + 1] = Character.forDigit(digest[i] & 0xf, 16);
+			}
+			return new String(hex);
+		} catch (NoSuchAlgorithmException nsae){
+			throw new IllegalStateException("MD5 is not available", nsae);
+		} catch (UnsupportedEncodingException uee){
+			throw new IllegalStateException("UTF-8 is not available", uee);
+		}
+	}
+
+	@Override
+	public void add(WebMetric metric){
+		if (metric.getProject() != null)
+			project = metric.getProject();
+		super.add(metric);
+	}
+
+	public String getPageKey()
+	{
+		return pageKey;
+	}
+
+	public String getPage()
+	{
+		return page;
+	}
+
+	public String getProject()
+	{
+		return project;
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + " site: " + getSite() + ", page: " + page + ", month: " + getMonth()
+				+ ", pageViews: " + getPageViews() + ", bounceRate: " + getBounceRate() + ", percentExit: " + getPercentExit();
+	}
+}
@@ -0,0 +1,43 @@
+package org.jboss.bigcommotion.model;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * Monthly totals for a project on a site.
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "UK_PROJECTMONTHROLLUP", columnNames = { "site", "project", "month" }))
+public class ProjectMonthRollup extends MonthlyRollup
+{
+
+	private static final long serialVersionUID = 8064719375360217782L;
+
+	@Column(length = 128, nullable = false)
+	private String project;
+
+	public ProjectMonthRollup(){
+
+	}
+
+	public ProjectMonthRollup(String site, String project, Date month){
+		super(site, month);
+		this.project = project;
+	}
+
+	public String getProject()
+	{
+		return project;
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + " site: " + getSite() + ", project: " + project + ", month: " + getMonth()
+				+ ", pageViews: " + getPageViews() + ", bounceRate: " + getBounceRate() + ", percentExit: " + getPercentExit();
+	}
+}
@@ -0,0 +1,165 @@
+package org.jboss.bigcommotion.model;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import javax.persistence.TableGenerator;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.Transient;
+import javax.persistence.UniqueConstraint;
+import javax.persistence.Version;
+
+import org.jboss.bigcommotion.util.HyperLogLog;
+import org.jboss.bigcommotion.util.SpaceSaving;
+
+/**
+ * Sketches of a project's pages in one month on a site, by page dictionary id: a
+ * {@link HyperLogLog} of the distinct pages and a {@link SpaceSaving} summary of the most viewed.
+ * Both merge, so any range of months, sites and projects is answered from the sketches of its
+ * months, with known error bounds, instead of from the WebMetric rows.
+ * <p>
+ * The sketches are kept decoded while they are being added to; call {@link #encode} to write them
+ * back to the columns.
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "UK_PROJECTMONTHSKETCH", columnNames = { "site", "project", "month" }))
+public class ProjectMonthSketch implements Serializable
+{
+
+	private static final long serialVersionUID = 3170824659521145603L;
+
+	@Id
+	@TableGenerator(name = "ProjectMonthSketchIds", table = "IdGenerator", pkColumnName = "name", valueColumnName = "nextId",
+			pkColumnValue = "ProjectMonthSketch", allocationSize = 100)
+	@GeneratedValue(strategy = GenerationType.TABLE, generator = "ProjectMonthSketchIds")
+	@Column(name = "id", updatable = false, nullable = false)
+	private Long id = null;
+	@Version
+	@Column(name = "version")
+	private int version = 0;
+
+	@Column(length = 128, nullable = false)
+	private String site;
+
+	@Column(length = 128, nullable = false)
+	private String project;
+
+	@Temporal(TemporalType.DATE)
+	@Column(nullable = false)
+	private Date month;
+
+	@Lob
+	@Column(nullable = false)
+	private byte[] distinctPages;
+
+	@Lob
+	@Column(nullable = false)
+	private byte[] topPages;
+
+	@Transient
+	private transient HyperLogLog distinct;
+
+	@Transient
+	private transient SpaceSaving top;
+
+	public ProjectMonthSketch(){
+
+	}
+
+	/**
+	 * Empty sketches.  Site and project are null in sketches merged across them.
+	 */
+	public ProjectMonthSketch(String site, String project, Date month){
+		this.site = site;
+		this.project = project;
+		this.month = month == null ? null : MonthlyRollup.monthOf(month);
+		this.distinct = new HyperLogLog();
+		this.top = new SpaceSaving();
+		encode();
+	}
+
+	/**
+	 * Adds a saved metric's page and pageviews.  Metrics without a page id are ignored.
+	 */
+	public void add(WebMetric metric){
+		assert metric != null : "metric must be specified";
+		if (metric.getPageId() != null)
+			add(metric.getPageId().intValue(), metric.getPageViews());
+	}
+
+	public void add(int pageId, long pageViews){
+		getDistinctPages().add(pageId);
+		getTopPages().offer(pageId, pageViews);
+	}
+
+	/**
+	 * Merges another month's, site's or project's sketches into these.
+	 */
+	public void add(ProjectMonthSketch other){
+		assert other != null : "other must be specified";
+		getDistinctPages().merge(other.getDistinctPages());
+		getTopPages().merge(other.getTopPages());
+	}
+
+	/**
+	 * Writes the sketches back to their columns.
+	 */
+	public void encode(){
+		if (distinct != null)
+			distinctPages = distinct.toBytes();
+		if (top != null)
+			topPages = top.toBytes();
+	}
+
+	public HyperLogLog getDistinctPages(){
+		if (distinct == null)
+			distinct = HyperLogLog.fromBytes(distinctPages);
+		return distinct;
+	}
+
+	public SpaceSaving getTopPages(){
+		if (top == null)
+			top = SpaceSaving.fromBytes(topPages);
+		return top;
+	}
+
+	public Long getId()
+	{
+		return this.id;
+	}
+
+	public int getVersion()
+	{
+		return this.version;
+	}
+
+	public String getSite()
+	{
+		return site;
+	}
+
+	public String getProject()
+	{
+		return project;
+	}
+
+	public Date getMonth()
+	{
+		return month;
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + " site: " + site + ", project: " + project + ", month: " + month
+				+ ", distinctPages: " + getDistinctPages().cardinality() + ", pageViews: " + getTopPages().getTotal();
+	}
+}
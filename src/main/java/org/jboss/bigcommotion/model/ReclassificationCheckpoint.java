@@ -0,0 +1,254 @@
+package org.jboss.bigcommotion.model;
+
+import java.io.Serializable;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.Version;
+
+/**
+ * Progress of reclassifying the WebMetric projects under one set of classification rules, identified
+ * by the rules' fingerprint.  Rows are visited in id order, so {@link #getLastMetricId()} is all
+ * that is needed to carry on where the last batch stopped.
+ * <p>
+ * The site/months whose rows changed project are kept as dirty until their rollups are rebuilt,
+ * once every row has been visited, so a month changed by many batches is rebuilt only once.
+ */
+@Entity
+public class ReclassificationCheckpoint implements Serializable
+{
+
+	private static final long serialVersionUID = -6409912853321776302L;
+
+	public enum Status { RUNNING, COMPLETED, SUPERSEDED }
+
+	private static final String MONTH_FORMAT = "yyyy-MM";
+
+	@Id
+	@GeneratedValue(strategy = GenerationType.AUTO)
+	@Column(name = "id", updatable = false, nullable = false)
+	private Long id = null;
+	@Version
+	@Column(name = "version")
+	private int version = 0;
+
+	@Column(length = 40, nullable = false, unique = true)
+	private String fingerprint;
+
+	@Enumerated(EnumType.STRING)
+	@Column(length = 16, nullable = false)
+	private Status status;
+
+	@Column
+	private long lastMetricId;
+
+	@Column
+	private long scanned;
+
+	@Column
+	private long changed;
+
+	@Column
+	private int batches;
+
+	// One "yyyy-MM site" line per site/month whose rollups are to be rebuilt
+	@Lob
+	@Column
+	private String dirtyMonths;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date startedAt;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date updatedAt;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date completedAt;
+
+	public ReclassificationCheckpoint(){
+
+	}
+
+	public ReclassificationCheckpoint(String fingerprint){
+		assert fingerprint != null : "fingerprint must be specified";
+		this.fingerprint = fingerprint;
+		this.status = Status.RUNNING;
+		this.lastMetricId = -1;
+		this.startedAt = new Date();
+		this.updatedAt = startedAt;
+	}
+
+	/**
+	 * Records a batch that checked <code>scanned</code> rows up to <code>lastMetricId</code>.
+	 */
+	public void advance(long lastMetricId, int scanned, int changed){
+		assert lastMetricId > this.lastMetricId : "batches must move forward";
+		this.lastMetricId = lastMetricId;
+		this.scanned += scanned;
+		this.changed += changed;
+		this.batches++;
+		this.updatedAt = new Date();
+	}
+
+	/**
+	 * Adds site/months whose rollups are to be rebuilt.
+	 */
+	public void markDirty(Map<String, Set<Date>> months){
+		assert months != null : "months must be specified";
+		Map<String, Set<Date>> dirty = getDirtyMonths();
+		for (Map.Entry<String, Set<Date>> site : months.entrySet()){
+			Set<Date> siteMonths = dirty.get(site.getKey());
+			if (siteMonths == null){
+				siteMonths = new TreeSet<Date>();
+				dirty.put(site.getKey(), siteMonths);
+			}
+			for (Date month : site.getValue())
+				siteMonths.add(MonthlyRollup.monthOf(month));
+		}
+		setDirtyMonths(dirty);
+	}
+
+	/**
+	 * Records that the rollups of a site/month have been rebuilt.
+	 */
+	public void clearDirty(String site, Date month){
+		Map<String, Set<Date>> dirty = getDirtyMonths();
+		Set<Date> siteMonths = dirty.get(site);
+		if (siteMonths != null && siteMonths.remove(MonthlyRollup.monthOf(month)) && siteMonths.isEmpty())
+			dirty.remove(site);
+		setDirtyMonths(dirty);
+		this.updatedAt = new Date();
+	}
+
+	/**
+	 * @return months whose rollups are yet to be rebuilt, by site
+	 */
+	public Map<String, Set<Date>> getDirtyMonths(){
+		Map<String, Set<Date>> dirty = new TreeMap<String, Set<Date>>();
+		if (dirtyMonths == null)
+			return dirty;
+		SimpleDateFormat format = new SimpleDateFormat(MONTH_FORMAT);
+		for (String line : dirtyMonths.split("\n")){
+			int space = line.indexOf(' ');
+			if (space < 0)
+				continue;
+			String site = line.substring(space + 1);
+			Set<Date> siteMonths = dirty.get(site);
+			if (siteMonths == null){
+				siteMonths = new TreeSet<Date>();
+				dirty.put(site, siteMonths);
+			}
+			try {
+				siteMonths.add(format.parse(line.substring(0, space)));
+			} catch (ParseException pe){
+				throw new IllegalStateException("Unreadable dirty month '" + line + "' in " + this, pe);
+			}
+		}
+		return dirty;
+	}
+
+	/**
+	 * @return number of site/months whose rollups are yet to be rebuilt
+	 */
+	public int getDirtyMonthCount(){
+		int count = 0;
+		for (Set<Date> months : getDirtyMonths().values())
+			count += months.size();
+		return count;
+	}
+
+	public void complete(){
+		this.status = Status.COMPLETED;
+		this.updatedAt = new Date();
+		this.completedAt = updatedAt;
+	}
+
+	public Long getId()
+	{
+		return id;
+	}
+
+	public String getFingerprint()
+	{
+		return fingerprint;
+	}
+
+	public Status getStatus()
+	{
+		return status;
+	}
+
+	public void setStatus(final Status status)
+	{
+		this.status = status;
+	}
+
+	public long getLastMetricId()
+	{
+		return lastMetricId;
+	}
+
+	public long getScanned()
+	{
+		return scanned;
+	}
+
+	public long getChanged()
+	{
+		return changed;
+	}
+
+	public int getBatches()
+	{
+		return batches;
+	}
+
+	public Date getStartedAt()
+	{
+		return startedAt;
+	}
+
+	public Date getUpdatedAt()
+	{
+		return updatedAt;
+	}
+
+	public Date getCompletedAt()
+	{
+		return completedAt;
+	}
+
+	// -------------------------------------------------------------------
+
+	private void setDirtyMonths(Map<String, Set<Date>> dirty){
+		SimpleDateFormat format = new SimpleDateFormat(MONTH_FORMAT);
+		StringBuilder lines = new StringBuilder();
+		for (Map.Entry<String, Set<Date>> site : dirty.entrySet()){
+			for (Date month : site.getValue())
+				lines.append(format.format(month)).append(' ').append(site.getKey()).append('\n');
+		}
+		this.dirtyMonths = lines.length() == 0 ? null : lines.toString();
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + " id: " + id + ", fingerprint: " + fingerprint + ", status: " + status
+				+ ", lastMetricId: " + lastMetricId + ", scanned: " + scanned + ", changed: " + changed;
+	}
+}
@@ -0,0 +1,170 @@
+package org.jboss.bigcommotion.model;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Describes one byte range of a report file that is imported in parallel with the rest of the file.
+ * Sent to the pageview queue in place of a whole-file WebMetric when a report is large enough to split.
+ */
+public class ReportChunk implements Serializable
+{
+
+	private static final long serialVersionUID = 5412047710383417329L;
+
+	private String importId;
+	private Long ledgerEntryId;
+	private String site;
+	private String fileName;
+	private Date date;
+	private int chunkIndex;
+	private int chunkCount;
+	private long startOffset;
+	private long endOffset;
+	private int firstLine;
+	private int lineCount;
+	private long started;
+
+	public ReportChunk(){
+
+	}
+
+	public String getImportId()
+	{
+		return importId;
+	}
+
+	public void setImportId(final String importId)
+	{
+		this.importId = importId;
+	}
+
+	public Long getLedgerEntryId()
+	{
+		return ledgerEntryId;
+	}
+
+	public void setLedgerEntryId(final Long ledgerEntryId)
+	{
+		this.ledgerEntryId = ledgerEntryId;
+	}
+
+	public String getSite()
+	{
+		return site;
+	}
+
+	public void setSite(final String site)
+	{
+		this.site = site;
+	}
+
+	public String getFileName()
+	{
+		return fileName;
+	}
+
+	public void setFileName(final String fileName)
+	{
+		this.fileName = fileName;
+	}
+
+	public Date getDate()
+	{
+		return date;
+	}
+
+	public void setDate(final Date date)
+	{
+		this.date = date;
+	}
+
+	public int getChunkIndex()
+	{
+		return chunkIndex;
+	}
+
+	public void setChunkIndex(final int chunkIndex)
+	{
+		this.chunkIndex = chunkIndex;
+	}
+
+	public int getChunkCount()
+	{
+		return chunkCount;
+	}
+
+	public void setChunkCount(final int chunkCount)
+	{
+		this.chunkCount = chunkCount;
+	}
+
+	/**
+	 * @return offset of the first byte of the chunk's first line
+	 */
+	public long getStartOffset()
+	{
+		return startOffset;
+	}
+
+	public void setStartOffset(final long startOffset)
+	{
+		this.startOffset = startOffset;
+	}
+
+	/**
+	 * @return offset just past the end of the chunk's last line
+	 */
+	public long getEndOffset()
+	{
+		return endOffset;
+	}
+
+	public void setEndOffset(final long endOffset)
+	{
+		this.endOffset = endOffset;
+	}
+
+	/**
+	 * @return one based line number of the chunk's first line within the file
+	 */
+	public int getFirstLine()
+	{
+		return firstLine;
+	}
+
+	public void setFirstLine(final int firstLine)
+	{
+		this.firstLine = firstLine;
+	}
+
+	public int getLineCount()
+	{
+		return lineCount;
+	}
+
+	public void setLineCount(final int lineCount)
+	{
+		this.lineCount = lineCount;
+	}
+
+	/**
+	 * @return time the file was split, used to report the duration of the whole import
+	 */
+	public long getStarted()
+	{
+		return started;
+	}
+
+	public void setStarted(final long started)
+	{
+		this.started = started;
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + " " + fileName + " chunk " + (chunkIndex + 1) + " of " + chunkCount
+				+ ", lines " + firstLine + "-" + (firstLine + lineCount - 1);
+	}
+}
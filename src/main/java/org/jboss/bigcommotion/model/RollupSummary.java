@@ -0,0 +1,131 @@
+package org.jboss.bigcommotion.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The totals and rates of one MonthlyRollup as read by a query, detached from the persistence
+ * context and immutable, so a result can be kept in the query cache and shared by requests
+ * without one of them changing, or lazily loading through, the rollups it was read from.
+ */
+public final class RollupSummary implements Serializable
+{
+
+	private static final long serialVersionUID = 6160386290941715377L;
+
+	private final Long id;
+	private final long month;
+	private final String page;
+	private final String project;
+	private final long pageViews;
+	private final long uniquePageViews;
+	private final long entrances;
+	private final float bounceRate;
+	private final float percentExit;
+	private final int averageTimeOnPage;
+	private final int rowCount;
+
+	private RollupSummary(MonthlyRollup rollup, String page, String project){
+		this.id = rollup.getId();
+		this.month = rollup.getMonth().getTime();
+		this.page = page;
+		this.project = project;
+		this.pageViews = rollup.getPageViews();
+		this.uniquePageViews = rollup.getUniquePageViews();
+		this.entrances = rollup.getEntrances();
+		this.bounceRate = rollup.getBounceRate();
+		this.percentExit = rollup.getPercentExit();
+		this.averageTimeOnPage = rollup.getAverageTimeOnPage();
+		this.rowCount = rollup.getRowCount();
+	}
+
+	public static RollupSummary of(MonthlyRollup rollup){
+		assert rollup != null : "rollup must be specified";
+		if (rollup instanceof PageMonthRollup){
+			PageMonthRollup page = (PageMonthRollup) rollup;
+			return new RollupSummary(rollup, page.getPage(), page.getProject());
+		}
+		if (rollup instanceof ProjectMonthRollup)
+			return new RollupSummary(rollup, null, ((ProjectMonthRollup) rollup).getProject());
+		return new RollupSummary(rollup, null, null);
+	}
+
+	/**
+	 * @return an unmodifiable list of the rollups' summaries, in the same order
+	 */
+	public static List<RollupSummary> listOf(List<? extends MonthlyRollup> rollups){
+		assert rollups != null : "rollups must be specified";
+		List<RollupSummary> summaries = new ArrayList<RollupSummary>(rollups.size());
+		for (MonthlyRollup rollup : rollups)
+			summaries.add(of(rollup));
+		return Collections.unmodifiableList(summaries);
+	}
+
+	public Long getId()
+	{
+		return id;
+	}
+
+	public Date getMonth()
+	{
+		return new Date(month);
+	}
+
+	/**
+	 * @return the page of a page rollup, otherwise null
+	 */
+	public String getPage()
+	{
+		return page;
+	}
+
+	public String getProject()
+	{
+		return project;
+	}
+
+	public long getPageViews()
+	{
+		return pageViews;
+	}
+
+	public long getUniquePageViews()
+	{
+		return uniquePageViews;
+	}
+
+	public long getEntrances()
+	{
+		return entrances;
+	}
+
+	public float getBounceRate()
+	{
+		return bounceRate;
+	}
+
+	public float getPercentExit()
+	{
+		return percentExit;
+	}
+
+	public int getAverageTimeOnPage()
+	{
+		return averageTimeOnPage;
+	}
+
+	public int getRowCount()
+	{
+		return rowCount;
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + " id: " + id + ", month: " + new Date(month) + ", page: " + page + ", project: " + project
+				+ ", pageViews: " + pageViews;
+	}
+}
@@ -0,0 +1,94 @@
+package org.jboss.bigcommotion.model;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.TableGenerator;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * How many times the metrics of one month of a site have changed, advanced in the transaction
+ * that changes them: each import, rebuild or reclassification of the month.  A snapshot of the
+ * month records the version it was exported at and is only read while the month is still at it.
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "UK_SITEMONTHVERSION", columnNames = { "site", "month" }))
+public class SiteMonthVersion implements Serializable
+{
+
+	private static final long serialVersionUID = 6385713410924466217L;
+
+	@Id
+	@TableGenerator(name = "SiteMonthVersionIds", table = "IdGenerator", pkColumnName = "name", valueColumnName = "nextId",
+			pkColumnValue = "SiteMonthVersion", allocationSize = 50)
+	@GeneratedValue(strategy = GenerationType.TABLE, generator = "SiteMonthVersionIds")
+	@Column(name = "id", updatable = false, nullable = false)
+	private Long id = null;
+
+	@Column(length = 128, nullable = false)
+	private String site;
+
+	@Temporal(TemporalType.DATE)
+	@Column(nullable = false)
+	private Date month;
+
+	// Not an optimistic lock: the row is locked while it is advanced
+	@Column(nullable = false)
+	private long version;
+
+	public SiteMonthVersion(){
+
+	}
+
+	/**
+	 * Version 0, of a month whose metrics have not changed since it was first recorded.
+	 */
+	public SiteMonthVersion(String site, Date month){
+		assert site != null : "site must be specified";
+		assert month != null : "month must be specified";
+		this.site = site;
+		this.month = MonthlyRollup.monthOf(month);
+	}
+
+	public Long getId()
+	{
+		return id;
+	}
+
+	public String getSite()
+	{
+		return site;
+	}
+
+	public Date getMonth()
+	{
+		return month;
+	}
+
+	public long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * @return the new version
+	 */
+	public long advance()
+	{
+		return ++version;
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + " id: " + id + ", site: " + site + ", month: " + month + ", version: " + version;
+	}
+}
@@ -0,0 +1,104 @@
+package org.jboss.bigcommotion.model;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * The parsed rows of one chunk of a report being imported in parallel, written in the transaction
+ * that parsed the chunk and deleted in the one that merges the report, so the chunks received
+ * before a restart are not lost with the chunk messages already consumed.
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "UK_STAGEDCHUNK", columnNames = { "importId", "chunkIndex" }))
+public class StagedChunk implements Serializable
+{
+
+	private static final long serialVersionUID = 3307751280147465915L;
+
+	@Id
+	@GeneratedValue(strategy = GenerationType.AUTO)
+	@Column(name = "id", updatable = false, nullable = false)
+	private Long id = null;
+
+	@Column(length = 36, nullable = false)
+	private String importId;
+
+	@Column
+	private int chunkIndex;
+
+	@Column
+	private Long ledgerEntryId;
+
+	@Lob
+	@Column(nullable = false)
+	private byte[] part;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(nullable = false)
+	private Date created;
+
+	public StagedChunk(){
+
+	}
+
+	/**
+	 * @param chunk chunk the rows were read from
+	 * @param part the parsed chunk, serialized
+	 */
+	public StagedChunk(ReportChunk chunk, byte[] part){
+		assert chunk != null : "chunk must be specified";
+		assert part != null : "part must be specified";
+		this.importId = chunk.getImportId();
+		this.chunkIndex = chunk.getChunkIndex();
+		this.ledgerEntryId = chunk.getLedgerEntryId();
+		this.part = part;
+		this.created = new Date();
+	}
+
+	public Long getId()
+	{
+		return id;
+	}
+
+	public String getImportId()
+	{
+		return importId;
+	}
+
+	public int getChunkIndex()
+	{
+		return chunkIndex;
+	}
+
+	public Long getLedgerEntryId()
+	{
+		return ledgerEntryId;
+	}
+
+	public byte[] getPart()
+	{
+		return part;
+	}
+
+	public Date getCreated()
+	{
+		return created;
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + " id: " + id + ", importId: " + importId + ", chunkIndex: " + chunkIndex;
+	}
+}
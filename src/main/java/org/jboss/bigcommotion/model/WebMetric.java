@@ -7,6 +7,7 @@ import java.io.Serializable;
 import javax.persistence.Id;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
+import javax.persistence.TableGenerator;
 import javax.persistence.Column;
 import javax.persistence.Version;
 
@@ -15,15 +16,38 @@ import java.util.Date;
 
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
-
+import javax.persistence.Transient;
+
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Table;
+
+/**
+ * Metrics of one page in one report.  The site, page, project and file name are stored as ids of
+ * {@link DictionaryTerm} rows, set from the strings by the dictionary before the metric is written.
+ * The strings themselves are not persisted: rows are loaded with the ids only, and the strings set
+ * from them by {@link org.jboss.bigcommotion.services.MetricDictionary#decode} when needed.
+ * Setting a string does not change its id.
+ * <p>
+ * The indexes follow the lookups made: a site's pages in a month, a project over time, and the
+ * rows of one report file.  On MySQL the table is also range partitioned by month, see
+ * migrations/003 and {@link org.jboss.bigcommotion.services.PartitionMaintenance}, which is why
+ * the date is required.
+ */
 @Entity
+@Table(appliesTo = "WebMetric", indexes = {
+		@Index(name = "IDX_WEBMETRIC_SITE_DATE_PAGE", columnNames = { "siteId", "date", "pageId" }),
+		@Index(name = "IDX_WEBMETRIC_PROJECT_DATE", columnNames = { "projectId", "date" }),
+		@Index(name = "IDX_WEBMETRIC_FILE", columnNames = { "fileId" }) })
 public class WebMetric implements Serializable
 {
 
 	private static final long serialVersionUID = 4629823886662504496L;
 
+	// Table generated ids let Hibernate batch inserts; MySQL's AUTO (identity) columns cannot be batched.
 	@Id
-	@GeneratedValue(strategy = GenerationType.AUTO)
+	@TableGenerator(name = "WebMetricIds", table = "IdGenerator", pkColumnName = "name", valueColumnName = "nextId",
+			pkColumnValue = "WebMetric", allocationSize = 500)
+	@GeneratedValue(strategy = GenerationType.TABLE, generator = "WebMetricIds")
 	@Column(name = "id", updatable = false, nullable = false)
 	private Long id = null;
 	@Version
@@ -31,12 +55,19 @@ public class WebMetric implements Serializable
 	private int version = 0;
 
 	@Temporal(TemporalType.DATE)
+	@Column(nullable = false)
 	private Date date;
 
 	@Column
+	private Integer siteId;
+
+	@Transient
 	private String site;
 
-	@Column(length = 512, nullable = false)
+	@Column(nullable = false)
+	private Integer pageId;
+
+	@Transient
 	private String page;
 
 	@Column
@@ -58,9 +89,15 @@ public class WebMetric implements Serializable
 	private Float percentExit;
 
 	@Column
+	private Integer fileId;
+
+	@Transient
 	private String fileName;
 
 	@Column
+	private Integer projectId;
+
+	@Transient
 	private String project;
 
 	public WebMetric(){
@@ -89,6 +126,38 @@ public class WebMetric implements Serializable
 		this.fileName = fileName;
 	}
 
+	public Integer getSiteId() {
+		return siteId;
+	}
+
+	public void setSiteId(Integer siteId) {
+		this.siteId = siteId;
+	}
+
+	public Integer getPageId() {
+		return pageId;
+	}
+
+	public void setPageId(Integer pageId) {
+		this.pageId = pageId;
+	}
+
+	public Integer getProjectId() {
+		return projectId;
+	}
+
+	public void setProjectId(Integer projectId) {
+		this.projectId = projectId;
+	}
+
+	public Integer getFileId() {
+		return fileId;
+	}
+
+	public void setFileId(Integer fileId) {
+		this.fileId = fileId;
+	}
+
 	public Long getId()
 	{
 		return this.id;
@@ -0,0 +1,404 @@
+package org.jboss.bigcommotion.rest;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.sql.SQLException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.annotation.Resource;
+import javax.ejb.Stateless;
+import javax.inject.Inject;
+import javax.sql.DataSource;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.jboss.bigcommotion.model.DictionaryTerm;
+import org.jboss.bigcommotion.model.ProjectMonthSketch;
+import org.jboss.bigcommotion.model.RollupSummary;
+import org.jboss.bigcommotion.services.ColumnarMetricStore;
+import org.jboss.bigcommotion.services.DictionaryService;
+import org.jboss.bigcommotion.services.QueryCache;
+import org.jboss.bigcommotion.services.RollupService;
+import org.jboss.bigcommotion.util.ColumnarQuery;
+import org.jboss.bigcommotion.util.HyperLogLog;
+import org.jboss.bigcommotion.util.MetricColumns;
+import org.jboss.bigcommotion.util.Resources;
+import org.jboss.bigcommotion.util.RowWriter;
+import org.jboss.bigcommotion.util.SpaceSaving;
+
+import com.wordnik.swagger.annotations.Api;
+import com.wordnik.swagger.annotations.ApiOperation;
+import com.wordnik.swagger.annotations.ApiParam;
+
+/**
+ * Read access to the metrics.  Every query takes <code>format=json</code> (the default) or
+ * <code>format=csv</code>; paged queries return a <code>next</code> cursor to pass back as
+ * <code>after</code>, in the {@link #NEXT_CURSOR_HEADER} header and, in JSON, at the end of the
+ * body.  Months are yyyy-MM and days yyyy-MM-dd.
+ * <p>
+ * Rollup queries are answered from the {@link QueryCache} when possible, which holds them as
+ * {@link RollupSummary} copies rather than the entities they were read as; group-by queries from the
+ * {@link ColumnarMetricStore}, page sketch queries from the merged {@link ProjectMonthSketch}es
+ * of their months; exports always read the database.
+ */
+@Path("/metrics")
+@Stateless
+@Api(value = "/metrics", description = "Page view metrics and monthly rollups")
+public class MetricsResource {
+
+	public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+	private static final String MONTH_FORMAT = "yyyy-MM";
+	private static final String DAY_FORMAT = "yyyy-MM-dd";
+	private static final int MAX_LIMIT = 1000;
+	private static final String[] ROLLUP_COLUMNS = { "month", "pageViews", "uniquePageViews", "entrances", "bounceRate",
+			"percentExit", "averageTimeOnPage", "rows" };
+	private static final String[] PAGE_COLUMNS = { "page", "project", "pageViews", "uniquePageViews", "entrances",
+			"bounceRate", "percentExit", "averageTimeOnPage" };
+	private static final String[] GROUP_COLUMNS = { "group", "pageViews", "uniquePageViews", "entrances", "bounceRate",
+			"percentExit", "averageTimeOnPage", "rows" };
+	private static final String[] SKETCH_TOP_COLUMNS = { "page", "pageViews", "minPageViews", "guaranteed" };
+	private static final String[] SKETCH_DISTINCT_COLUMNS = { "distinctPages", "low", "high", "standardError" };
+	// Bounds of the distinct page estimates are two standard errors, about 95% of the time
+	private static final double DISTINCT_BOUND_ERRORS = 2;
+
+	@Inject
+	private RollupService rollups;
+
+	@Inject
+	private QueryCache queryCache;
+
+	@Inject
+	private DictionaryService dictionary;
+
+	@Inject
+	private ColumnarMetricStore columnarStore;
+
+	@Resource(mappedName = Resources.DATASOURCE)
+	private DataSource dataSource;
+
+	@GET
+	@Path("/sites/{site}/top-pages")
+	@Produces({ "application/json", "text/csv" })
+	@ApiOperation(value = "Most viewed pages of a site in one month", notes = "Pages by descending pageviews, keyset paged")
+	public Response topPages(@PathParam("site") final String site,
+			@ApiParam(value = "yyyy-MM", required = true) @QueryParam("month") String month,
+			@QueryParam("limit") @DefaultValue("50") int limit,
+			@ApiParam(value = "next cursor of the previous page") @QueryParam("after") String after,
+			@QueryParam("format") String format){
+		if (month == null)
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		Long afterPageViews = null;
+		long afterId = 0;
+		if (after != null){
+			int colon = after.indexOf(':');
+			try {
+				afterPageViews = Long.valueOf(after.substring(0, colon));
+				afterId = Long.parseLong(after.substring(colon + 1));
+			} catch (RuntimeException re){
+				throw new WebApplicationException(re, Response.Status.BAD_REQUEST);
+			}
+		}
+		final int pageSize = checkLimit(limit);
+		final Date monthDate = parse(month, MONTH_FORMAT);
+		final Long keysetPageViews = afterPageViews;
+		final long keysetId = afterId;
+		final List<RollupSummary> pages = queryCache.get(new QueryCache.Key("topPages", site, monthDate, monthDate, afterPageViews, afterId, pageSize),
+				new QueryCache.Query<List<RollupSummary>>(){
+					@Override
+					public List<RollupSummary> run(){
+						return RollupSummary.listOf(rollups.findTopPages(site, monthDate, keysetPageViews, keysetId, pageSize));
+					}
+				});
+		RollupSummary last = pages.size() == pageSize ? pages.get(pages.size() - 1) : null;
+		final String next = last == null ? null : last.getPageViews() + ":" + last.getId();
+		return stream(format, next, new Rows(format, PAGE_COLUMNS){
+			@Override
+			void write(RowWriter writer) throws IOException {
+				for (RollupSummary page : pages)
+					writer.row(page.getPage(), page.getProject(), page.getPageViews(), page.getUniquePageViews(),
+							page.getEntrances(), page.getBounceRate(), page.getPercentExit(), page.getAverageTimeOnPage());
+				writer.end(next);
+			}
+		});
+	}
+
+	@GET
+	@Path("/sites/{site}/projects/{project}")
+	@Produces({ "application/json", "text/csv" })
+	@ApiOperation(value = "Monthly totals of one project", notes = "From and to are months, inclusive")
+	public Response projectSeries(@PathParam("site") final String site, @PathParam("project") final String project,
+			@ApiParam(value = "yyyy-MM", required = true) @QueryParam("from") String from,
+			@ApiParam(value = "yyyy-MM", required = true) @QueryParam("to") String to,
+			@QueryParam("format") String format){
+		if (from == null || to == null)
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		final Date fromMonth = parse(from, MONTH_FORMAT);
+		final Date toMonth = parse(to, MONTH_FORMAT);
+		return series(format, queryCache.get(new QueryCache.Key("projectMonths", site, fromMonth, toMonth, project),
+				new QueryCache.Query<List<RollupSummary>>(){
+					@Override
+					public List<RollupSummary> run(){
+						return RollupSummary.listOf(rollups.findProjectMonths(site, project, fromMonth, toMonth));
+					}
+				}));
+	}
+
+	@GET
+	@Path("/sites/{site}/totals")
+	@Produces({ "application/json", "text/csv" })
+	@ApiOperation(value = "Monthly totals of a whole site", notes = "From and to are months, inclusive")
+	public Response siteTotals(@PathParam("site") final String site,
+			@ApiParam(value = "yyyy-MM", required = true) @QueryParam("from") String from,
+			@ApiParam(value = "yyyy-MM", required = true) @QueryParam("to") String to,
+			@QueryParam("format") String format){
+		if (from == null || to == null)
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		final Date fromMonth = parse(from, MONTH_FORMAT);
+		final Date toMonth = parse(to, MONTH_FORMAT);
+		return series(format, queryCache.get(new QueryCache.Key("siteMonths", site, fromMonth, toMonth),
+				new QueryCache.Query<List<RollupSummary>>(){
+					@Override
+					public List<RollupSummary> run(){
+						return RollupSummary.listOf(rollups.findSiteMonths(site, fromMonth, toMonth));
+					}
+				}));
+	}
+
+	/**
+	 * Streams raw WebMetric rows in id order.  Without a limit the whole range is written in one
+	 * response; with one, the response ends with a cursor for the next request.
+	 */
+	@GET
+	@Path("/sites/{site}/export")
+	@Produces({ "application/json", "text/csv" })
+	@ApiOperation(value = "Export the daily metrics of a site", notes = "Streams rows from a forward-only cursor, keyset paged by id")
+	public Response export(@PathParam("site") String site,
+			@ApiParam(value = "first day, yyyy-MM-dd") @QueryParam("from") String from,
+			@ApiParam(value = "day after the last, yyyy-MM-dd") @QueryParam("to") String to,
+			@QueryParam("project") String project,
+			@ApiParam(value = "next cursor of the previous page") @QueryParam("after") @DefaultValue("0") long after,
+			@ApiParam(value = "maximum rows, 0 for all") @QueryParam("limit") @DefaultValue("0") int limit,
+			@QueryParam("format") String format){
+		if (limit < 0)
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		checkFormat(format);
+		Date fromDay = from == null ? null : parse(from, DAY_FORMAT);
+		Date toDay = to == null ? null : parse(to, DAY_FORMAT);
+		WebMetricExport export = new WebMetricExport(dataSource, dictionary, format, site, project, fromDay, toDay, after, limit);
+		try {
+			return stream(format, export.next(), export);
+		} catch (SQLException sqle){
+			throw new WebApplicationException(sqle, Response.Status.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * Totals of the daily metrics grouped by page, project, site or month, the largest first.
+	 */
+	@GET
+	@Path("/groups")
+	@Produces({ "application/json", "text/csv" })
+	@ApiOperation(value = "Group daily metrics across sites and months",
+			notes = "From and to are months, inclusive; sites and projects may be repeated, none meaning all")
+	public Response groups(@ApiParam(value = "page, project, site or month") @QueryParam("groupBy") @DefaultValue("page") String groupBy,
+			@ApiParam(value = "pageViews, uniquePageViews, entrances or rows") @QueryParam("orderBy") @DefaultValue("pageViews") String orderBy,
+			@ApiParam(value = "yyyy-MM", required = true) @QueryParam("from") String from,
+			@ApiParam(value = "yyyy-MM", required = true) @QueryParam("to") String to,
+			@QueryParam("site") List<String> sites,
+			@QueryParam("project") List<String> projects,
+			@QueryParam("limit") @DefaultValue("50") int limit,
+			@QueryParam("format") String format){
+		if (from == null || to == null)
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		checkFormat(format);
+		ColumnarQuery.GroupBy grouping = valueOf(ColumnarQuery.GroupBy.class, groupBy);
+		ColumnarQuery.Measure measure = valueOf(ColumnarQuery.Measure.class, orderBy.replaceAll("([a-z])([A-Z])", "$1_$2"));
+		List<Integer> projectIds = null;
+		if (projects != null && !projects.isEmpty()){
+			projectIds = new ArrayList<Integer>();
+			for (String project : projects){
+				Integer id = dictionary.idOf(DictionaryTerm.Kind.PROJECT, project);
+				if (id != null)
+					projectIds.add(id);
+			}
+		}
+		final List<ColumnarQuery.Group> groups = columnarStore.query(sites == null || sites.isEmpty() ? null : sites,
+				parse(from, MONTH_FORMAT), parse(to, MONTH_FORMAT), new ColumnarQuery(grouping, measure, projectIds, null, checkLimit(limit)));
+		final boolean months = grouping == ColumnarQuery.GroupBy.MONTH;
+		return stream(format, new Rows(format, GROUP_COLUMNS){
+			@Override
+			void write(RowWriter writer) throws IOException {
+				for (ColumnarQuery.Group group : groups){
+					Object name = months ? MetricColumns.monthOf(group.getKey()) : dictionary.termOf(group.getKey());
+					writer.row(name, group.getPageViews(), group.getUniquePageViews(), group.getEntrances(),
+							group.getBounceRate(), group.getPercentExit(), group.getAverageTimeOnPage(), group.getRowCount());
+				}
+				writer.end(null);
+			}
+		});
+	}
+
+	/**
+	 * Most viewed pages across sites, projects and months from the page sketches.  Each estimate
+	 * is at most <code>pageViews - minPageViews</code> over the true count, and pages marked
+	 * guaranteed are certainly among the top <code>limit</code>.
+	 */
+	@GET
+	@Path("/pages/top")
+	@Produces({ "application/json", "text/csv" })
+	@ApiOperation(value = "Estimated most viewed pages across sites and months",
+			notes = "From and to are months, inclusive; sites and projects may be repeated, none meaning all")
+	public Response sketchTopPages(@ApiParam(value = "yyyy-MM", required = true) @QueryParam("from") String from,
+			@ApiParam(value = "yyyy-MM", required = true) @QueryParam("to") String to,
+			@QueryParam("site") List<String> sites,
+			@QueryParam("project") List<String> projects,
+			@QueryParam("limit") @DefaultValue("100") int limit,
+			@QueryParam("format") String format){
+		if (from == null || to == null || limit > SpaceSaving.DEFAULT_CAPACITY)
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		checkFormat(format);
+		final int size = checkLimit(limit);
+		SpaceSaving summary = pageSketch(from, to, sites, projects).getTopPages();
+		final List<SpaceSaving.Entry> top = summary.top(size);
+		final long boundAfter = summary.getBoundAfter(size);
+		return stream(format, new Rows(format, SKETCH_TOP_COLUMNS){
+			@Override
+			void write(RowWriter writer) throws IOException {
+				for (SpaceSaving.Entry entry : top)
+					writer.row(dictionary.termOf(entry.getKey()), entry.getCount(), entry.getLowerBound(),
+							entry.getLowerBound() >= boundAfter);
+				writer.end(null);
+			}
+		});
+	}
+
+	/**
+	 * Distinct pages across sites, projects and months from the page sketches, with the bounds the
+	 * true count falls in about 95% of the time.
+	 */
+	@GET
+	@Path("/pages/distinct")
+	@Produces({ "application/json", "text/csv" })
+	@ApiOperation(value = "Estimated number of distinct pages across sites and months",
+			notes = "From and to are months, inclusive; sites and projects may be repeated, none meaning all")
+	public Response sketchDistinctPages(@ApiParam(value = "yyyy-MM", required = true) @QueryParam("from") String from,
+			@ApiParam(value = "yyyy-MM", required = true) @QueryParam("to") String to,
+			@QueryParam("site") List<String> sites,
+			@QueryParam("project") List<String> projects,
+			@QueryParam("format") String format){
+		if (from == null || to == null)
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		checkFormat(format);
+		HyperLogLog distinct = pageSketch(from, to, sites, projects).getDistinctPages();
+		final long estimate = distinct.cardinality();
+		final double standardError = distinct.getStandardError();
+		final long margin = (long) Math.ceil(estimate * standardError * DISTINCT_BOUND_ERRORS);
+		return stream(format, new Rows(format, SKETCH_DISTINCT_COLUMNS){
+			@Override
+			void write(RowWriter writer) throws IOException {
+				writer.row(estimate, Math.max(0, estimate - margin), estimate + margin, standardError);
+				writer.end(null);
+			}
+		});
+	}
+
+	// -------------------------------------------------------------------
+
+	private ProjectMonthSketch pageSketch(String from, String to, List<String> sites, List<String> projects){
+		return rollups.findPageSketch(sites == null || sites.isEmpty() ? null : sites, projects == null || projects.isEmpty() ? null : projects,
+				parse(from, MONTH_FORMAT), parse(to, MONTH_FORMAT));
+	}
+
+	private Response series(String format, final List<RollupSummary> months){
+		return stream(format, new Rows(format, ROLLUP_COLUMNS){
+			@Override
+			void write(RowWriter writer) throws IOException {
+				for (RollupSummary month : months)
+					writer.row(month.getMonth(), month.getPageViews(), month.getUniquePageViews(), month.getEntrances(),
+							month.getBounceRate(), month.getPercentExit(), month.getAverageTimeOnPage(), month.getRowCount());
+				writer.end(null);
+			}
+		});
+	}
+
+	private static Response stream(String format, StreamingOutput output){
+		return stream(format, null, output);
+	}
+
+	/**
+	 * @param next cursor of the following page, sent in the {@link #NEXT_CURSOR_HEADER} header, or null
+	 */
+	private static Response stream(String format, String next, StreamingOutput output){
+		checkFormat(format);
+		Response.ResponseBuilder response = Response.ok(output, RowWriter.contentType(format));
+		if (next != null)
+			response.header(NEXT_CURSOR_HEADER, next);
+		return response.build();
+	}
+
+	private static void checkFormat(String format){
+		if (format != null && !RowWriter.JSON.equalsIgnoreCase(format) && !RowWriter.CSV.equalsIgnoreCase(format))
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+	}
+
+	private static int checkLimit(int limit){
+		if (limit < 1 || limit > MAX_LIMIT)
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		return limit;
+	}
+
+	private static <E extends Enum<E>> E valueOf(Class<E> type, String name){
+		try {
+			return Enum.valueOf(type, name.toUpperCase());
+		} catch (IllegalArgumentException iae){
+			throw new WebApplicationException(iae, Response.Status.BAD_REQUEST);
+		}
+	}
+
+	private static Date parse(String value, String pattern){
+		SimpleDateFormat format = new SimpleDateFormat(pattern);
+		format.setLenient(false);
+		try {
+			return format.parse(value);
+		} catch (ParseException pe){
+			throw new WebApplicationException(pe, Response.Status.BAD_REQUEST);
+		}
+	}
+
+	/**
+	 * Writes already loaded results; the rows are small so only the encoding is streamed.
+	 */
+	private abstract static class Rows implements StreamingOutput {
+
+		private final String format;
+		private final String[] columns;
+
+		Rows(String format, String[] columns){
+			this.format = format;
+			this.columns = columns;
+		}
+
+		@Override
+		public void write(OutputStream output) throws IOException {
+			RowWriter writer = RowWriter.forFormat(format, new BufferedWriter(new OutputStreamWriter(output, "UTF-8")), columns);
+			writer.begin();
+			write(writer);
+		}
+
+		abstract void write(RowWriter writer) throws IOException;
+	}
+}
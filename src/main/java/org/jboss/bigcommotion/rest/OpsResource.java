@@ -0,0 +1,282 @@
+package org.jboss.bigcommotion.rest;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import javax.ejb.Stateless;
+import javax.inject.Inject;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.jboss.bigcommotion.model.BackfillCheckpoint;
+import org.jboss.bigcommotion.model.ReclassificationCheckpoint;
+import org.jboss.bigcommotion.services.BackfillService;
+import org.jboss.bigcommotion.services.ColumnarMetricStore;
+import org.jboss.bigcommotion.services.DispatchTracker;
+import org.jboss.bigcommotion.services.GoogleAnalyticsImportSingleton;
+import org.jboss.bigcommotion.services.IngestMetrics;
+import org.jboss.bigcommotion.services.PageClassificationService;
+import org.jboss.bigcommotion.services.PartitionMaintenance;
+import org.jboss.bigcommotion.services.ProjectReclassifier;
+import org.jboss.bigcommotion.services.SnapshotExporter;
+import org.jboss.bigcommotion.services.SnapshotStore;
+import org.jboss.bigcommotion.util.PageClassifier;
+import org.jboss.bigcommotion.util.StageStats;
+
+/**
+ * Operational state of the importer, one "name value" pair per line.
+ */
+@Path("/ops")
+@Stateless
+public class OpsResource {
+
+	private static final String MONTH_FORMAT = "yyyy-MM";
+
+	@Inject
+	private GoogleAnalyticsImportSingleton importer;
+
+	@Inject
+	private DispatchTracker tracker;
+
+	@Inject
+	private IngestMetrics ingestMetrics;
+
+	@Inject
+	private PartitionMaintenance partitions;
+
+	@Inject
+	private PageClassificationService classificationService;
+
+	@Inject
+	private ProjectReclassifier reclassifier;
+
+	@Inject
+	private BackfillService backfill;
+
+	@Inject
+	private ColumnarMetricStore columnarStore;
+
+	@Inject
+	private SnapshotStore snapshots;
+
+	@Inject
+	private SnapshotExporter snapshotExporter;
+
+	/**
+	 * Reports seen but still being written, reports sent to the queue but not imported yet, and
+	 * reports ever sent.
+	 */
+	@GET
+	@Path("/dispatch")
+	@Produces(MediaType.TEXT_PLAIN)
+	public String dispatch(){
+		return "pending " + importer.getPendingCount() + "\n"
+				+ "inFlight " + tracker.getInFlightCount() + "\n"
+				+ "dispatched " + tracker.getDispatchedCount() + "\n";
+	}
+
+	/**
+	 * WebMetric partitions in order, with MySQL's estimate of the rows in each.  Empty when the
+	 * table is not partitioned.
+	 */
+	@GET
+	@Path("/partitions")
+	@Produces(MediaType.TEXT_PLAIN)
+	public String partitions(){
+		StringBuilder out = new StringBuilder();
+		for (Map.Entry<String, Long> partition : partitions.getPartitions().entrySet())
+			out.append(partition.getKey()).append(' ').append(partition.getValue()).append('\n');
+		return out.toString();
+	}
+
+	/**
+	 * The page classification rules in the format of logic/PageClassification.rules, in order.
+	 */
+	@GET
+	@Path("/rules")
+	@Produces(MediaType.TEXT_PLAIN)
+	public String rules(){
+		StringBuilder out = new StringBuilder();
+		for (PageClassifier.Rule rule : classificationService.getClassifier().getRules())
+			out.append(rule.toLine()).append('\n');
+		return out.toString();
+	}
+
+	/**
+	 * Replaces the page classification rules with the ones in the body, in the format of
+	 * logic/PageClassification.rules.  Reports imported from then on use the new rules, and
+	 * metrics already imported are reclassified in the background.
+	 * @return the new rules' fingerprint
+	 */
+	@PUT
+	@Path("/rules")
+	@Consumes(MediaType.TEXT_PLAIN)
+	@Produces(MediaType.TEXT_PLAIN)
+	public String replaceRules(String body){
+		List<PageClassifier.Rule> rules;
+		try {
+			rules = PageClassifier.parse(new StringReader(body));
+		} catch (IOException ioe){
+			throw new WebApplicationException(ioe, Response.Status.BAD_REQUEST);
+		} catch (IllegalArgumentException iae){
+			throw new WebApplicationException(iae, Response.Status.BAD_REQUEST);
+		}
+		return "fingerprint " + classificationService.replaceRules(rules) + "\n";
+	}
+
+	/**
+	 * Progress of reclassifying the imported metrics under the current rules.
+	 */
+	@GET
+	@Path("/reclassification")
+	@Produces(MediaType.TEXT_PLAIN)
+	public String reclassification(){
+		String fingerprint = classificationService.getClassifier().getFingerprint();
+		ReclassificationCheckpoint checkpoint = reclassifier.getCheckpoint();
+		if (checkpoint == null)
+			return "fingerprint " + fingerprint + "\nstatus pending\n";
+		return "fingerprint " + fingerprint + "\n"
+				+ "status " + checkpoint.getStatus().name().toLowerCase() + "\n"
+				+ "lastMetricId " + checkpoint.getLastMetricId() + "\n"
+				+ "scanned " + checkpoint.getScanned() + "\n"
+				+ "changed " + checkpoint.getChanged() + "\n"
+				+ "batches " + checkpoint.getBatches() + "\n"
+				+ "dirtyMonths " + checkpoint.getDirtyMonthCount() + "\n";
+	}
+
+	/**
+	 * Starts re-importing the archived reports of every month from <code>from</code> to <code>to</code>
+	 * (yyyy-MM), of one <code>site</code> or all of them, replacing the rows of their earlier imports.
+	 * Answers 409 while another backfill is running.
+	 */
+	@POST
+	@Path("/backfill")
+	@Produces(MediaType.TEXT_PLAIN)
+	public String startBackfill(@QueryParam("from") String from, @QueryParam("to") String to, @QueryParam("site") String site,
+			@QueryParam("parallelism") Integer parallelism){
+		if (from == null || to == null)
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		Date fromMonth = parseMonth(from);
+		Date toMonth = parseMonth(to);
+		if (toMonth.before(fromMonth))
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		BackfillCheckpoint checkpoint = backfill.start(site, fromMonth, toMonth,
+				parallelism == null ? BackfillService.getDefaultParallelism() : parallelism);
+		if (checkpoint == null)
+			throw new WebApplicationException(Response.Status.CONFLICT);
+		return backfill(checkpoint);
+	}
+
+	/**
+	 * Progress of the latest backfill.
+	 */
+	@GET
+	@Path("/backfill")
+	@Produces(MediaType.TEXT_PLAIN)
+	public String backfill(){
+		BackfillCheckpoint checkpoint = backfill.getCheckpoint();
+		if (checkpoint == null)
+			return "status none\n";
+		return backfill(checkpoint);
+	}
+
+	/**
+	 * Cancels the running backfill.  Reports being re-imported finish; the others keep their rows.
+	 */
+	@DELETE
+	@Path("/backfill")
+	@Produces(MediaType.TEXT_PLAIN)
+	public String cancelBackfill(){
+		BackfillCheckpoint checkpoint = backfill.cancel();
+		if (checkpoint == null)
+			throw new WebApplicationException(Response.Status.NOT_FOUND);
+		return backfill(checkpoint);
+	}
+
+	/**
+	 * Writes the snapshots of the past months missing one now rather than on the next hourly run.
+	 */
+	@POST
+	@Path("/snapshots")
+	@Produces(MediaType.TEXT_PLAIN)
+	public String exportSnapshots(){
+		return "exported " + snapshotExporter.exportAll() + "\n";
+	}
+
+	/**
+	 * Per-stage counts, rows, rows per second and latency percentiles of the ingest pipeline, plus
+	 * rule firings, queue depth, query and normalization cache use, and the size of the columnar store.  The same values are in JMX under
+	 * {@value IngestMetrics#OBJECT_NAME}.
+	 */
+	@GET
+	@Path("/metrics")
+	@Produces(MediaType.TEXT_PLAIN)
+	public String metrics(){
+		StringBuilder out = new StringBuilder();
+		for (StageStats.Snapshot stage : ingestMetrics.getStages()){
+			String prefix = "stage." + stage.getName() + ".";
+			out.append(prefix).append("count ").append(stage.getCount()).append('\n');
+			out.append(prefix).append("rows ").append(stage.getRows()).append('\n');
+			out.append(prefix).append("totalMillis ").append(stage.getTotalMillis()).append('\n');
+			out.append(prefix).append("rowsPerSecond ").append(Math.round(stage.getRowsPerSecond())).append('\n');
+			out.append(prefix).append("p50Millis ").append(stage.getP50Millis()).append('\n');
+			out.append(prefix).append("p95Millis ").append(stage.getP95Millis()).append('\n');
+			out.append(prefix).append("p99Millis ").append(stage.getP99Millis()).append('\n');
+			out.append(prefix).append("maxMillis ").append(stage.getMaxMillis()).append('\n');
+		}
+		out.append("ruleFirings ").append(ingestMetrics.getRuleFirings()).append('\n');
+		out.append("queueDepth ").append(ingestMetrics.getQueueDepth()).append('\n');
+		out.append("queryCache.hits ").append(ingestMetrics.getQueryCacheHits()).append('\n');
+		out.append("queryCache.misses ").append(ingestMetrics.getQueryCacheMisses()).append('\n');
+		out.append("normalizationCache.hits ").append(ingestMetrics.getNormalizationCacheHits()).append('\n');
+		out.append("normalizationCache.misses ").append(ingestMetrics.getNormalizationCacheMisses()).append('\n');
+		out.append("normalizationCache.invalidations ").append(ingestMetrics.getNormalizationCacheInvalidations()).append('\n');
+		out.append("normalizationCache.size ").append(ingestMetrics.getNormalizationCacheSize()).append('\n');
+		out.append("normalizationCache.eviction ").append(ingestMetrics.getNormalizationCacheEviction()).append('\n');
+		out.append("columnarStore.blocks ").append(columnarStore.getBlockCount()).append('\n');
+		out.append("columnarStore.rows ").append(columnarStore.getRowCount()).append('\n');
+		out.append("columnarStore.bytes ").append(columnarStore.getMemoryBytes()).append('\n');
+		out.append("columnarStore.maxBytes ").append(columnarStore.getMaxBytes()).append('\n');
+		out.append("columnarStore.evictions ").append(columnarStore.getEvictionCount()).append('\n');
+		out.append("snapshots.mapped ").append(snapshots.getMappedCount()).append('\n');
+		out.append(dispatch());
+		return out.toString();
+	}
+
+	private static String backfill(BackfillCheckpoint checkpoint){
+		SimpleDateFormat format = new SimpleDateFormat(MONTH_FORMAT);
+		return "status " + checkpoint.getStatus().name().toLowerCase() + "\n"
+				+ "site " + (checkpoint.getSite() == null ? "all" : checkpoint.getSite()) + "\n"
+				+ "from " + format.format(checkpoint.getFromMonth()) + "\n"
+				+ "to " + format.format(checkpoint.getToMonth()) + "\n"
+				+ "parallelism " + checkpoint.getParallelism() + "\n"
+				+ "files " + checkpoint.getFiles() + "\n"
+				+ "rows " + checkpoint.getRowCount() + "\n"
+				+ "skipped " + checkpoint.getSkipped() + "\n"
+				+ "failed " + checkpoint.getFailed() + "\n";
+	}
+
+	private static Date parseMonth(String month){
+		SimpleDateFormat format = new SimpleDateFormat(MONTH_FORMAT);
+		format.setLenient(false);
+		try {
+			return format.parse(month);
+		} catch (ParseException pe){
+			throw new WebApplicationException(pe, Response.Status.BAD_REQUEST);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package org.jboss.bigcommotion.rest;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import javax.ejb.Stateless;
+import javax.inject.Inject;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.jboss.bigcommotion.services.RollupService;
+
+/**
+ * Administrative commands for the monthly rollups.
+ */
+@Path("/rollups")
+@Stateless
+public class RollupResource {
+
+	private static final String MONTH_FORMAT = "yyyy-MM";
+
+	@Inject
+	private RollupService rollups;
+
+	/**
+	 * Recomputes rollups from the WebMetric rows: one month of one site when both <code>site</code>
+	 * and <code>month</code> (yyyy-MM) are given, otherwise every site and month.
+	 */
+	@POST
+	@Path("/rebuild")
+	@Produces(MediaType.TEXT_PLAIN)
+	public String rebuild(@QueryParam("site") String site, @QueryParam("month") String month){
+		if (site == null && month == null){
+			return "Rebuilt rollups for " + rollups.rebuildAll() + " site months\n";
+		}
+		if (site == null || month == null){
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		}
+		return "Rebuilt rollups for " + site + " " + month + " from " + rollups.rebuild(site, parseMonth(month)) + " metrics\n";
+	}
+
+	/**
+	 * Recomputes the rollups of every site and month that has a snapshot from the snapshot, without
+	 * reading the WebMetric rows.
+	 */
+	@POST
+	@Path("/restore")
+	@Produces(MediaType.TEXT_PLAIN)
+	public String restore(){
+		return "Restored rollups for " + rollups.restoreAll() + " site months from snapshots\n";
+	}
+
+	private static Date parseMonth(String month){
+		SimpleDateFormat format = new SimpleDateFormat(MONTH_FORMAT);
+		format.setLenient(false);
+		try {
+			return format.parse(month);
+		} catch (ParseException pe){
+			throw new WebApplicationException(pe, Response.Status.BAD_REQUEST);
+		}
+	}
+}
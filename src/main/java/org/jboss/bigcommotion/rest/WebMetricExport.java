@@ -0,0 +1,209 @@
+package org.jboss.bigcommotion.rest;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.jboss.bigcommotion.model.DictionaryTerm;
+import org.jboss.bigcommotion.services.DictionaryService;
+import org.jboss.bigcommotion.util.RowWriter;
+
+/**
+ * Streams WebMetric rows to the client straight from a forward-only JDBC cursor, one keyset page
+ * (rows with an id greater than <code>after</code>, in id order) at a time.
+ * <p>
+ * The rows are written after the resource method has returned, outside its transaction, so the
+ * export uses its own read-only connection.  On MySQL the fetch size is set to Integer.MIN_VALUE,
+ * which makes Connector/J stream rows instead of reading the whole result set into memory.
+ * Pages and projects are read as dictionary ids and turned back into strings from the in-memory
+ * dictionary rather than joined in the query.
+ * <p>
+ * With a limit, {@link #next} finds the id of the page's last row before anything is written, so
+ * the cursor can be sent in a header; the page is then the rows up to that id, and rows imported
+ * meanwhile with a lower id are written in it rather than skipped.
+ */
+class WebMetricExport implements StreamingOutput {
+
+	private static final Logger logger = Logger.getLogger(WebMetricExport.class.getName());
+
+	static final String[] COLUMNS = { "id", "date", "site", "project", "page", "pageViews", "uniquePageViews",
+			"averageTimeOnPage", "entrances", "bounceRate", "percentExit" };
+	private static final int FETCH_SIZE = 1000;
+
+	private final DataSource dataSource;
+	private final DictionaryService dictionary;
+	private final String format;
+	private final String site;
+	private final String project;
+	private final Date from;
+	private final Date to;
+	private final long after;
+	private final int limit;
+	private Long through;
+
+	/**
+	 * @param from first day to include, or null
+	 * @param to first day to exclude, or null
+	 * @param after only rows with a greater id are written
+	 * @param limit maximum number of rows, or 0 for all of them
+	 */
+	WebMetricExport(DataSource dataSource, DictionaryService dictionary, String format, String site, String project, Date from, Date to,
+			long after, int limit){
+		assert dataSource != null : "dataSource must be specified";
+		assert dictionary != null : "dictionary must be specified";
+		assert site != null : "site must be specified";
+		this.dataSource = dataSource;
+		this.dictionary = dictionary;
+		this.format = format;
+		this.site = site;
+		this.project = project;
+		this.from = from;
+		this.to = to;
+		this.after = after;
+		this.limit = limit;
+	}
+
+	/**
+	 * @return cursor for the page after this one, or null if this page has fewer rows than the limit
+	 */
+	String next() throws SQLException {
+		Integer siteId = dictionary.idOf(DictionaryTerm.Kind.SITE, site);
+		Integer projectId = project == null ? null : dictionary.idOf(DictionaryTerm.Kind.PROJECT, project);
+		if (limit == 0 || siteId == null || (project != null && projectId == null))
+			return null;
+		Connection connection = dataSource.getConnection();
+		try {
+			connection.setReadOnly(true);
+			PreparedStatement statement = connection.prepareStatement(sql("SELECT id") + " LIMIT 1 OFFSET " + (limit - 1));
+			try {
+				bind(statement, siteId, projectId);
+				ResultSet rs = statement.executeQuery();
+				try {
+					through = rs.next() ? Long.valueOf(rs.getLong(1)) : null;
+				} finally {
+					rs.close();
+				}
+			} finally {
+				statement.close();
+			}
+		} finally {
+			connection.close();
+		}
+		return through == null ? null : through.toString();
+	}
+
+	@Override
+	public void write(OutputStream output) throws IOException, WebApplicationException {
+		RowWriter writer = RowWriter.forFormat(format, new BufferedWriter(new OutputStreamWriter(output, "UTF-8")), COLUMNS);
+		long start = System.currentTimeMillis();
+		Integer siteId = dictionary.idOf(DictionaryTerm.Kind.SITE, site);
+		Integer projectId = project == null ? null : dictionary.idOf(DictionaryTerm.Kind.PROJECT, project);
+		if (siteId == null || (project != null && projectId == null)){
+			// Nothing was ever imported for this site or project
+			writer.begin();
+			writer.end(null);
+			return;
+		}
+		Connection connection = null;
+		try {
+			connection = dataSource.getConnection();
+			connection.setReadOnly(true);
+			PreparedStatement statement = connection.prepareStatement(sql("SELECT id, date, projectId, pageId, pageViews, uniquePageViews,"
+					+ " averageTimeOnPage, entrances, bounceRate, percentExit") + (limit > 0 && through == null ? " LIMIT " + limit : ""),
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			try {
+				bind(statement, siteId, projectId);
+				statement.setFetchSize(isMySQL(connection) ? Integer.MIN_VALUE : FETCH_SIZE);
+				ResultSet rs = statement.executeQuery();
+				try {
+					writer.begin();
+					long lastId = after;
+					while (rs.next()){
+						lastId = rs.getLong(1);
+						writer.row(lastId, rs.getDate(2), site, dictionary.termOf(intOrNull(rs, 3)), dictionary.termOf(intOrNull(rs, 4)),
+								rs.getLong(5), rs.getLong(6), rs.getInt(7), rs.getLong(8), floatOrNull(rs, 9), floatOrNull(rs, 10));
+					}
+					if (through != null)
+						writer.end(through.toString());
+					else
+						writer.end(limit > 0 && writer.getRowCount() == limit ? Long.toString(lastId) : null);
+				} finally {
+					rs.close();
+				}
+			} finally {
+				statement.close();
+			}
+		} catch (SQLException sqle){
+			logger.log(Level.SEVERE, "Export of " + site + " failed after " + writer.getRowCount() + " rows", sqle);
+			throw new IOException("Export failed", sqle);
+		} finally {
+			if (connection != null){
+				try {
+					connection.close();
+				} catch (SQLException sqle){
+					logger.log(Level.FINE, "Could not close export connection", sqle);
+				}
+			}
+		}
+		logger.info("Exported " + writer.getRowCount() + " metrics for " + site + " in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * @param select select clause of the query, which is left without a limit
+	 */
+	private String sql(String select){
+		StringBuilder sql = new StringBuilder(select).append(" FROM WebMetric WHERE siteId = ? AND id > ?");
+		if (project != null)
+			sql.append(" AND projectId = ?");
+		if (from != null)
+			sql.append(" AND date >= ?");
+		if (to != null)
+			sql.append(" AND date < ?");
+		if (through != null)
+			sql.append(" AND id <= ").append(through.longValue());
+		sql.append(" ORDER BY id");
+		return sql.toString();
+	}
+
+	private void bind(PreparedStatement statement, Integer siteId, Integer projectId) throws SQLException {
+		List<Object> parameters = new ArrayList<Object>();
+		parameters.add(siteId);
+		parameters.add(after);
+		if (projectId != null)
+			parameters.add(projectId);
+		if (from != null)
+			parameters.add(new java.sql.Date(from.getTime()));
+		if (to != null)
+			parameters.add(new java.sql.Date(to.getTime()));
+		for (int i = 0; i < parameters.size(); i++)
+			statement.setObject(i + 1, parameters.get(i));
+	}
+
+	private static Integer intOrNull(ResultSet rs, int column) throws SQLException {
+		int value = rs.getInt(column);
+		return rs.wasNull() ? null : value;
+	}
+
+	private static Float floatOrNull(ResultSet rs, int column) throws SQLException {
+		float value = rs.getFloat(column);
+		return rs.wasNull() ? null : value;
+	}
+
+	private static boolean isMySQL(Connection connection) throws SQLException {
+		return "MySQL".equalsIgnoreCase(connection.getMetaData().getDatabaseProductName());
+	}
+}
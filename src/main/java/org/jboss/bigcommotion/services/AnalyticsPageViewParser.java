@@ -1,33 +1,44 @@
 package org.jboss.bigcommotion.services;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.Resource;
+import javax.ejb.AsyncResult;
+import javax.ejb.Asynchronous;
 import javax.ejb.LocalBean;
+import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
 import javax.ejb.TransactionAttribute;
 import javax.ejb.TransactionAttributeType;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
-import javax.persistence.TypedQuery;
+import javax.persistence.TemporalType;
 
-import org.apache.commons.lang.StringUtils;
+import org.jboss.bigcommotion.model.DictionaryTerm;
+import org.jboss.bigcommotion.model.IngestLedgerEntry;
+import org.jboss.bigcommotion.model.MonthlyRollup;
+import org.jboss.bigcommotion.model.ReportChunk;
 import org.jboss.bigcommotion.model.WebMetric;
+import org.jboss.bigcommotion.util.PageViewReportTokenizer;
+import org.jboss.bigcommotion.util.ReportFiles;
+import org.jboss.bigcommotion.util.ReportSplitter;
 import org.jboss.bigcommotion.util.Resources;
-import org.kie.api.KieServices;
-import org.kie.api.runtime.KieContainer;
-import org.kie.api.runtime.StatelessKieSession;
 
 @Stateless
 @LocalBean
@@ -37,24 +48,55 @@ public class AnalyticsPageViewParser {
 	@Inject
 	private transient Logger logger;	
 
-	private static final String REGEX_COMMAS_AND_QUOTES = ",(?=([^\"]*\"[^\"]*\")*[^\"]*$)";
+	private static final int HEADER_LINES = 7;
 	private static final int END_OF_URI_METRICS_LINENUM = 2506;    
+
+	// Column layout of the standard GA Pages report.  The trailing Page Value column is ignored for now.
+	private static final int FIELD_PAGE = 0;
+	private static final int FIELD_PAGEVIEWS = 1;
+	private static final int FIELD_UNIQUE_PAGEVIEWS = 2;
+	private static final int FIELD_AVERAGE_TIME_ON_PAGE = 3;
+	private static final int FIELD_ENTRANCES = 4;
+	private static final int FIELD_BOUNCE_RATE = 5;
+	private static final int FIELD_PERCENT_EXIT = 6;
+	private static final int FIELD_COUNT = 7;
 	
 	@PersistenceContext(unitName = Resources.PERSISTENCE_CONTEXT_NAME)
 	private EntityManager em;
 
-	private static KieServices ks = KieServices.Factory.get();
-    private KieContainer kContainer = ks.getKieClasspathContainer();
+	@Resource
+	private SessionContext context;
+
+	@Inject
+	private MetricRuleEngine ruleEngine;
+
+	@Inject
+	private PageClassificationService classificationService;
+
+	@Inject
+	private PageNormalizationCache normalizationCache;
+
+	@Inject
+	private IngestLedger ledger;
+
+	@Inject
+	private RollupService rollups;
+
+	@Inject
+	private DictionaryService dictionary;
+
+	@Inject
+	private IngestMetrics ingestMetrics;
+
     private SimpleDateFormat sdf = new SimpleDateFormat("MMM-dd-yyyy");
 
     
     /**
      * There are many duplicates from jboss.org.  This method checks existing entries,
      * and confirms there is only one.  Should a duplicate entry exist, the method
-     * sums the visits, entrances, unique pageviews and exits.  
+     * sums the visits, entrances, unique pageviews and exits.  The metric must already
+     * have been through {@link #normalize}.
      * TODO:  Still need to do the moving averages correctly.
-     * TODO:  Parse the average time on page into seconds, then add to the metric
-     * TODO:  Associate project directly by the path name when possible.
      * TODO:  Possibly make this JDG/ISPN based?
      * @param metrics
      * @param metric
@@ -64,49 +106,120 @@ public class AnalyticsPageViewParser {
     	assert metric != null : "metric must be specified.";
     	assert metrics != null : "metrics must be specified";
 
-    	StatelessKieSession sSession = kContainer.newStatelessKieSession("webmetrics-stateless");
-    	sSession.execute(Arrays.asList(new Object[]{metric}));
     	String page = metric.getPage();
-
-    	if(page.length() > 511)
-    		page = page.substring(1,510);
-    	
-    	if (page.equalsIgnoreCase("/jbossorg-downloads/JBoss-6.0.0.Final") 
-    			|| page.equalsIgnoreCase("/jbossorg-downloads/JBoss-5.1.0.GA"))
-    		page = "/jbossas/downloads";
-    	if ( StringUtils.startsWith(page, "/tools/download/"))
-    		page = "/tools/download/";
-    	
-    	// Only URL that should have a trailing '/' is the root.
-    	if (StringUtils.endsWith(page, "/") && page.length() > 1){
-    		page = (StringUtils.substringBeforeLast(page, "/"));
-    	}
-    	
-    	if (metric.getSite().equals("jboss.org")){
-        	if (page.equals("/docs/EAPdocumentation"))
-        		metric.setProject("EAP");
-    	}
-
     	if (metrics.containsKey(page)){
     		// Add the metrics together
     		WebMetric existingMetric = metrics.get(page);
     		existingMetric.addMetrics(metric);
     	} else {
-    		metric.setPage(page);
     		metrics.put(page, metric);
     	}    	
     }    
+
+    /**
+     * Applies the page rules, then the page rewrites and project classification, to each row in place.
+     * Rows seen before under the same rules take their page and project from the normalization cache.
+     * @param rows rows read from a report
+     * @param source name of the file or chunk the rows came from, for logging
+     */
+    private void normalize(List<WebMetric> rows, String source){
+        List<WebMetric> missed = new ArrayList<WebMetric>();
+        List<PageNormalizationCache.Key> keys = normalizationCache.apply(rows, missed);
+        long ruleMillis = ruleEngine.execute(missed);
+        logger.info("Applied page rules to " + missed.size() + " rows from " + source + " in " + ruleMillis + " ms, "
+        		+ (rows.size() - missed.size()) + " rows were cached");
+        long start = System.nanoTime();
+        for (WebMetric metric : missed){
+        	if(metric.getPage().length() > 511)
+        		metric.setPage(metric.getPage().substring(1,510));
+        	// Rewrites, trailing '/' and project assignment all come from the ClassificationRule table.
+        	metric.setPage(classificationService.classify(metric));
+        }
+        normalizationCache.putAll(keys, missed);
+        ingestMetrics.record(IngestMetrics.Stage.CLASSIFY, start, missed.size());
+    }
+
+    /**
+     * Consolidates normalized rows into one metric per page, in row order.
+     */
+    private Map<String, WebMetric> consolidate(List<WebMetric> rows){
+    	long start = System.nanoTime();
+    	Map<String, WebMetric> metrics = new HashMap<String, WebMetric>();  //stores paths for consolidating things like /downloads and /downloads/index.html prior to pertisting to the DB.
+        for (WebMetric metric : rows){
+        	addOrUpdateMetric(metrics, metric);
+        }
+        ingestMetrics.record(IngestMetrics.Stage.CONSOLIDATE, start, rows.size());
+        return metrics;
+    }
     
-    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    /**
+     * Saves the metrics of one import and adds them to their rollups, in the caller's transaction so
+     * they commit together with the import's ledger entry.
+     */
     private void saveMetrics(Map<String,WebMetric> metrics){
+    	writeMetrics(metrics);
+    	long start = System.nanoTime();
+    	rollups.apply(metrics.values());
+    	ingestMetrics.record(IngestMetrics.Stage.ROLLUP, start, metrics.size());
+    }
+
+    private void writeMetrics(Map<String,WebMetric> metrics){
     	assert metrics != null : "metrics must be specified";
-    	for (String key : metrics.keySet()){
-        	WebMetric metric = metrics.get(key);
-        	em.persist(metric);
-        }
-    	em.flush();
+    	long start = System.nanoTime();
+    	dictionary.encode(metrics.values());
+    	MetricBulkWriter writer = new MetricBulkWriter(em, MetricBulkWriter.configuredMode(), MetricBulkWriter.DEFAULT_BATCH_SIZE);
+    	int written = writer.write(metrics.values());
+    	ingestMetrics.record(IngestMetrics.Stage.PERSIST, start, written);
+    	ingestMetrics.recordMillis(IngestMetrics.Stage.FLUSH, writer.getFlushMillis(), written);
+    	logger.info("Wrote " + written + " metrics using " + writer.getMode() + ", " + writer.getFlushMillis() + " ms in the database");
+    }
+
+    /**
+     * Reads page rows until <code>lastLine</code>, the end of the input, or the end of the page metrics section.
+     * @param tokenizer tokenizer positioned before the first row to be read
+     * @param lineOffset number of lines in the file before the tokenizer's input starts
+     * @param lastLine number of the last line in the file to be read
+     * @param rows rows are added to this list
+     * @return number of the line that ended the page metrics section, or 0 if it was not reached
+     * @throws IOException
+     */
+    private int readRows(PageViewReportTokenizer tokenizer, int lineOffset, int lastLine, String siteName, String fileName,
+    		String project, Date startDate, List<WebMetric> rows) throws IOException {
+    	while(lineOffset + tokenizer.getLineNumber() < lastLine && tokenizer.nextLine())
+    	{
+    		int lineNumber = lineOffset + (int) tokenizer.getLineNumber();
+    		if (tokenizer.getFieldCount() < FIELD_COUNT){
+    			//TODO:  This is where files start their daily summaries.  Add this as another metric.
+    			logger.fine("End of page metrics at line: " + lineNumber + ".  Stopping scan of file.");
+    			return lineNumber;
+    		}
+    		WebMetric metric = new WebMetric();
+    		metric.setDate(startDate);
+    		metric.setPage(tokenizer.getString(FIELD_PAGE));
+    		metric.setSite(siteName);
+    		metric.setFileName(fileName);
+    		metric.setProject(project);
+
+    		try {
+    			metric.setPageViews(tokenizer.getLong(FIELD_PAGEVIEWS));
+    			metric.setUniquePageViews(tokenizer.getLong(FIELD_UNIQUE_PAGEVIEWS));
+    			metric.setAverageTimeOnPage(tokenizer.getDuration(FIELD_AVERAGE_TIME_ON_PAGE));
+    			metric.setEntrances(tokenizer.getLong(FIELD_ENTRANCES));
+    			metric.setBounceRate(tokenizer.getPercentage(FIELD_BOUNCE_RATE)); 
+    			metric.setPercentExit(tokenizer.getPercentage(FIELD_PERCENT_EXIT));
+    		}
+    		catch (NumberFormatException nfe)
+    		{
+    			logger.warning( "Issue with " + metric.getPage() + " in " + metric.getDate() 
+    					+ " at line " +  lineNumber + ".  Stopping Scan");
+    			return lineNumber;
+    		}
+    		if (logger.isLoggable(Level.FINEST))
+    			logger.log(Level.FINEST,"WebMetric = " + metric.toString());
+    		rows.add(metric);
+    	} // End of File Scan
+    	return 0;
     }
-    
 	
     /**
      * Parses Google Analytics Standard PageView report, consolidates duplicate entries and persists them
@@ -121,101 +234,242 @@ public class AnalyticsPageViewParser {
     	assert file != null : "file must be specified";
     	assert startDate !=null : "startDate must be specified";
     	
-    	if(isFileAlreadyProcessed(file)){
+    	IngestLedgerEntry ledgerEntry = ledger.begin(file, siteName, startDate);
+    	if (ledgerEntry == null){
     		logger.info("Not processing " + file.getAbsolutePath() + " as it's already been processed.");
     		return;
     	}
-        
-    	Map<String, WebMetric> metrics = new HashMap<String, WebMetric>();  //stores paths for consolidating things like /downloads and /downloads/index.html prior to pertisting to the DB.
-    	FileReader fileReader = null;
+    	long started = System.currentTimeMillis();
+    	long startNanos = System.nanoTime();
+
+    	Map<String, WebMetric> metrics;
+    	try {
+    		metrics = readFile(siteName, file, startDate);
+    	} catch (FileNotFoundException e) {
+    		logger.log(Level.SEVERE, "Could not read file " + file.getAbsolutePath());
+    		ledger.fail(ledgerEntry, System.currentTimeMillis() - started, "File not found");
+    		return;
+    	} catch (IOException ioe) {
+    		logger.log(Level.SEVERE, "Could not import " + file.getAbsolutePath(), ioe);
+    		ledger.fail(ledgerEntry, System.currentTimeMillis() - started, ioe.getMessage());
+    		return;
+    	}
+
+        logger.info("Saving metrics from " + sdf.format(startDate) + " recording " + metrics.size() + " metrics");
+        saveMetrics(metrics);
+        ledger.complete(ledgerEntry, metrics.size(), System.currentTimeMillis() - started);
+        ingestMetrics.record(IngestMetrics.Stage.FILE, startNanos, metrics.size());
+    }
+
+    /**
+     * Reads, normalizes and consolidates a whole report.  Nothing is written to the database.
+     * @return one metric per page
+     * @throws FileNotFoundException if the file is gone
+     * @throws IOException if the file cannot be opened or read, with the line it stopped at
+     */
+    public Map<String, WebMetric> readFile(String siteName, File file, Date startDate) throws IOException {
+    	long startNanos = System.nanoTime();
+    	List<WebMetric> rows = new ArrayList<WebMetric>(END_OF_URI_METRICS_LINENUM);
+    	Reader fileReader;
 		try {
-			fileReader = new FileReader(file);
+			// Plain, .gz and .zip reports are all decoded as they are read.
+			fileReader = ReportFiles.openReader(file);
 		} catch (FileNotFoundException e) {
-			logger.log(Level.SEVERE, "Could not read file " + file.getAbsolutePath());
-			return;
+			throw e;
+		} catch (IOException ioe) {
+			throw new IOException("Could not open: " + ioe.getMessage(), ioe);
 		}
-        BufferedReader bufferedFileReader = new BufferedReader(fileReader);
-    	Scanner scanner = new Scanner(bufferedFileReader);
-		long lineNum = 0;
-        // Skip the metadata for now.  TODO:  Add metadata to the model.
-        while (lineNum < 7){
-            scanner.nextLine();
-        	lineNum++;
-        }
+		PageViewReportTokenizer tokenizer = new PageViewReportTokenizer(fileReader);
+		String fileName = file.getAbsolutePath();
+		String project = file.getParentFile().getName();
 
-        scanner.useDelimiter(REGEX_COMMAS_AND_QUOTES);
-        
         // Scan each line.  
         // TODO: This logic is incorrect.  Many of the secondary sites do not have 2500 entries.  Only jboss.org does.
         logger.info("Parsing metrics from " + sdf.format(startDate) + " for " + siteName + "...");
-        filescan:
-        	while(scanner.hasNextLine() && lineNum < END_OF_URI_METRICS_LINENUM )
-        	{
-        		while(scanner.hasNext()){
-        			WebMetric metric = new WebMetric();
-        			metric.setDate(startDate);
-        			String url = scanner.next();
-        			metric.setPage(url);
-        			metric.setSite(siteName);
-        			metric.setFileName(file.getAbsolutePath());
-        			metric.setProject(file.getParentFile().getName());
-
-        			try {
-        				metric.setPageViews(Resources.stripQuotes(scanner.next()));
-        				metric.setUniquePageViews(Resources.stripQuotes(scanner.next()));
-        				scanner.next(); // omit average time on page for now.
-        				metric.setEntrances(Resources.stripQuotes(scanner.next()));
-        				metric.setBounceRate(Resources.parsePercentage(scanner.next())); 
-        				metric.setPercentExit(Resources.parsePercentage(scanner.next()));
-        				lineNum++;
-        				scanner.nextLine(); //omit page value for now
-        				logger.log(Level.FINEST,"WebMetric = " + metric.toString());
-        				addOrUpdateMetric(metrics, metric);
-        			} 
-        			catch (java.util.NoSuchElementException nse){
-        				//TODO:  This is where files start their daily summaries.  Add this as another metric.
-        				logger.warning("Scanner shit the bed at line: " + lineNum + "Stopping scan of file.");
-        				break filescan;
-        			}
-        			catch (NumberFormatException nfe)
-        			{
-        				logger.warning( "Issue with " + metric.getPage() + " in " + metric.getDate() 
-        						+ " at line " +  lineNum + ".  Stopping Scan");
-        				break filescan;
-        			}            
-        		}  // End of Line Scan
-        	} // End of File Scan
+        try {
+        	// Skip the metadata for now.  TODO:  Add metadata to the model.
+        	tokenizer.skipLines(HEADER_LINES);
+        	readRows(tokenizer, 0, END_OF_URI_METRICS_LINENUM, siteName, fileName, project, startDate, rows);
+        	ingestMetrics.record(IngestMetrics.Stage.TOKENIZE, startNanos, rows.size());
+        } catch (IOException ioe){
+        	throw new IOException("Read failed at line " + tokenizer.getLineNumber() + ": " + ioe.getMessage(), ioe);
+        } finally {
+        	try {
+        		tokenizer.close();
+        	} catch (IOException ioe){
+        		logger.log(Level.FINE, "Could not close " + fileName, ioe);
+        	}
+        }
  
         //TODO:  Add summarized page-views that start on line 2511 of a JBoss.org report.
         //TODO:  Address and recognize pattern for the end of the individual files.  We *do* want to record the rest of the file but this will do for now.
-        scanner.close();
-        logger.info("Saving metrics from " + sdf.format(startDate) + " recording " + metrics.size() + " metrics");
-        saveMetrics(metrics);
+        normalize(rows, file.getName());
+        return consolidate(rows);
     }
 
-	
-	/**
-	 * Checks to see if the File has already been proccessed by the system.
-	 * @param file
-	 * @return
-	 */
-	private boolean isFileAlreadyProcessed(File file){
-		assert file != null: "file must not be null.";
-
-		//look up the file path to see if we have already processed it in the past.		
-		TypedQuery<Long> findByFilePathQuery = em.createQuery("SELECT COUNT(m) FROM WebMetric m where m.fileName = :path", Long.class );
-		findByFilePathQuery.setParameter("path", file.getAbsolutePath());
-		long fileCount = findByFilePathQuery.getSingleResult();
-		logger.info( "RECORD COUNT: " + fileCount + " for file " + file.getAbsolutePath());		
-		if (fileCount > 0 ){
-			logger.log(Level.FINEST, "Already processed " + file.getPath() + " ignoring.");			
-			return true;
-		}
-		else {
-			logger.log(Level.FINEST, "Have not proccessed " + file.getAbsolutePath() + " processing now...");
-			return false;					
-		}
-	}
+    /**
+     * Re-imports a report for a backfill: reads it outside any transaction, then replaces the rows of
+     * its earlier imports with {@link #replaceMetrics}.  Runs on the container's asynchronous pool, so
+     * several reports can be re-imported at once.
+     * @return number of metrics saved, or -1 if the report was skipped
+     * @throws IOException if the report cannot be read; its earlier rows are left as they were
+     */
+    @Asynchronous
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public Future<Integer> reimportFile(String siteName, File file, Date startDate) throws IOException {
+    	assert siteName != null : "siteName must be specified";
+    	assert file != null : "file must be specified";
+    	assert startDate !=null : "startDate must be specified";
+    	long started = System.currentTimeMillis();
+    	Map<String, WebMetric> metrics = readFile(siteName, file, startDate);
+    	int saved = context.getBusinessObject(AnalyticsPageViewParser.class).replaceMetrics(siteName, file, startDate, metrics, started);
+    	return new AsyncResult<Integer>(saved);
+    }
 
-    
+    /**
+     * Deletes the rows of every earlier import of a report, saves its newly read metrics, recomputes
+     * the month's rollups and records the import in the ledger, all in one transaction.  A report
+     * that would delete and insert more than {@link BackfillService#getMaxRows} metrics is skipped,
+     * with nothing changed.  A report has at most {@value #END_OF_URI_METRICS_LINENUM} lines, so
+     * the limit is only reached with the rows of many earlier copies.  Called through the container by
+     * {@link #reimportFile}, and by {@link ChunkedReportImporter#importFile} for a report that changed
+     * since it was imported.
+     * @param started when reading the report started
+     * @return number of metrics saved, or -1 if the report was skipped
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public int replaceMetrics(String siteName, File file, Date startDate, Map<String, WebMetric> metrics, long started){
+    	assert metrics != null : "metrics must be specified";
+    	IngestLedgerEntry ledgerEntry = ledger.beginReplace(file, siteName, startDate);
+    	if (ledgerEntry == null)
+    		return -1;
+
+    	Date from = MonthlyRollup.monthOf(startDate);
+    	List<String> replaced = ledger.findReplacedPaths(ledgerEntry);
+    	List<Integer> fileIds = new ArrayList<Integer>(replaced.size());
+    	for (String path : replaced){
+    		Integer fileId = dictionary.idOf(DictionaryTerm.Kind.FILE, path);
+    		if (fileId != null)
+    			fileIds.add(fileId);
+    	}
+    	Integer siteId = dictionary.idOf(DictionaryTerm.Kind.SITE, siteName);
+    	boolean earlierRows = siteId != null && !fileIds.isEmpty();
+    	// The month bounds let MySQL prune the count and the delete to the month's partition.
+    	long earlier = !earlierRows ? 0 : em.createQuery("SELECT COUNT(m) FROM WebMetric m WHERE m.fileId IN :fileIds"
+    			+ " AND m.siteId = :siteId AND m.date >= :from AND m.date < :to", Long.class)
+    			.setParameter("fileIds", fileIds)
+    			.setParameter("siteId", siteId)
+    			.setParameter("from", from, TemporalType.DATE)
+    			.setParameter("to", MonthlyRollup.nextMonth(from), TemporalType.DATE)
+    			.getSingleResult().longValue();
+    	int maxRows = BackfillService.getMaxRows();
+    	if (earlier + metrics.size() > maxRows){
+    		logger.warning("Not re-importing " + file.getAbsolutePath() + ": replacing " + earlier + " metrics with " + metrics.size()
+    				+ " is more than the " + maxRows + " of -D" + BackfillService.MAX_ROWS_PROPERTY);
+    		context.setRollbackOnly();
+    		return -1;
+    	}
+    	int deleted = 0;
+    	if (earlierRows){
+    		deleted = em.createQuery("DELETE FROM WebMetric m WHERE m.fileId IN :fileIds AND m.siteId = :siteId"
+    				+ " AND m.date >= :from AND m.date < :to")
+    				.setParameter("fileIds", fileIds)
+    				.setParameter("siteId", siteId)
+    				.setParameter("from", from, TemporalType.DATE)
+    				.setParameter("to", MonthlyRollup.nextMonth(from), TemporalType.DATE)
+    				.executeUpdate();
+    	}
+
+    	writeMetrics(metrics);
+    	em.flush();
+    	long start = System.nanoTime();
+    	rollups.recompute(siteName, from);
+    	ingestMetrics.record(IngestMetrics.Stage.ROLLUP, start, metrics.size());
+    	ledger.replaced(ledgerEntry, replaced);
+    	ledger.complete(ledgerEntry, metrics.size(), System.currentTimeMillis() - started);
+    	ingestMetrics.recordMillis(IngestMetrics.Stage.FILE, System.currentTimeMillis() - started, metrics.size());
+    	logger.info("Replaced " + deleted + " metrics of " + file.getAbsolutePath() + " with " + metrics.size());
+    	return metrics.size();
+    }
+
+    /**
+     * Splits a report into chunks of whole lines that can be parsed by {@link #parseChunk} in parallel.
+     * Chunks are byte ranges of the file, so the report must not be compressed.
+     * @return chunks covering the page rows of the report, without the import id or ledger entry set
+     * @throws IOException
+     */
+    public List<ReportChunk> splitFile(String siteName, File file, Date startDate, int linesPerChunk) throws IOException {
+    	assert file != null && !ReportFiles.isCompressed(file) : "file must be an uncompressed report";
+    	List<ReportSplitter.Range> ranges = ReportSplitter.split(file, HEADER_LINES, END_OF_URI_METRICS_LINENUM, linesPerChunk);
+    	List<ReportChunk> chunks = new ArrayList<ReportChunk>(ranges.size());
+    	for (ReportSplitter.Range range : ranges){
+    		ReportChunk chunk = new ReportChunk();
+    		chunk.setSite(siteName);
+    		chunk.setFileName(file.getAbsolutePath());
+    		chunk.setDate(startDate);
+    		chunk.setChunkIndex(chunks.size());
+    		chunk.setChunkCount(ranges.size());
+    		chunk.setStartOffset(range.getStart());
+    		chunk.setEndOffset(range.getEnd());
+    		chunk.setFirstLine(range.getFirstLine());
+    		chunk.setLineCount(range.getLineCount());
+    		chunks.add(chunk);
+    	}
+    	return chunks;
+    }
+
+    /**
+     * Reads and normalizes the rows of one chunk of a report.  Nothing is written to the database.
+     * @throws IOException if the chunk cannot be read
+     */
+    public ChunkMergeCoordinator.Part parseChunk(ReportChunk chunk) throws IOException {
+    	assert chunk != null : "chunk must be specified";
+    	File file = new File(chunk.getFileName());
+    	byte[] bytes = new byte[(int) (chunk.getEndOffset() - chunk.getStartOffset())];
+    	RandomAccessFile in = new RandomAccessFile(file, "r");
+    	try {
+    		in.seek(chunk.getStartOffset());
+    		in.readFully(bytes);
+    	} finally {
+    		in.close();
+    	}
+
+    	long start = System.nanoTime();
+    	List<WebMetric> rows = new ArrayList<WebMetric>(chunk.getLineCount());
+    	// Same default charset FileReader uses for whole files.
+    	PageViewReportTokenizer tokenizer = new PageViewReportTokenizer(new InputStreamReader(new ByteArrayInputStream(bytes)));
+    	int lastPageLine = readRows(tokenizer, chunk.getFirstLine() - 1, chunk.getFirstLine() + chunk.getLineCount() - 1,
+    			chunk.getSite(), chunk.getFileName(), file.getParentFile().getName(), chunk.getDate(), rows);
+    	ingestMetrics.record(IngestMetrics.Stage.TOKENIZE, start, rows.size());
+    	normalize(rows, chunk.toString());
+    	return new ChunkMergeCoordinator.Part(chunk, rows, lastPageLine);
+    }
+
+    /**
+     * Consolidates and saves the rows of every chunk of a report, and records the import in the ledger.
+     * @param chunk any chunk of the report
+     * @param rows normalized rows of the whole report, in file order
+     */
+    public void saveChunks(ReportChunk chunk, List<WebMetric> rows){
+    	assert chunk != null : "chunk must be specified";
+    	assert rows != null : "rows must be specified";
+    	IngestLedgerEntry ledgerEntry = chunk.getLedgerEntryId() == null ? null : em.find(IngestLedgerEntry.class, chunk.getLedgerEntryId());
+    	if (ledgerEntry == null){
+    		logger.warning("No ingest ledger entry for " + chunk.getFileName());
+    		return;
+    	}
+    	// The entry's version is checked when this transaction commits, so an import that begins
+    	// after this check rolls back one of the two.
+    	if (ledgerEntry.getStatus() != IngestLedgerEntry.Status.PROCESSING || !chunk.getImportId().equals(ledgerEntry.getImportId())){
+    		logger.warning("Not saving chunked import " + chunk.getImportId() + " of " + chunk.getFileName()
+    				+ " as its ledger entry is now " + ledgerEntry.getStatus() + " for import " + ledgerEntry.getImportId());
+    		return;
+    	}
+    	Map<String, WebMetric> metrics = consolidate(rows);
+    	logger.info("Saving metrics from " + sdf.format(chunk.getDate()) + " recording " + metrics.size() + " metrics from "
+    			+ chunk.getChunkCount() + " chunks of " + chunk.getFileName());
+    	saveMetrics(metrics);
+    	ledger.complete(ledgerEntry, metrics.size(), System.currentTimeMillis() - chunk.getStarted());
+    	ingestMetrics.recordMillis(IngestMetrics.Stage.FILE, System.currentTimeMillis() - chunk.getStarted(), metrics.size());
+    }
 }
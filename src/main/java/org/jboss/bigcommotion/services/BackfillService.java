@@ -0,0 +1,304 @@
+package org.jboss.bigcommotion.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.jboss.bigcommotion.model.BackfillCheckpoint;
+import org.jboss.bigcommotion.model.MonthlyRollup;
+import org.jboss.bigcommotion.util.ReportFiles;
+import org.jboss.bigcommotion.util.Resources;
+
+/**
+ * Re-imports the archived reports of a range of months after the rules or the parsing change,
+ * replacing the rows of their earlier imports, rather than deleting rows by hand and waiting for the
+ * importer to send every report again.
+ * <p>
+ * Runs on a timer in the background once {@link #start} records a {@link BackfillCheckpoint}.  Up to
+ * the checkpoint's parallelism reports are re-imported at once through
+ * {@link AnalyticsPageViewParser#reimportFile}, each replaced in a transaction of its own with the
+ * rollups of its month, but never two reports of the same site and month, as they would both
+ * rebuild the same rollups.  A report's ledger entry completes in the same transaction as its rows,
+ * so after a restart the job carries on with the reports not re-imported since it started.  A report
+ * whose rows, with those of the imports it replaces, are more than {@link #getMaxRows} is skipped
+ * rather than replaced in one oversized transaction.  Each run
+ * stops taking reports after {@link #RUN_MILLIS}, or as soon as reports are waiting on the import
+ * queue, so live ingestion is never held up behind it.
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class BackfillService {
+
+	/** Number of reports re-imported at once when a backfill is started without one. */
+	public static final String PARALLELISM_PROPERTY = "metrics.backfill.parallelism";
+	static final int DEFAULT_PARALLELISM = 4;
+	/** Most metrics a re-import may delete and insert together, in its one transaction. */
+	public static final String MAX_ROWS_PROPERTY = "metrics.backfill.maxRows";
+	static final int DEFAULT_MAX_ROWS = 20000;
+	// Below the container's default of 10 asynchronous threads, leaving some for the warm-up
+	static final int MAX_PARALLELISM = 8;
+	static final long RUN_MILLIS = 50000;
+	static final long PAUSE_MILLIS = 250;
+
+	@Inject
+	private transient Logger logger;
+
+	@PersistenceContext(unitName = Resources.PERSISTENCE_CONTEXT_NAME)
+	private EntityManager em;
+
+	@Resource
+	private SessionContext context;
+
+	@Inject
+	private AnalyticsPageViewParser parser;
+
+	@Inject
+	private IngestLedger ledger;
+
+	@Inject
+	private IngestMetrics ingestMetrics;
+
+	@Inject
+	private StartupService startup;
+
+	private final AtomicBoolean running = new AtomicBoolean();
+	// Reports of the running checkpoint that failed or were skipped, so a run does not try them again
+	private final Set<String> attempted = new HashSet<String>();
+	private Long attemptedCheckpointId;
+
+	/**
+	 * @return the parallelism of {@value #PARALLELISM_PROPERTY}, {@value #DEFAULT_PARALLELISM} by default
+	 */
+	public static int getDefaultParallelism(){
+		return Integer.getInteger(PARALLELISM_PROPERTY, DEFAULT_PARALLELISM);
+	}
+
+	/**
+	 * @return the limit of {@value #MAX_ROWS_PROPERTY}, {@value #DEFAULT_MAX_ROWS} by default
+	 */
+	public static int getMaxRows(){
+		return Integer.getInteger(MAX_ROWS_PROPERTY, DEFAULT_MAX_ROWS);
+	}
+
+	/**
+	 * Re-imports reports until the backfill is complete or cancelled, the time is up or reports are
+	 * waiting to be imported, then waits for the reports still being re-imported.  Does nothing
+	 * until the warm-up is done or while a run is in progress.
+	 */
+	@Schedule(hour="*", minute="*", persistent=false)
+	public void run(){
+		if (startup.getState() != StartupService.State.READY || !running.compareAndSet(false, true))
+			return;
+		try {
+			BackfillCheckpoint checkpoint = getCheckpoint();
+			if (checkpoint != null && checkpoint.getStatus() == BackfillCheckpoint.Status.RUNNING)
+				backfill(checkpoint);
+		} catch (InterruptedException ie){
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException re){
+			logger.log(Level.SEVERE, "Backfill failed, carrying on with the reports not re-imported yet on the next run", re);
+		} finally {
+			running.set(false);
+		}
+	}
+
+	/**
+	 * Starts re-importing the reports of every month from <code>fromMonth</code> to <code>toMonth</code>,
+	 * of one site or all of them.
+	 * @param parallelism number of reports re-imported at once, at most {@value #MAX_PARALLELISM}
+	 * @return the new checkpoint, or null if a backfill is running already
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public BackfillCheckpoint start(String site, Date fromMonth, Date toMonth, int parallelism){
+		assert fromMonth != null && toMonth != null : "fromMonth and toMonth must be specified";
+		BackfillCheckpoint current = getCheckpoint();
+		if (current != null && current.getStatus() == BackfillCheckpoint.Status.RUNNING)
+			return null;
+		BackfillCheckpoint checkpoint = new BackfillCheckpoint(site, fromMonth, toMonth, Math.max(1, Math.min(MAX_PARALLELISM, parallelism)));
+		em.persist(checkpoint);
+		logger.info("Starting " + checkpoint);
+		return checkpoint;
+	}
+
+	/**
+	 * Stops the running backfill.  Reports being re-imported finish; the rest keep their rows.
+	 * @return the cancelled checkpoint, or null if no backfill is running
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public BackfillCheckpoint cancel(){
+		BackfillCheckpoint checkpoint = getCheckpoint();
+		if (checkpoint == null || checkpoint.getStatus() != BackfillCheckpoint.Status.RUNNING)
+			return null;
+		checkpoint.cancel();
+		logger.info("Cancelled " + checkpoint);
+		return checkpoint;
+	}
+
+	/**
+	 * Adds the reports finished since the last call to the checkpoint, completing it when
+	 * <code>complete</code> is set and it is still running.  Called through the container by
+	 * {@link #run} only.
+	 * @return the checkpoint, which is no longer running once cancelled
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public BackfillCheckpoint advance(Long checkpointId, int files, int skipped, int failed, long rowCount, boolean complete){
+		BackfillCheckpoint checkpoint = em.find(BackfillCheckpoint.class, checkpointId);
+		checkpoint.advance(files, skipped, failed, rowCount);
+		if (complete && checkpoint.getStatus() == BackfillCheckpoint.Status.RUNNING){
+			checkpoint.complete();
+			logger.info("Backfill re-imported " + checkpoint.getFiles() + " reports with " + checkpoint.getRowCount() + " metrics, skipped "
+					+ checkpoint.getSkipped() + " copies, " + checkpoint.getFailed() + " failed");
+		}
+		return checkpoint;
+	}
+
+	/**
+	 * @return the latest backfill, or null if there has never been one
+	 */
+	public BackfillCheckpoint getCheckpoint(){
+		List<BackfillCheckpoint> checkpoints = em.createQuery("SELECT c FROM BackfillCheckpoint c ORDER BY c.id DESC", BackfillCheckpoint.class)
+				.setMaxResults(1)
+				.getResultList();
+		return checkpoints.isEmpty() ? null : checkpoints.get(0);
+	}
+
+	// -------------------------------------------------------------------
+
+	private void backfill(BackfillCheckpoint checkpoint) throws InterruptedException {
+		BackfillService self = context.getBusinessObject(BackfillService.class);
+		if (!checkpoint.getId().equals(attemptedCheckpointId)){
+			attempted.clear();
+			attemptedCheckpointId = checkpoint.getId();
+		}
+		Map<String, LinkedList<File>> pending = findPending(checkpoint);
+		Map<Future<Integer>, File> inFlight = new HashMap<Future<Integer>, File>();
+		Set<String> busyMonths = new HashSet<String>();
+		long deadline = System.currentTimeMillis() + RUN_MILLIS;
+		boolean stopping = false;
+		while (true){
+			int files = 0;
+			int skipped = 0;
+			int failed = 0;
+			long rowCount = 0;
+			for (Iterator<Map.Entry<Future<Integer>, File>> i = inFlight.entrySet().iterator(); i.hasNext();){
+				Map.Entry<Future<Integer>, File> report = i.next();
+				if (!report.getKey().isDone())
+					continue;
+				i.remove();
+				File file = report.getValue();
+				busyMonths.remove(monthKey(file));
+				try {
+					int saved = report.getKey().get();
+					if (saved < 0){
+						skipped++;
+						attempted.add(file.getAbsolutePath());
+					} else {
+						files++;
+						rowCount += saved;
+					}
+				} catch (ExecutionException ee){
+					logger.log(Level.WARNING, "Could not re-import " + file + ", its earlier rows are kept", ee.getCause());
+					failed++;
+					attempted.add(file.getAbsolutePath());
+				}
+			}
+
+			boolean finished = !stopping && inFlight.isEmpty() && pending.isEmpty();
+			if (files + skipped + failed > 0 || finished)
+				checkpoint = self.advance(checkpoint.getId(), files, skipped, failed, rowCount, finished);
+			if (finished)
+				break;
+			if (!stopping && (checkpoint.getStatus() != BackfillCheckpoint.Status.RUNNING || System.currentTimeMillis() >= deadline)){
+				stopping = true;
+			} else if (!stopping && ingestMetrics.getQueueDepth() > 0){
+				logger.fine("Backfill paused while reports are waiting to be imported");
+				stopping = true;
+			}
+			if (!stopping)
+				submit(pending, inFlight, busyMonths, checkpoint.getParallelism());
+			if (stopping && inFlight.isEmpty())
+				break;
+			Thread.sleep(PAUSE_MILLIS);
+		}
+	}
+
+	/**
+	 * @return reports of the checkpoint's months not re-imported or attempted since it started, by site and month
+	 */
+	private Map<String, LinkedList<File>> findPending(BackfillCheckpoint checkpoint){
+		Set<String> done = ledger.findCompletedSince(checkpoint.getStartedAt());
+		List<File> reports = ReportFiles.findReports(new File(GoogleAnalyticsImportSingleton.DEFAULT_DATA_PATH), checkpoint.getSite(),
+				checkpoint.getFromMonth(), MonthlyRollup.nextMonth(checkpoint.getToMonth()));
+		Map<String, LinkedList<File>> pending = new LinkedHashMap<String, LinkedList<File>>();
+		int count = 0;
+		for (File report : reports){
+			String path = report.getAbsolutePath();
+			if (done.contains(path) || attempted.contains(path))
+				continue;
+			String month = monthKey(report);
+			LinkedList<File> monthReports = pending.get(month);
+			if (monthReports == null){
+				monthReports = new LinkedList<File>();
+				pending.put(month, monthReports);
+			}
+			monthReports.add(report);
+			count++;
+		}
+		logger.info("Backfill has " + count + " reports left to re-import in " + pending.size() + " site months, "
+				+ (reports.size() - count) + " done");
+		return pending;
+	}
+
+	/**
+	 * Starts re-importing the next report of each site/month that has none being re-imported, until
+	 * <code>parallelism</code> reports are.
+	 */
+	private void submit(Map<String, LinkedList<File>> pending, Map<Future<Integer>, File> inFlight, Set<String> busyMonths, int parallelism){
+		for (Iterator<Map.Entry<String, LinkedList<File>>> i = pending.entrySet().iterator(); i.hasNext() && inFlight.size() < parallelism;){
+			Map.Entry<String, LinkedList<File>> month = i.next();
+			if (busyMonths.contains(month.getKey()))
+				continue;
+			File file = month.getValue().removeFirst();
+			if (month.getValue().isEmpty())
+				i.remove();
+			try {
+				inFlight.put(parser.reimportFile(file.getParentFile().getName(), file, ReportFiles.startDateOf(file.getName())), file);
+				busyMonths.add(month.getKey());
+			} catch (IOException ioe){
+				// Asynchronous calls report their failures through the future; only a direct call throws.
+				logger.log(Level.WARNING, "Could not re-import " + file + ", its earlier rows are kept", ioe);
+				attempted.add(file.getAbsolutePath());
+			}
+		}
+	}
+
+	private static String monthKey(File report){
+		return report.getParentFile().getName() + " " + MonthlyRollup.monthOf(ReportFiles.startDateOf(report.getName())).getTime();
+	}
+}
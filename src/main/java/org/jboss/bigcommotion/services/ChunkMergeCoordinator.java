@@ -0,0 +1,333 @@
+package org.jboss.bigcommotion.services;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Resource;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TemporalType;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.jboss.bigcommotion.model.IngestLedgerEntry;
+import org.jboss.bigcommotion.model.ReportChunk;
+import org.jboss.bigcommotion.model.StagedChunk;
+import org.jboss.bigcommotion.model.WebMetric;
+import org.jboss.bigcommotion.util.Resources;
+
+/**
+ * Collects the parsed chunks of reports that are being imported in parallel, and hands all of
+ * them, in file order, to whichever chunk completes the set.
+ * <p>
+ * A chunk's rows are held from when it is parsed, and written to the {@link StagedChunk} table in
+ * the transaction that parsed it.  When that transaction rolls back they are dropped again, so the
+ * redelivered message is parsed again without touching the rest of the file.  The chunk that
+ * completes the set merges the rows of every chunk held, including chunks whose transactions have
+ * not committed yet: should one of those roll back afterwards, its redelivered message finds the
+ * import no longer in progress in the ingest ledger and is ignored, as are the queued chunks of an
+ * import that expired or that a later dispatch of the same report superseded.  After a restart the
+ * chunks staged for an import are read back when its next chunk arrives.  Imports that never
+ * complete, because a chunk ended up on the dead letter queue, are dropped after
+ * {@link #PENDING_TIMEOUT_MINUTES} and their ledger entries failed, so the report is imported
+ * again when it is next dispatched.
+ */
+@Singleton
+@Lock(LockType.READ)
+public class ChunkMergeCoordinator {
+
+	static final long PENDING_TIMEOUT_MINUTES = 60;
+
+	@Inject
+	private transient Logger logger;
+
+	@Resource
+	private TransactionSynchronizationRegistry txRegistry;
+
+	@PersistenceContext(unitName = Resources.PERSISTENCE_CONTEXT_NAME)
+	private EntityManager em;
+
+	@Inject
+	private IngestLedger ledger;
+
+	private final ConcurrentMap<String, PendingImport> pending = new ConcurrentHashMap<String, PendingImport>();
+
+	/**
+	 * Rows parsed and normalized from one chunk.
+	 */
+	public static class Part implements Serializable {
+		private static final long serialVersionUID = 8630712458806135641L;
+
+		private final ReportChunk chunk;
+		private final List<WebMetric> rows;
+		private final int lastPageLine;
+
+		/**
+		 * @param chunk chunk the rows were read from
+		 * @param rows normalized rows in file order
+		 * @param lastPageLine number of the line that ended the page metrics section, or 0 if the chunk did not reach it
+		 */
+		public Part(ReportChunk chunk, List<WebMetric> rows, int lastPageLine){
+			assert chunk != null : "chunk must be specified";
+			assert rows != null : "rows must be specified";
+			this.chunk = chunk;
+			this.rows = rows;
+			this.lastPageLine = lastPageLine;
+		}
+
+		public ReportChunk getChunk(){
+			return chunk;
+		}
+
+		public List<WebMetric> getRows(){
+			return rows;
+		}
+
+		public int getLastPageLine(){
+			return lastPageLine;
+		}
+	}
+
+	private static class PendingImport {
+		private final AtomicReferenceArray<Part> parts;
+		private final AtomicInteger received = new AtomicInteger();
+		private final long created = System.currentTimeMillis();
+		/** Whether the chunks staged before this import was first seen here have been read back. */
+		private boolean loaded;
+
+		PendingImport(int chunkCount){
+			parts = new AtomicReferenceArray<Part>(chunkCount);
+		}
+	}
+
+	/**
+	 * Records a parsed chunk.
+	 * @return every chunk's rows in file order if this was the last chunk of its report, otherwise null
+	 */
+	public List<WebMetric> submit(final Part part){
+		assert part != null : "part must be specified";
+		final ReportChunk chunk = part.getChunk();
+		final String importId = chunk.getImportId();
+
+		final PendingImport pendingImport = findPending(chunk);
+		if (pendingImport == null){
+			logger.warning("Ignoring " + chunk + " as its import is no longer in progress");
+			return null;
+		}
+		loadStaged(importId, pendingImport);
+
+		if (!pendingImport.parts.compareAndSet(chunk.getChunkIndex(), null, part)){
+			logger.warning("Ignoring " + chunk + " as it has already been received");
+			return null;
+		}
+		em.persist(new StagedChunk(chunk, serialize(part)));
+		List<WebMetric> rows = null;
+		if (pendingImport.received.incrementAndGet() == chunk.getChunkCount()){
+			rows = merge(pendingImport);
+			if (rows == null)
+				logger.info("Not merging chunked import " + importId + " as a chunk rolled back; its redelivery completes the set");
+		}
+		final boolean complete = rows != null;
+		afterCompletion(new Synchronization(){
+			@Override
+			public void beforeCompletion(){
+			}
+
+			@Override
+			public void afterCompletion(int status){
+				if (status != Status.STATUS_COMMITTED){
+					pendingImport.parts.compareAndSet(chunk.getChunkIndex(), part, null);
+					pendingImport.received.decrementAndGet();
+				} else if (complete){
+					pending.remove(importId, pendingImport);
+				}
+			}
+		});
+		if (!complete)
+			return null;
+		em.createQuery("DELETE FROM StagedChunk s WHERE s.importId = :importId")
+				.setParameter("importId", importId)
+				.executeUpdate();
+		return rows;
+	}
+
+	/**
+	 * @return number of chunked imports waiting on chunks
+	 */
+	public int getPendingCount(){
+		return pending.size();
+	}
+
+	@Schedule(minute="*/15", hour="*", persistent=false)
+	public void expire(){
+		long cutoff = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(PENDING_TIMEOUT_MINUTES);
+		for (Iterator<Map.Entry<String, PendingImport>> it = pending.entrySet().iterator(); it.hasNext(); ){
+			Map.Entry<String, PendingImport> entry = it.next();
+			PendingImport pendingImport = entry.getValue();
+			if (pendingImport.created < cutoff){
+				logger.warning("Giving up on chunked import " + entry.getKey() + " after receiving " + pendingImport.received.get()
+						+ " of " + pendingImport.parts.length() + " chunks; the file will be imported again when it is next dispatched");
+				it.remove();
+			}
+		}
+		expireStaged(new Date(cutoff));
+	}
+
+	// -------------------------------------------------------------------
+
+	/**
+	 * Reads back the chunks of an import that were staged before it was first seen here, by this
+	 * server before a restart.  Chunks staged since are already in memory.
+	 */
+	private void loadStaged(String importId, PendingImport pendingImport){
+		synchronized (pendingImport){
+			if (pendingImport.loaded)
+				return;
+			List<StagedChunk> staged = em.createQuery("SELECT s FROM StagedChunk s WHERE s.importId = :importId", StagedChunk.class)
+					.setParameter("importId", importId)
+					.getResultList();
+			for (StagedChunk stagedChunk : staged){
+				if (pendingImport.parts.compareAndSet(stagedChunk.getChunkIndex(), null, deserialize(stagedChunk.getPart())))
+					pendingImport.received.incrementAndGet();
+				em.detach(stagedChunk);
+			}
+			if (!staged.isEmpty())
+				logger.info("Read back " + staged.size() + " staged chunks of chunked import " + importId);
+			pendingImport.loaded = true;
+		}
+	}
+
+	/**
+	 * Deletes the chunks of imports staged before the cutoff and fails their ledger entries.
+	 */
+	private void expireStaged(Date cutoff){
+		List<Object[]> stale = em.createQuery("SELECT s.importId, MIN(s.ledgerEntryId) FROM StagedChunk s"
+				+ " GROUP BY s.importId HAVING MAX(s.created) < :cutoff", Object[].class)
+				.setParameter("cutoff", cutoff, TemporalType.TIMESTAMP)
+				.getResultList();
+		Map<String, Long> ledgerEntryIds = new HashMap<String, Long>();
+		for (Object[] row : stale)
+			ledgerEntryIds.put((String) row[0], (Long) row[1]);
+		for (Map.Entry<String, Long> entry : ledgerEntryIds.entrySet()){
+			em.createQuery("DELETE FROM StagedChunk s WHERE s.importId = :importId")
+					.setParameter("importId", entry.getKey())
+					.executeUpdate();
+			pending.remove(entry.getKey());
+			IngestLedgerEntry ledgerEntry = entry.getValue() == null ? null : em.find(IngestLedgerEntry.class, entry.getValue());
+			// The entry may since have been begun again, for another import of the report.
+			if (ledgerEntry != null && ledgerEntry.getStatus() == IngestLedgerEntry.Status.PROCESSING
+					&& entry.getKey().equals(ledgerEntry.getImportId()))
+				ledger.fail(ledgerEntry, System.currentTimeMillis() - ledgerEntry.getStartedAt().getTime(),
+						"Gave up waiting for the rest of its chunks");
+			logger.warning("Deleted the staged chunks of chunked import " + entry.getKey() + " after " + PENDING_TIMEOUT_MINUTES
+					+ " minutes without another chunk");
+		}
+	}
+
+	/**
+	 * @return the chunk's import, started here if this is the first of its chunks to arrive since a
+	 * restart, or null if the chunk's ledger entry is no longer being imported by that import
+	 */
+	private PendingImport findPending(ReportChunk chunk){
+		PendingImport pendingImport = pending.get(chunk.getImportId());
+		if (pendingImport != null)
+			return pendingImport;
+		IngestLedgerEntry ledgerEntry = chunk.getLedgerEntryId() == null ? null : em.find(IngestLedgerEntry.class, chunk.getLedgerEntryId());
+		if (ledgerEntry == null || ledgerEntry.getStatus() != IngestLedgerEntry.Status.PROCESSING
+				|| !chunk.getImportId().equals(ledgerEntry.getImportId()))
+			return null;
+		PendingImport created = new PendingImport(chunk.getChunkCount());
+		PendingImport existing = pending.putIfAbsent(chunk.getImportId(), created);
+		return existing == null ? created : existing;
+	}
+
+	/**
+	 * Concatenates the rows of every chunk up to the one that reached the end of the page metrics.
+	 * Later chunks hold the report's daily summaries and are discarded, as the serial parser does.
+	 * @return the rows, or null if a chunk's transaction rolled back since the set was completed
+	 */
+	private static List<WebMetric> merge(PendingImport pendingImport){
+		Part[] parts = new Part[pendingImport.parts.length()];
+		for (int i = 0; i < parts.length; i++){
+			parts[i] = pendingImport.parts.get(i);
+			if (parts[i] == null)
+				return null;
+		}
+		int lastPageLine = Integer.MAX_VALUE;
+		int rowCount = 0;
+		for (Part part : parts){
+			if (part.getLastPageLine() > 0)
+				lastPageLine = Math.min(lastPageLine, part.getLastPageLine());
+			rowCount += part.getRows().size();
+		}
+		List<WebMetric> rows = new ArrayList<WebMetric>(rowCount);
+		for (Part part : parts){
+			if (part.getChunk().getFirstLine() > lastPageLine)
+				break;
+			rows.addAll(part.getRows());
+		}
+		return rows;
+	}
+
+	private static byte[] serialize(Part part){
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(bytes));
+			try {
+				out.writeObject(part);
+			} finally {
+				out.close();
+			}
+			return bytes.toByteArray();
+		} catch (IOException ioe){
+			throw new IllegalStateException("Could not serialize " + part.getChunk(), ioe);
+		}
+	}
+
+	private static Part deserialize(byte[] bytes){
+		try {
+			ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(new ByteArrayInputStream(bytes)));
+			try {
+				return (Part) in.readObject();
+			} finally {
+				in.close();
+			}
+		} catch (IOException ioe){
+			throw new IllegalStateException("Could not read a staged chunk", ioe);
+		} catch (ClassNotFoundException cnfe){
+			throw new IllegalStateException("Could not read a staged chunk", cnfe);
+		}
+	}
+
+	private void afterCompletion(Synchronization synchronization){
+		if (txRegistry.getTransactionKey() == null){
+			synchronization.afterCompletion(Status.STATUS_COMMITTED);
+			return;
+		}
+		txRegistry.registerInterposedSynchronization(synchronization);
+	}
+}
@@ -0,0 +1,137 @@
+package org.jboss.bigcommotion.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Resource;
+import javax.ejb.LocalBean;
+import javax.ejb.Stateless;
+import javax.inject.Inject;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+
+import org.jboss.bigcommotion.model.IngestLedgerEntry;
+import org.jboss.bigcommotion.model.ReportChunk;
+import org.jboss.bigcommotion.model.WebMetric;
+import org.jboss.bigcommotion.util.ReportFiles;
+import org.jboss.bigcommotion.util.Resources;
+import org.jboss.bigcommotion.util.WorkMessages;
+
+/**
+ * Imports large reports by splitting them into chunks that the pageview MDB pool parses in parallel.
+ * Reports smaller than {@link #SPLIT_THRESHOLD_BYTES}, and compressed reports, are parsed in one go.
+ * A report that changed on disk since it was imported, such as one rewritten after it was first
+ * dispatched, is read in one go and replaces the rows of its earlier import, as in a backfill.
+ * <p>
+ * Chunk messages are sent through the JCA connection factory so they are only delivered if the
+ * transaction that split the file commits.
+ */
+@Stateless
+@LocalBean
+public class ChunkedReportImporter {
+
+	public static final long SPLIT_THRESHOLD_BYTES = 64 * 1024;
+	public static final int LINES_PER_CHUNK = 500;
+
+	@Inject
+	private transient Logger logger;
+
+	@Resource(mappedName = "java:/JmsXA")
+	private ConnectionFactory connectionFactory;
+
+	@Resource(mappedName = "java:/" + Resources.PAGEVIEW_QUEUE)
+	private Queue queue;
+
+	@Inject
+	private AnalyticsPageViewParser parser;
+
+	@Inject
+	private IngestLedger ledger;
+
+	@Inject
+	private ChunkMergeCoordinator coordinator;
+
+	/**
+	 * Imports a whole report, either directly or by queueing its chunks.
+	 */
+	public void importFile(String siteName, File file, Date startDate) throws IOException, JMSException {
+		assert siteName != null : "siteName must be specified";
+		assert file != null : "file must be specified";
+		assert startDate != null : "startDate must be specified";
+
+		if (ledger.isProcessed(file.getAbsolutePath())){
+			if (!ledger.isChanged(file)){
+				logger.info("Not processing " + file.getAbsolutePath() + " as it's already been processed.");
+				return;
+			}
+			logger.info("Re-importing " + file.getAbsolutePath() + " as it changed since it was imported");
+			long started = System.currentTimeMillis();
+			parser.replaceMetrics(siteName, file, startDate, parser.readFile(siteName, file, startDate), started);
+			return;
+		}
+		// Compressed reports can only be read from the start, so they are never split.
+		if (file.length() < SPLIT_THRESHOLD_BYTES || ReportFiles.isCompressed(file)){
+			parser.parseFile(siteName, file, startDate);
+			return;
+		}
+		List<ReportChunk> chunks = parser.splitFile(siteName, file, startDate, LINES_PER_CHUNK);
+		if (chunks.size() < 2){
+			parser.parseFile(siteName, file, startDate);
+			return;
+		}
+
+		IngestLedgerEntry ledgerEntry = ledger.begin(file, siteName, startDate);
+		if (ledgerEntry == null){
+			logger.info("Not processing " + file.getAbsolutePath() + " as it's already been processed.");
+			return;
+		}
+		// A report dispatched again while its chunks are still queued is split again; only the chunks
+		// of the latest import are saved.
+		String importId = UUID.randomUUID().toString();
+		ledgerEntry.setImportId(importId);
+		long started = System.currentTimeMillis();
+		for (ReportChunk chunk : chunks){
+			chunk.setImportId(importId);
+			chunk.setLedgerEntryId(ledgerEntry.getId());
+			chunk.setStarted(started);
+		}
+		send(chunks);
+		logger.info("Queued " + chunks.size() + " chunks of " + file.getAbsolutePath());
+	}
+
+	/**
+	 * Parses one chunk and, if it is the last of its report to arrive, saves the whole report.
+	 * @throws IOException if the chunk cannot be read; the caller should roll back so the chunk is redelivered
+	 */
+	public void importChunk(ReportChunk chunk) throws IOException {
+		assert chunk != null : "chunk must be specified";
+		List<WebMetric> rows = coordinator.submit(parser.parseChunk(chunk));
+		if (rows != null){
+			parser.saveChunks(chunk, rows);
+		}
+	}
+
+	private void send(List<ReportChunk> chunks) throws JMSException {
+		Connection connection = connectionFactory.createConnection();
+		try {
+			Session session = connection.createSession(true, Session.SESSION_TRANSACTED);
+			MessageProducer producer = session.createProducer(queue);
+			for (ReportChunk chunk : chunks){
+				producer.send(WorkMessages.createChunkMessage(session, chunk));
+				if (logger.isLoggable(Level.FINE))
+					logger.fine("Sending " + chunk);
+			}
+		} finally {
+			connection.close();
+		}
+	}
+}
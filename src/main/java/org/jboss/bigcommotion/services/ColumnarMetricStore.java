@@ -0,0 +1,356 @@
+package org.jboss.bigcommotion.services;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TemporalType;
+import javax.persistence.TypedQuery;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.jboss.bigcommotion.model.DictionaryTerm;
+import org.jboss.bigcommotion.model.MonthlyRollup;
+import org.jboss.bigcommotion.util.ColumnarQuery;
+import org.jboss.bigcommotion.util.MetricColumns;
+import org.jboss.bigcommotion.util.MetricSnapshot;
+import org.jboss.bigcommotion.util.Resources;
+
+/**
+ * Read-side copy of the WebMetric table for ad-hoc analysis, as one {@link MetricColumns} block
+ * per site and month.  A block is mapped from its {@link SnapshotStore} snapshot when there is
+ * one, otherwise read from the database the first time a query needs it, as scalar columns in id
+ * order rather than entities.  Blocks are kept until an import, rebuild or reclassification of
+ * their site and month commits, which also deletes the month's snapshot; see {@link RollupService}.
+ * A snapshot is only mapped while its month is still at the version it was exported at.
+ * <p>
+ * The blocks' columns are kept under <code>-Dmetrics.columnar.maxBytes</code> (1 GB by default) by
+ * dropping the least recently used blocks read from the database first, then the least recently
+ * used mapped ones, which are cheap to map again.  Dropped blocks are read again when next needed.
+ * <p>
+ * Queries choose their blocks from the site/months that have project rollups and scan them with
+ * {@link ColumnarQuery} in the store's own fork/join pool, one thread per processor.
+ */
+@Singleton
+@Lock(LockType.READ)
+public class ColumnarMetricStore {
+
+	public static final String MAX_BYTES_PROPERTY = "metrics.columnar.maxBytes";
+	public static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+	private static final int LOAD_BATCH_SIZE = 10000;
+
+	@Inject
+	private transient Logger logger;
+
+	@PersistenceContext(unitName = Resources.PERSISTENCE_CONTEXT_NAME)
+	private EntityManager em;
+
+	@Resource
+	private TransactionSynchronizationRegistry txRegistry;
+
+	@Inject
+	private DictionaryService dictionary;
+
+	@Inject
+	private SnapshotStore snapshots;
+
+	@Inject
+	private RollupService rollups;
+
+	private final ConcurrentMap<Long, MetricColumns> blocks = new ConcurrentHashMap<Long, MetricColumns>();
+	// Bumped by every eviction, so that a block read while one commits is not kept
+	private final AtomicLong generation = new AtomicLong();
+	// Tick of each block's last use, for choosing the least recently used
+	private final ConcurrentMap<Long, Long> lastUsed = new ConcurrentHashMap<Long, Long>();
+	private final AtomicLong clock = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private long maxBytes;
+	private ForkJoinPool pool;
+
+	@PostConstruct
+	private void setup(){
+		pool = new ForkJoinPool();
+		maxBytes = Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES);
+	}
+
+	@PreDestroy
+	private void shutdown(){
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Runs a query over the sites' metrics between two months inclusive, loading the blocks not in
+	 * memory yet.
+	 * @param sites sites to read, or null for every site
+	 */
+	public List<ColumnarQuery.Group> query(Collection<String> sites, Date fromMonth, Date toMonth, ColumnarQuery query){
+		assert fromMonth != null : "fromMonth must be specified";
+		assert toMonth != null : "toMonth must be specified";
+		assert query != null : "query must be specified";
+		long start = System.currentTimeMillis();
+		List<MetricColumns> selected = new ArrayList<MetricColumns>();
+		for (Object[] siteMonth : siteMonths(sites, fromMonth, toMonth)){
+			Integer siteId = dictionary.idOf(DictionaryTerm.Kind.SITE, (String) siteMonth[0]);
+			if (siteId != null)
+				selected.add(block(siteId, MetricColumns.monthKey((Date) siteMonth[1])));
+		}
+		long scanStart = System.currentTimeMillis();
+		List<ColumnarQuery.Group> groups = query.execute(selected, pool);
+		logger.fine("Grouped " + selected.size() + " site/months by " + query.getGroupBy() + " in "
+				+ (System.currentTimeMillis() - scanStart) + " ms, " + (System.currentTimeMillis() - start) + " ms with loading");
+		return groups;
+	}
+
+	/**
+	 * Drops the site's blocks for the months once the current transaction commits, or at once
+	 * outside a transaction.
+	 */
+	public void invalidate(final String site, final Collection<Date> months){
+		assert site != null : "site must be specified";
+		assert months != null : "months must be specified";
+		if (txRegistry.getTransactionKey() == null){
+			evict(site, months);
+			return;
+		}
+		txRegistry.registerInterposedSynchronization(new Synchronization(){
+			@Override
+			public void beforeCompletion(){
+			}
+
+			@Override
+			public void afterCompletion(int txStatus){
+				if (txStatus == Status.STATUS_COMMITTED)
+					evict(site, months);
+			}
+		});
+	}
+
+	/**
+	 * Maps every snapshot, so queries over the months they cover never read the database.
+	 * @return number of snapshots mapped
+	 */
+	public int preload(){
+		int preloaded = 0;
+		for (MetricSnapshot snapshot : snapshots.findAll()){
+			if (!isCurrent(snapshot))
+				continue;
+			Long key = MetricColumns.keyOf(snapshot.getSiteId(), snapshot.getMonth());
+			blocks.putIfAbsent(key, snapshot);
+			touch(key);
+			preloaded++;
+		}
+		trim();
+		return preloaded;
+	}
+
+	/**
+	 * Writes the snapshot of a site's month unless it has one, from the block in memory or the
+	 * database, with the month's version read beforehand.  A snapshot written while the month
+	 * changes is deleted again.
+	 * @return bytes written, 0 if the month already had a snapshot
+	 */
+	public long export(int siteId, int month) throws IOException {
+		if (snapshots.contains(siteId, month))
+			return 0;
+		long before = generation.get();
+		// Read first, so that a block read after a change is never written with the version before it
+		long version = rollups.findVersion(dictionary.termOf(siteId), MetricColumns.monthOf(month));
+		MetricColumns block = blocks.get(MetricColumns.keyOf(siteId, month));
+		if (block == null)
+			block = load(siteId, month);
+		long bytes = snapshots.write(block, version);
+		if (generation.get() != before){
+			// A query may have mapped it meanwhile
+			generation.incrementAndGet();
+			snapshots.delete(siteId, month);
+			blocks.remove(MetricColumns.keyOf(siteId, month));
+			lastUsed.remove(MetricColumns.keyOf(siteId, month));
+			return 0;
+		}
+		return bytes;
+	}
+
+	public int getBlockCount(){
+		return blocks.size();
+	}
+
+	public long getRowCount(){
+		long rows = 0;
+		for (MetricColumns block : blocks.values())
+			rows += block.size();
+		return rows;
+	}
+
+	/**
+	 * @return bytes held by the blocks' columns, on the heap or mapped from snapshots
+	 */
+	public long getMemoryBytes(){
+		long bytes = 0;
+		for (MetricColumns block : blocks.values())
+			bytes += block.getMemoryBytes();
+		return bytes;
+	}
+
+	public long getMaxBytes(){
+		return maxBytes;
+	}
+
+	/**
+	 * @return number of blocks dropped to keep the store under its maximum size
+	 */
+	public long getEvictionCount(){
+		return evictions.get();
+	}
+
+	// -------------------------------------------------------------------
+
+	private List<Object[]> siteMonths(Collection<String> sites, Date fromMonth, Date toMonth){
+		TypedQuery<Object[]> query = em.createQuery("SELECT DISTINCT r.site, r.month FROM ProjectMonthRollup r"
+				+ " WHERE r.month >= :from AND r.month <= :to" + (sites == null ? "" : " AND r.site IN :sites"), Object[].class)
+				.setParameter("from", MonthlyRollup.monthOf(fromMonth), TemporalType.DATE)
+				.setParameter("to", MonthlyRollup.monthOf(toMonth), TemporalType.DATE);
+		if (sites != null){
+			if (sites.isEmpty())
+				return new ArrayList<Object[]>();
+			query.setParameter("sites", sites);
+		}
+		return query.getResultList();
+	}
+
+	private MetricColumns block(int siteId, int month){
+		Long key = MetricColumns.keyOf(siteId, month);
+		MetricColumns block = blocks.get(key);
+		if (block != null){
+			touch(key);
+			return block;
+		}
+		long before = generation.get();
+		MetricSnapshot snapshot = snapshots.find(siteId, month);
+		block = snapshot != null && isCurrent(snapshot) ? snapshot : null;
+		if (block == null)
+			block = load(siteId, month);
+		if (generation.get() == before){
+			MetricColumns loaded = blocks.putIfAbsent(key, block);
+			touch(key);
+			if (loaded != null)
+				return loaded;
+			trim();
+		}
+		return block;
+	}
+
+	private boolean isCurrent(MetricSnapshot snapshot){
+		String site = dictionary.termOf(snapshot.getSiteId());
+		return site != null && snapshots.isCurrent(snapshot, rollups.findVersion(site, MetricColumns.monthOf(snapshot.getMonth())));
+	}
+
+	private void touch(Long key){
+		lastUsed.put(key, clock.incrementAndGet());
+	}
+
+	/**
+	 * Drops blocks until the store is under its maximum size, the least recently used of those
+	 * read from the database first.  Queries already holding a dropped block still finish with it.
+	 */
+	private synchronized void trim(){
+		long bytes = getMemoryBytes();
+		while (bytes > maxBytes){
+			Map.Entry<Long, MetricColumns> victim = leastRecentlyUsed(false);
+			if (victim == null)
+				victim = leastRecentlyUsed(true);
+			if (victim == null)
+				return;
+			MetricColumns block = victim.getValue();
+			if (blocks.remove(victim.getKey(), block)){
+				lastUsed.remove(victim.getKey());
+				if (block instanceof MetricSnapshot)
+					snapshots.release(block.getSiteId(), block.getMonth());
+				evictions.incrementAndGet();
+				logger.fine("Dropped " + block.getMemoryBytes() / 1024 + " KB of columns of " + dictionary.termOf(block.getSiteId())
+						+ " " + block.getMonth() + " to stay under " + maxBytes / (1024 * 1024) + " MB");
+			}
+			bytes = getMemoryBytes();
+		}
+	}
+
+	private Map.Entry<Long, MetricColumns> leastRecentlyUsed(boolean mapped){
+		Map.Entry<Long, MetricColumns> oldest = null;
+		long oldestTick = Long.MAX_VALUE;
+		for (Map.Entry<Long, MetricColumns> entry : blocks.entrySet()){
+			if (entry.getValue() instanceof MetricSnapshot != mapped)
+				continue;
+			Long tick = lastUsed.get(entry.getKey());
+			long used = tick == null ? 0 : tick.longValue();
+			if (used < oldestTick){
+				oldest = entry;
+				oldestTick = used;
+			}
+		}
+		return oldest;
+	}
+
+	private MetricColumns load(int siteId, int month){
+		long start = System.currentTimeMillis();
+		Date from = MetricColumns.monthOf(month);
+		MetricColumns.Builder builder = new MetricColumns.Builder(siteId, month);
+		long lastId = -1;
+		while (true){
+			List<Object[]> rows = em.createQuery("SELECT m.id, m.pageId, m.projectId, m.pageViews, m.uniquePageViews, m.entrances,"
+					+ " m.averageTimeOnPage, m.bounceRate, m.percentExit FROM WebMetric m"
+					+ " WHERE m.siteId = :siteId AND m.date >= :from AND m.date < :to AND m.id > :lastId ORDER BY m.id", Object[].class)
+					.setParameter("siteId", siteId)
+					.setParameter("from", from, TemporalType.DATE)
+					.setParameter("to", MonthlyRollup.nextMonth(from), TemporalType.DATE)
+					.setParameter("lastId", lastId)
+					.setMaxResults(LOAD_BATCH_SIZE)
+					.getResultList();
+			for (Object[] row : rows){
+				builder.append(id(row[1]), id(row[2]), ((Number) row[3]).longValue(), ((Number) row[4]).longValue(),
+						((Number) row[5]).longValue(), ((Number) row[6]).intValue(), (Float) row[7], (Float) row[8]);
+			}
+			if (rows.size() < LOAD_BATCH_SIZE)
+				break;
+			lastId = (Long) rows.get(rows.size() - 1)[0];
+		}
+		MetricColumns block = builder.build();
+		logger.info("Loaded " + block.size() + " metrics of " + dictionary.termOf(siteId) + " " + month + " into "
+				+ block.getMemoryBytes() / 1024 + " KB of columns in " + (System.currentTimeMillis() - start) + " ms");
+		return block;
+	}
+
+	private static int id(Object id){
+		return id == null ? MetricColumns.NO_ID : ((Integer) id).intValue();
+	}
+
+	private void evict(String site, Collection<Date> months){
+		generation.incrementAndGet();
+		Integer siteId = dictionary.idOf(DictionaryTerm.Kind.SITE, site);
+		if (siteId == null)
+			return;
+		for (Date month : months){
+			int monthKey = MetricColumns.monthKey(month);
+			blocks.remove(MetricColumns.keyOf(siteId, monthKey));
+			lastUsed.remove(MetricColumns.keyOf(siteId, monthKey));
+			snapshots.delete(siteId, monthKey);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package org.jboss.bigcommotion.services;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.EJBException;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.jboss.bigcommotion.model.DictionaryTerm;
+import org.jboss.bigcommotion.model.WebMetric;
+import org.jboss.bigcommotion.util.Resources;
+
+/**
+ * Holds the deployment's {@link MetricDictionary}, read once at startup.
+ * <p>
+ * New terms are inserted in a transaction of their own and committed right away, so imports of
+ * the same site running at once do not hold each other's new pages locked until they finish.
+ * When two imports insert the same term at once one of them fails on the unique key and simply
+ * reads the other's row.  A term left behind by an import that later rolls back is harmless.
+ */
+@Singleton
+@Lock(LockType.READ)
+public class DictionaryService {
+
+	private static final int INSERT_ATTEMPTS = 3;
+
+	@Inject
+	private transient Logger logger;
+
+	@PersistenceContext(unitName = Resources.PERSISTENCE_CONTEXT_NAME)
+	private EntityManager em;
+
+	@Resource
+	private SessionContext context;
+
+	private final MetricDictionary dictionary = new MetricDictionary();
+
+	@PostConstruct
+	private void setup(){
+		long start = System.currentTimeMillis();
+		int loaded = dictionary.load(em);
+		logger.info("Loaded " + loaded + " dictionary terms in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Sets the site, page, project and file ids of each metric, adding terms not seen before.
+	 */
+	public void encode(Collection<WebMetric> metrics){
+		Map<DictionaryTerm.Kind, Set<String>> missing = dictionary.encode(metrics);
+		if (missing.isEmpty())
+			return;
+		for (Map.Entry<DictionaryTerm.Kind, Set<String>> kind : missing.entrySet())
+			add(kind.getKey(), kind.getValue());
+		missing = dictionary.encode(metrics);
+		assert missing.isEmpty() : "terms missing after insert: " + missing;
+	}
+
+	/**
+	 * Sets the site, page, project and file name of metrics loaded from the database.
+	 */
+	public void decode(Collection<WebMetric> metrics){
+		dictionary.decode(metrics);
+	}
+
+	/**
+	 * @return id of the term, which is added if it has not been seen before
+	 */
+	public Integer encode(DictionaryTerm.Kind kind, String term){
+		assert kind != null : "kind must be specified";
+		assert term != null : "term must be specified";
+		Integer id = dictionary.idOf(kind, term);
+		if (id == null){
+			add(kind, Collections.singleton(term));
+			id = dictionary.idOf(kind, term);
+		}
+		return id;
+	}
+
+	/**
+	 * Inserts the terms not in the table yet and commits them.  Called through the container by
+	 * {@link #encode} only.
+	 * @return ids of all the terms
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public Map<String, Integer> insert(DictionaryTerm.Kind kind, Collection<String> terms){
+		return dictionary.insert(em, kind, terms);
+	}
+
+	/**
+	 * @return id of the term, or null if it has never been imported
+	 */
+	public Integer idOf(DictionaryTerm.Kind kind, String term){
+		return dictionary.idOf(kind, term);
+	}
+
+	/**
+	 * @return the term with this id, or null
+	 */
+	public String termOf(Integer id){
+		return dictionary.termOf(id);
+	}
+
+	public int getSize(){
+		return dictionary.size();
+	}
+
+	// -------------------------------------------------------------------
+
+	private void add(DictionaryTerm.Kind kind, Set<String> terms){
+		DictionaryService self = context.getBusinessObject(DictionaryService.class);
+		for (int attempt = 1; ; attempt++){
+			try {
+				dictionary.remember(kind, self.insert(kind, terms));
+				break;
+			} catch (EJBException ejbe){
+				if (attempt == INSERT_ATTEMPTS)
+					throw ejbe;
+				logger.log(Level.FINE, "Another import added some of the same " + kind + " terms, reading them back", ejbe);
+			}
+		}
+		logger.log(Level.FINE, "Added " + terms.size() + " " + kind + " terms");
+	}
+}
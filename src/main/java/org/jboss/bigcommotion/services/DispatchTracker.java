@@ -0,0 +1,245 @@
+package org.jboss.bigcommotion.services;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.jboss.bigcommotion.model.DispatchRecord;
+import org.jboss.bigcommotion.util.Resources;
+
+/**
+ * Remembers which report files have been sent to the import queue, so only new files, or files
+ * that changed on disk since they were sent, are sent again.  A changed file that was already
+ * imported replaces the rows of its earlier import, see {@link ChunkedReportImporter}.  The
+ * dispatch table is read once at startup, so a restart does not resend files that are still
+ * waiting in the queue.
+ * <p>
+ * A file is in flight from when it is sent until the ingest ledger shows it as processed.  Files
+ * still in flight {@link #RETRY_MILLIS} after they were sent, because their import failed or the
+ * message was lost, are reported by {@link #findStale} to be sent again.
+ */
+@Singleton
+@Lock(LockType.READ)
+public class DispatchTracker {
+
+	public static final long RETRY_MILLIS = 60 * 60 * 1000L;
+	private static final int SETTLE_BATCH_SIZE = 500;
+
+	@Inject
+	private transient Logger logger;
+
+	@PersistenceContext(unitName = Resources.PERSISTENCE_CONTEXT_NAME)
+	private EntityManager em;
+
+	@Resource
+	private TransactionSynchronizationRegistry txRegistry;
+
+	@Inject
+	private IngestLedger ledger;
+
+	private final ConcurrentMap<String, Dispatch> dispatches = new ConcurrentHashMap<String, Dispatch>();
+
+	@PostConstruct
+	private void setup(){
+		long start = System.currentTimeMillis();
+		List<DispatchRecord> records = em.createQuery("SELECT r FROM DispatchRecord r", DispatchRecord.class).getResultList();
+		for (DispatchRecord record : records){
+			dispatches.put(record.getPath(), new Dispatch(record.getLength(), record.getLastModified(),
+					record.getDispatchedAt() == null ? 0 : record.getDispatchedAt().getTime(), record.getStatus() == DispatchRecord.Status.SETTLED));
+		}
+		logger.info("Loaded " + records.size() + " dispatch records, " + getInFlightCount() + " files in flight, in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * @return true for a file that has never been sent or imported, or that changed since it was sent
+	 */
+	public boolean needsDispatch(File file){
+		assert file != null : "file must be specified";
+		String path = file.getAbsolutePath();
+		Dispatch dispatch = dispatches.get(path);
+		if (dispatch == null)
+			return !ledger.isProcessed(path);
+		return dispatch.length != file.length() || dispatch.lastModified != file.lastModified();
+	}
+
+	/**
+	 * Records files as sent to the queue, once the current transaction commits.
+	 */
+	public void dispatched(Collection<File> files){
+		assert files != null : "files must be specified";
+		if (files.isEmpty())
+			return;
+		Map<String, DispatchRecord> existing = new HashMap<String, DispatchRecord>();
+		for (DispatchRecord record : findRecords(paths(files)))
+			existing.put(record.getPath(), record);
+
+		Date now = new Date();
+		final Map<String, Dispatch> sent = new HashMap<String, Dispatch>();
+		for (File file : files){
+			String path = file.getAbsolutePath();
+			DispatchRecord record = existing.get(path);
+			if (record == null){
+				record = new DispatchRecord(path, file.getParentFile().getName());
+				em.persist(record);
+			}
+			record.setLength(file.length());
+			record.setLastModified(file.lastModified());
+			record.setStatus(DispatchRecord.Status.DISPATCHED);
+			record.setAttempts(record.getAttempts() + 1);
+			record.setDispatchedAt(now);
+			record.setSettledAt(null);
+			sent.put(path, new Dispatch(record.getLength(), record.getLastModified(), now.getTime(), false));
+		}
+		afterCommit(new Runnable(){
+			@Override
+			public void run(){
+				dispatches.putAll(sent);
+			}
+		});
+	}
+
+	/**
+	 * Marks files the ingest ledger now shows as processed as settled, so they no longer count as
+	 * in flight.
+	 * @return number of files settled
+	 */
+	public int settle(){
+		final List<String> processed = new ArrayList<String>();
+		for (Map.Entry<String, Dispatch> entry : dispatches.entrySet()){
+			if (!entry.getValue().settled && ledger.isProcessed(entry.getKey()))
+				processed.add(entry.getKey());
+		}
+		Date now = new Date();
+		for (int i = 0; i < processed.size(); i += SETTLE_BATCH_SIZE){
+			em.createQuery("UPDATE DispatchRecord r SET r.status = :status, r.settledAt = :now WHERE r.path IN :paths")
+				.setParameter("status", DispatchRecord.Status.SETTLED)
+				.setParameter("now", now)
+				.setParameter("paths", processed.subList(i, Math.min(i + SETTLE_BATCH_SIZE, processed.size())))
+				.executeUpdate();
+		}
+		afterCommit(new Runnable(){
+			@Override
+			public void run(){
+				for (String path : processed){
+					Dispatch dispatch = dispatches.get(path);
+					if (dispatch != null)
+						dispatches.replace(path, dispatch, dispatch.settle());
+				}
+			}
+		});
+		return processed.size();
+	}
+
+	/**
+	 * @return files still on disk that were sent at least {@link #RETRY_MILLIS} ago and have not been imported
+	 */
+	public List<File> findStale(long now){
+		List<File> stale = new ArrayList<File>();
+		for (Map.Entry<String, Dispatch> entry : dispatches.entrySet()){
+			Dispatch dispatch = entry.getValue();
+			if (dispatch.settled || now - dispatch.dispatchedAt < RETRY_MILLIS || ledger.isProcessed(entry.getKey()))
+				continue;
+			File file = new File(entry.getKey());
+			if (file.isFile())
+				stale.add(file);
+		}
+		return stale;
+	}
+
+	/**
+	 * @return files sent to the queue that the ingest ledger does not show as processed yet
+	 */
+	public int getInFlightCount(){
+		int inFlight = 0;
+		for (Map.Entry<String, Dispatch> entry : dispatches.entrySet()){
+			if (!entry.getValue().settled && !ledger.isProcessed(entry.getKey()))
+				inFlight++;
+		}
+		return inFlight;
+	}
+
+	/**
+	 * @return files ever sent to the queue
+	 */
+	public int getDispatchedCount(){
+		return dispatches.size();
+	}
+
+	// -------------------------------------------------------------------
+
+	private List<DispatchRecord> findRecords(List<String> paths){
+		List<DispatchRecord> records = new ArrayList<DispatchRecord>();
+		for (int i = 0; i < paths.size(); i += SETTLE_BATCH_SIZE){
+			records.addAll(em.createQuery("SELECT r FROM DispatchRecord r WHERE r.path IN :paths", DispatchRecord.class)
+					.setParameter("paths", paths.subList(i, Math.min(i + SETTLE_BATCH_SIZE, paths.size())))
+					.getResultList());
+		}
+		return records;
+	}
+
+	private static List<String> paths(Collection<File> files){
+		List<String> paths = new ArrayList<String>(files.size());
+		for (File file : files)
+			paths.add(file.getAbsolutePath());
+		return paths;
+	}
+
+	private void afterCommit(final Runnable action){
+		if (txRegistry.getTransactionKey() == null){
+			action.run();
+			return;
+		}
+		txRegistry.registerInterposedSynchronization(new Synchronization(){
+			@Override
+			public void beforeCompletion(){
+			}
+
+			@Override
+			public void afterCompletion(int txStatus){
+				if (txStatus == Status.STATUS_COMMITTED)
+					action.run();
+			}
+		});
+	}
+
+	/**
+	 * Immutable in-memory copy of a dispatch record.
+	 */
+	private static final class Dispatch {
+		final long length;
+		final long lastModified;
+		final long dispatchedAt;
+		final boolean settled;
+
+		Dispatch(long length, long lastModified, long dispatchedAt, boolean settled){
+			this.length = length;
+			this.lastModified = lastModified;
+			this.dispatchedAt = dispatchedAt;
+			this.settled = settled;
+		}
+
+		Dispatch settle(){
+			return new Dispatch(length, lastModified, dispatchedAt, true);
+		}
+	}
+}
@@ -1,65 +1,75 @@
 package org.jboss.bigcommotion.services;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import javax.ejb.Schedule;
+import javax.ejb.SessionContext;
 import javax.ejb.Singleton;
-import javax.ejb.Startup;
 import javax.inject.Inject;
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;
 import javax.jms.MessageProducer;
-import javax.jms.ObjectMessage;
 import javax.jms.Queue;
 import javax.jms.Session;
-import javax.persistence.EntityManager;
-import javax.persistence.PersistenceContext;
-import javax.persistence.TypedQuery;
 
 import org.apache.commons.lang.StringUtils;
-import org.jboss.bigcommotion.model.WebMetric;
+import org.jboss.bigcommotion.util.ReportDirectoryWatcher;
+import org.jboss.bigcommotion.util.ReportFiles;
 import org.jboss.bigcommotion.util.Resources;
+import org.jboss.bigcommotion.util.WorkMessages;
 
 /**
  * Imports a CSV formatted Google Analytics page-view report based on standard defaults.
+ * <p>
+ * Nothing is scanned or sent until {@link StartupService} has warmed up the ingest ledger and
+ * calls {@link #start}, so deployment does not wait for the data directories.
  * TODO:  Refactor the code to make visibility of the site name and metric list.
  */
-@Startup
 @Singleton
 public class GoogleAnalyticsImportSingleton {
 
 	private static final String DATE_FORMAT = "yyyyMMdd";
-	private static final String DEFAULT_DATA_PATH = "/opt/data";
+	static final String DEFAULT_DATA_PATH = "/opt/data";
+	// How long a report must stay unchanged before it is considered completely written
+	private static final long QUIET_MILLIS = 5000;
 	private static File dataPath;
 
-	@PersistenceContext(unitName = Resources.PERSISTENCE_CONTEXT_NAME)
-	private EntityManager em;
-
 	@Inject
 	private transient Logger logger;	
 
-	@Resource(mappedName = "java:/ConnectionFactory")
+	// The JCA connection factory, so sends are part of the timer's transaction
+	@Resource(mappedName = "java:/JmsXA")
 	private ConnectionFactory connectionFactory;
 
+	@Resource
+	private SessionContext context;
+
 	@Resource(mappedName = "java:/" + Resources.PAGEVIEW_QUEUE)
 	private Queue queue;
 
-	private HashSet<WebMetric> messageSet = new HashSet<WebMetric>();
-
 	@Inject
 	AnalyticsPageViewParser parser;
-	
-	HashSet<String> fileNames = new HashSet<String>();
+
+	@Inject
+	DispatchTracker tracker;
+
+	@Inject
+	IngestMetrics ingestMetrics;
+
+	private ReportDirectoryWatcher watcher;
+	private boolean started;
 	
 	// -------------------------------------------------------------------
 
@@ -68,150 +78,138 @@ public class GoogleAnalyticsImportSingleton {
 		//TODO:  Make the data path configurable.
 		dataPath = new File(DEFAULT_DATA_PATH);	
 		logger.fine("Google Analytic Scanner now to scan " + dataPath + " for metrics.");
-		getPreviouslyProcessedFiles();
+		watcher = new ReportDirectoryWatcher(dataPath, new FileFilter(){
+			@Override
+			public boolean accept(File file){
+				return !ReportFiles.isIgnored(file.getName()) && (file.isDirectory() || tracker.needsDispatch(file));
+			}
+		}, QUIET_MILLIS);
+	}
+
+	/**
+	 * Starts watching the data directories and runs the first reconcile scan, which sends every
+	 * report not imported yet.  Called once the ingest ledger and dispatch records are loaded.
+	 */
+	public void start(){
+		if (started)
+			return;
+		long start = System.currentTimeMillis();
+		watcher.start();
+		started = true;
 		poll();
-	}		
+		logger.info("Watching " + dataPath + ", first scan took " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	public boolean isStarted(){
+		return started;
+	}
+
+	@PreDestroy
+	private void shutdown(){
+		watcher.close();
+	}
 
 
 	/**
-	 * Poll is the main entry-point into the class.  By default, it searches /opt/data/ for files
-	 * to import every three minutes.  This really should be changed for the first few days of each 
-	 * month.
+	 * Reconciles the watched directories with what is on disk, as a safety net for missed watch
+	 * events.  Only site directories whose modification time changed since the last scan are
+	 * listed; their new reports are dispatched by {@link #dispatch} once they are quiet.  Reports
+	 * sent long ago but still not imported are sent again.
 	 */
-	@Schedule(minute="*/30", hour="*")
+	@Schedule(minute="*/30", hour="*", persistent=false)
 	public void poll(){
-		logger.log(Level.FINE, "staring poll cycle.");
-		// Look through file directories
-		File[] dirs = dataPath.listFiles();
-		for (File dir : dirs){
-			//omit Mac specific .DS_Store file, swp and the processed directory
-			if (isCrapFile(dir.getName())){
-				continue;
-			}
-			System.out.println(dir.getPath());
-			System.out.println(dir.getAbsolutePath());
-			
-			//Assign project name, fileName and siteName
-			walkthruDir(dir);				
+		if (!started)
+			return;
+		logger.log(Level.FINE, "staring reconcile scan.");
+		long start = System.nanoTime();
+		int listed = watcher.reconcile();
+		ingestMetrics.record(IngestMetrics.Stage.POLL, start, listed);
+		int settled = tracker.settle();
+		List<File> stale = tracker.findStale(System.currentTimeMillis());
+		if (!stale.isEmpty()){
+			logger.warning("Sending " + stale.size() + " reports again that were not imported within "
+					+ (DispatchTracker.RETRY_MILLIS / 60000) + " minutes");
+			send(stale);
 		}
-		sendMessages(messageSet); //sends a list of files to be processed.
-		logger.log(Level.FINE, "finished polling.");
+		logger.log(Level.FINE, "finished reconcile scan, listed " + listed + " directories, " + settled + " reports imported since.");
 	}
 
-	
 	/**
-	 * Sets the fileName, siteName, date and project name where applicable
-	 * @param dir
+	 * Sends new or changed reports found by the directory watcher to the import queue once they
+	 * have not changed for a few seconds.
 	 */
-	private void walkthruDir(File dir){
-		assert dir.isDirectory(): dir.getAbsolutePath() + "is not a directory.";
-		File[] files = dir.listFiles();
-		for (File file: files){
-			if (!isCrapFile(file.getName())){
-				logger.fine("Found " + file.getPath());
-				if (!fileNames.contains(file.getAbsolutePath())   && !fileNames.contains(file.getPath()) ){
-					fileNames.add(file.getAbsolutePath());
-					try {
-						Date startDate = getStartDate(file.getName());;					
-						WebMetric metric = new WebMetric();
-						metric.setFileName(file.getAbsolutePath());
-						metric.setSite(dir.getName());  // this should eventually be changed
-						logger.finest("setting " + dir.getName() + "as site");
-						if (dir.getName() != "jboss.org"){
-							metric.setProject(dir.getName());
-							logger.log(Level.ALL, "assigning " + dir.getName() + "as project");
-						}
-						metric.setDate(startDate);
-						messageSet.add(metric);
-					} catch (Exception e){
-						logger.log(Level.ALL, "Error getting a startDate", e);
-					}					
-				}
-			}
+	@Schedule(second="*/5", minute="*", hour="*", persistent=false)
+	public void dispatch(){
+		if (!started)
+			return;
+		long start = System.nanoTime();
+		List<File> ready = watcher.poll(System.currentTimeMillis());
+		if (ready.isEmpty())
+			return;
+		List<File> changed = new ArrayList<File>(ready.size());
+		for (File file : ready){
+			if (tracker.needsDispatch(file))
+				changed.add(file);
 		}
+		send(changed);
+		ingestMetrics.record(IngestMetrics.Stage.DISPATCH, start, changed.size());
+		logger.info("Dispatched " + changed.size() + " new reports, " + watcher.getPendingCount() + " still being written, "
+				+ tracker.getInFlightCount() + " in flight");
 	}
 
-
 	/**
-	 * Removes any extraneous files from evaluation.
-	 * @param fileName
-	 * @return
+	 * @return reports seen but still being written
 	 */
-	private boolean isCrapFile(String fileName){
-		assert fileName != null: "fileName must not be null";
-		if (StringUtils.contains(fileName, "(1)")){
-			return true;
-		}
-		if (StringUtils.endsWith(fileName, ".DS_Store")
-				|| StringUtils.endsWith(fileName, ".swp")
-				|| StringUtils.endsWith(fileName, "processed")
-				|| StringUtils.endsWith(fileName, "archive")
-				|| StringUtils.endsWith(fileName, "archived")
-				)
-			return true;
-		else
-			return false;
+	public int getPendingCount(){
+		return watcher.getPendingCount();
 	}
 
-
-
-
-	private void sendMessages(HashSet<WebMetric> messages){
-		assert messages!=null:"messages must be specified";
+	/**
+	 * Queues the reports and records them as dispatched in the timer's transaction, so either both
+	 * happen or, if sending fails, neither does and the reports are offered again on the next tick.
+	 */
+	private void send(List<File> files){
+		List<File> sent = new ArrayList<File>(files.size());
 		Connection connection = null;
-		Session session = null;
-		MessageProducer msgProducer = null;
 		try {
 			connection = connectionFactory.createConnection();
-			session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-			msgProducer = session.createProducer(queue);
-			connection.start();	
-			for(WebMetric m : messages){
-				ObjectMessage msg = session.createObjectMessage(m);
-				msg.setObject(m);
-				logger.log(Level.FINE, "Sending "+ m.getProject() + m.getDate() );
-				msgProducer.send(msg);   			   
-			}   			
-		} catch (Exception e){
-			logger.log(Level.ALL, "Error producing a message", e); 
-		}
-		finally {
+			Session session = connection.createSession(true, Session.SESSION_TRANSACTED);
+			MessageProducer producer = session.createProducer(queue);
+			for (File file : files){
+				Date startDate = getStartDate(file.getName());
+				if (startDate == null)
+					continue;
+				String site = file.getParentFile().getName();
+				logger.log(Level.FINE, "Sending " + file.getPath() + " for " + site);
+				producer.send(WorkMessages.createFileMessage(session, site, file, startDate));
+				sent.add(file);
+			}
+		} catch (JMSException jmse){
+			logger.log(Level.SEVERE, "Error producing a message, will retry " + files.size() + " reports", jmse);
+			context.setRollbackOnly();
+			watcher.retry(files);
+			return;
+		} finally {
 			if (connection != null) {
 				try {
 					connection.close();
-
 				} catch (JMSException e) {
-					e.printStackTrace();
+					logger.log(Level.FINE, "Could not close the JMS connection", e);
 				}
 			}
 		}
+		tracker.dispatched(sent);
 	}
 
 
-
 	/**
-	 *  Scrapes filename for the month of the metrics.  By default, the Google Analytics naming convention is
-	 *  similar to "Analytics [site-name] Pages YYYYMMDD-YYMMDD" where the first date is the start of the report and
-	 *  the second date is the end of the report.
+	 *  Scrapes filename for the month of the metrics, see {@link ReportFiles#startDateOf}.
 	 **/
 	private Date getStartDate(final String fileName) {
-		assert fileName != null && !fileName.isEmpty(): "fileName must be specified.";
-
-		String dateRange = StringUtils.substringAfterLast(fileName, " ");
-		String startDateStr = StringUtils.substringBefore(dateRange, "-");
-		SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
-		Date startDate = null;
-
-		try {
-			logger.fine("dateRange = " + dateRange);
-			logger.fine("startDateStr = " + startDateStr);
-			startDate = sdf.parse(startDateStr);
-
-		} catch (ParseException pe){
+		Date startDate = ReportFiles.startDateOf(fileName);
+		if (startDate == null)
 			logger.severe("Cannot determine start date from file named: " + fileName  
 					+ ".  Files must conform to the " + DATE_FORMAT + "format.");
-		}
-
 		return startDate;
 	}
 
@@ -233,21 +231,4 @@ public class GoogleAnalyticsImportSingleton {
 		}
 		return endDate;
 	}
-	
-	private void getPreviouslyProcessedFiles (){
-		//look up the file path to see if we have already processed it in the past.		
-		TypedQuery<String> findByFilePathQuery = em.createQuery("SELECT DISTINCT(m.fileName) FROM WebMetric m", String.class );
-		List <String> results = findByFilePathQuery.getResultList();		
-		for (String fileName: results){
-			if (!this.fileNames.contains(fileName)){
-				System.out.println("Adding " + fileName);
-				fileNames.add(fileName);
-			}
-		}
-	}	
 }
-
-
-
-
-
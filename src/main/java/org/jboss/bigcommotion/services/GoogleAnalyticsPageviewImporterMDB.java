@@ -3,19 +3,30 @@ package org.jboss.bigcommotion.services;
 import java.io.File;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+
+import javax.annotation.Resource;
 import javax.ejb.ActivationConfigProperty;
 import javax.ejb.MessageDriven;
+import javax.ejb.MessageDrivenContext;
 import javax.inject.Inject;
 import javax.jms.JMSException;
+import javax.jms.MapMessage;
 import javax.jms.Message;
 import javax.jms.MessageListener;
 import javax.jms.ObjectMessage;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 
+import org.jboss.bigcommotion.model.ReportChunk;
 import org.jboss.bigcommotion.model.WebMetric;
 import org.jboss.bigcommotion.util.Resources;
+import org.jboss.bigcommotion.util.WorkMessages;
 
+/**
+ * Imports the reports queued by GoogleAnalyticsImportSingleton.  Large reports come back through
+ * this queue as {@link ReportChunk}s, so the chunks of one file are parsed by several sessions at once.
+ * Both kinds of work arrive as MapMessages, see {@link WorkMessages}.
+ */
 @MessageDriven(name="PageviewParserMDB", activationConfig = {
 		@ActivationConfigProperty(propertyName="destinationType", propertyValue="queue"),
 		@ActivationConfigProperty(propertyName="destination", propertyValue=Resources.PAGEVIEW_QUEUE),
@@ -30,26 +41,61 @@ public class GoogleAnalyticsPageviewImporterMDB implements MessageListener{
 	@Inject
 	private transient Logger logger;
 
-	@Inject private AnalyticsPageViewParser parser;
+	@Inject private ChunkedReportImporter importer;
+
+	@Inject private IngestMetrics ingestMetrics;
+
+	@Resource
+	private MessageDrivenContext context;
 	
 	@Override
 	public void onMessage(Message rcvMessage) {
-		ObjectMessage msg = null;
-		
+		long start = System.nanoTime();
 		try {
-			if (rcvMessage instanceof ObjectMessage)
-			{
-				msg = (ObjectMessage)rcvMessage;
-				if (msg.getObject() instanceof WebMetric){
-					WebMetric m = (WebMetric)msg.getObject();
-					logger.info("Received message from queue " +  m.toString());
-					parser.parseFile(m.getSite(), new File(m.getFileName()), m.getDate());
-				}
-			}			
+			String type = WorkMessages.getType(rcvMessage);
+			if (WorkMessages.FILE.equals(type)){
+				MapMessage msg = (MapMessage)rcvMessage;
+				File file = WorkMessages.getFile(msg);
+				logger.info("Received message from queue for " + file);
+				importer.importFile(WorkMessages.getSite(msg), file, WorkMessages.getDate(msg));
+			} else if (WorkMessages.CHUNK.equals(type)){
+				ReportChunk chunk = WorkMessages.toChunk((MapMessage)rcvMessage);
+				logger.fine("Received " + chunk);
+				importChunk(chunk);
+			} else if (rcvMessage instanceof ObjectMessage){
+				// Queued before work messages became MapMessages
+				onObjectMessage((ObjectMessage)rcvMessage);
+			} else {
+				logger.warning("Ignoring unexpected message " + rcvMessage.getJMSMessageID());
+			}
 		} catch (JMSException jmsE){
 			logger.log(Level.SEVERE, "Issue processing message. ", jmsE);
 		} catch (Exception e) {
 			logger.log(Level.SEVERE, "Issue processing file: " , e);
+		} finally {
+			ingestMetrics.record(IngestMetrics.Stage.MESSAGE, start, 1);
+		}
+	}
+
+	private void onObjectMessage(ObjectMessage msg) throws Exception {
+		if (msg.getObject() instanceof WebMetric){
+			WebMetric m = (WebMetric)msg.getObject();
+			logger.info("Received message from queue " +  m.toString());
+			importer.importFile(m.getSite(), new File(m.getFileName()), m.getDate());
+		} else if (msg.getObject() instanceof ReportChunk){
+			importChunk((ReportChunk)msg.getObject());
+		}
+	}
+
+	/**
+	 * Rolls back on failure so only the failed chunk is redelivered and parsed again.
+	 */
+	private void importChunk(ReportChunk chunk){
+		try {
+			importer.importChunk(chunk);
+		} catch (Exception e){
+			logger.log(Level.SEVERE, "Issue processing " + chunk + ", rolling back for redelivery", e);
+			context.setRollbackOnly();
 		}
 	}
 }
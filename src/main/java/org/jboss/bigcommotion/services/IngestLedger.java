@@ -0,0 +1,474 @@
+package org.jboss.bigcommotion.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TemporalType;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.jboss.bigcommotion.model.DictionaryTerm;
+import org.jboss.bigcommotion.model.IngestLedgerEntry;
+import org.jboss.bigcommotion.util.ReportFiles;
+import org.jboss.bigcommotion.util.Resources;
+
+/**
+ * Keeps track of which report files have been imported.  The ledger table is read once at startup
+ * into in-memory sets, so deciding whether a file still needs importing never touches the metrics table.
+ * <p>
+ * Files are identified by path and by a SHA-1 of their contents; a renamed file, or a browser's
+ * "(1)" copy of a report, is recorded as a {@link IngestLedgerEntry.Status#DUPLICATE} of the file
+ * it was copied from and is not imported again.
+ * <p>
+ * Ledger rows are written in the caller's transaction, alongside the metrics they describe, and the
+ * in-memory sets only change once that transaction commits.
+ */
+@Singleton
+@Lock(LockType.READ)
+public class IngestLedger {
+
+	private static final String CHECKSUM_ALGORITHM = "SHA-1";
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	private static final int NOTE_LENGTH = 255;
+	/** When true, imported reports are gzip compressed in place once their import commits. */
+	public static final String COMPRESS_PROPERTY = "metrics.ingest.compressProcessed";
+
+	@Inject
+	private transient Logger logger;
+
+	@PersistenceContext(unitName = Resources.PERSISTENCE_CONTEXT_NAME)
+	private EntityManager em;
+
+	@Resource
+	private TransactionSynchronizationRegistry txRegistry;
+
+	private final Set<String> knownPaths = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final Map<String, String> importedChecksums = new ConcurrentHashMap<String, String>();
+	private final ConcurrentMap<String, String> inFlightChecksums = new ConcurrentHashMap<String, String>();
+
+	@PostConstruct
+	private void setup(){
+		long start = System.currentTimeMillis();
+		List<IngestLedgerEntry> entries = em.createQuery("SELECT e FROM IngestLedgerEntry e", IngestLedgerEntry.class).getResultList();
+		if (entries.isEmpty()){
+			entries = seedFromMetrics();
+		}
+		for (IngestLedgerEntry entry : entries){
+			remember(entry.getPath(), entry.getChecksum(), entry.getStatus());
+		}
+		logger.info("Loaded " + entries.size() + " ingest ledger entries, " + knownPaths.size() + " files already processed, in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * @return true when the file at this path has been imported, or recognized as a copy of one that has.
+	 */
+	public boolean isProcessed(String path){
+		assert path != null : "path must be specified";
+		return knownPaths.contains(path);
+	}
+
+	/**
+	 * @return true when a processed file no longer has the contents it was imported, or recognized as
+	 * a copy, with; false when that cannot be told, for a file recorded before the ledger existed
+	 */
+	public boolean isChanged(File file){
+		assert file != null : "file must be specified";
+		String path = file.getAbsolutePath();
+		List<String> checksums = em.createQuery("SELECT e.checksum FROM IngestLedgerEntry e WHERE e.path = :path", String.class)
+				.setParameter("path", path)
+				.getResultList();
+		if (checksums.isEmpty() || checksums.get(0) == null)
+			return false;
+		try {
+			return !checksums.get(0).equals(checksum(file));
+		} catch (IOException ioe){
+			logger.log(Level.SEVERE, "Could not read file " + path, ioe);
+			return false;
+		}
+	}
+
+	/**
+	 * @return absolute paths of every file that does not need importing again
+	 */
+	public Set<String> getProcessedPaths(){
+		return Collections.unmodifiableSet(knownPaths);
+	}
+
+	/**
+	 * Starts an import of a report file.  Returns null when the file is already in the ledger, when
+	 * its contents match a file that has already been imported (the copy is recorded as a duplicate),
+	 * or when a file with the same contents is being imported right now.
+	 * @param file report to be imported
+	 * @param site site the report belongs to
+	 * @param reportDate start date of the report
+	 * @return the entry to be passed to {@link #complete} or {@link #fail}, or null if the file should be skipped
+	 */
+	public IngestLedgerEntry begin(File file, String site, Date reportDate){
+		assert file != null : "file must be specified";
+		String path = file.getAbsolutePath();
+		if (knownPaths.contains(path)){
+			logger.log(Level.FINEST, "Already processed " + path + " ignoring.");
+			return null;
+		}
+
+		String checksum;
+		try {
+			checksum = checksum(file);
+		} catch (IOException ioe){
+			logger.log(Level.SEVERE, "Could not read file " + path, ioe);
+			return null;
+		}
+
+		String original = importedChecksums.get(checksum);
+		if (original != null){
+			logger.info("Not processing " + path + " as it has the same contents as " + original);
+			IngestLedgerEntry duplicate = findOrCreate(path, checksum, site, reportDate);
+			duplicate.setStatus(IngestLedgerEntry.Status.DUPLICATE);
+			duplicate.setNote(abbreviate("Duplicate of " + original));
+			duplicate.setCompletedAt(new Date());
+			afterCommit(path, checksum, IngestLedgerEntry.Status.DUPLICATE);
+			return null;
+		}
+
+		if (!claim(path, checksum))
+			return null;
+		IngestLedgerEntry entry = findOrCreate(path, checksum, site, reportDate);
+		entry.setStatus(IngestLedgerEntry.Status.PROCESSING);
+		entry.setNote(null);
+		entry.setImportId(null);
+		return entry;
+	}
+
+	/**
+	 * Starts a re-import of a report file whose rows replace those of its earlier imports, for a
+	 * backfill.  Unlike {@link #begin} a file already imported is not skipped.  Returns null when the
+	 * file is a copy of another imported report still on disk, which is re-imported in its place,
+	 * or when a file with the same contents is being imported right now.
+	 * @return the entry to be passed to {@link #findReplacedPaths} and {@link #complete}, or null if the file should be skipped
+	 */
+	public IngestLedgerEntry beginReplace(File file, String site, Date reportDate){
+		assert file != null : "file must be specified";
+		String path = file.getAbsolutePath();
+		String checksum;
+		try {
+			checksum = checksum(file);
+		} catch (IOException ioe){
+			logger.log(Level.SEVERE, "Could not read file " + path, ioe);
+			return null;
+		}
+
+		List<String> originals = em.createQuery("SELECT e.path FROM IngestLedgerEntry e WHERE e.checksum = :checksum"
+				+ " AND e.status = :completed AND e.path <> :path", String.class)
+				.setParameter("checksum", checksum)
+				.setParameter("completed", IngestLedgerEntry.Status.COMPLETED)
+				.setParameter("path", path)
+				.getResultList();
+		for (String original : originals){
+			if (new File(original).isFile()){
+				logger.info("Not re-importing " + path + " as it has the same contents as " + original);
+				return null;
+			}
+		}
+
+		if (!claim(path, checksum))
+			return null;
+		IngestLedgerEntry entry = findOrCreate(path, checksum, site, reportDate);
+		entry.setStatus(IngestLedgerEntry.Status.PROCESSING);
+		entry.setNote(null);
+		entry.setImportId(null);
+		return entry;
+	}
+
+	/**
+	 * @return paths whose imported rows a re-import replaces: the entry's own, and those of completed
+	 * imports of the same contents, such as the report a compressed copy was made from
+	 */
+	public List<String> findReplacedPaths(IngestLedgerEntry entry){
+		assert entry != null : "entry must be specified";
+		return em.createQuery("SELECT e.path FROM IngestLedgerEntry e WHERE e.path = :path"
+				+ " OR (e.checksum = :checksum AND e.status = :completed)", String.class)
+				.setParameter("path", entry.getPath())
+				.setParameter("checksum", entry.getChecksum())
+				.setParameter("completed", IngestLedgerEntry.Status.COMPLETED)
+				.getResultList();
+	}
+
+	/**
+	 * Records the imports of other paths whose rows were replaced by the entry's as duplicates of it,
+	 * in the current transaction.
+	 */
+	public void replaced(IngestLedgerEntry entry, Collection<String> paths){
+		assert entry != null : "entry must be specified";
+		assert paths != null : "paths must be specified";
+		List<String> others = new ArrayList<String>(paths);
+		others.remove(entry.getPath());
+		if (others.isEmpty())
+			return;
+		em.createQuery("UPDATE IngestLedgerEntry e SET e.status = :duplicate, e.note = :note WHERE e.path IN :paths")
+			.setParameter("duplicate", IngestLedgerEntry.Status.DUPLICATE)
+			.setParameter("note", abbreviate("Replaced by " + entry.getPath()))
+			.setParameter("paths", others)
+			.executeUpdate();
+	}
+
+	/**
+	 * @return paths of the files whose imports completed at or after <code>since</code>
+	 */
+	public Set<String> findCompletedSince(Date since){
+		assert since != null : "since must be specified";
+		return new HashSet<String>(em.createQuery("SELECT e.path FROM IngestLedgerEntry e WHERE e.status = :completed"
+				+ " AND e.completedAt >= :since", String.class)
+				.setParameter("completed", IngestLedgerEntry.Status.COMPLETED)
+				.setParameter("since", since, TemporalType.TIMESTAMP)
+				.getResultList());
+	}
+
+	/**
+	 * Records a successful import.  The file is treated as processed once the current transaction commits.
+	 */
+	public void complete(IngestLedgerEntry entry, int rowCount, long durationMillis){
+		assert entry != null : "entry must be specified";
+		// Rebuilding rollups clears the persistence context, detaching the entry begin() persisted.
+		IngestLedgerEntry managed = em.contains(entry) ? entry : em.merge(entry);
+		managed.setStatus(IngestLedgerEntry.Status.COMPLETED);
+		managed.setRowCount(rowCount);
+		managed.setDurationMillis(durationMillis);
+		managed.setCompletedAt(new Date());
+		afterCommit(managed.getPath(), managed.getChecksum(), IngestLedgerEntry.Status.COMPLETED);
+		if (Boolean.getBoolean(COMPRESS_PROPERTY))
+			compressAfterCommit(new File(managed.getPath()));
+	}
+
+	/**
+	 * Records a failed import.  Failed files are retried the next time they are dispatched.
+	 */
+	public void fail(IngestLedgerEntry entry, long durationMillis, String reason){
+		assert entry != null : "entry must be specified";
+		IngestLedgerEntry managed = em.contains(entry) ? entry : em.merge(entry);
+		managed.setStatus(IngestLedgerEntry.Status.FAILED);
+		managed.setDurationMillis(durationMillis);
+		managed.setCompletedAt(new Date());
+		managed.setNote(abbreviate(reason));
+	}
+
+	/**
+	 * @return hex encoded SHA-1 of the report's contents, decompressed, so a compressed copy of a
+	 * report has the same checksum as the report
+	 */
+	public static String checksum(File file) throws IOException {
+		assert file != null : "file must be specified";
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(CHECKSUM_ALGORITHM);
+		} catch (NoSuchAlgorithmException nsae){
+			throw new IllegalStateException(CHECKSUM_ALGORITHM + " is not available", nsae);
+		}
+		InputStream in = ReportFiles.open(file);
+		try {
+			byte[] buffer = new byte[READ_BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) != -1){
+				digest.update(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return toHex(digest.digest());
+	}
+
+	// -------------------------------------------------------------------
+
+	/**
+	 * Creates ledger entries for the files imported before the ledger existed.  Runs once, against an empty ledger.
+	 */
+	private List<IngestLedgerEntry> seedFromMetrics(){
+		List<String> fileNames = em.createQuery("SELECT t.term FROM DictionaryTerm t WHERE t.kind = :kind"
+				+ " AND t.id IN (SELECT DISTINCT m.fileId FROM WebMetric m)", String.class)
+				.setParameter("kind", DictionaryTerm.Kind.FILE)
+				.getResultList();
+		List<IngestLedgerEntry> entries = new ArrayList<IngestLedgerEntry>(fileNames.size());
+		for (String fileName : fileNames){
+			if (fileName == null)
+				continue;
+			String checksum = null;
+			File file = new File(fileName);
+			if (file.isFile()){
+				try {
+					checksum = checksum(file);
+				} catch (IOException ioe){
+					logger.log(Level.WARNING, "Could not read " + fileName + " while seeding the ingest ledger", ioe);
+				}
+			}
+			IngestLedgerEntry entry = new IngestLedgerEntry(fileName, checksum, null, null, IngestLedgerEntry.Status.COMPLETED);
+			entry.setNote("Imported before the ingest ledger existed");
+			entry.setCompletedAt(entry.getStartedAt());
+			em.persist(entry);
+			entries.add(entry);
+		}
+		logger.info("Seeded the ingest ledger with " + entries.size() + " previously imported files");
+		return entries;
+	}
+
+	/**
+	 * Marks a checksum as being imported from this path until the current transaction ends.
+	 * @return false if the same contents are being imported now, from another path or from this one
+	 * by a redelivered message, whose rows would otherwise be written twice
+	 */
+	private boolean claim(final String path, final String checksum){
+		String other = inFlightChecksums.putIfAbsent(checksum, path);
+		if (other != null){
+			if (other.equals(path))
+				logger.info("Not processing " + path + " as it is being imported now");
+			else
+				logger.info("Not processing " + path + " as " + other + " has the same contents and is being imported now");
+			return false;
+		}
+		afterCompletion(new Runnable(){
+			@Override
+			public void run(){
+				inFlightChecksums.remove(checksum, path);
+			}
+		});
+		return true;
+	}
+
+	private IngestLedgerEntry findOrCreate(String path, String checksum, String site, Date reportDate){
+		List<IngestLedgerEntry> existing = em.createQuery("SELECT e FROM IngestLedgerEntry e WHERE e.path = :path", IngestLedgerEntry.class)
+				.setParameter("path", path).getResultList();
+		if (existing.isEmpty()){
+			IngestLedgerEntry entry = new IngestLedgerEntry(path, checksum, site, reportDate, IngestLedgerEntry.Status.PROCESSING);
+			em.persist(entry);
+			return entry;
+		}
+		// A previous attempt failed, or the file was replaced on disk since.
+		IngestLedgerEntry entry = existing.get(0);
+		entry.setChecksum(checksum);
+		entry.setSite(site);
+		entry.setReportDate(reportDate);
+		entry.setStartedAt(new Date());
+		entry.setCompletedAt(null);
+		return entry;
+	}
+
+	private void remember(String path, String checksum, IngestLedgerEntry.Status status){
+		if (status == IngestLedgerEntry.Status.COMPLETED || status == IngestLedgerEntry.Status.DUPLICATE){
+			knownPaths.add(path);
+		}
+		if (status == IngestLedgerEntry.Status.COMPLETED && checksum != null && !importedChecksums.containsKey(checksum)){
+			importedChecksums.put(checksum, path);
+		}
+	}
+
+	private void afterCommit(final String path, final String checksum, final IngestLedgerEntry.Status status){
+		if (txRegistry.getTransactionKey() == null){
+			remember(path, checksum, status);
+			return;
+		}
+		txRegistry.registerInterposedSynchronization(new Synchronization(){
+			@Override
+			public void beforeCompletion(){
+			}
+
+			@Override
+			public void afterCompletion(int txStatus){
+				if (txStatus == Status.STATUS_COMMITTED)
+					remember(path, checksum, status);
+			}
+		});
+	}
+
+	/**
+	 * Compresses an imported report once the import commits.  The compressed report has a new path
+	 * but the same checksum, so the importer recognizes it as a copy of the report it replaces,
+	 * and it can still be read should the report need importing again.
+	 */
+	private void compressAfterCommit(final File file){
+		if (ReportFiles.isCompressed(file))
+			return;
+		final Runnable compress = new Runnable(){
+			@Override
+			public void run(){
+				try {
+					long length = file.length();
+					File compressed = ReportFiles.compress(file);
+					knownPaths.add(compressed.getAbsolutePath());
+					logger.info("Compressed " + file + " from " + length + " to " + compressed.length() + " bytes");
+				} catch (IOException ioe){
+					logger.log(Level.WARNING, "Could not compress " + file + ", leaving it as it is", ioe);
+				}
+			}
+		};
+		if (txRegistry.getTransactionKey() == null){
+			compress.run();
+			return;
+		}
+		txRegistry.registerInterposedSynchronization(new Synchronization(){
+			@Override
+			public void beforeCompletion(){
+			}
+
+			@Override
+			public void afterCompletion(int txStatus){
+				if (txStatus == Status.STATUS_COMMITTED)
+					compress.run();
+			}
+		});
+	}
+
+	private void afterCompletion(final Runnable action){
+		if (txRegistry.getTransactionKey() == null){
+			action.run();
+			return;
+		}
+		txRegistry.registerInterposedSynchronization(new Synchronization(){
+			@Override
+			public void beforeCompletion(){
+			}
+
+			@Override
+			public void afterCompletion(int txStatus){
+				action.run();
+			}
+		});
+	}
+
+	private static String abbreviate(String note){
+		if (note == null || note.length() <= NOTE_LENGTH)
+			return note;
+		return note.substring(0, NOTE_LENGTH - 3) + "...";
+	}
+
+	private static String toHex(byte[] bytes){
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++){
+			hex[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+			hex[i * 2 + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+		}
+		return new String(hex);
+	}
+}
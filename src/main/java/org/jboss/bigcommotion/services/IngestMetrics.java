@@ -0,0 +1,192 @@
+package org.jboss.bigcommotion.services;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.LocalBean;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.jboss.bigcommotion.util.Resources;
+import org.jboss.bigcommotion.util.StageStats;
+
+/**
+ * Per-stage timers and counters for the ingest pipeline, from the directory scan through
+ * persisting a report.  Published through JMX as {@link #OBJECT_NAME} and at
+ * <code>/rest/ops/metrics</code>.
+ * <p>
+ * Recording is a few atomic increments on a fixed array of stages, with no locking or
+ * transaction handling by the container, so the timers stay on in production.
+ */
+@Startup
+@Singleton
+@LocalBean
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+public class IngestMetrics implements IngestMetricsMXBean {
+
+	public static final String OBJECT_NAME = "org.jboss.bigcommotion:type=IngestMetrics";
+	// HornetQ registers JMS queues here when jmx-management-enabled is set on the server
+	private static final String QUEUE_OBJECT_NAME = "org.hornetq:module=JMS,type=Queue,name=\"" + Resources.PAGEVIEW_QUEUE + "\"";
+
+	/**
+	 * Stages of the pipeline.  Rows are whatever the stage counts, see each constant.
+	 */
+	public enum Stage {
+		/** Reconcile scans of the data directories; rows are directories listed. */
+		POLL,
+		/** Dispatch timer ticks that sent reports; rows are reports sent. */
+		DISPATCH,
+		/** Pageview queue messages handled by the MDB. */
+		MESSAGE,
+		/** Reading rows from a report or chunk. */
+		TOKENIZE,
+		/** Page rules; rows are facts inserted. */
+		RULES,
+		/** Page rewrites and project classification. */
+		CLASSIFY,
+		/** Folding rows into one metric per page; rows are rows folded. */
+		CONSOLIDATE,
+		/** Writing consolidated metrics; rows are metrics written. */
+		PERSIST,
+		/** Time the bulk writer spent flushing to the database. */
+		FLUSH,
+		/** Adding metrics to the monthly rollups. */
+		ROLLUP,
+		/** Whole reports, from the ledger check to the ledger update; rows are metrics saved. */
+		FILE
+	}
+
+	private final StageStats[] stages = new StageStats[Stage.values().length];
+	private final AtomicLong ruleFirings = new AtomicLong();
+
+	public IngestMetrics(){
+		for (Stage stage : Stage.values())
+			stages[stage.ordinal()] = new StageStats(stage.name().toLowerCase());
+	}
+
+	@Inject
+	private transient Logger logger;
+
+	@Inject
+	private QueryCache queryCache;
+
+	@Inject
+	private PageNormalizationCache normalizationCache;
+
+	@PostConstruct
+	private void register(){
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+		} catch (JMException jme){
+			logger.log(Level.WARNING, "Could not register " + OBJECT_NAME, jme);
+		}
+	}
+
+	@PreDestroy
+	private void unregister(){
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+		} catch (JMException jme){
+			logger.log(Level.FINE, "Could not unregister " + OBJECT_NAME, jme);
+		}
+	}
+
+	/**
+	 * @param startNanos value of System.nanoTime() when the stage began
+	 * @param rows rows the stage handled
+	 */
+	public void record(Stage stage, long startNanos, long rows){
+		stages[stage.ordinal()].recordSince(startNanos, rows);
+	}
+
+	/**
+	 * Records a stage timed elsewhere, such as the bulk writer's flush time.
+	 */
+	public void recordMillis(Stage stage, long millis, long rows){
+		stages[stage.ordinal()].record(millis * 1000000L, rows);
+	}
+
+	public void addRuleFirings(long firings){
+		ruleFirings.addAndGet(firings);
+	}
+
+	@Override
+	public List<StageStats.Snapshot> getStages(){
+		List<StageStats.Snapshot> snapshots = new ArrayList<StageStats.Snapshot>(stages.length);
+		for (StageStats stage : stages)
+			snapshots.add(stage.snapshot());
+		return snapshots;
+	}
+
+	@Override
+	public long getRuleFirings(){
+		return ruleFirings.get();
+	}
+
+	@Override
+	public long getQueueDepth(){
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(QUEUE_OBJECT_NAME);
+			if (!server.isRegistered(name))
+				return -1;
+			return ((Number) server.getAttribute(name, "MessageCount")).longValue();
+		} catch (JMException jme){
+			logger.log(Level.FINE, "Could not read the depth of " + Resources.PAGEVIEW_QUEUE, jme);
+			return -1;
+		}
+	}
+
+	@Override
+	public long getQueryCacheHits(){
+		return queryCache == null ? 0 : queryCache.getHits();
+	}
+
+	@Override
+	public long getQueryCacheMisses(){
+		return queryCache == null ? 0 : queryCache.getMisses();
+	}
+
+	@Override
+	public long getNormalizationCacheHits(){
+		return normalizationCache == null ? 0 : normalizationCache.getHits();
+	}
+
+	@Override
+	public long getNormalizationCacheMisses(){
+		return normalizationCache == null ? 0 : normalizationCache.getMisses();
+	}
+
+	@Override
+	public long getNormalizationCacheInvalidations(){
+		return normalizationCache == null ? 0 : normalizationCache.getInvalidations();
+	}
+
+	@Override
+	public int getNormalizationCacheSize(){
+		return normalizationCache == null ? 0 : normalizationCache.getSize();
+	}
+
+	@Override
+	public String getNormalizationCacheEviction(){
+		return normalizationCache == null ? "NONE" : normalizationCache.getEvictionPolicy();
+	}
+}
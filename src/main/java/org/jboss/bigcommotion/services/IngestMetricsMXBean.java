@@ -0,0 +1,40 @@
+package org.jboss.bigcommotion.services;
+
+import java.util.List;
+
+import org.jboss.bigcommotion.util.StageStats;
+
+/**
+ * JMX view of {@link IngestMetrics}, registered as {@value IngestMetrics#OBJECT_NAME}.
+ */
+public interface IngestMetricsMXBean {
+
+	List<StageStats.Snapshot> getStages();
+
+	long getRuleFirings();
+
+	/**
+	 * @return messages waiting in the pageview queue, or -1 if HornetQ does not expose the queue
+	 */
+	long getQueueDepth();
+
+	long getQueryCacheHits();
+
+	long getQueryCacheMisses();
+
+	long getNormalizationCacheHits();
+
+	long getNormalizationCacheMisses();
+
+	/**
+	 * @return times the normalization cache was cleared because the page rules changed
+	 */
+	long getNormalizationCacheInvalidations();
+
+	int getNormalizationCacheSize();
+
+	/**
+	 * @return eviction strategy and maximum entries of the normalization cache, such as "LRU 200000"
+	 */
+	String getNormalizationCacheEviction();
+}
@@ -0,0 +1,217 @@
+package org.jboss.bigcommotion.services;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.jdbc.Work;
+import org.jboss.bigcommotion.model.WebMetric;
+
+/**
+ * Writes a file's worth of metrics to the database.
+ * <p>
+ * {@link Mode#BATCHED_PERSIST} persists through the EntityManager, flushing every
+ * <code>batchSize</code> entities and detaching them so Hibernate can send JDBC batches and the heap
+ * does not grow with the size of the import.  Entities the caller loaded stay managed.  {@link Mode#MULTI_ROW_INSERT} bypasses the
+ * persistence context altogether and sends multi-row INSERT statements over the transaction's
+ * connection, taking ids from the entity's own table generator.  It is meant for backfills and
+ * other very large imports.
+ * <p>
+ * Both modes rely on WebMetric using table based id generation; identity columns disable JDBC
+ * batching in Hibernate.  Metrics must have been encoded by the {@link MetricDictionary} first.
+ */
+public class MetricBulkWriter {
+
+	private static final Logger logger = Logger.getLogger(MetricBulkWriter.class.getName());
+
+	public static final int DEFAULT_BATCH_SIZE = 50;
+	public static final String MODE_PROPERTY = "metrics.bulkload.mode";
+
+	private static final String INSERT_COLUMNS = "INSERT INTO WebMetric (id, version, date, siteId, pageId, pageViews, "
+			+ "uniquePageViews, averageTimeOnPage, entrances, bounceRate, percentExit, fileId, projectId) VALUES ";
+	private static final String INSERT_ROW = "(?,?,?,?,?,?,?,?,?,?,?,?,?)";
+
+	public enum Mode { BATCHED_PERSIST, MULTI_ROW_INSERT }
+
+	private final EntityManager em;
+	private final Mode mode;
+	private final int batchSize;
+	private long flushMillis = 0;
+
+	public MetricBulkWriter(EntityManager em, Mode mode, int batchSize){
+		assert em != null : "em must be specified";
+		assert mode != null : "mode must be specified";
+		assert batchSize > 0 : "batchSize must be positive";
+		this.em = em;
+		this.mode = mode;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return the mode named by the metrics.bulkload.mode system property, BATCHED_PERSIST by default.
+	 */
+	public static Mode configuredMode(){
+		String mode = System.getProperty(MODE_PROPERTY);
+		if (mode == null)
+			return Mode.BATCHED_PERSIST;
+		try {
+			return Mode.valueOf(mode.trim().toUpperCase());
+		} catch (IllegalArgumentException iae){
+			logger.warning("Unknown " + MODE_PROPERTY + " " + mode + ", using " + Mode.BATCHED_PERSIST);
+			return Mode.BATCHED_PERSIST;
+		}
+	}
+
+	/**
+	 * Writes the metrics within the caller's transaction.
+	 * @param metrics metrics to be inserted.  With BATCHED_PERSIST they are detached afterwards.
+	 * @return the number of rows written
+	 */
+	public int write(Collection<WebMetric> metrics){
+		assert metrics != null : "metrics must be specified";
+		long start = System.currentTimeMillis();
+		int written = (mode == Mode.MULTI_ROW_INSERT) ? insertRows(metrics) : persist(metrics);
+		logger.log(Level.FINE, "Wrote " + written + " metrics using " + mode + " in " + (System.currentTimeMillis() - start) + " ms");
+		return written;
+	}
+
+	/**
+	 * @return time spent flushing to the database during the last write, in milliseconds
+	 */
+	public long getFlushMillis(){
+		return flushMillis;
+	}
+
+	public Mode getMode(){
+		return mode;
+	}
+
+	private int persist(Collection<WebMetric> metrics){
+		int count = 0;
+		flushMillis = 0;
+		List<WebMetric> batch = new ArrayList<WebMetric>(batchSize);
+		for (WebMetric metric : metrics){
+			em.persist(metric);
+			batch.add(metric);
+			count++;
+			if (batch.size() == batchSize)
+				flushAndDetach(batch);
+		}
+		flushAndDetach(batch);
+		return count;
+	}
+
+	/**
+	 * Flushes and detaches the batch only; the persistence context is the caller's transaction's,
+	 * and other entities it manages, such as the import's ledger entry, stay managed.
+	 */
+	private void flushAndDetach(List<WebMetric> batch){
+		long start = System.currentTimeMillis();
+		em.flush();
+		for (WebMetric metric : batch)
+			em.detach(metric);
+		batch.clear();
+		flushMillis += System.currentTimeMillis() - start;
+	}
+
+	private int insertRows(Collection<WebMetric> metrics){
+		final Session session = em.unwrap(Session.class);
+		final SessionImplementor sessionImplementor = (SessionImplementor) session;
+		final IdentifierGenerator idGenerator = sessionImplementor.getFactory().getIdentifierGenerator(WebMetric.class.getName());
+		final List<WebMetric> rows = new ArrayList<WebMetric>(metrics);
+		for (WebMetric metric : rows){
+			metric.setId((Long) idGenerator.generate(sessionImplementor, metric));
+		}
+
+		flushMillis = 0;
+		session.doWork(new Work(){
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				long start = System.currentTimeMillis();
+				PreparedStatement fullBatch = null;
+				try {
+					int from = 0;
+					for (; from + batchSize <= rows.size(); from += batchSize){
+						if (fullBatch == null)
+							fullBatch = connection.prepareStatement(insertStatement(batchSize));
+						bind(fullBatch, rows, from, batchSize);
+						fullBatch.executeUpdate();
+					}
+					if (from < rows.size()){
+						PreparedStatement remainder = connection.prepareStatement(insertStatement(rows.size() - from));
+						try {
+							bind(remainder, rows, from, rows.size() - from);
+							remainder.executeUpdate();
+						} finally {
+							remainder.close();
+						}
+					}
+				} finally {
+					if (fullBatch != null)
+						fullBatch.close();
+				}
+				flushMillis = System.currentTimeMillis() - start;
+			}
+		});
+		return rows.size();
+	}
+
+	private static String insertStatement(int rows){
+		StringBuilder sql = new StringBuilder(INSERT_COLUMNS.length() + rows * (INSERT_ROW.length() + 1));
+		sql.append(INSERT_COLUMNS);
+		for (int i = 0; i < rows; i++){
+			if (i > 0)
+				sql.append(',');
+			sql.append(INSERT_ROW);
+		}
+		return sql.toString();
+	}
+
+	private static void bind(PreparedStatement statement, List<WebMetric> rows, int from, int count) throws SQLException {
+		int p = 1;
+		for (int i = from; i < from + count; i++){
+			WebMetric metric = rows.get(i);
+			statement.setLong(p++, metric.getId());
+			statement.setInt(p++, metric.getVersion());
+			if (metric.getDate() == null)
+				statement.setNull(p++, Types.DATE);
+			else
+				statement.setDate(p++, new java.sql.Date(metric.getDate().getTime()));
+			setInt(statement, p++, metric.getSiteId());
+			statement.setInt(p++, metric.getPageId());
+			statement.setLong(p++, metric.getPageViews());
+			statement.setLong(p++, metric.getUniquePageViews());
+			statement.setInt(p++, metric.getAverageTimeOnPage());
+			statement.setLong(p++, metric.getEntrances());
+			setFloat(statement, p++, metric.getBounceRate());
+			setFloat(statement, p++, metric.getPercentExit());
+			setInt(statement, p++, metric.getFileId());
+			setInt(statement, p++, metric.getProjectId());
+		}
+	}
+
+	private static void setInt(PreparedStatement statement, int index, Integer value) throws SQLException {
+		if (value == null)
+			statement.setNull(index, Types.INTEGER);
+		else
+			statement.setInt(index, value.intValue());
+	}
+
+	private static void setFloat(PreparedStatement statement, int index, Float value) throws SQLException {
+		if (value == null)
+			statement.setNull(index, Types.FLOAT);
+		else
+			statement.setFloat(index, value.floatValue());
+	}
+}
@@ -0,0 +1,178 @@
+package org.jboss.bigcommotion.services;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.persistence.EntityManager;
+
+import org.jboss.bigcommotion.model.DictionaryTerm;
+import org.jboss.bigcommotion.model.WebMetric;
+
+/**
+ * In-memory, two way copy of the DictionaryTerm table: term to id for each kind while importing,
+ * and id to term when reading rows back.  Lookups never touch the database; only terms that have
+ * not been seen before are inserted, by {@link #insert}.
+ * <p>
+ * Instances are safe to share between threads.  Terms are only added to the cache through
+ * {@link #remember}, once the transaction that inserted them has committed.
+ */
+public class MetricDictionary {
+
+	static final int QUERY_BATCH_SIZE = 500;
+
+	private final Map<DictionaryTerm.Kind, ConcurrentMap<String, Integer>> ids =
+			new EnumMap<DictionaryTerm.Kind, ConcurrentMap<String, Integer>>(DictionaryTerm.Kind.class);
+	private final ConcurrentMap<Integer, String> terms = new ConcurrentHashMap<Integer, String>();
+
+	public MetricDictionary(){
+		for (DictionaryTerm.Kind kind : DictionaryTerm.Kind.values())
+			ids.put(kind, new ConcurrentHashMap<String, Integer>());
+	}
+
+	/**
+	 * Reads the whole DictionaryTerm table into the cache.
+	 * @return number of terms loaded
+	 */
+	public int load(EntityManager em){
+		assert em != null : "em must be specified";
+		List<DictionaryTerm> rows = em.createQuery("SELECT t FROM DictionaryTerm t", DictionaryTerm.class).getResultList();
+		for (DictionaryTerm row : rows)
+			remember(row.getKind(), row.getTerm(), row.getId());
+		return rows.size();
+	}
+
+	/**
+	 * Sets the site, page, project and file ids of each metric from its strings.
+	 * @return terms not in the cache, by kind; metrics using them are left without those ids
+	 */
+	public Map<DictionaryTerm.Kind, Set<String>> encode(Collection<WebMetric> metrics){
+		assert metrics != null : "metrics must be specified";
+		Map<DictionaryTerm.Kind, Set<String>> missing = new EnumMap<DictionaryTerm.Kind, Set<String>>(DictionaryTerm.Kind.class);
+		for (WebMetric metric : metrics){
+			metric.setSiteId(lookup(DictionaryTerm.Kind.SITE, metric.getSite(), missing));
+			metric.setPageId(lookup(DictionaryTerm.Kind.PAGE, metric.getPage(), missing));
+			metric.setProjectId(lookup(DictionaryTerm.Kind.PROJECT, metric.getProject(), missing));
+			metric.setFileId(lookup(DictionaryTerm.Kind.FILE, metric.getFileName(), missing));
+		}
+		return missing;
+	}
+
+	/**
+	 * Sets the site, page, project and file name of each metric from its ids, for metrics loaded
+	 * from the database.
+	 */
+	public void decode(Collection<WebMetric> metrics){
+		assert metrics != null : "metrics must be specified";
+		for (WebMetric metric : metrics){
+			metric.setSite(termOf(metric.getSiteId()));
+			metric.setPage(termOf(metric.getPageId()));
+			metric.setProject(termOf(metric.getProjectId()));
+			metric.setFileName(termOf(metric.getFileId()));
+		}
+	}
+
+	/**
+	 * Encodes the metrics, inserting unseen terms in the caller's transaction.  For callers outside
+	 * the container; within it {@link DictionaryService} inserts terms in transactions of their own.
+	 */
+	public void encode(EntityManager em, Collection<WebMetric> metrics){
+		Map<DictionaryTerm.Kind, Set<String>> missing = encode(metrics);
+		if (missing.isEmpty())
+			return;
+		for (Map.Entry<DictionaryTerm.Kind, Set<String>> kind : missing.entrySet())
+			remember(kind.getKey(), insert(em, kind.getKey(), kind.getValue()));
+		encode(metrics);
+	}
+
+	/**
+	 * Inserts the terms that are not in the table yet.  The cache is not changed; pass the result
+	 * to {@link #remember} once the transaction has committed.
+	 * @return ids of all the terms, existing and new
+	 */
+	public Map<String, Integer> insert(EntityManager em, DictionaryTerm.Kind kind, Collection<String> values){
+		assert em != null : "em must be specified";
+		assert kind != null : "kind must be specified";
+		assert values != null : "values must be specified";
+		Map<String, Integer> found = new HashMap<String, Integer>();
+		List<String> keys = new ArrayList<String>(values.size());
+		for (String value : values)
+			keys.add(DictionaryTerm.keyOf(value));
+		for (int i = 0; i < keys.size(); i += QUERY_BATCH_SIZE){
+			List<DictionaryTerm> rows = em.createQuery("SELECT t FROM DictionaryTerm t WHERE t.kind = :kind AND t.termKey IN :keys", DictionaryTerm.class)
+				.setParameter("kind", kind)
+				.setParameter("keys", keys.subList(i, Math.min(i + QUERY_BATCH_SIZE, keys.size())))
+				.getResultList();
+			for (DictionaryTerm row : rows)
+				found.put(row.getTerm(), row.getId());
+		}
+		List<DictionaryTerm> created = new ArrayList<DictionaryTerm>();
+		for (String value : new LinkedHashSet<String>(values)){
+			if (found.containsKey(value))
+				continue;
+			DictionaryTerm term = new DictionaryTerm(kind, value);
+			em.persist(term);
+			created.add(term);
+		}
+		em.flush();
+		for (DictionaryTerm term : created)
+			found.put(term.getTerm(), term.getId());
+		return found;
+	}
+
+	public void remember(DictionaryTerm.Kind kind, Map<String, Integer> entries){
+		for (Map.Entry<String, Integer> entry : entries.entrySet())
+			remember(kind, entry.getKey(), entry.getValue());
+	}
+
+	/**
+	 * @return id of the term, or null if it is not in the dictionary
+	 */
+	public Integer idOf(DictionaryTerm.Kind kind, String term){
+		assert kind != null : "kind must be specified";
+		return term == null ? null : ids.get(kind).get(term);
+	}
+
+	/**
+	 * @return the term with this id, or null
+	 */
+	public String termOf(Integer id){
+		return id == null ? null : terms.get(id);
+	}
+
+	/**
+	 * @return number of terms in the cache, all kinds together
+	 */
+	public int size(){
+		return terms.size();
+	}
+
+	// -------------------------------------------------------------------
+
+	private Integer lookup(DictionaryTerm.Kind kind, String term, Map<DictionaryTerm.Kind, Set<String>> missing){
+		if (term == null)
+			return null;
+		Integer id = ids.get(kind).get(term);
+		if (id == null){
+			Set<String> terms = missing.get(kind);
+			if (terms == null){
+				terms = new LinkedHashSet<String>();
+				missing.put(kind, terms);
+			}
+			terms.add(term);
+		}
+		return id;
+	}
+
+	private void remember(DictionaryTerm.Kind kind, String term, Integer id){
+		ids.get(kind).put(term, id);
+		terms.put(id, term);
+	}
+}
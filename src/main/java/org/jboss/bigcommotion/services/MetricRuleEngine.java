@@ -0,0 +1,99 @@
+package org.jboss.bigcommotion.services;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+
+import org.jboss.bigcommotion.model.WebMetric;
+import org.jboss.bigcommotion.util.PrecompiledRules;
+import org.kie.api.KieBase;
+import org.kie.api.event.rule.AfterMatchFiredEvent;
+import org.kie.api.event.rule.DefaultAgendaEventListener;
+import org.kie.api.runtime.StatelessKieSession;
+
+/**
+ * Runs the PageCleanup.drl and MetricAnalysis.xls rules over a file's worth of metrics.
+ * <p>
+ * The KieBase is loaded once per deployment rather than per pooled parser instance, from the copy
+ * precompiled by the build when it is current (see {@link PrecompiledRules}), and metrics are
+ * handed to the stateless session in chunks instead of one <code>execute()</code> per CSV row.  None of the rules join across facts or call
+ * <code>modify</code>, so each metric is rewritten exactly as it was when executed alone.
+ */
+@Singleton
+@Lock(LockType.READ)
+public class MetricRuleEngine {
+
+	static final int DEFAULT_CHUNK_SIZE = 500;
+
+	@Inject
+	private transient Logger logger;
+
+	@Inject
+	private IngestMetrics ingestMetrics;
+
+	private KieBase kieBase;
+
+	@PostConstruct
+	private void setup(){
+		// Load the KieBase now so the first import doesn't wait for it.
+		kieBase = PrecompiledRules.get();
+		if (!PrecompiledRules.isPrecompiled())
+			logger.warning("No current " + PrecompiledRules.SERIALIZED_RESOURCE + " in the deployment, the page rules were compiled at startup");
+	}
+
+	/**
+	 * @return hex encoded SHA-1 of the rule resources, which changes with any edit to them
+	 */
+	public String getFingerprint(){
+		return PrecompiledRules.getFingerprint();
+	}
+
+	/**
+	 * Applies the page rules to every metric in DEFAULT_CHUNK_SIZE batches.
+	 * @param metrics metrics to be rewritten in place
+	 * @return time spent evaluating rules, in milliseconds
+	 */
+	public long execute(List<WebMetric> metrics){
+		return execute(metrics, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Applies the page rules to every metric, <code>chunkSize</code> facts per session call.
+	 * @param metrics metrics to be rewritten in place
+	 * @param chunkSize number of facts inserted per execution
+	 * @return time spent evaluating rules, in milliseconds
+	 */
+	public long execute(List<WebMetric> metrics, int chunkSize){
+		assert metrics != null : "metrics must be specified";
+		assert chunkSize > 0 : "chunkSize must be positive";
+
+		long start = System.nanoTime();
+		StatelessKieSession sSession = kieBase.newStatelessKieSession();
+		FiringCounter firings = new FiringCounter();
+		sSession.addEventListener(firings);
+		for (int from = 0; from < metrics.size(); from += chunkSize){
+			int to = Math.min(from + chunkSize, metrics.size());
+			sSession.execute(metrics.subList(from, to));
+		}
+		ingestMetrics.record(IngestMetrics.Stage.RULES, start, metrics.size());
+		ingestMetrics.addRuleFirings(firings.count);
+		return (System.nanoTime() - start) / 1000000L;
+	}
+
+	/**
+	 * Counts rule firings of one session.  Sessions run on one thread, so a plain field will do.
+	 */
+	private static class FiringCounter extends DefaultAgendaEventListener {
+		long count;
+
+		@Override
+		public void afterMatchFired(AfterMatchFiredEvent event){
+			count++;
+		}
+	}
+}
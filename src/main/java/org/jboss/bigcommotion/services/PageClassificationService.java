@@ -0,0 +1,138 @@
+package org.jboss.bigcommotion.services;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.EJBException;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.jboss.bigcommotion.model.ClassificationRule;
+import org.jboss.bigcommotion.model.WebMetric;
+import org.jboss.bigcommotion.util.PageClassifier;
+import org.jboss.bigcommotion.util.Resources;
+
+/**
+ * Holds the compiled page normalization and project classification rules for the deployment.
+ * <p>
+ * The rules are kept in the ClassificationRule table, which is seeded from
+ * {@link PageClassifier#DEFAULT_RULES} the first time the application starts against an empty
+ * table.  Replacing the rules takes effect for imports once the change commits; metrics already
+ * imported are brought up to date by {@link ProjectReclassifier}.
+ */
+@Singleton
+@Lock(LockType.READ)
+public class PageClassificationService {
+
+	@Inject
+	private transient Logger logger;
+
+	@PersistenceContext(unitName = Resources.PERSISTENCE_CONTEXT_NAME)
+	private EntityManager em;
+
+	@Resource
+	private TransactionSynchronizationRegistry txRegistry;
+
+	private volatile PageClassifier classifier;
+
+	@PostConstruct
+	private void setup(){
+		List<PageClassifier.Rule> rules = findRules();
+		if (rules.isEmpty()){
+			try {
+				rules = PageClassifier.fromClasspath(PageClassifier.DEFAULT_RULES).getRules();
+			} catch (IOException ioe){
+				throw new EJBException("Cannot load " + PageClassifier.DEFAULT_RULES, ioe);
+			}
+			persist(rules);
+			logger.info("Seeded the classification rules from " + PageClassifier.DEFAULT_RULES);
+		}
+		classifier = new PageClassifier(rules);
+		logger.info("Loaded " + rules.size() + " page classification rules, fingerprint " + classifier.getFingerprint());
+	}
+
+	/**
+	 * Normalizes the page and assigns the project of a metric the page rules have already been applied to.
+	 * @param metric metric to be updated in place
+	 * @return the normalized page
+	 */
+	public String classify(WebMetric metric){
+		assert metric != null : "metric must be specified";
+		PageClassifier current = classifier;
+		String page = current.normalize(metric.getSite(), metric.getPage());
+		metric.setProject(current.classify(metric.getSite(), metric.getProject(), page));
+		return page;
+	}
+
+	public PageClassifier getClassifier(){
+		return classifier;
+	}
+
+	/**
+	 * Replaces every rule with the given ones, in order.  Imports switch to the new rules once the
+	 * current transaction commits.
+	 * @return the new rules' fingerprint
+	 */
+	@Lock(LockType.WRITE)
+	public String replaceRules(List<PageClassifier.Rule> rules){
+		assert rules != null : "rules must be specified";
+		final PageClassifier replacement = new PageClassifier(rules);
+		em.createQuery("DELETE FROM ClassificationRule").executeUpdate();
+		persist(rules);
+		afterCommit(new Runnable(){
+			@Override
+			public void run(){
+				classifier = replacement;
+				logger.info("Replaced the page classification rules with " + replacement.getRules().size()
+						+ " rules, fingerprint " + replacement.getFingerprint());
+			}
+		});
+		return replacement.getFingerprint();
+	}
+
+	// -------------------------------------------------------------------
+
+	private List<PageClassifier.Rule> findRules(){
+		List<ClassificationRule> stored = em.createQuery("SELECT r FROM ClassificationRule r ORDER BY r.position",
+				ClassificationRule.class).getResultList();
+		List<PageClassifier.Rule> rules = new ArrayList<PageClassifier.Rule>(stored.size());
+		for (ClassificationRule rule : stored)
+			rules.add(rule.toRule());
+		return rules;
+	}
+
+	private void persist(List<PageClassifier.Rule> rules){
+		int position = 0;
+		for (PageClassifier.Rule rule : rules)
+			em.persist(new ClassificationRule(position++, rule));
+	}
+
+	private void afterCommit(final Runnable action){
+		if (txRegistry.getTransactionKey() == null){
+			action.run();
+			return;
+		}
+		txRegistry.registerInterposedSynchronization(new Synchronization(){
+			@Override
+			public void beforeCompletion(){
+			}
+
+			@Override
+			public void afterCompletion(int txStatus){
+				if (txStatus == Status.STATUS_COMMITTED)
+					action.run();
+			}
+		});
+	}
+}
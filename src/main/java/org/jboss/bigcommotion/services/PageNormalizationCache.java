@@ -0,0 +1,217 @@
+package org.jboss.bigcommotion.services;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.EvictionConfiguration;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.jboss.bigcommotion.model.WebMetric;
+
+/**
+ * Remembers the page and project the page rules, rewrites and classification rules produced for a
+ * raw row, so that the same URL seen again, in another month's report or on a re-import, skips
+ * rule evaluation altogether.  Results are kept in the local "pages" cache of the "metrics"
+ * Infinispan container (bounded, LRU eviction; see .openshift/config/standalone.xml), shared by
+ * every parser instance.
+ * <p>
+ * Keys carry the fingerprint of the rules that produced them: the Drools resources in
+ * src/main/resources/logic and the classification rules.  When either changes the cache is
+ * cleared, and any result computed under the old rules while that happens is stored under a key
+ * that is never looked up again.
+ */
+@Singleton
+@Lock(LockType.READ)
+public class PageNormalizationCache {
+
+	public static final String CACHE_NAME = "pages";
+
+	@Inject
+	private transient Logger logger;
+
+	@Resource(mappedName = QueryCache.CONTAINER)
+	private EmbeddedCacheManager container;
+
+	@Inject
+	private MetricRuleEngine ruleEngine;
+
+	@Inject
+	private PageClassificationService classificationService;
+
+	private ConcurrentMap<Key, Normalized> cache;
+	private volatile String classificationFingerprint;
+	private volatile String fingerprint;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	@PostConstruct
+	public void setup(){
+		cache = container.getCache(CACHE_NAME);
+	}
+
+	/**
+	 * Applies the cached page and project to each row seen before, in place.
+	 * @param rows rows as read from a report
+	 * @param missed rows not in the cache are added to this list, in order
+	 * @return keys of the missed rows, to pass to {@link #putAll} once they have been normalized
+	 */
+	public List<Key> apply(List<WebMetric> rows, List<WebMetric> missed){
+		assert rows != null : "rows must be specified";
+		assert missed != null : "missed must be specified";
+		String current = currentFingerprint();
+		List<Key> keys = new ArrayList<Key>();
+		for (WebMetric row : rows){
+			Key key = new Key(current, row.getSite(), row.getProject(), row.getPage());
+			Normalized normalized = cache.get(key);
+			if (normalized == null){
+				missed.add(row);
+				keys.add(key);
+			} else {
+				row.setPage(normalized.page);
+				row.setProject(normalized.project);
+			}
+		}
+		hits.addAndGet(rows.size() - missed.size());
+		misses.addAndGet(missed.size());
+		return keys;
+	}
+
+	/**
+	 * Remembers the page and project of each normalized row under the key returned for it by {@link #apply}.
+	 */
+	public void putAll(List<Key> keys, List<WebMetric> normalized){
+		assert keys != null && normalized != null && keys.size() == normalized.size() : "a key must be specified for each row";
+		for (int i = 0; i < keys.size(); i++){
+			WebMetric row = normalized.get(i);
+			cache.put(keys.get(i), new Normalized(row.getPage(), row.getProject()));
+		}
+	}
+
+	public long getHits(){
+		return hits.get();
+	}
+
+	public long getMisses(){
+		return misses.get();
+	}
+
+	/**
+	 * @return times the cache was cleared because the rules changed
+	 */
+	public long getInvalidations(){
+		return invalidations.get();
+	}
+
+	public int getSize(){
+		return cache.size();
+	}
+
+	/**
+	 * @return eviction strategy and maximum number of entries, such as "LRU 200000"
+	 */
+	public String getEvictionPolicy(){
+		if (!(cache instanceof Cache))
+			return "NONE";
+		EvictionConfiguration eviction = ((Cache<?, ?>) cache).getCacheConfiguration().eviction();
+		return eviction.strategy() + " " + eviction.maxEntries();
+	}
+
+	// -------------------------------------------------------------------
+
+	/**
+	 * @return fingerprint of the rules in use, clearing the cache the first time a change is seen
+	 */
+	private String currentFingerprint(){
+		String classification = classificationService.getClassifier().getFingerprint();
+		if (classification.equals(classificationFingerprint))
+			return fingerprint;
+		synchronized (this){
+			if (!classification.equals(classificationFingerprint)){
+				// One shared instance per set of rules, so keys built under the same rules hold the same
+				// String and its equals returns on the identity check before comparing characters.
+				fingerprint = ruleEngine.getFingerprint() + "/" + classification;
+				classificationFingerprint = classification;
+				if (!cache.isEmpty()){
+					cache.clear();
+					invalidations.incrementAndGet();
+					logger.info("Cleared the page normalization cache for rules " + fingerprint);
+				}
+			}
+			return fingerprint;
+		}
+	}
+
+	/**
+	 * A raw row: the site and project it was read with and the page as it appears in the report,
+	 * under one version of the rules.
+	 */
+	public static final class Key implements Serializable {
+
+		private static final long serialVersionUID = -2207158374516024315L;
+
+		private final String fingerprint;
+		private final String site;
+		private final String project;
+		private final String page;
+
+		public Key(String fingerprint, String site, String project, String page){
+			assert fingerprint != null : "fingerprint must be specified";
+			assert page != null : "page must be specified";
+			this.fingerprint = fingerprint;
+			this.site = site;
+			this.project = project;
+			this.page = page;
+		}
+
+		@Override
+		public boolean equals(Object that){
+			if (this == that)
+				return true;
+			if (!(that instanceof Key))
+				return false;
+			Key other = (Key) that;
+			return page.equals(other.page) && equal(site, other.site) && equal(project, other.project)
+					&& fingerprint.equals(other.fingerprint);
+		}
+
+		@Override
+		public int hashCode(){
+			int result = page.hashCode();
+			result = 31 * result + (site == null ? 0 : site.hashCode());
+			result = 31 * result + (project == null ? 0 : project.hashCode());
+			return 31 * result + fingerprint.hashCode();
+		}
+
+		private static boolean equal(String a, String b){
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+
+	/**
+	 * Page and project the rules produced for a {@link Key}.
+	 */
+	static final class Normalized implements Serializable {
+
+		private static final long serialVersionUID = 6470380521985931553L;
+
+		final String page;
+		final String project;
+
+		Normalized(String page, String project){
+			this.page = page;
+			this.project = project;
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package org.jboss.bigcommotion.services;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Resource;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+import javax.sql.DataSource;
+
+import org.jboss.bigcommotion.model.MonthlyRollup;
+import org.jboss.bigcommotion.util.Resources;
+
+/**
+ * Keeps monthly WebMetric partitions in place ahead of the reports that will fill them.  The table
+ * is range partitioned by month on MySQL (see migrations/003), named <code>pYYYYMM</code>, followed
+ * by the catch-all partition {@link #CATCH_ALL}.  Each run splits the months up to
+ * {@link #MONTHS_AHEAD} from now off the catch-all, which is normally empty, so the split is cheap.
+ * <p>
+ * Does nothing on other databases or when the table is not partitioned.  DDL commits implicitly on
+ * MySQL, so it runs on a connection of its own outside any transaction.
+ */
+@Singleton
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class PartitionMaintenance {
+
+	static final int MONTHS_AHEAD = 3;
+	static final String CATCH_ALL = "pmax";
+	private static final String PARTITION_PREFIX = "p";
+
+	@Inject
+	private transient Logger logger;
+
+	@Resource(mappedName = Resources.DATASOURCE)
+	private DataSource dataSource;
+
+	/**
+	 * Adds the partitions missing between the newest one and {@link #MONTHS_AHEAD} months from now.
+	 * @return number of partitions added
+	 */
+	@Schedule(dayOfMonth="1", hour="3", persistent=false)
+	public int addPartitions(){
+		Connection connection = null;
+		try {
+			connection = dataSource.getConnection();
+			if (!"MySQL".equalsIgnoreCase(connection.getMetaData().getDatabaseProductName()))
+				return 0;
+			Map<String, Long> partitions = findPartitions(connection);
+			if (partitions.isEmpty() || !partitions.containsKey(CATCH_ALL)){
+				logger.warning("WebMetric is not partitioned by month, see migrations/003");
+				return 0;
+			}
+			Date newest = null;
+			for (String name : partitions.keySet()){
+				Date month = monthOf(name);
+				if (month != null && (newest == null || month.after(newest)))
+					newest = month;
+			}
+			Date from = newest == null ? MonthlyRollup.monthOf(new Date()) : MonthlyRollup.nextMonth(newest);
+			Date to = MonthlyRollup.monthOf(new Date());
+			for (int i = 0; i < MONTHS_AHEAD; i++)
+				to = MonthlyRollup.nextMonth(to);
+			if (from.after(to))
+				return 0;
+
+			long start = System.currentTimeMillis();
+			Statement statement = connection.createStatement();
+			try {
+				statement.executeUpdate(reorganizeStatement(from, to));
+			} finally {
+				statement.close();
+			}
+			int added = monthsBetween(from, to);
+			logger.info("Added " + added + " WebMetric partitions from " + partitionName(from) + " to " + partitionName(to)
+					+ " in " + (System.currentTimeMillis() - start) + " ms");
+			return added;
+		} catch (SQLException sqle){
+			logger.log(Level.SEVERE, "Could not add WebMetric partitions", sqle);
+			return 0;
+		} finally {
+			close(connection);
+		}
+	}
+
+	/**
+	 * @return WebMetric partitions in order with MySQL's estimate of their rows, or nothing if the
+	 * table is not partitioned or the database is not MySQL
+	 */
+	public Map<String, Long> getPartitions(){
+		Connection connection = null;
+		try {
+			connection = dataSource.getConnection();
+			if (!"MySQL".equalsIgnoreCase(connection.getMetaData().getDatabaseProductName()))
+				return new LinkedHashMap<String, Long>();
+			return findPartitions(connection);
+		} catch (SQLException sqle){
+			logger.log(Level.SEVERE, "Could not list WebMetric partitions", sqle);
+			return new LinkedHashMap<String, Long>();
+		} finally {
+			close(connection);
+		}
+	}
+
+	/**
+	 * @return statement splitting one partition per month, <code>from</code> to <code>to</code>
+	 * inclusive, off the catch-all partition
+	 */
+	public static String reorganizeStatement(Date from, Date to){
+		assert from != null && to != null && !from.after(to) : "from must be specified and not after to";
+		SimpleDateFormat day = new SimpleDateFormat("yyyy-MM-dd");
+		StringBuilder ddl = new StringBuilder("ALTER TABLE WebMetric REORGANIZE PARTITION ").append(CATCH_ALL).append(" INTO (");
+		for (Date month = from; !month.after(to); month = MonthlyRollup.nextMonth(month)){
+			ddl.append("PARTITION ").append(partitionName(month))
+				.append(" VALUES LESS THAN ('").append(day.format(MonthlyRollup.nextMonth(month))).append("'), ");
+		}
+		return ddl.append("PARTITION ").append(CATCH_ALL).append(" VALUES LESS THAN (MAXVALUE))").toString();
+	}
+
+	public static String partitionName(Date month){
+		return PARTITION_PREFIX + new SimpleDateFormat("yyyyMM").format(month);
+	}
+
+	// -------------------------------------------------------------------
+
+	private static Map<String, Long> findPartitions(Connection connection) throws SQLException {
+		Map<String, Long> partitions = new LinkedHashMap<String, Long>();
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet rs = statement.executeQuery("SELECT PARTITION_NAME, TABLE_ROWS FROM information_schema.PARTITIONS"
+					+ " WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'WebMetric' ORDER BY PARTITION_ORDINAL_POSITION");
+			while (rs.next()){
+				// One row with a null name for a table that is not partitioned
+				if (rs.getString(1) != null)
+					partitions.put(rs.getString(1), rs.getLong(2));
+			}
+		} finally {
+			statement.close();
+		}
+		return partitions;
+	}
+
+	/**
+	 * @return the month of a pYYYYMM partition, or null for any other name
+	 */
+	private static Date monthOf(String partition){
+		if (!partition.matches(PARTITION_PREFIX + "\\d{6}"))
+			return null;
+		try {
+			return new SimpleDateFormat("yyyyMM").parse(partition.substring(PARTITION_PREFIX.length()));
+		} catch (ParseException pe){
+			return null;
+		}
+	}
+
+	private static int monthsBetween(Date from, Date to){
+		int months = 0;
+		for (Date month = from; !month.after(to); month = MonthlyRollup.nextMonth(month))
+			months++;
+		return months;
+	}
+
+	private void close(Connection connection){
+		if (connection == null)
+			return;
+		try {
+			connection.close();
+		} catch (SQLException sqle){
+			logger.log(Level.FINE, "Could not close the connection", sqle);
+		}
+	}
+}
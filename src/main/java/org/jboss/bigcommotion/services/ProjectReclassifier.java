@@ -0,0 +1,271 @@
+package org.jboss.bigcommotion.services;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.jboss.bigcommotion.model.DictionaryTerm;
+import org.jboss.bigcommotion.model.MonthlyRollup;
+import org.jboss.bigcommotion.model.ReclassificationCheckpoint;
+import org.jboss.bigcommotion.model.WebMetric;
+import org.jboss.bigcommotion.util.PageClassifier;
+import org.jboss.bigcommotion.util.Resources;
+
+/**
+ * Brings the project of every WebMetric row in line with the current classification rules after
+ * they change, replacing the UPDATE statements that used to be run by hand over the whole table.
+ * <p>
+ * Runs on a timer in the background.  Rows are visited in id order, {@link #BATCH_SIZE} at a time,
+ * each batch in a short transaction of its own that advances the {@link ReclassificationCheckpoint}
+ * of the rules' fingerprint and adds the site/months it changed to the checkpoint's dirty months;
+ * after a restart the job carries on from the last batch committed.  Once every row has been
+ * visited the rollups of the dirty months are rebuilt, one site/month per transaction, so a month
+ * changed by many batches is rebuilt once; until then the project rollups of those months still
+ * hold the old projects' totals.  Each run stops after
+ * {@link #RUN_MILLIS}, pauses {@link #PAUSE_MILLIS} between batches and gives way whenever reports
+ * are waiting on the import queue, so live ingestion is never held up behind it.
+ * <p>
+ * Only projects are reclassified.  A changed rewrite rule applies to reports imported from then on,
+ * as pages already consolidated under their old name cannot be told apart again.  Each stored page
+ * goes through the page rules before the classification rules, as it did when imported, so the
+ * projects the MetricAnalysis decision table assigns are kept.
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class ProjectReclassifier {
+
+	static final int BATCH_SIZE = 500;
+	static final long RUN_MILLIS = 20000;
+	static final long PAUSE_MILLIS = 250;
+
+	@Inject
+	private transient Logger logger;
+
+	@PersistenceContext(unitName = Resources.PERSISTENCE_CONTEXT_NAME)
+	private EntityManager em;
+
+	@Resource
+	private SessionContext context;
+
+	@Inject
+	private PageClassificationService classificationService;
+
+	@Inject
+	private DictionaryService dictionary;
+
+	@Inject
+	private MetricRuleEngine ruleEngine;
+
+	@Inject
+	private RollupService rollups;
+
+	@Inject
+	private IngestMetrics ingestMetrics;
+
+	@Inject
+	private StartupService startup;
+
+	private final AtomicBoolean running = new AtomicBoolean();
+
+	/**
+	 * Reclassifies batches until the rules' checkpoint is complete, the time is up or reports are
+	 * waiting to be imported.  Does nothing until the warm-up is done or while a run is in progress.
+	 */
+	@Schedule(hour="*", minute="*", persistent=false)
+	public void run(){
+		if (startup.getState() != StartupService.State.READY || !running.compareAndSet(false, true))
+			return;
+		try {
+			ProjectReclassifier self = context.getBusinessObject(ProjectReclassifier.class);
+			PageClassifier classifier = classificationService.getClassifier();
+			long deadline = System.currentTimeMillis() + RUN_MILLIS;
+			while (System.currentTimeMillis() < deadline){
+				if (ingestMetrics.getQueueDepth() > 0){
+					logger.fine("Reclassification paused while reports are waiting to be imported");
+					break;
+				}
+				ReclassificationCheckpoint checkpoint = self.reclassifyBatch(classifier);
+				if (checkpoint.getStatus() != ReclassificationCheckpoint.Status.RUNNING)
+					break;
+				Thread.sleep(PAUSE_MILLIS);
+			}
+		} catch (InterruptedException ie){
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException re){
+			logger.log(Level.SEVERE, "Reclassification batch failed, retrying from the last checkpoint on the next run", re);
+		} finally {
+			running.set(false);
+		}
+	}
+
+	/**
+	 * Reclassifies the next batch of rows after the checkpoint of the classifier's rules, then
+	 * advances the checkpoint and marks the site/months changed dirty, all in one transaction with
+	 * {@link RollupService#changed} advancing the months' versions.  Once
+	 * every row has been visited, rebuilds the rollups of one dirty site/month instead.  Called
+	 * through the container by {@link #run} only.
+	 * @return the checkpoint after the batch, {@link ReclassificationCheckpoint.Status#COMPLETED}
+	 * once every row has been visited and every dirty site/month rebuilt
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public ReclassificationCheckpoint reclassifyBatch(PageClassifier classifier){
+		assert classifier != null : "classifier must be specified";
+		long start = System.currentTimeMillis();
+		ReclassificationCheckpoint checkpoint = findOrCreate(classifier.getFingerprint());
+		if (checkpoint.getStatus() != ReclassificationCheckpoint.Status.RUNNING)
+			return checkpoint;
+
+		List<Object[]> rows = em.createQuery("SELECT m.id, m.date, m.siteId, m.pageId, m.projectId, m.fileId FROM WebMetric m"
+				+ " WHERE m.id > :lastId ORDER BY m.id", Object[].class)
+				.setParameter("lastId", checkpoint.getLastMetricId())
+				.setMaxResults(BATCH_SIZE)
+				.getResultList();
+		if (rows.isEmpty()){
+			Map<String, Set<Date>> dirty = checkpoint.getDirtyMonths();
+			if (!dirty.isEmpty()){
+				Map.Entry<String, Set<Date>> site = dirty.entrySet().iterator().next();
+				Date month = site.getValue().iterator().next();
+				rollups.recompute(site.getKey(), month);
+				checkpoint.clearDirty(site.getKey(), month);
+				return checkpoint;
+			}
+			checkpoint.complete();
+			logger.info("Reclassified " + checkpoint.getScanned() + " metrics in " + checkpoint.getBatches() + " batches, "
+					+ checkpoint.getChanged() + " changed project, for rules " + checkpoint.getFingerprint());
+			return checkpoint;
+		}
+
+		// The rows with a page, each with the project its report's directory gave it on import
+		List<WebMetric> metrics = new ArrayList<WebMetric>(rows.size());
+		List<Object[]> paged = new ArrayList<Object[]>(rows.size());
+		for (Object[] row : rows){
+			String site = dictionary.termOf((Integer) row[2]);
+			String page = dictionary.termOf((Integer) row[3]);
+			if (page == null)
+				continue;
+			String fileName = dictionary.termOf((Integer) row[5]);
+			WebMetric metric = new WebMetric(fileName, site, (Date) row[1]);
+			metric.setPage(page);
+			metric.setProject(initialProject(site, fileName));
+			metrics.add(metric);
+			paged.add(row);
+		}
+		ruleEngine.execute(metrics);
+
+		Map<Integer, List<Long>> changes = new HashMap<Integer, List<Long>>();
+		Map<String, Set<Date>> months = new TreeMap<String, Set<Date>>();
+		int changed = 0;
+		for (int i = 0; i < paged.size(); i++){
+			Object[] row = paged.get(i);
+			WebMetric metric = metrics.get(i);
+			String site = metric.getSite();
+			// The stored page is already normalized; the rules may only have changed the project
+			String project = classifier.classify(site, metric.getProject(), dictionary.termOf((Integer) row[3]));
+			if (project == null)
+				continue;
+			Integer projectId = dictionary.encode(DictionaryTerm.Kind.PROJECT, project);
+			if (projectId.equals(row[4]))
+				continue;
+			List<Long> ids = changes.get(projectId);
+			if (ids == null){
+				ids = new ArrayList<Long>();
+				changes.put(projectId, ids);
+			}
+			ids.add((Long) row[0]);
+			changed++;
+			if (site != null && row[1] != null){
+				Set<Date> siteMonths = months.get(site);
+				if (siteMonths == null){
+					siteMonths = new TreeSet<Date>();
+					months.put(site, siteMonths);
+				}
+				siteMonths.add(MonthlyRollup.monthOf((Date) row[1]));
+			}
+		}
+		for (Map.Entry<Integer, List<Long>> change : changes.entrySet()){
+			em.createQuery("UPDATE WebMetric m SET m.projectId = :projectId WHERE m.id IN :ids")
+				.setParameter("projectId", change.getKey())
+				.setParameter("ids", change.getValue())
+				.executeUpdate();
+		}
+		for (Map.Entry<String, Set<Date>> site : months.entrySet())
+			rollups.changed(site.getKey(), site.getValue());
+		checkpoint.advance((Long) rows.get(rows.size() - 1)[0], rows.size(), changed);
+		checkpoint.markDirty(months);
+		logger.fine("Reclassified metrics up to id " + checkpoint.getLastMetricId() + ", " + changed + " of " + rows.size()
+				+ " changed project, in " + (System.currentTimeMillis() - start) + " ms");
+		return checkpoint;
+	}
+
+	/**
+	 * @return the checkpoint of the rules in use, or null if reclassification has not started for them
+	 */
+	public ReclassificationCheckpoint getCheckpoint(){
+		List<ReclassificationCheckpoint> checkpoints = em.createQuery("SELECT c FROM ReclassificationCheckpoint c"
+				+ " WHERE c.fingerprint = :fingerprint", ReclassificationCheckpoint.class)
+				.setParameter("fingerprint", classificationService.getClassifier().getFingerprint())
+				.getResultList();
+		return checkpoints.isEmpty() ? null : checkpoints.get(0);
+	}
+
+	/**
+	 * @return project a report's rows start out with before the rules are applied: the name of the
+	 * directory the report was imported from, as {@link AnalyticsPageViewParser} assigns it
+	 */
+	static String initialProject(String site, String fileName){
+		if (fileName == null)
+			return site;
+		File directory = new File(fileName).getParentFile();
+		return directory == null ? site : directory.getName();
+	}
+
+	// -------------------------------------------------------------------
+
+	/**
+	 * Finds the checkpoint of the given rules, starting one when the rules are new.  Checkpoints of
+	 * earlier rules still running are superseded, as their remaining rows are covered by the new one,
+	 * and their dirty months are carried over to it.
+	 */
+	private ReclassificationCheckpoint findOrCreate(String fingerprint){
+		List<ReclassificationCheckpoint> checkpoints = em.createQuery("SELECT c FROM ReclassificationCheckpoint c"
+				+ " WHERE c.fingerprint = :fingerprint", ReclassificationCheckpoint.class)
+				.setParameter("fingerprint", fingerprint)
+				.getResultList();
+		if (!checkpoints.isEmpty())
+			return checkpoints.get(0);
+		ReclassificationCheckpoint checkpoint = new ReclassificationCheckpoint(fingerprint);
+		List<ReclassificationCheckpoint> running = em.createQuery("SELECT c FROM ReclassificationCheckpoint c"
+				+ " WHERE c.status = :running", ReclassificationCheckpoint.class)
+				.setParameter("running", ReclassificationCheckpoint.Status.RUNNING)
+				.getResultList();
+		for (ReclassificationCheckpoint superseded : running){
+			superseded.setStatus(ReclassificationCheckpoint.Status.SUPERSEDED);
+			checkpoint.markDirty(superseded.getDirtyMonths());
+		}
+		em.persist(checkpoint);
+		logger.info("Reclassifying metrics for rules " + fingerprint);
+		return checkpoint;
+	}
+}
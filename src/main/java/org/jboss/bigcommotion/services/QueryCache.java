@@ -0,0 +1,308 @@
+package org.jboss.bigcommotion.services;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.infinispan.Cache;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntriesEvicted;
+import org.infinispan.notifications.cachelistener.event.CacheEntriesEvictedEvent;
+import org.jboss.bigcommotion.model.MonthlyRollup;
+
+/**
+ * Results of the metrics read queries, kept in the local "queries" cache of the "metrics"
+ * Infinispan container (bounded, LRU eviction; see .openshift/config/standalone.xml).  Each result
+ * is keyed by query name, site, the months it covers and its remaining parameters, so an import
+ * only evicts the results for the site and months it changed.  Keys are also indexed by each
+ * site/month they cover, so an eviction looks up the results of its months rather than going
+ * through every key; keys the cache drops itself leave the index as it evicts them, or, once
+ * expired, when the index is pruned.
+ * <p>
+ * Results are shared by every request that reads them, so they must be immutable and hold no
+ * managed entities.
+ * <p>
+ * A result read while an import of the same site is committing could be stale, so it is only
+ * stored when no invalidation of that site happened while the query ran.
+ */
+@Singleton
+@Lock(LockType.READ)
+public class QueryCache {
+
+	public static final String CONTAINER = "java:jboss/infinispan/container/metrics";
+	public static final String CACHE_NAME = "queries";
+
+	/**
+	 * Runs the query on a cache miss.
+	 */
+	public interface Query<T> {
+		T run();
+	}
+
+	@Inject
+	private transient Logger logger;
+
+	@Resource(mappedName = CONTAINER)
+	private EmbeddedCacheManager container;
+
+	@Resource
+	private TransactionSynchronizationRegistry txRegistry;
+
+	private Cache<Key, Object> cache;
+	private final IndexListener indexListener = new IndexListener();
+	// Keys of the cached results covering each site/month, by monthKey
+	private final ConcurrentMap<String, Set<Key>> index = new ConcurrentHashMap<String, Set<Key>>();
+	private final ConcurrentMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	@PostConstruct
+	public void setup(){
+		cache = container.getCache(CACHE_NAME);
+		cache.addListener(indexListener);
+	}
+
+	@PreDestroy
+	public void shutdown(){
+		cache.removeListener(indexListener);
+	}
+
+	/**
+	 * @return the cached result for the key, or the result of running the query
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get(Key key, Query<T> query){
+		assert key != null : "key must be specified";
+		Object cached = cache.get(key);
+		if (cached != null){
+			hits.incrementAndGet();
+			return (T) cached;
+		}
+		misses.incrementAndGet();
+		AtomicLong generation = generation(key.site);
+		long before = generation.get();
+		T result = query.run();
+		if (result != null && generation.get() == before){
+			// Indexed first, so an eviction from here on finds the result
+			index(key);
+			cache.put(key, result);
+			if (generation.get() != before)
+				cache.remove(key);
+		}
+		return result;
+	}
+
+	/**
+	 * Evicts every result covering the site in one of the months once the current transaction
+	 * commits, or at once outside a transaction.
+	 */
+	public void invalidate(final String site, final Collection<Date> months){
+		assert site != null : "site must be specified";
+		assert months != null : "months must be specified";
+		if (txRegistry.getTransactionKey() == null){
+			evict(site, months);
+			return;
+		}
+		txRegistry.registerInterposedSynchronization(new Synchronization(){
+			@Override
+			public void beforeCompletion(){
+			}
+
+			@Override
+			public void afterCompletion(int txStatus){
+				if (txStatus == Status.STATUS_COMMITTED)
+					evict(site, months);
+			}
+		});
+	}
+
+	public long getHits(){
+		return hits.get();
+	}
+
+	public long getMisses(){
+		return misses.get();
+	}
+
+	public int getSize(){
+		return cache.size();
+	}
+
+	/**
+	 * Drops the keys of results that expired from the index.
+	 */
+	@Schedule(minute="*/15", hour="*", persistent=false)
+	public void pruneIndex(){
+		int pruned = 0;
+		for (Iterator<Set<Key>> keySets = index.values().iterator(); keySets.hasNext();){
+			Set<Key> keys = keySets.next();
+			for (Iterator<Key> iterator = keys.iterator(); iterator.hasNext();){
+				if (!cache.containsKey(iterator.next())){
+					iterator.remove();
+					pruned++;
+				}
+			}
+			if (keys.isEmpty())
+				keySets.remove();
+		}
+		logger.fine("Pruned " + pruned + " expired keys from the cached results index");
+	}
+
+	// -------------------------------------------------------------------
+
+	private void evict(String site, Collection<Date> months){
+		generation(site).incrementAndGet();
+		int evicted = 0;
+		for (Date month : months){
+			Set<Key> keys = index.remove(monthKey(site, MonthlyRollup.monthOf(month).getTime()));
+			if (keys == null)
+				continue;
+			for (Key key : keys){
+				if (cache.remove(key) != null)
+					evicted++;
+				unindex(key);
+			}
+		}
+		logger.fine("Evicted " + evicted + " cached results for " + site + " " + months);
+	}
+
+	private void index(Key key){
+		for (long month : key.months()){
+			String monthKey = monthKey(key.site, month);
+			Set<Key> keys = index.get(monthKey);
+			if (keys == null){
+				Set<Key> created = Collections.newSetFromMap(new ConcurrentHashMap<Key, Boolean>());
+				keys = index.putIfAbsent(monthKey, created);
+				if (keys == null)
+					keys = created;
+			}
+			keys.add(key);
+		}
+	}
+
+	private void unindex(Key key){
+		for (long month : key.months()){
+			Set<Key> keys = index.get(monthKey(key.site, month));
+			if (keys != null)
+				keys.remove(key);
+		}
+	}
+
+	private static String monthKey(String site, long month){
+		return site + '@' + month;
+	}
+
+	private AtomicLong generation(String site){
+		AtomicLong generation = generations.get(site);
+		if (generation == null){
+			AtomicLong created = new AtomicLong();
+			generation = generations.putIfAbsent(site, created);
+			if (generation == null)
+				generation = created;
+		}
+		return generation;
+	}
+
+	/**
+	 * Identifies one query result: the query, the site and the inclusive range of months it
+	 * reads, and any other parameters.
+	 */
+	public static final class Key implements Serializable {
+
+		private static final long serialVersionUID = 4127806419354788113L;
+
+		private final String query;
+		private final String site;
+		private final long fromMonth;
+		private final long toMonth;
+		private final Object[] parameters;
+
+		public Key(String query, String site, Date fromMonth, Date toMonth, Object... parameters){
+			assert query != null : "query must be specified";
+			assert site != null : "site must be specified";
+			this.query = query;
+			this.site = site;
+			this.fromMonth = MonthlyRollup.monthOf(fromMonth).getTime();
+			this.toMonth = MonthlyRollup.monthOf(toMonth).getTime();
+			this.parameters = parameters;
+		}
+
+		/**
+		 * @return true when this result reads the site's metrics for the month
+		 */
+		public boolean covers(String site, Date month){
+			long time = MonthlyRollup.monthOf(month).getTime();
+			return this.site.equals(site) && fromMonth <= time && time <= toMonth;
+		}
+
+		/**
+		 * @return the first instant of each month this result reads
+		 */
+		public List<Long> months(){
+			List<Long> months = new ArrayList<Long>();
+			for (Date month = new Date(fromMonth); month.getTime() <= toMonth; month = MonthlyRollup.nextMonth(month))
+				months.add(Long.valueOf(month.getTime()));
+			return months;
+		}
+
+		@Override
+		public boolean equals(Object that){
+			if (this == that)
+				return true;
+			if (!(that instanceof Key))
+				return false;
+			Key other = (Key) that;
+			return query.equals(other.query) && site.equals(other.site) && fromMonth == other.fromMonth
+					&& toMonth == other.toMonth && Arrays.equals(parameters, other.parameters);
+		}
+
+		@Override
+		public int hashCode(){
+			int result = query.hashCode();
+			result = 31 * result + site.hashCode();
+			result = 31 * result + (int) (fromMonth ^ (fromMonth >>> 32));
+			result = 31 * result + (int) (toMonth ^ (toMonth >>> 32));
+			return 31 * result + Arrays.hashCode(parameters);
+		}
+
+		@Override
+		public String toString(){
+			return query + " " + site + " " + fromMonth + "-" + toMonth + " " + Arrays.toString(parameters);
+		}
+	}
+
+	/**
+	 * Takes the results the cache evicts to stay within its size out of the index.
+	 */
+	@Listener
+	public class IndexListener {
+		@CacheEntriesEvicted
+		public void evicted(CacheEntriesEvictedEvent<Key, Object> event){
+			for (Key key : event.getEntries().keySet())
+				unindex(key);
+		}
+	}
+}
@@ -0,0 +1,617 @@
+package org.jboss.bigcommotion.services;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Resource;
+import javax.ejb.EJBException;
+import javax.ejb.LocalBean;
+import javax.ejb.SessionContext;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TemporalType;
+import javax.persistence.TypedQuery;
+
+import org.jboss.bigcommotion.model.DictionaryTerm;
+import org.jboss.bigcommotion.model.MonthlyRollup;
+import org.jboss.bigcommotion.model.PageMonthRollup;
+import org.jboss.bigcommotion.model.ProjectMonthRollup;
+import org.jboss.bigcommotion.model.ProjectMonthSketch;
+import org.jboss.bigcommotion.model.SiteMonthVersion;
+import org.jboss.bigcommotion.model.WebMetric;
+import org.jboss.bigcommotion.util.MetricColumns;
+import org.jboss.bigcommotion.util.MetricSnapshot;
+import org.jboss.bigcommotion.util.Resources;
+
+/**
+ * Maintains the site/project/month and site/page/month rollups, and the site/project/month
+ * {@link ProjectMonthSketch} of distinct and most viewed pages.  Imports add their metrics to the
+ * rollups and sketches in the same transaction that saves them; {@link #rebuild} recomputes a month from the
+ * WebMetric rows for data imported before the rollups existed, and {@link #restore} from a
+ * snapshot of them.  Either way the cached query
+ * results and the {@link ColumnarMetricStore} block for the changed site and month are evicted
+ * once the transaction commits.  Imports and rebuilds also advance the month's
+ * {@link SiteMonthVersion} in that transaction, which snapshots are checked against.
+ */
+@Stateless
+@LocalBean
+public class RollupService {
+
+	public static final String UNASSIGNED_PROJECT = "(none)";
+	private static final int REBUILD_BATCH_SIZE = 1000;
+	private static final int SKETCH_BATCH_SIZE = 500;
+	private static final int CREATE_ATTEMPTS = 3;
+
+	@Inject
+	private transient Logger logger;
+
+	@PersistenceContext(unitName = Resources.PERSISTENCE_CONTEXT_NAME)
+	private EntityManager em;
+
+	@Resource
+	private SessionContext context;
+
+	@Inject
+	private QueryCache queryCache;
+
+	@Inject
+	private DictionaryService dictionary;
+
+	@Inject
+	private ColumnarMetricStore columnarStore;
+
+	@Inject
+	private SnapshotStore snapshots;
+
+	/**
+	 * Adds newly saved metrics to their monthly rollups, within the caller's transaction.  Rollups
+	 * and sketches the metrics need that do not exist yet are first created empty and committed by
+	 * {@link #create}, so imports of the same month at the same time never insert the same rollup;
+	 * the month's rollups are then locked until the caller's transaction ends and added to.
+	 * @param metrics consolidated metrics of one import
+	 */
+	public void apply(Collection<WebMetric> metrics){
+		assert metrics != null : "metrics must be specified";
+		long start = System.currentTimeMillis();
+		Map<String, List<WebMetric>> months = byMonth(metrics);
+		// Created before any rollup is locked, as the locks would block the inserts
+		int created = 0;
+		for (List<WebMetric> rows : months.values())
+			created += createMissing(rows);
+		for (List<WebMetric> rows : months.values()){
+			WebMetric first = rows.get(0);
+			Date from = MonthlyRollup.monthOf(first.getDate());
+
+			Map<String, ProjectMonthRollup> projects = new HashMap<String, ProjectMonthRollup>();
+			for (ProjectMonthRollup rollup : lock(findProjectRollupsQuery(first.getSite(), from)).getResultList())
+				projects.put(rollup.getProject(), rollup);
+			Map<String, PageMonthRollup> pages = new HashMap<String, PageMonthRollup>();
+			for (PageMonthRollup rollup : lock(findPageRollupsQuery(first.getSite(), from)).getResultList())
+				pages.put(rollup.getPageKey(), rollup);
+			Map<String, ProjectMonthSketch> sketches = new HashMap<String, ProjectMonthSketch>();
+			for (ProjectMonthSketch sketch : lock(findProjectSketchesQuery(first.getSite(), from)).getResultList())
+				sketches.put(sketch.getProject(), sketch);
+
+			for (WebMetric metric : rows){
+				projects.get(projectOf(metric)).add(metric);
+				pages.get(PageMonthRollup.keyOf(metric.getPage())).add(metric);
+				sketches.get(projectOf(metric)).add(metric);
+			}
+			for (ProjectMonthSketch sketch : sketches.values())
+				sketch.encode();
+			advance(first.getSite(), from);
+			queryCache.invalidate(first.getSite(), Collections.singleton(from));
+			columnarStore.invalidate(first.getSite(), Collections.singleton(from));
+			logger.fine("Rolled up " + rows.size() + " metrics for " + first.getSite() + " " + from);
+		}
+		logger.info("Updated monthly rollups for " + metrics.size() + " metrics, " + created + " new rollups, in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Inserts the version, and empty rollups and sketches, of one site and month for the projects
+	 * and pages that have none yet, and commits them.  Called through the container by this service
+	 * only.
+	 * @param projects projects that need a rollup and a sketch
+	 * @param pages pages that need a rollup, by {@link PageMonthRollup#keyOf key}
+	 * @return number of rollups and sketches inserted
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public int create(String site, Date month, Set<String> projects, Map<String, String> pages){
+		Set<String> missingProjects = new HashSet<String>(projects);
+		missingProjects.removeAll(keys("ProjectMonthRollup", "project", site, month));
+		Set<String> missingSketches = new HashSet<String>(projects);
+		missingSketches.removeAll(keys("ProjectMonthSketch", "project", site, month));
+		Map<String, String> missingPages = new HashMap<String, String>(pages);
+		missingPages.keySet().removeAll(keys("PageMonthRollup", "pageKey", site, month));
+
+		for (String project : missingProjects)
+			em.persist(new ProjectMonthRollup(site, project, month));
+		for (String project : missingSketches){
+			ProjectMonthSketch sketch = new ProjectMonthSketch(site, project, month);
+			sketch.encode();
+			em.persist(sketch);
+		}
+		for (String page : missingPages.values())
+			em.persist(new PageMonthRollup(site, page, month));
+		if (versionQuery(site, month).getResultList().isEmpty())
+			em.persist(new SiteMonthVersion(site, month));
+		return missingProjects.size() + missingSketches.size() + missingPages.size();
+	}
+
+	/**
+	 * Recomputes the rollups of every site and month that has metrics, one transaction per month.
+	 * @return number of site/months rebuilt
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public int rebuildAll(){
+		List<Object[]> siteDates = em.createQuery("SELECT DISTINCT m.siteId, m.date FROM WebMetric m", Object[].class).getResultList();
+		Map<String, Set<Date>> months = new TreeMap<String, Set<Date>>();
+		for (Object[] siteDate : siteDates){
+			String site = dictionary.termOf((Integer) siteDate[0]);
+			if (site == null || siteDate[1] == null)
+				continue;
+			Set<Date> siteMonths = months.get(site);
+			if (siteMonths == null){
+				siteMonths = new TreeSet<Date>();
+				months.put(site, siteMonths);
+			}
+			siteMonths.add(MonthlyRollup.monthOf((Date) siteDate[1]));
+		}
+		RollupService self = context.getBusinessObject(RollupService.class);
+		int rebuilt = 0;
+		for (Map.Entry<String, Set<Date>> site : months.entrySet()){
+			for (Date month : site.getValue()){
+				self.rebuild(site.getKey(), month);
+				rebuilt++;
+			}
+		}
+		return rebuilt;
+	}
+
+	/**
+	 * Replaces the rollups of one site and month with totals computed from its WebMetric rows.
+	 * @return number of metrics rolled up
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public int rebuild(String site, Date month){
+		return recompute(site, month);
+	}
+
+	/**
+	 * Same as {@link #rebuild}, within the caller's transaction, for callers changing the month's
+	 * metrics in that transaction.  The persistence context is cleared, so flush beforehand.
+	 * @return number of metrics rolled up
+	 */
+	public int recompute(String site, Date month){
+		assert site != null : "site must be specified";
+		assert month != null : "month must be specified";
+		long start = System.currentTimeMillis();
+		Date from = MonthlyRollup.monthOf(month);
+		Date to = MonthlyRollup.nextMonth(from);
+
+		deleteRollups(site, from);
+
+		Map<String, ProjectMonthRollup> projects = new HashMap<String, ProjectMonthRollup>();
+		Map<String, PageMonthRollup> pages = new HashMap<String, PageMonthRollup>();
+		Map<String, ProjectMonthSketch> sketches = new HashMap<String, ProjectMonthSketch>();
+		int count = 0;
+		long lastId = -1;
+		Integer siteId = dictionary.idOf(DictionaryTerm.Kind.SITE, site);
+		while (siteId != null){
+			List<WebMetric> batch = em.createQuery("SELECT m FROM WebMetric m WHERE m.siteId = :siteId AND m.date >= :from AND m.date < :to"
+					+ " AND m.id > :lastId ORDER BY m.id", WebMetric.class)
+					.setParameter("siteId", siteId)
+					.setParameter("from", from, TemporalType.DATE)
+					.setParameter("to", to, TemporalType.DATE)
+					.setParameter("lastId", lastId)
+					.setMaxResults(REBUILD_BATCH_SIZE)
+					.getResultList();
+			if (batch.isEmpty())
+				break;
+			dictionary.decode(batch);
+			for (WebMetric metric : batch){
+				projectRollup(projects, site, from, metric).add(metric);
+				pageRollup(pages, site, from, metric).add(metric);
+				projectSketch(sketches, site, from, metric).add(metric);
+			}
+			count += batch.size();
+			lastId = batch.get(batch.size() - 1).getId();
+			// The rollups are not persisted yet, so only the metrics are detached.
+			em.clear();
+		}
+		for (ProjectMonthRollup rollup : projects.values())
+			em.persist(rollup);
+		for (PageMonthRollup rollup : pages.values())
+			em.persist(rollup);
+		persistSketches(sketches);
+		advance(site, from);
+		queryCache.invalidate(site, Collections.singleton(from));
+		columnarStore.invalidate(site, Collections.singleton(from));
+		logger.info("Rebuilt " + projects.size() + " project and " + pages.size() + " page rollups for " + site + " " + from
+				+ " from " + count + " metrics in " + (System.currentTimeMillis() - start) + " ms");
+		return count;
+	}
+
+	/**
+	 * Replaces the rollups of every site and month that has a snapshot with totals computed from
+	 * the snapshot, one transaction per month, without reading the WebMetric table.
+	 * @return number of site/months restored
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public int restoreAll(){
+		long start = System.currentTimeMillis();
+		RollupService self = context.getBusinessObject(RollupService.class);
+		int restored = 0;
+		for (MetricSnapshot snapshot : snapshots.findAll()){
+			String site = dictionary.termOf(snapshot.getSiteId());
+			Date month = MetricColumns.monthOf(snapshot.getMonth());
+			if (site == null || !snapshots.isCurrent(snapshot, findVersion(site, month)))
+				continue;
+			self.restore(site, month, snapshot);
+			restored++;
+		}
+		logger.info("Restored the rollups of " + restored + " site months from snapshots in " + (System.currentTimeMillis() - start) + " ms");
+		return restored;
+	}
+
+	/**
+	 * Replaces the rollups of one site and month with totals computed from its columns, which must
+	 * hold every metric of the month.  Called through the container by {@link #restoreAll} only.
+	 * @return number of metrics rolled up
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public int restore(String site, Date month, MetricColumns columns){
+		assert site != null : "site must be specified";
+		assert columns != null : "columns must be specified";
+		Date from = MonthlyRollup.monthOf(month);
+		deleteRollups(site, from);
+
+		Map<String, ProjectMonthRollup> projects = new HashMap<String, ProjectMonthRollup>();
+		Map<String, PageMonthRollup> pages = new HashMap<String, PageMonthRollup>();
+		Map<String, ProjectMonthSketch> sketches = new HashMap<String, ProjectMonthSketch>();
+		// Only carries one row at a time to the rollups, it is never persisted
+		WebMetric metric = new WebMetric();
+		for (int row = 0; row < columns.size(); row++){
+			metric.setPageId(idOf(columns.pageId(row)));
+			metric.setPage(dictionary.termOf(metric.getPageId()));
+			metric.setProject(dictionary.termOf(idOf(columns.projectId(row))));
+			metric.setPageViews(columns.pageViews(row));
+			metric.setUniquePageViews(columns.uniquePageViews(row));
+			metric.setEntrances(columns.entrances(row));
+			metric.setAverageTimeOnPage(columns.averageTimeOnPage(row));
+			float bounceRate = columns.bounceRate(row);
+			metric.setBounceRate(Float.isNaN(bounceRate) ? null : Float.valueOf(bounceRate));
+			float percentExit = columns.percentExit(row);
+			metric.setPercentExit(Float.isNaN(percentExit) ? null : Float.valueOf(percentExit));
+			projectRollup(projects, site, from, metric).add(metric);
+			if (metric.getPage() != null)
+				pageRollup(pages, site, from, metric).add(metric);
+			projectSketch(sketches, site, from, metric).add(metric);
+		}
+		for (ProjectMonthRollup rollup : projects.values())
+			em.persist(rollup);
+		for (PageMonthRollup rollup : pages.values())
+			em.persist(rollup);
+		persistSketches(sketches);
+		queryCache.invalidate(site, Collections.singleton(from));
+		return columns.size();
+	}
+
+	/**
+	 * Records that the caller's transaction changes the metrics of a site's months without
+	 * rebuilding their rollups yet: advances the months' versions, and drops what is cached of them
+	 * and their snapshots once it commits.
+	 */
+	public void changed(String site, Collection<Date> months){
+		assert site != null : "site must be specified";
+		assert months != null : "months must be specified";
+		Set<Date> froms = new TreeSet<Date>();
+		for (Date month : months)
+			froms.add(MonthlyRollup.monthOf(month));
+		for (Date from : froms)
+			advance(site, from);
+		queryCache.invalidate(site, froms);
+		columnarStore.invalidate(site, froms);
+	}
+
+	/**
+	 * @return the version of a site's month, 0 if its metrics have not changed since it was recorded
+	 */
+	public long findVersion(String site, Date month){
+		List<SiteMonthVersion> versions = versionQuery(site, MonthlyRollup.monthOf(month)).getResultList();
+		return versions.isEmpty() ? 0 : versions.get(0).getVersion();
+	}
+
+	/**
+	 * @return the project's monthly rollups between two months inclusive, oldest first
+	 */
+	public List<ProjectMonthRollup> findProjectMonths(String site, String project, Date fromMonth, Date toMonth){
+		return em.createQuery("SELECT r FROM ProjectMonthRollup r WHERE r.site = :site AND r.project = :project"
+				+ " AND r.month >= :from AND r.month <= :to ORDER BY r.month", ProjectMonthRollup.class)
+				.setParameter("site", site)
+				.setParameter("project", project)
+				.setParameter("from", MonthlyRollup.monthOf(fromMonth), TemporalType.DATE)
+				.setParameter("to", MonthlyRollup.monthOf(toMonth), TemporalType.DATE)
+				.getResultList();
+	}
+
+	/**
+	 * Site totals per month, merged from the project rollups.
+	 * @return one rollup with a null project per month between two months inclusive, oldest first
+	 */
+	public List<ProjectMonthRollup> findSiteMonths(String site, Date fromMonth, Date toMonth){
+		List<ProjectMonthRollup> projects = em.createQuery("SELECT r FROM ProjectMonthRollup r WHERE r.site = :site"
+				+ " AND r.month >= :from AND r.month <= :to ORDER BY r.month", ProjectMonthRollup.class)
+				.setParameter("site", site)
+				.setParameter("from", MonthlyRollup.monthOf(fromMonth), TemporalType.DATE)
+				.setParameter("to", MonthlyRollup.monthOf(toMonth), TemporalType.DATE)
+				.getResultList();
+		List<ProjectMonthRollup> totals = new ArrayList<ProjectMonthRollup>();
+		ProjectMonthRollup total = null;
+		for (ProjectMonthRollup project : projects){
+			if (total == null || !total.getMonth().equals(project.getMonth())){
+				total = new ProjectMonthRollup(site, null, project.getMonth());
+				totals.add(total);
+			}
+			total.add(project);
+		}
+		return totals;
+	}
+
+	/**
+	 * Pages of one month by descending pageviews, a page at a time.  Pass the pageviews and id of
+	 * the last rollup of the previous page to continue after it.
+	 * @param afterPageViews pageviews of the last rollup already returned, or null for the first page
+	 * @param afterId id of the last rollup already returned, ignored when afterPageViews is null
+	 */
+	public List<PageMonthRollup> findTopPages(String site, Date month, Long afterPageViews, long afterId, int limit){
+		String keyset = afterPageViews == null ? "" : " AND (r.pageViews < :pageViews OR (r.pageViews = :pageViews AND r.id > :id))";
+		TypedQuery<PageMonthRollup> query = em.createQuery("SELECT r FROM PageMonthRollup r WHERE r.site = :site AND r.month = :month"
+				+ keyset + " ORDER BY r.pageViews DESC, r.id", PageMonthRollup.class)
+				.setParameter("site", site)
+				.setParameter("month", MonthlyRollup.monthOf(month), TemporalType.DATE)
+				.setMaxResults(limit);
+		if (afterPageViews != null)
+			query.setParameter("pageViews", afterPageViews).setParameter("id", afterId);
+		return query.getResultList();
+	}
+
+	/**
+	 * Merges the page sketches of the given sites and projects between two months inclusive.
+	 * @param sites sites to include, or null for all
+	 * @param projects projects to include, or null for all
+	 * @return the merged sketches, with a null site and project, empty if there were none
+	 */
+	public ProjectMonthSketch findPageSketch(Collection<String> sites, Collection<String> projects, Date fromMonth, Date toMonth){
+		ProjectMonthSketch merged = new ProjectMonthSketch(null, null, fromMonth);
+		String filter = (sites == null ? "" : " AND s.site IN :sites") + (projects == null ? "" : " AND s.project IN :projects");
+		long lastId = -1;
+		while (true){
+			TypedQuery<ProjectMonthSketch> query = em.createQuery("SELECT s FROM ProjectMonthSketch s WHERE s.month >= :from"
+					+ " AND s.month <= :to AND s.id > :lastId" + filter + " ORDER BY s.id", ProjectMonthSketch.class)
+					.setParameter("from", MonthlyRollup.monthOf(fromMonth), TemporalType.DATE)
+					.setParameter("to", MonthlyRollup.monthOf(toMonth), TemporalType.DATE)
+					.setParameter("lastId", lastId)
+					.setMaxResults(SKETCH_BATCH_SIZE);
+			if (sites != null)
+				query.setParameter("sites", sites);
+			if (projects != null)
+				query.setParameter("projects", projects);
+			List<ProjectMonthSketch> batch = query.getResultList();
+			for (ProjectMonthSketch sketch : batch)
+				merged.add(sketch);
+			if (batch.size() < SKETCH_BATCH_SIZE)
+				return merged;
+			lastId = batch.get(batch.size() - 1).getId();
+			// Only the merged copy is needed, so the sketches read are not kept in the context
+			em.clear();
+		}
+	}
+
+	/**
+	 * @return page sketches of every project on the site in one month
+	 */
+	public List<ProjectMonthSketch> findProjectSketches(String site, Date month){
+		return findProjectSketchesQuery(site, month).getResultList();
+	}
+
+	/**
+	 * @return rollups for every project on the site in one month
+	 */
+	public List<ProjectMonthRollup> findProjectRollups(String site, Date month){
+		return findProjectRollupsQuery(site, month).getResultList();
+	}
+
+	/**
+	 * @return rollups for every page on the site in one month
+	 */
+	public List<PageMonthRollup> findPageRollups(String site, Date month){
+		return findPageRollupsQuery(site, month).getResultList();
+	}
+
+	// -------------------------------------------------------------------
+
+	/**
+	 * Has {@link #create} insert the rollups and sketches one month's metrics need that are not in
+	 * the table yet.  An import of the same month inserting some of them at the same time makes the
+	 * insert fail on the unique keys, and it is tried again.
+	 * @return number of rollups and sketches inserted
+	 */
+	private int createMissing(List<WebMetric> rows){
+		WebMetric first = rows.get(0);
+		Set<String> projects = new HashSet<String>();
+		Map<String, String> pages = new HashMap<String, String>();
+		for (WebMetric metric : rows){
+			projects.add(projectOf(metric));
+			pages.put(PageMonthRollup.keyOf(metric.getPage()), metric.getPage());
+		}
+		return createMissing(first.getSite(), MonthlyRollup.monthOf(first.getDate()), projects, pages);
+	}
+
+	private int createMissing(String site, Date from, Set<String> projects, Map<String, String> pages){
+		if (keys("ProjectMonthRollup", "project", site, from).containsAll(projects)
+				&& keys("ProjectMonthSketch", "project", site, from).containsAll(projects)
+				&& keys("PageMonthRollup", "pageKey", site, from).containsAll(pages.keySet())
+				&& !versionQuery(site, from).getResultList().isEmpty())
+			return 0;
+
+		RollupService self = context.getBusinessObject(RollupService.class);
+		for (int attempt = 1; ; attempt++){
+			try {
+				return self.create(site, from, projects, pages);
+			} catch (EJBException ejbe){
+				if (attempt == CREATE_ATTEMPTS)
+					throw ejbe;
+				logger.log(Level.FINE, "Another import created some of the same rollups of " + site + " " + from
+						+ ", reading them back", ejbe);
+			}
+		}
+	}
+
+	/**
+	 * Advances the version of a site's month within the caller's transaction, which keeps the
+	 * version locked until it ends.  A month without one has it created and committed first, as
+	 * {@link #apply} does its rollups.
+	 */
+	private void advance(String site, Date from){
+		List<SiteMonthVersion> versions = lock(versionQuery(site, from)).getResultList();
+		if (versions.isEmpty()){
+			createMissing(site, from, Collections.<String>emptySet(), Collections.<String, String>emptyMap());
+			versions = lock(versionQuery(site, from)).getResultList();
+		}
+		versions.get(0).advance();
+	}
+
+	private TypedQuery<SiteMonthVersion> versionQuery(String site, Date month){
+		return em.createQuery("SELECT v FROM SiteMonthVersion v WHERE v.site = :site AND v.month = :month", SiteMonthVersion.class)
+				.setParameter("site", site)
+				.setParameter("month", month, TemporalType.DATE);
+	}
+
+	/**
+	 * @return values of one property of the entity's rows for a site and month
+	 */
+	private Set<String> keys(String entity, String property, String site, Date month){
+		return new HashSet<String>(em.createQuery("SELECT e." + property + " FROM " + entity + " e WHERE e.site = :site AND e.month = :month", String.class)
+				.setParameter("site", site)
+				.setParameter("month", month, TemporalType.DATE)
+				.getResultList());
+	}
+
+	private TypedQuery<ProjectMonthRollup> findProjectRollupsQuery(String site, Date month){
+		return em.createQuery("SELECT r FROM ProjectMonthRollup r WHERE r.site = :site AND r.month = :month", ProjectMonthRollup.class)
+				.setParameter("site", site)
+				.setParameter("month", MonthlyRollup.monthOf(month), TemporalType.DATE);
+	}
+
+	private TypedQuery<PageMonthRollup> findPageRollupsQuery(String site, Date month){
+		return em.createQuery("SELECT r FROM PageMonthRollup r WHERE r.site = :site AND r.month = :month", PageMonthRollup.class)
+				.setParameter("site", site)
+				.setParameter("month", MonthlyRollup.monthOf(month), TemporalType.DATE);
+	}
+
+	private TypedQuery<ProjectMonthSketch> findProjectSketchesQuery(String site, Date month){
+		return em.createQuery("SELECT s FROM ProjectMonthSketch s WHERE s.site = :site AND s.month = :month", ProjectMonthSketch.class)
+				.setParameter("site", site)
+				.setParameter("month", MonthlyRollup.monthOf(month), TemporalType.DATE);
+	}
+
+	/**
+	 * @return a page or project id read from columns, or null for {@link MetricColumns#NO_ID}
+	 */
+	private static Integer idOf(int id){
+		return id == MetricColumns.NO_ID ? null : Integer.valueOf(id);
+	}
+
+	/**
+	 * Locks the rows the query reads until the transaction ends, so imports of the same month add
+	 * to the rollups one after the other rather than overwriting each other's totals.
+	 */
+	private static <T> TypedQuery<T> lock(TypedQuery<T> query){
+		return query.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+	}
+
+	private void deleteRollups(String site, Date month){
+		em.createQuery("DELETE FROM ProjectMonthRollup r WHERE r.site = :site AND r.month = :month")
+			.setParameter("site", site).setParameter("month", month, TemporalType.DATE).executeUpdate();
+		em.createQuery("DELETE FROM PageMonthRollup r WHERE r.site = :site AND r.month = :month")
+			.setParameter("site", site).setParameter("month", month, TemporalType.DATE).executeUpdate();
+		em.createQuery("DELETE FROM ProjectMonthSketch s WHERE s.site = :site AND s.month = :month")
+			.setParameter("site", site).setParameter("month", month, TemporalType.DATE).executeUpdate();
+	}
+
+	private void persistSketches(Map<String, ProjectMonthSketch> sketches){
+		for (ProjectMonthSketch sketch : sketches.values()){
+			sketch.encode();
+			em.persist(sketch);
+		}
+	}
+
+	private static ProjectMonthRollup projectRollup(Map<String, ProjectMonthRollup> projects, String site, Date month, WebMetric metric){
+		String project = projectOf(metric);
+		ProjectMonthRollup rollup = projects.get(project);
+		if (rollup == null){
+			rollup = new ProjectMonthRollup(site, project, month);
+			projects.put(project, rollup);
+		}
+		return rollup;
+	}
+
+	private static PageMonthRollup pageRollup(Map<String, PageMonthRollup> pages, String site, Date month, WebMetric metric){
+		String key = PageMonthRollup.keyOf(metric.getPage());
+		PageMonthRollup rollup = pages.get(key);
+		if (rollup == null){
+			rollup = new PageMonthRollup(site, metric.getPage(), month);
+			pages.put(key, rollup);
+		}
+		return rollup;
+	}
+
+	private static ProjectMonthSketch projectSketch(Map<String, ProjectMonthSketch> sketches, String site, Date month, WebMetric metric){
+		String project = projectOf(metric);
+		ProjectMonthSketch sketch = sketches.get(project);
+		if (sketch == null){
+			sketch = new ProjectMonthSketch(site, project, month);
+			sketches.put(project, sketch);
+		}
+		return sketch;
+	}
+
+	private static String projectOf(WebMetric metric){
+		return metric.getProject() == null ? UNASSIGNED_PROJECT : metric.getProject();
+	}
+
+	private static Map<String, List<WebMetric>> byMonth(Collection<WebMetric> metrics){
+		Map<String, List<WebMetric>> months = new LinkedHashMap<String, List<WebMetric>>();
+		for (WebMetric metric : metrics){
+			if (metric.getSite() == null || metric.getDate() == null)
+				continue;
+			String key = metric.getSite() + "|" + MonthlyRollup.monthOf(metric.getDate()).getTime();
+			List<WebMetric> rows = months.get(key);
+			if (rows == null){
+				rows = new ArrayList<WebMetric>();
+				months.put(key, rows);
+			}
+			rows.add(metric);
+		}
+		return months;
+	}
+}
@@ -0,0 +1,107 @@
+package org.jboss.bigcommotion.services;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TemporalType;
+
+import org.jboss.bigcommotion.model.DictionaryTerm;
+import org.jboss.bigcommotion.model.MonthlyRollup;
+import org.jboss.bigcommotion.util.MetricColumns;
+import org.jboss.bigcommotion.util.Resources;
+
+/**
+ * Writes a snapshot of every past site/month that has rollups but no snapshot yet, so that the
+ * history is read from the database once rather than by every analysis.  The current month is
+ * left alone while reports for it keep arriving.
+ * <p>
+ * Runs hourly in the background, after months changed by imports or reclassification have had
+ * their snapshots deleted, and gives way whenever reports are waiting on the import queue; the
+ * next run carries on with the months still missing.
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class SnapshotExporter {
+
+	@Inject
+	private transient Logger logger;
+
+	@PersistenceContext(unitName = Resources.PERSISTENCE_CONTEXT_NAME)
+	private EntityManager em;
+
+	@Inject
+	private ColumnarMetricStore columnarStore;
+
+	@Inject
+	private DictionaryService dictionary;
+
+	@Inject
+	private IngestMetrics ingestMetrics;
+
+	@Inject
+	private StartupService startup;
+
+	private final AtomicBoolean running = new AtomicBoolean();
+
+	@Schedule(hour="*", minute="30", persistent=false)
+	public void run(){
+		if (startup.getState() == StartupService.State.READY)
+			exportAll();
+	}
+
+	/**
+	 * Exports the past months missing a snapshot, stopping early if reports are waiting to be
+	 * imported.  Does nothing while an export is in progress.
+	 * @return number of snapshots written
+	 */
+	public int exportAll(){
+		if (!running.compareAndSet(false, true))
+			return 0;
+		try {
+			long start = System.currentTimeMillis();
+			List<Object[]> siteMonths = em.createQuery("SELECT DISTINCT r.site, r.month FROM ProjectMonthRollup r"
+					+ " WHERE r.month < :current", Object[].class)
+					.setParameter("current", MonthlyRollup.monthOf(new Date()), TemporalType.DATE)
+					.getResultList();
+			int exported = 0;
+			long bytes = 0;
+			for (Object[] siteMonth : siteMonths){
+				if (ingestMetrics.getQueueDepth() > 0){
+					logger.fine("Snapshot export paused while reports are waiting to be imported");
+					break;
+				}
+				Integer siteId = dictionary.idOf(DictionaryTerm.Kind.SITE, (String) siteMonth[0]);
+				if (siteId == null)
+					continue;
+				try {
+					long written = columnarStore.export(siteId, MetricColumns.monthKey((Date) siteMonth[1]));
+					if (written > 0){
+						exported++;
+						bytes += written;
+					}
+				} catch (IOException ioe){
+					logger.log(Level.WARNING, "Could not export the snapshot of " + siteMonth[0] + " " + siteMonth[1], ioe);
+				}
+			}
+			if (exported > 0)
+				logger.info("Exported " + exported + " snapshots, " + bytes / 1024 + " KB, in " + (System.currentTimeMillis() - start) + " ms");
+			return exported;
+		} finally {
+			running.set(false);
+		}
+	}
+}
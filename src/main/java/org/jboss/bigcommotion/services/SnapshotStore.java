@@ -0,0 +1,194 @@
+package org.jboss.bigcommotion.services;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+
+import org.jboss.bigcommotion.util.MetricColumns;
+import org.jboss.bigcommotion.util.MetricSnapshot;
+
+/**
+ * The directory of {@link MetricSnapshot} files, one per site and month, and the snapshots mapped
+ * from it so far.  The directory is <code>-Dmetrics.snapshot.dir</code>, by default
+ * {@value #DEFAULT_DIRECTORY}; it must not be under the report data directories.
+ * <p>
+ * A snapshot is only ever written whole and deleted when its month changes, see
+ * {@link ColumnarMetricStore#invalidate}, so one that exists matches the database.  Snapshots
+ * that cannot be read are deleted, to be exported again.
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+public class SnapshotStore {
+
+	public static final String DIRECTORY_PROPERTY = "metrics.snapshot.dir";
+	public static final String DEFAULT_DIRECTORY = "/opt/snapshots";
+	// Rebuilds the rollups from the snapshots during the warm-up, for a database restored without them
+	public static final String RESTORE_ROLLUPS_PROPERTY = "metrics.snapshot.restoreRollups";
+
+	@Inject
+	private transient Logger logger;
+
+	private File directory;
+	private final ConcurrentMap<Long, MetricSnapshot> mapped = new ConcurrentHashMap<Long, MetricSnapshot>();
+
+	@PostConstruct
+	private void setup(){
+		directory = new File(System.getProperty(DIRECTORY_PROPERTY, DEFAULT_DIRECTORY));
+		if (!directory.isDirectory() && !directory.mkdirs())
+			logger.warning("Cannot create the snapshot directory " + directory + ", snapshots will not be written");
+		File[] leftovers = directory.listFiles(new FileFilter(){
+			@Override
+			public boolean accept(File file){
+				return file.getName().endsWith(MetricSnapshot.FILE_SUFFIX + ".tmp");
+			}
+		});
+		if (leftovers != null){
+			for (File leftover : leftovers)
+				leftover.delete();
+		}
+	}
+
+	/**
+	 * @return the snapshot of the site's month, mapping it the first time, or null if there is none
+	 */
+	public MetricSnapshot find(int siteId, int month){
+		Long key = MetricColumns.keyOf(siteId, month);
+		MetricSnapshot snapshot = mapped.get(key);
+		if (snapshot != null)
+			return snapshot;
+		synchronized (this){
+			snapshot = mapped.get(key);
+			File file = new File(directory, MetricSnapshot.fileName(siteId, month));
+			if (snapshot == null && file.isFile()){
+				snapshot = open(file);
+				if (snapshot != null)
+					mapped.put(key, snapshot);
+			}
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Maps every snapshot in the directory.
+	 * @return the snapshots, in no particular order
+	 */
+	public synchronized List<MetricSnapshot> findAll(){
+		List<MetricSnapshot> snapshots = new ArrayList<MetricSnapshot>();
+		File[] files = directory.listFiles(new FileFilter(){
+			@Override
+			public boolean accept(File file){
+				return file.getName().endsWith(MetricSnapshot.FILE_SUFFIX) && file.isFile();
+			}
+		});
+		if (files == null)
+			return snapshots;
+		for (File file : files){
+			Long key = keyOf(file);
+			MetricSnapshot snapshot = key == null ? null : mapped.get(key);
+			if (snapshot == null)
+				snapshot = open(file);
+			if (snapshot == null)
+				continue;
+			mapped.put(MetricColumns.keyOf(snapshot.getSiteId(), snapshot.getMonth()), snapshot);
+			snapshots.add(snapshot);
+		}
+		return snapshots;
+	}
+
+	public boolean contains(int siteId, int month){
+		return new File(directory, MetricSnapshot.fileName(siteId, month)).isFile();
+	}
+
+	/**
+	 * Writes a snapshot of the block, replacing any earlier one.
+	 * @param monthVersion version of the month's metrics the block was read at
+	 * @return bytes written
+	 */
+	public synchronized long write(MetricColumns columns, long monthVersion) throws IOException {
+		assert columns != null : "columns must be specified";
+		File file = new File(directory, MetricSnapshot.fileName(columns.getSiteId(), columns.getMonth()));
+		long bytes = MetricSnapshot.write(columns, monthVersion, file);
+		mapped.remove(MetricColumns.keyOf(columns.getSiteId(), columns.getMonth()));
+		return bytes;
+	}
+
+	/**
+	 * Checks a snapshot was exported at the current version of its month, and deletes it if not:
+	 * the month changed without the snapshot being deleted, and it is exported again later.
+	 * @param monthVersion current version of the snapshot's month
+	 */
+	public boolean isCurrent(MetricSnapshot snapshot, long monthVersion){
+		assert snapshot != null : "snapshot must be specified";
+		if (snapshot.getMonthVersion() == monthVersion)
+			return true;
+		logger.warning("Deleting the snapshot " + snapshot.getFile() + " of version " + snapshot.getMonthVersion()
+				+ ", its month is at version " + monthVersion);
+		delete(snapshot.getSiteId(), snapshot.getMonth());
+		return false;
+	}
+
+	/**
+	 * Deletes the snapshot of a site's month.  Blocks already mapped stay readable.
+	 */
+	public synchronized void delete(int siteId, int month){
+		File file = new File(directory, MetricSnapshot.fileName(siteId, month));
+		if (file.isFile() && !file.delete())
+			logger.warning("Could not delete the out of date snapshot " + file);
+		mapped.remove(MetricColumns.keyOf(siteId, month));
+	}
+
+	/**
+	 * Forgets the mapping of a site's month, leaving its snapshot to be mapped again by the next
+	 * {@link #find}, so the mapping can be unmapped once no query holds it.
+	 */
+	public void release(int siteId, int month){
+		mapped.remove(MetricColumns.keyOf(siteId, month));
+	}
+
+	/**
+	 * @return number of snapshots mapped so far
+	 */
+	public int getMappedCount(){
+		return mapped.size();
+	}
+
+	// -------------------------------------------------------------------
+
+	/**
+	 * @return key of the block in a snapshot file, from its name, or null for another file
+	 */
+	private static Long keyOf(File file){
+		String name = file.getName();
+		String[] parts = name.substring(0, name.length() - MetricSnapshot.FILE_SUFFIX.length()).split("-");
+		try {
+			return parts.length == 3 ? MetricColumns.keyOf(Integer.parseInt(parts[1]), Integer.parseInt(parts[2])) : null;
+		} catch (NumberFormatException nfe){
+			return null;
+		}
+	}
+
+	private MetricSnapshot open(File file){
+		try {
+			return MetricSnapshot.open(file);
+		} catch (IOException ioe){
+			logger.log(Level.WARNING, "Deleting unreadable snapshot " + file, ioe);
+			file.delete();
+			return null;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package org.jboss.bigcommotion.services;
+
+import java.util.Collections;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.Asynchronous;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+
+import org.jboss.bigcommotion.model.WebMetric;
+
+/**
+ * Splits application startup into a fast deployment phase and a background warm-up.  Deployment
+ * only schedules the warm-up; the warm-up then loads the ingest ledger, dispatch records and
+ * metric dictionary, compiles the page rules, maps the metric snapshots (restoring the rollups from
+ * them with <code>-Dmetrics.snapshot.restoreRollups=true</code>) and starts the report importer,
+ * which used to happen before the deployment finished and grew with the amount of data imported.
+ * <p>
+ * The application reports {@link State#WARMING} at <code>/health</code> until the warm-up is done.
+ * Queries are served throughout; only importing waits for {@link State#READY}.
+ */
+@Startup
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class StartupService {
+
+	public enum State { WARMING, READY, FAILED }
+
+	@Inject
+	private transient Logger logger;
+
+	@Resource
+	private SessionContext context;
+
+	@Inject
+	private IngestLedger ledger;
+
+	@Inject
+	private DispatchTracker tracker;
+
+	@Inject
+	private DictionaryService dictionary;
+
+	@Inject
+	private PageClassificationService classificationService;
+
+	@Inject
+	private MetricRuleEngine ruleEngine;
+
+	@Inject
+	private PartitionMaintenance partitions;
+
+	@Inject
+	private ColumnarMetricStore columnarStore;
+
+	@Inject
+	private RollupService rollups;
+
+	@Inject
+	private GoogleAnalyticsImportSingleton importer;
+
+	private volatile State state = State.WARMING;
+	private volatile long deployMillis;
+	private volatile long warmupMillis;
+	private volatile String failure;
+	private long startedAt;
+
+	@PostConstruct
+	private void setup(){
+		startedAt = System.currentTimeMillis();
+		context.getBusinessObject(StartupService.class).warmUp();
+		deployMillis = System.currentTimeMillis() - startedAt;
+		logger.info("Startup took " + deployMillis + " ms, warming up in the background");
+	}
+
+	/**
+	 * Loads what the importer needs, each bean in its own transaction, then starts the importer.
+	 */
+	@Asynchronous
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public void warmUp(){
+		try {
+			long start = System.currentTimeMillis();
+			int processed = ledger.getProcessedPaths().size();
+			logger.info("Warm-up: ingest ledger ready with " + processed + " files in " + (System.currentTimeMillis() - start) + " ms");
+
+			start = System.currentTimeMillis();
+			int dispatched = tracker.getDispatchedCount();
+			logger.info("Warm-up: dispatch records ready with " + dispatched + " files in " + (System.currentTimeMillis() - start) + " ms");
+
+			start = System.currentTimeMillis();
+			int terms = dictionary.getSize();
+			logger.info("Warm-up: dictionary ready with " + terms + " terms in " + (System.currentTimeMillis() - start) + " ms");
+
+			start = System.currentTimeMillis();
+			classificationService.getClassifier();
+			ruleEngine.execute(Collections.<WebMetric>emptyList());
+			logger.info("Warm-up: page rules ready in " + (System.currentTimeMillis() - start) + " ms");
+
+			start = System.currentTimeMillis();
+			int mapped = columnarStore.preload();
+			logger.info("Warm-up: mapped " + mapped + " metric snapshots in " + (System.currentTimeMillis() - start) + " ms");
+			if (Boolean.getBoolean(SnapshotStore.RESTORE_ROLLUPS_PROPERTY))
+				rollups.restoreAll();
+
+			partitions.addPartitions();
+			importer.start();
+			warmupMillis = System.currentTimeMillis() - startedAt;
+			state = State.READY;
+			logger.info("Ready " + warmupMillis + " ms after startup; deployment itself took " + deployMillis + " ms");
+		} catch (RuntimeException re){
+			failure = re.toString();
+			state = State.FAILED;
+			logger.log(Level.SEVERE, "Warm-up failed, reports will not be imported until the application is redeployed", re);
+		}
+	}
+
+	public State getState(){
+		return state;
+	}
+
+	/**
+	 * @return time the deployment waited for startup, in milliseconds
+	 */
+	public long getDeployMillis(){
+		return deployMillis;
+	}
+
+	/**
+	 * @return time from startup until the importer was running, in milliseconds, or 0 while warming up
+	 */
+	public long getWarmupMillis(){
+		return warmupMillis;
+	}
+
+	/**
+	 * @return why the warm-up failed, or null
+	 */
+	public String getFailure(){
+		return failure;
+	}
+}
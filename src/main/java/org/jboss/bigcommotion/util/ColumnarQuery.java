@@ -0,0 +1,369 @@
+package org.jboss.bigcommotion.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A group-by over {@link MetricColumns} blocks: totals per page, project, site or month of the rows
+ * passing the filters, the top ones by a measure.  Sites and months are filtered by choosing the
+ * blocks to scan; projects and pages row by row.
+ * <p>
+ * The blocks are cut into segments of at most {@link #SEGMENT_ROWS} rows which fork/join tasks scan
+ * in parallel, each into a table of its own keyed by the group's int id, and the tables are merged
+ * as the tasks join.  Rates are summed weighted by pageviews as in the monthly rollups, so the
+ * totals do not depend on how the rows were split.
+ */
+public final class ColumnarQuery {
+
+	static final int SEGMENT_ROWS = 32 * 1024;
+
+	public enum GroupBy {
+		PAGE, PROJECT, SITE, MONTH
+	}
+
+	public enum Measure {
+		PAGE_VIEWS, UNIQUE_PAGE_VIEWS, ENTRANCES, ROWS
+	}
+
+	private final GroupBy groupBy;
+	private final Measure orderBy;
+	private final int limit;
+	private final int[] projectIds;
+	private final int[] pageIds;
+
+	/**
+	 * @param projectIds only rows of these projects, or null for every project
+	 * @param pageIds only rows of these pages, or null for every page
+	 * @param limit maximum number of groups returned
+	 */
+	public ColumnarQuery(GroupBy groupBy, Measure orderBy, Collection<Integer> projectIds, Collection<Integer> pageIds, int limit){
+		assert groupBy != null : "groupBy must be specified";
+		assert orderBy != null : "orderBy must be specified";
+		assert limit > 0 : "limit must be positive";
+		this.groupBy = groupBy;
+		this.orderBy = orderBy;
+		this.limit = limit;
+		this.projectIds = sorted(projectIds);
+		this.pageIds = sorted(pageIds);
+	}
+
+	public GroupBy getGroupBy(){
+		return groupBy;
+	}
+
+	/**
+	 * Scans the blocks in the pool.
+	 * @return at most limit groups by descending measure, then ascending key
+	 */
+	public List<Group> execute(Collection<MetricColumns> blocks, ForkJoinPool pool){
+		assert blocks != null : "blocks must be specified";
+		assert pool != null : "pool must be specified";
+		List<Segment> segments = new ArrayList<Segment>();
+		for (MetricColumns block : blocks){
+			for (int from = 0; from < block.size(); from += SEGMENT_ROWS)
+				segments.add(new Segment(block, from, Math.min(block.size(), from + SEGMENT_ROWS)));
+		}
+		if (segments.isEmpty())
+			return Collections.emptyList();
+		return top(pool.invoke(new ScanTask(segments, 0, segments.size())));
+	}
+
+	// -------------------------------------------------------------------
+
+	private static int[] sorted(Collection<Integer> ids){
+		if (ids == null)
+			return null;
+		int[] sorted = new int[ids.size()];
+		int i = 0;
+		for (Integer id : ids)
+			sorted[i++] = id.intValue();
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	private static boolean contains(int[] sorted, int id){
+		return sorted == null || Arrays.binarySearch(sorted, id) >= 0;
+	}
+
+	private void scan(Segment segment, Groups groups){
+		MetricColumns block = segment.block;
+		for (int row = segment.from; row < segment.to; row++){
+			if (!contains(projectIds, block.projectId(row)) || !contains(pageIds, block.pageId(row)))
+				continue;
+			int key;
+			switch (groupBy){
+			case PAGE:
+				key = block.pageId(row);
+				break;
+			case PROJECT:
+				key = block.projectId(row);
+				break;
+			case SITE:
+				key = block.getSiteId();
+				break;
+			default:
+				key = block.getMonth();
+			}
+			groups.add(key, block, row);
+		}
+	}
+
+	private List<Group> top(Groups groups){
+		final Comparator<Group> order = new Comparator<Group>(){
+			@Override
+			public int compare(Group a, Group b){
+				long x = a.measure(orderBy);
+				long y = b.measure(orderBy);
+				if (x != y)
+					return x > y ? -1 : 1;
+				return a.key < b.key ? -1 : (a.key == b.key ? 0 : 1);
+			}
+		};
+		// Keeps the best groups seen so far with the worst of them at the head
+		PriorityQueue<Group> best = new PriorityQueue<Group>(limit + 1, Collections.reverseOrder(order));
+		for (int i = 0; i < groups.size; i++){
+			Group group = groups.group(i);
+			if (best.size() < limit)
+				best.add(group);
+			else if (order.compare(group, best.peek()) < 0){
+				best.poll();
+				best.add(group);
+			}
+		}
+		List<Group> result = new ArrayList<Group>(best);
+		Collections.sort(result, order);
+		return result;
+	}
+
+	/**
+	 * Rows [from, to) of one block.
+	 */
+	private static final class Segment {
+
+		final MetricColumns block;
+		final int from;
+		final int to;
+
+		Segment(MetricColumns block, int from, int to){
+			this.block = block;
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	/**
+	 * Scans segments [from, to), splitting in halves down to single segments.
+	 */
+	private final class ScanTask extends RecursiveTask<Groups> {
+
+		private static final long serialVersionUID = -3046317810259326317L;
+
+		private final List<Segment> segments;
+		private final int from;
+		private final int to;
+
+		ScanTask(List<Segment> segments, int from, int to){
+			this.segments = segments;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Groups compute(){
+			if (to - from == 1){
+				Groups groups = new Groups();
+				scan(segments.get(from), groups);
+				return groups;
+			}
+			int middle = (from + to) >>> 1;
+			ScanTask left = new ScanTask(segments, from, middle);
+			left.fork();
+			Groups right = new ScanTask(segments, middle, to).compute();
+			Groups merged = left.join();
+			merged.addAll(right);
+			return merged;
+		}
+	}
+
+	/**
+	 * Totals by int key in parallel arrays, found through an open addressing table of
+	 * positions + 1, so adding a row allocates nothing.
+	 */
+	private static final class Groups {
+
+		private static final int INITIAL_CAPACITY = 256;
+
+		int size;
+		private int[] slots = new int[INITIAL_CAPACITY * 2];
+		private int[] keys = new int[INITIAL_CAPACITY];
+		private long[] pageViews = new long[INITIAL_CAPACITY];
+		private long[] uniquePageViews = new long[INITIAL_CAPACITY];
+		private long[] entrances = new long[INITIAL_CAPACITY];
+		private double[] bounceRateWeights = new double[INITIAL_CAPACITY];
+		private double[] percentExitWeights = new double[INITIAL_CAPACITY];
+		private double[] timeOnPageWeights = new double[INITIAL_CAPACITY];
+		private int[] rowCounts = new int[INITIAL_CAPACITY];
+
+		void add(int key, MetricColumns block, int row){
+			int i = indexOf(key);
+			long views = block.pageViews(row);
+			pageViews[i] += views;
+			uniquePageViews[i] += block.uniquePageViews(row);
+			entrances[i] += block.entrances(row);
+			float bounceRate = block.bounceRate(row);
+			if (!Float.isNaN(bounceRate))
+				bounceRateWeights[i] += views * (double) bounceRate;
+			float percentExit = block.percentExit(row);
+			if (!Float.isNaN(percentExit))
+				percentExitWeights[i] += views * (double) percentExit;
+			timeOnPageWeights[i] += (double) views * block.averageTimeOnPage(row);
+			rowCounts[i]++;
+		}
+
+		void addAll(Groups other){
+			for (int j = 0; j < other.size; j++){
+				int i = indexOf(other.keys[j]);
+				pageViews[i] += other.pageViews[j];
+				uniquePageViews[i] += other.uniquePageViews[j];
+				entrances[i] += other.entrances[j];
+				bounceRateWeights[i] += other.bounceRateWeights[j];
+				percentExitWeights[i] += other.percentExitWeights[j];
+				timeOnPageWeights[i] += other.timeOnPageWeights[j];
+				rowCounts[i] += other.rowCounts[j];
+			}
+		}
+
+		Group group(int i){
+			return new Group(keys[i], pageViews[i], uniquePageViews[i], entrances[i], bounceRateWeights[i],
+					percentExitWeights[i], timeOnPageWeights[i], rowCounts[i]);
+		}
+
+		private int indexOf(int key){
+			int mask = slots.length - 1;
+			for (int slot = mix(key) & mask; ; slot = (slot + 1) & mask){
+				int position = slots[slot];
+				if (position == 0)
+					break;
+				if (keys[position - 1] == key)
+					return position - 1;
+			}
+			if (size == keys.length)
+				grow();
+			int i = size++;
+			keys[i] = key;
+			insert(key, i);
+			return i;
+		}
+
+		private void insert(int key, int i){
+			int mask = slots.length - 1;
+			int slot = mix(key) & mask;
+			while (slots[slot] != 0)
+				slot = (slot + 1) & mask;
+			slots[slot] = i + 1;
+		}
+
+		private void grow(){
+			int capacity = keys.length * 2;
+			keys = Arrays.copyOf(keys, capacity);
+			pageViews = Arrays.copyOf(pageViews, capacity);
+			uniquePageViews = Arrays.copyOf(uniquePageViews, capacity);
+			entrances = Arrays.copyOf(entrances, capacity);
+			bounceRateWeights = Arrays.copyOf(bounceRateWeights, capacity);
+			percentExitWeights = Arrays.copyOf(percentExitWeights, capacity);
+			timeOnPageWeights = Arrays.copyOf(timeOnPageWeights, capacity);
+			rowCounts = Arrays.copyOf(rowCounts, capacity);
+			// The table stays at most half full
+			slots = new int[capacity * 2];
+			for (int i = 0; i < size; i++)
+				insert(keys[i], i);
+		}
+
+		private static int mix(int key){
+			int h = key * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+	}
+
+	/**
+	 * Totals of one group.  Rates are weighted by pageviews, as in the monthly rollups.
+	 */
+	public static final class Group {
+
+		private final int key;
+		private final long pageViews;
+		private final long uniquePageViews;
+		private final long entrances;
+		private final double bounceRateWeight;
+		private final double percentExitWeight;
+		private final double timeOnPageWeight;
+		private final int rowCount;
+
+		Group(int key, long pageViews, long uniquePageViews, long entrances, double bounceRateWeight,
+				double percentExitWeight, double timeOnPageWeight, int rowCount){
+			this.key = key;
+			this.pageViews = pageViews;
+			this.uniquePageViews = uniquePageViews;
+			this.entrances = entrances;
+			this.bounceRateWeight = bounceRateWeight;
+			this.percentExitWeight = percentExitWeight;
+			this.timeOnPageWeight = timeOnPageWeight;
+			this.rowCount = rowCount;
+		}
+
+		/**
+		 * @return the page, project or site dictionary id, or the month as yyyyMM
+		 */
+		public int getKey(){
+			return key;
+		}
+
+		public long getPageViews(){
+			return pageViews;
+		}
+
+		public long getUniquePageViews(){
+			return uniquePageViews;
+		}
+
+		public long getEntrances(){
+			return entrances;
+		}
+
+		public float getBounceRate(){
+			return pageViews == 0 ? 0f : (float) (bounceRateWeight / pageViews);
+		}
+
+		public float getPercentExit(){
+			return pageViews == 0 ? 0f : (float) (percentExitWeight / pageViews);
+		}
+
+		public int getAverageTimeOnPage(){
+			return pageViews == 0 ? 0 : (int) Math.round(timeOnPageWeight / pageViews);
+		}
+
+		public int getRowCount(){
+			return rowCount;
+		}
+
+		long measure(Measure measure){
+			switch (measure){
+			case PAGE_VIEWS:
+				return pageViews;
+			case UNIQUE_PAGE_VIEWS:
+				return uniquePageViews;
+			case ENTRANCES:
+				return entrances;
+			default:
+				return rowCount;
+			}
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package org.jboss.bigcommotion.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Estimates the number of distinct ints added, such as page dictionary ids, in 2^precision bytes.
+ * The relative standard error is 1.04 / sqrt(2^precision), 2.3% at the default precision of 11,
+ * whatever the count.  Sketches of the same precision merge into the sketch of the union, so a
+ * month's distinct pages can be kept per project and added up over any range of months.
+ * <p>
+ * Small counts use linear counting over the empty registers, which is close to exact, and
+ * sketches with few registers set are written sparse, a few bytes per register.
+ */
+public final class HyperLogLog {
+
+	public static final int DEFAULT_PRECISION = 11;
+	private static final byte DENSE = 1;
+	private static final byte SPARSE = 2;
+
+	private final int precision;
+	private final byte[] registers;
+
+	public HyperLogLog(){
+		this(DEFAULT_PRECISION);
+	}
+
+	public HyperLogLog(int precision){
+		assert precision >= 4 && precision <= 16 : "precision must be between 4 and 16";
+		this.precision = precision;
+		this.registers = new byte[1 << precision];
+	}
+
+	/**
+	 * Reads a sketch written by {@link #toBytes}.
+	 * @throws IllegalArgumentException if the bytes are not a sketch
+	 */
+	public static HyperLogLog fromBytes(byte[] bytes){
+		assert bytes != null : "bytes must be specified";
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		try {
+			byte format = buffer.get();
+			HyperLogLog sketch = new HyperLogLog(buffer.get());
+			if (format == DENSE){
+				buffer.get(sketch.registers);
+			} else if (format == SPARSE){
+				while (buffer.hasRemaining())
+					sketch.registers[buffer.getShort() & 0xffff] = buffer.get();
+			} else {
+				throw new IllegalArgumentException("Unknown distinct count sketch format " + format);
+			}
+			return sketch;
+		} catch (RuntimeException re){
+			if (re instanceof IllegalArgumentException)
+				throw re;
+			throw new IllegalArgumentException("Corrupt distinct count sketch", re);
+		}
+	}
+
+	public void add(int value){
+		long hash = hash(value);
+		int index = (int) (hash >>> (64 - precision));
+		// Position of the first set bit after the index bits, counting from 1
+		int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+		if (rank > registers[index])
+			registers[index] = (byte) rank;
+	}
+
+	/**
+	 * Adds another sketch's values to this one.
+	 */
+	public void merge(HyperLogLog other){
+		assert other != null : "other must be specified";
+		if (other.precision != precision)
+			throw new IllegalArgumentException("Cannot merge a sketch of precision " + other.precision + " into one of " + precision);
+		for (int i = 0; i < registers.length; i++){
+			if (other.registers[i] > registers[i])
+				registers[i] = other.registers[i];
+		}
+	}
+
+	/**
+	 * @return estimated number of distinct values added
+	 */
+	public long cardinality(){
+		int m = registers.length;
+		double sum = 0;
+		int empty = 0;
+		for (byte register : registers){
+			sum += 1.0 / (1L << register);
+			if (register == 0)
+				empty++;
+		}
+		double estimate = alpha(m) * m * m / sum;
+		if (estimate <= 2.5 * m && empty > 0)
+			estimate = m * Math.log((double) m / empty);
+		return Math.round(estimate);
+	}
+
+	/**
+	 * @return relative standard error of {@link #cardinality}
+	 */
+	public double getStandardError(){
+		return 1.04 / Math.sqrt(registers.length);
+	}
+
+	public int getPrecision(){
+		return precision;
+	}
+
+	public byte[] toBytes(){
+		int set = 0;
+		for (byte register : registers){
+			if (register != 0)
+				set++;
+		}
+		if (set * 3 < registers.length){
+			ByteBuffer buffer = ByteBuffer.allocate(2 + set * 3);
+			buffer.put(SPARSE).put((byte) precision);
+			for (int i = 0; i < registers.length; i++){
+				if (registers[i] != 0)
+					buffer.putShort((short) i).put(registers[i]);
+			}
+			return buffer.array();
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(2 + registers.length);
+		buffer.put(DENSE).put((byte) precision).put(registers);
+		return buffer.array();
+	}
+
+	// -------------------------------------------------------------------
+
+	/**
+	 * Spreads consecutive ids over all 64 bits (the splitmix64 finalizer).
+	 */
+	private static long hash(int value){
+		long z = value + 0x9e3779b97f4a7c15L;
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	private static double alpha(int m){
+		switch (m){
+		case 16:
+			return 0.673;
+		case 32:
+			return 0.697;
+		case 64:
+			return 0.709;
+		default:
+			return 0.7213 / (1 + 1.079 / m);
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package org.jboss.bigcommotion.util;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * The WebMetric rows of one site and month held column by column, with page and project as
+ * dictionary ids.  Blocks built here keep each column in a primitive array, 44 bytes a row against
+ * several hundred as an entity with its boxed rates, date and strings, and a scan over one column
+ * touches nothing else; {@link MetricSnapshot} reads the same columns from a mapped file.
+ * <p>
+ * Blocks are immutable once built; a missing bounce or exit rate is NaN, and a missing page or
+ * project {@link #NO_ID}.
+ */
+public abstract class MetricColumns {
+
+	/**
+	 * Bytes held per row by the columns of a block built in memory.
+	 */
+	public static final int ROW_BYTES = 4 + 4 + 8 + 8 + 8 + 4 + 4 + 4;
+
+	/**
+	 * Id of a row's page or project when it has none.
+	 */
+	public static final int NO_ID = 0;
+
+	private final int siteId;
+	private final int month;
+	private final int size;
+
+	protected MetricColumns(int siteId, int month, int size){
+		this.siteId = siteId;
+		this.month = month;
+		this.size = size;
+	}
+
+	/**
+	 * @return the key of a site's month among blocks of every site
+	 */
+	public static Long keyOf(int siteId, int month){
+		return Long.valueOf(((long) siteId << 32) | month);
+	}
+
+	/**
+	 * @return the month as yyyyMM, such as 201311
+	 */
+	public static int monthKey(Date date){
+		assert date != null : "date must be specified";
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(date);
+		return calendar.get(Calendar.YEAR) * 100 + calendar.get(Calendar.MONTH) + 1;
+	}
+
+	/**
+	 * @return midnight on the first day of a yyyyMM month
+	 */
+	public static Date monthOf(int monthKey){
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(monthKey / 100, monthKey % 100 - 1, 1);
+		return calendar.getTime();
+	}
+
+	public int getSiteId(){
+		return siteId;
+	}
+
+	/**
+	 * @return the month as yyyyMM
+	 */
+	public int getMonth(){
+		return month;
+	}
+
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * @return bytes held by the columns, on the heap or mapped
+	 */
+	public abstract long getMemoryBytes();
+
+	public abstract int pageId(int row);
+
+	public abstract int projectId(int row);
+
+	public abstract long pageViews(int row);
+
+	public abstract long uniquePageViews(int row);
+
+	public abstract long entrances(int row);
+
+	public abstract int averageTimeOnPage(int row);
+
+	/**
+	 * @return bounce rate as a percentage, or NaN if the report had none
+	 */
+	public abstract float bounceRate(int row);
+
+	/**
+	 * @return exit rate as a percentage, or NaN if the report had none
+	 */
+	public abstract float percentExit(int row);
+
+	/**
+	 * Appends rows to growing columns, then copies them to a block of the exact size.
+	 */
+	public static final class Builder {
+
+		private static final int INITIAL_CAPACITY = 1024;
+
+		private final int siteId;
+		private final int month;
+		private int size;
+		private int[] pageIds = new int[INITIAL_CAPACITY];
+		private int[] projectIds = new int[INITIAL_CAPACITY];
+		private long[] pageViews = new long[INITIAL_CAPACITY];
+		private long[] uniquePageViews = new long[INITIAL_CAPACITY];
+		private long[] entrances = new long[INITIAL_CAPACITY];
+		private int[] averageTimeOnPage = new int[INITIAL_CAPACITY];
+		private float[] bounceRates = new float[INITIAL_CAPACITY];
+		private float[] percentExits = new float[INITIAL_CAPACITY];
+
+		/**
+		 * @param month the month as yyyyMM
+		 */
+		public Builder(int siteId, int month){
+			this.siteId = siteId;
+			this.month = month;
+		}
+
+		/**
+		 * Appends a row; a null rate is stored as NaN.
+		 */
+		public Builder append(int pageId, int projectId, long pageViews, long uniquePageViews, long entrances,
+				int averageTimeOnPage, Float bounceRate, Float percentExit){
+			if (size == pageIds.length)
+				grow();
+			this.pageIds[size] = pageId;
+			this.projectIds[size] = projectId;
+			this.pageViews[size] = pageViews;
+			this.uniquePageViews[size] = uniquePageViews;
+			this.entrances[size] = entrances;
+			this.averageTimeOnPage[size] = averageTimeOnPage;
+			this.bounceRates[size] = bounceRate == null ? Float.NaN : bounceRate.floatValue();
+			this.percentExits[size] = percentExit == null ? Float.NaN : percentExit.floatValue();
+			size++;
+			return this;
+		}
+
+		public int size(){
+			return size;
+		}
+
+		public MetricColumns build(){
+			return new HeapColumns(this);
+		}
+
+		private void grow(){
+			int capacity = pageIds.length * 2;
+			pageIds = Arrays.copyOf(pageIds, capacity);
+			projectIds = Arrays.copyOf(projectIds, capacity);
+			pageViews = Arrays.copyOf(pageViews, capacity);
+			uniquePageViews = Arrays.copyOf(uniquePageViews, capacity);
+			entrances = Arrays.copyOf(entrances, capacity);
+			averageTimeOnPage = Arrays.copyOf(averageTimeOnPage, capacity);
+			bounceRates = Arrays.copyOf(bounceRates, capacity);
+			percentExits = Arrays.copyOf(percentExits, capacity);
+		}
+	}
+
+	/**
+	 * Columns copied from a {@link Builder} to arrays of the exact size.
+	 */
+	private static final class HeapColumns extends MetricColumns {
+
+		private final int[] pageIds;
+		private final int[] projectIds;
+		private final long[] pageViews;
+		private final long[] uniquePageViews;
+		private final long[] entrances;
+		private final int[] averageTimeOnPage;
+		private final float[] bounceRates;
+		private final float[] percentExits;
+
+		HeapColumns(Builder builder){
+			super(builder.siteId, builder.month, builder.size);
+			int size = builder.size;
+			pageIds = Arrays.copyOf(builder.pageIds, size);
+			projectIds = Arrays.copyOf(builder.projectIds, size);
+			pageViews = Arrays.copyOf(builder.pageViews, size);
+			uniquePageViews = Arrays.copyOf(builder.uniquePageViews, size);
+			entrances = Arrays.copyOf(builder.entrances, size);
+			averageTimeOnPage = Arrays.copyOf(builder.averageTimeOnPage, size);
+			bounceRates = Arrays.copyOf(builder.bounceRates, size);
+			percentExits = Arrays.copyOf(builder.percentExits, size);
+		}
+
+		@Override
+		public long getMemoryBytes(){
+			return (long) size() * ROW_BYTES;
+		}
+
+		@Override
+		public int pageId(int row){
+			return pageIds[row];
+		}
+
+		@Override
+		public int projectId(int row){
+			return projectIds[row];
+		}
+
+		@Override
+		public long pageViews(int row){
+			return pageViews[row];
+		}
+
+		@Override
+		public long uniquePageViews(int row){
+			return uniquePageViews[row];
+		}
+
+		@Override
+		public long entrances(int row){
+			return entrances[row];
+		}
+
+		@Override
+		public int averageTimeOnPage(int row){
+			return averageTimeOnPage[row];
+		}
+
+		@Override
+		public float bounceRate(int row){
+			return bounceRates[row];
+		}
+
+		@Override
+		public float percentExit(int row){
+			return percentExits[row];
+		}
+	}
+}
@@ -0,0 +1,320 @@
+package org.jboss.bigcommotion.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link MetricColumns} block written to an immutable file and read back through a read-only
+ * mapping of it, so scans read the page cache directly with nothing copied to the heap.
+ * <p>
+ * The file starts with a header and an index of the columns:
+ * <pre>
+ * int magic, int version, int siteId, int month (yyyyMM), int rows, int columns, long createdAt, long monthVersion
+ * per column: int width, long base, long offset
+ * </pre>
+ * followed by each column as <code>rows</code> values of <code>width</code> bytes.  Whole number
+ * columns are stored as the difference from their smallest value (the base) in the fewest of 0, 1,
+ * 2, 4 or 8 bytes that hold the largest one, which shrinks pageview counts and dictionary ids to
+ * one or two bytes without having to decode anything to read them.  Rates are stored as 4 byte
+ * floats.  <code>monthVersion</code> is the version of the month's metrics the snapshot was
+ * exported at, see {@link org.jboss.bigcommotion.model.SiteMonthVersion}.
+ */
+public final class MetricSnapshot extends MetricColumns {
+
+	public static final String FILE_SUFFIX = ".snapshot";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final int MAGIC = 0x42434d53;
+	private static final int VERSION = 2;
+	private static final int HEADER_BYTES = 6 * 4 + 8 + 8;
+	private static final int INDEX_BYTES = 4 + 8 + 8;
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	// Column order in the file
+	private static final int PAGE_ID = 0;
+	private static final int PROJECT_ID = 1;
+	private static final int PAGE_VIEWS = 2;
+	private static final int UNIQUE_PAGE_VIEWS = 3;
+	private static final int ENTRANCES = 4;
+	private static final int TIME_ON_PAGE = 5;
+	private static final int BOUNCE_RATE = 6;
+	private static final int PERCENT_EXIT = 7;
+	private static final int COLUMNS = 8;
+
+	private final File file;
+	private final ByteBuffer buffer;
+	private final long createdAt;
+	private final long monthVersion;
+	private final int[] widths = new int[COLUMNS];
+	private final long[] bases = new long[COLUMNS];
+	private final int[] offsets = new int[COLUMNS];
+
+	private MetricSnapshot(File file, ByteBuffer buffer, int siteId, int month, int size, long createdAt, long monthVersion){
+		super(siteId, month, size);
+		this.file = file;
+		this.buffer = buffer;
+		this.createdAt = createdAt;
+		this.monthVersion = monthVersion;
+	}
+
+	/**
+	 * @return name of the snapshot file of a site's month
+	 */
+	public static String fileName(int siteId, int month){
+		return "metrics-" + siteId + "-" + month + FILE_SUFFIX;
+	}
+
+	/**
+	 * Writes the block to the file, replacing it.  The file is written beside its final name, synced
+	 * to disk and renamed into place, so neither a reader nor a crash leaves half a snapshot.
+	 * @param monthVersion version of the month's metrics the block was read at
+	 * @return bytes written
+	 */
+	public static long write(MetricColumns columns, long monthVersion, File file) throws IOException {
+		assert columns != null : "columns must be specified";
+		assert file != null : "file must be specified";
+		int rows = columns.size();
+		int[] widths = new int[COLUMNS];
+		long[] bases = new long[COLUMNS];
+		long offset = HEADER_BYTES + COLUMNS * INDEX_BYTES;
+		long[] offsets = new long[COLUMNS];
+		for (int column = 0; column < COLUMNS; column++){
+			if (column == BOUNCE_RATE || column == PERCENT_EXIT){
+				widths[column] = 4;
+			} else {
+				long min = Long.MAX_VALUE;
+				long max = Long.MIN_VALUE;
+				for (int row = 0; row < rows; row++){
+					long value = value(columns, column, row);
+					min = Math.min(min, value);
+					max = Math.max(max, value);
+				}
+				bases[column] = rows == 0 ? 0 : min;
+				widths[column] = rows == 0 ? 0 : widthOf(max - min);
+			}
+			offsets[column] = offset;
+			offset += (long) rows * widths[column];
+		}
+		if (offset > Integer.MAX_VALUE)
+			throw new IOException("Snapshot of " + rows + " rows is too large for " + file);
+
+		File temp = new File(file.getParentFile(), file.getName() + TEMP_SUFFIX);
+		try {
+			FileOutputStream fileOut = new FileOutputStream(temp);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, WRITE_BUFFER_SIZE));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(columns.getSiteId());
+				out.writeInt(columns.getMonth());
+				out.writeInt(rows);
+				out.writeInt(COLUMNS);
+				out.writeLong(System.currentTimeMillis());
+				out.writeLong(monthVersion);
+				for (int column = 0; column < COLUMNS; column++){
+					out.writeInt(widths[column]);
+					out.writeLong(bases[column]);
+					out.writeLong(offsets[column]);
+				}
+				for (int column = 0; column < COLUMNS; column++){
+					for (int row = 0; row < rows; row++){
+						long value = value(columns, column, row) - bases[column];
+						switch (widths[column]){
+						case 0:
+							break;
+						case 1:
+							out.writeByte((int) value);
+							break;
+						case 2:
+							out.writeShort((int) value);
+							break;
+						case 4:
+							out.writeInt((int) value);
+							break;
+						default:
+							out.writeLong(value);
+						}
+					}
+				}
+				out.flush();
+				fileOut.getFD().sync();
+			} finally {
+				out.close();
+			}
+		} catch (IOException ioe){
+			temp.delete();
+			throw ioe;
+		}
+		if (!temp.renameTo(file)){
+			temp.delete();
+			throw new IOException("Could not rename " + temp + " to " + file);
+		}
+		return offset;
+	}
+
+	/**
+	 * Maps a snapshot file.  The mapping outlives the file, so a snapshot stays readable after it
+	 * is replaced or deleted.
+	 * @throws IOException if the file cannot be read or is not a snapshot
+	 */
+	public static MetricSnapshot open(File file) throws IOException {
+		assert file != null : "file must be specified";
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		ByteBuffer buffer;
+		try {
+			FileChannel channel = in.getChannel();
+			if (channel.size() < HEADER_BYTES || channel.size() > Integer.MAX_VALUE)
+				throw new IOException(file + " is not a metrics snapshot");
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			in.close();
+		}
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(20) != COLUMNS)
+			throw new IOException(file + " is not a version " + VERSION + " metrics snapshot");
+		int rows = buffer.getInt(16);
+		if (rows < 0)
+			throw new IOException(file + " is corrupt");
+		MetricSnapshot snapshot = new MetricSnapshot(file, buffer, buffer.getInt(8), buffer.getInt(12), rows, buffer.getLong(24),
+				buffer.getLong(32));
+		if (buffer.capacity() < HEADER_BYTES + COLUMNS * INDEX_BYTES)
+			throw new IOException(file + " is truncated");
+		for (int column = 0; column < COLUMNS; column++){
+			int entry = HEADER_BYTES + column * INDEX_BYTES;
+			int width = buffer.getInt(entry);
+			long offset = buffer.getLong(entry + 12);
+			if ((width != 0 && width != 1 && width != 2 && width != 4 && width != 8)
+					|| offset + (long) rows * width > buffer.capacity())
+				throw new IOException(file + " is truncated or corrupt");
+			snapshot.widths[column] = width;
+			snapshot.bases[column] = buffer.getLong(entry + 4);
+			snapshot.offsets[column] = (int) offset;
+		}
+		return snapshot;
+	}
+
+	/**
+	 * @return version of the month's metrics the snapshot was exported at
+	 */
+	public long getMonthVersion(){
+		return monthVersion;
+	}
+
+	public File getFile(){
+		return file;
+	}
+
+	/**
+	 * @return when the snapshot was written, in milliseconds since the epoch
+	 */
+	public long getCreatedAt(){
+		return createdAt;
+	}
+
+	@Override
+	public long getMemoryBytes(){
+		return buffer.capacity();
+	}
+
+	@Override
+	public int pageId(int row){
+		return (int) read(PAGE_ID, row);
+	}
+
+	@Override
+	public int projectId(int row){
+		return (int) read(PROJECT_ID, row);
+	}
+
+	@Override
+	public long pageViews(int row){
+		return read(PAGE_VIEWS, row);
+	}
+
+	@Override
+	public long uniquePageViews(int row){
+		return read(UNIQUE_PAGE_VIEWS, row);
+	}
+
+	@Override
+	public long entrances(int row){
+		return read(ENTRANCES, row);
+	}
+
+	@Override
+	public int averageTimeOnPage(int row){
+		return (int) read(TIME_ON_PAGE, row);
+	}
+
+	@Override
+	public float bounceRate(int row){
+		return buffer.getFloat(offsets[BOUNCE_RATE] + row * 4);
+	}
+
+	@Override
+	public float percentExit(int row){
+		return buffer.getFloat(offsets[PERCENT_EXIT] + row * 4);
+	}
+
+	// -------------------------------------------------------------------
+
+	private long read(int column, int row){
+		int width = widths[column];
+		int position = offsets[column] + row * width;
+		switch (width){
+		case 0:
+			return bases[column];
+		case 1:
+			return bases[column] + (buffer.get(position) & 0xff);
+		case 2:
+			return bases[column] + (buffer.getShort(position) & 0xffff);
+		case 4:
+			return bases[column] + (buffer.getInt(position) & 0xffffffffL);
+		default:
+			return bases[column] + buffer.getLong(position);
+		}
+	}
+
+	/**
+	 * @return the column's value, with rates as their float bits
+	 */
+	private static long value(MetricColumns columns, int column, int row){
+		switch (column){
+		case PAGE_ID:
+			return columns.pageId(row);
+		case PROJECT_ID:
+			return columns.projectId(row);
+		case PAGE_VIEWS:
+			return columns.pageViews(row);
+		case UNIQUE_PAGE_VIEWS:
+			return columns.uniquePageViews(row);
+		case ENTRANCES:
+			return columns.entrances(row);
+		case TIME_ON_PAGE:
+			return columns.averageTimeOnPage(row);
+		case BOUNCE_RATE:
+			return Float.floatToRawIntBits(columns.bounceRate(row));
+		default:
+			return Float.floatToRawIntBits(columns.percentExit(row));
+		}
+	}
+
+	/**
+	 * @return bytes needed for values from 0 to range; a negative range overflowed and needs 8
+	 */
+	private static int widthOf(long range){
+		if (range == 0)
+			return 0;
+		if (range > 0 && range <= 0xff)
+			return 1;
+		if (range > 0 && range <= 0xffff)
+			return 2;
+		if (range > 0 && range <= 0xffffffffL)
+			return 4;
+		return 8;
+	}
+}
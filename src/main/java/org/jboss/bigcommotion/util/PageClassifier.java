@@ -0,0 +1,389 @@
+package org.jboss.bigcommotion.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Normalizes page URLs and assigns projects from a list of equals / startsWith / contains rules.
+ * <p>
+ * All rule patterns are compiled into an Aho-Corasick automaton, so a page is matched against every
+ * rule in a single pass over its characters regardless of how many rules there are.  The rules
+ * themselves are kept as data (see logic/PageClassification.rules and the ClassificationRule
+ * table) rather than as code or as UPDATE statements run against the whole WebMetric table.
+ * <p>
+ * Instances are immutable and safe to share between threads.
+ */
+public class PageClassifier {
+
+	public static final String DEFAULT_RULES = "logic/PageClassification.rules";
+	private static final String ANY = "*";
+
+	public enum Action { REWRITE, PROJECT }
+
+	public enum Match { EQUALS, STARTS_WITH, CONTAINS }
+
+	/**
+	 * A single classification rule.  See logic/PageClassification.rules for the meaning of each field.
+	 */
+	public static class Rule {
+		private final Action action;
+		private final Match match;
+		private final boolean ignoreCase;
+		private final String site;
+		private final String whenProject;
+		private final String pattern;
+		private final String value;
+
+		public Rule(Action action, Match match, boolean ignoreCase, String site, String whenProject, String pattern, String value){
+			assert action != null : "action must be specified";
+			assert match != null : "match must be specified";
+			assert pattern != null && !pattern.isEmpty() : "pattern must be specified";
+			assert value != null : "value must be specified";
+			this.action = action;
+			this.match = match;
+			this.ignoreCase = ignoreCase;
+			this.site = ANY.equals(site) ? null : site;
+			this.whenProject = ANY.equals(whenProject) ? null : whenProject;
+			this.pattern = pattern;
+			this.value = value;
+		}
+
+		public Action getAction(){ return action; }
+		public Match getMatch(){ return match; }
+		public boolean isIgnoreCase(){ return ignoreCase; }
+		public String getSite(){ return site == null ? ANY : site; }
+		public String getWhenProject(){ return whenProject == null ? ANY : whenProject; }
+		public String getPattern(){ return pattern; }
+		public String getValue(){ return value; }
+
+		private boolean appliesTo(String metricSite, String metricProject){
+			return (site == null || site.equals(metricSite))
+					&& (whenProject == null || whenProject.equals(metricProject));
+		}
+
+		/**
+		 * @return the rule as a line of logic/PageClassification.rules, which {@link #parse} reads back
+		 */
+		public String toLine(){
+			return action.name().toLowerCase() + " " + formatMatch(match) + (ignoreCase ? "IgnoreCase " : " ") + getSite()
+					+ " " + getWhenProject() + " " + pattern + " " + value;
+		}
+
+		@Override
+		public String toString(){
+			return action + " " + match + (ignoreCase ? "IgnoreCase " : " ") + getSite() + " " + getWhenProject()
+					+ " " + pattern + " " + value;
+		}
+	}
+
+	private final List<Rule> rules;
+	private final String fingerprint;
+	private final Automaton rewrites;
+	private final Automaton projects;
+
+	public PageClassifier(List<Rule> rules){
+		assert rules != null : "rules must be specified";
+		List<Rule> rewriteRules = new ArrayList<Rule>();
+		List<Rule> projectRules = new ArrayList<Rule>();
+		for (Rule rule : rules){
+			if (rule.getAction() == Action.REWRITE)
+				rewriteRules.add(rule);
+			else
+				projectRules.add(rule);
+		}
+		this.rules = Collections.unmodifiableList(new ArrayList<Rule>(rules));
+		this.fingerprint = fingerprint(this.rules);
+		this.rewrites = new Automaton(rewriteRules);
+		this.projects = new Automaton(projectRules);
+	}
+
+	/**
+	 * Loads rules from a classpath resource such as {@link #DEFAULT_RULES}.
+	 */
+	public static PageClassifier fromClasspath(String resource) throws IOException {
+		InputStream in = PageClassifier.class.getClassLoader().getResourceAsStream(resource);
+		if (in == null)
+			throw new IOException("Cannot find classification rules " + resource + " on the classpath");
+		try {
+			return new PageClassifier(parse(new InputStreamReader(in, "UTF-8")));
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Parses the whitespace separated rule format used by logic/PageClassification.rules.
+	 * @throws IllegalArgumentException if a line cannot be understood.
+	 */
+	public static List<Rule> parse(Reader reader) throws IOException {
+		List<Rule> rules = new ArrayList<Rule>();
+		BufferedReader in = new BufferedReader(reader);
+		String line;
+		int lineNum = 0;
+		while ((line = in.readLine()) != null){
+			lineNum++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+			String[] columns = line.split("\\s+");
+			if (columns.length != 6)
+				throw new IllegalArgumentException("Line " + lineNum + " should have 6 columns: " + line);
+			String match = columns[1];
+			boolean ignoreCase = match.endsWith("IgnoreCase");
+			if (ignoreCase)
+				match = StringUtils.substringBeforeLast(match, "IgnoreCase");
+			rules.add(new Rule(parseAction(columns[0], lineNum), parseMatch(match, lineNum), ignoreCase,
+					columns[2], columns[3], columns[4], columns[5]));
+		}
+		return rules;
+	}
+
+	public List<Rule> getRules(){
+		return rules;
+	}
+
+	/**
+	 * @return hex encoded SHA-1 of the rules in order, which changes whenever a rule is added, removed,
+	 * edited or moved
+	 */
+	public String getFingerprint(){
+		return fingerprint;
+	}
+
+	/**
+	 * Applies the first matching rewrite rule and drops any trailing '/' other than the root's.
+	 * @return the normalized page
+	 */
+	public String normalize(String site, String page){
+		assert page != null : "page must be specified";
+		List<Rule> matched = rewrites.match(page);
+		for (Rule rule : matched){
+			if (rule.appliesTo(site, null)){
+				page = rule.getValue();
+				break;
+			}
+		}
+		// Only URL that should have a trailing '/' is the root.
+		if (page.length() > 1 && page.charAt(page.length() - 1) == '/')
+			page = StringUtils.substringBeforeLast(page, "/");
+		return page;
+	}
+
+	/**
+	 * Applies every matching project rule in rule order, each one seeing the project assigned by
+	 * the rules before it.
+	 * @return the project for the page, which is <code>project</code> if no rule applies.
+	 */
+	public String classify(String site, String project, String page){
+		assert page != null : "page must be specified";
+		for (Rule rule : projects.match(page)){
+			if (rule.appliesTo(site, project))
+				project = rule.getValue();
+		}
+		return project;
+	}
+
+	private static Action parseAction(String action, int lineNum){
+		if ("rewrite".equals(action))
+			return Action.REWRITE;
+		if ("project".equals(action))
+			return Action.PROJECT;
+		throw new IllegalArgumentException("Line " + lineNum + " has an unknown action: " + action);
+	}
+
+	private static Match parseMatch(String match, int lineNum){
+		if ("equals".equals(match))
+			return Match.EQUALS;
+		if ("startsWith".equals(match))
+			return Match.STARTS_WITH;
+		if ("contains".equals(match))
+			return Match.CONTAINS;
+		throw new IllegalArgumentException("Line " + lineNum + " has an unknown match type: " + match);
+	}
+
+	private static String formatMatch(Match match){
+		switch (match){
+		case EQUALS:
+			return "equals";
+		case STARTS_WITH:
+			return "startsWith";
+		default:
+			return "contains";
+		}
+	}
+
+	private static String fingerprint(List<Rule> rules){
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			for (Rule rule : rules)
+				digest.update((rule.toLine() + "\n").getBytes("UTF-8"));
+			byte[] hash = digest.digest();
+			char[] hex = new char[hash.length * 2];
+			for (int i = 0; i < hash.length; i++){
+				hex[i * 2] = Character.forDigit((hash[i] >> 4) & 0xf, 16);
+				hex[i * 2 + 1] = Character.forDigit(hash[i] & 0xf, 16);
+			}
+			return new String(hex);
+		} catch (NoSuchAlgorithmException nsae){
+			throw new IllegalStateException("SHA-1 is not available", nsae);
+		} catch (UnsupportedEncodingException uee){
+			throw new IllegalStateException("UTF-8 is not available", uee);
+		}
+	}
+
+	// -------------------------------------------------------------------
+
+	/**
+	 * Aho-Corasick automaton over case-folded ASCII.  Patterns are matched case-insensitively while
+	 * scanning; case sensitive rules are confirmed against the original page afterwards.
+	 */
+	private static class Automaton {
+
+		private static final int ASCII = 128;
+		private static final int[] NONE = new int[0];
+
+		private final Rule[] rules;
+		private final int[] charClass = new int[ASCII];
+		private final int alphabetSize;
+		private final int[] transitions;
+		private final int[][] outputs;
+
+		Automaton(List<Rule> ruleList){
+			rules = ruleList.toArray(new Rule[ruleList.size()]);
+
+			// Only characters used by a pattern get a column in the transition table; class 0 is "anything else".
+			Arrays.fill(charClass, 0);
+			int classes = 1;
+			for (Rule rule : rules){
+				for (char c : rule.getPattern().toCharArray()){
+					if (c >= ASCII)
+						throw new IllegalArgumentException("Rule patterns must be ASCII: " + rule);
+					int folded = Character.toLowerCase(c);
+					if (charClass[folded] == 0)
+						charClass[folded] = classes++;
+				}
+			}
+			alphabetSize = classes;
+
+			// Build the trie.
+			List<int[]> gotoTable = new ArrayList<int[]>();
+			List<List<Integer>> out = new ArrayList<List<Integer>>();
+			gotoTable.add(newRow());
+			out.add(new ArrayList<Integer>());
+			for (int r = 0; r < rules.length; r++){
+				int state = 0;
+				for (char c : rules[r].getPattern().toCharArray()){
+					int cls = classOf(c);
+					if (gotoTable.get(state)[cls] < 0){
+						gotoTable.get(state)[cls] = gotoTable.size();
+						gotoTable.add(newRow());
+						out.add(new ArrayList<Integer>());
+					}
+					state = gotoTable.get(state)[cls];
+				}
+				out.get(state).add(r);
+			}
+
+			// Breadth first over the trie to compute failure links and turn it into a full DFA.
+			int states = gotoTable.size();
+			int[] failure = new int[states];
+			transitions = new int[states * alphabetSize];
+			LinkedList<Integer> queue = new LinkedList<Integer>();
+			for (int cls = 0; cls < alphabetSize; cls++){
+				int next = gotoTable.get(0)[cls];
+				if (next > 0){
+					failure[next] = 0;
+					queue.add(next);
+					transitions[cls] = next;
+				} else {
+					transitions[cls] = 0;
+				}
+			}
+			while (!queue.isEmpty()){
+				int state = queue.removeFirst();
+				out.get(state).addAll(out.get(failure[state]));
+				for (int cls = 0; cls < alphabetSize; cls++){
+					int next = gotoTable.get(state)[cls];
+					if (next > 0){
+						failure[next] = transitions[failure[state] * alphabetSize + cls];
+						queue.add(next);
+						transitions[state * alphabetSize + cls] = next;
+					} else {
+						transitions[state * alphabetSize + cls] = transitions[failure[state] * alphabetSize + cls];
+					}
+				}
+			}
+
+			outputs = new int[states][];
+			for (int s = 0; s < states; s++){
+				List<Integer> o = out.get(s);
+				if (o.isEmpty()){
+					outputs[s] = NONE;
+				} else {
+					outputs[s] = new int[o.size()];
+					for (int i = 0; i < o.size(); i++)
+						outputs[s][i] = o.get(i);
+				}
+			}
+		}
+
+		/**
+		 * @return the rules matching the page, in rule order.
+		 */
+		List<Rule> match(String page){
+			if (rules.length == 0)
+				return Collections.emptyList();
+			boolean[] hits = null;
+			int length = page.length();
+			int state = 0;
+			for (int i = 0; i < length; i++){
+				state = transitions[state * alphabetSize + classOf(page.charAt(i))];
+				int[] matched = outputs[state];
+				for (int m = 0; m < matched.length; m++){
+					Rule rule = rules[matched[m]];
+					int start = i - rule.getPattern().length() + 1;
+					if (rule.getMatch() != Match.CONTAINS && start != 0)
+						continue;
+					if (rule.getMatch() == Match.EQUALS && i != length - 1)
+						continue;
+					if (!rule.isIgnoreCase() && !page.regionMatches(start, rule.getPattern(), 0, rule.getPattern().length()))
+						continue;
+					if (hits == null)
+						hits = new boolean[rules.length];
+					hits[matched[m]] = true;
+				}
+			}
+			if (hits == null)
+				return Collections.emptyList();
+			List<Rule> result = new ArrayList<Rule>(2);
+			for (int r = 0; r < hits.length; r++){
+				if (hits[r])
+					result.add(rules[r]);
+			}
+			return result;
+		}
+
+		private int classOf(char c){
+			return c < ASCII ? charClass[Character.toLowerCase(c)] : 0;
+		}
+
+		private int[] newRow(){
+			int[] row = new int[alphabetSize];
+			Arrays.fill(row, -1);
+			return row;
+		}
+	}
+}
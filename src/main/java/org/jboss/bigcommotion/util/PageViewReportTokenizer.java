@@ -0,0 +1,304 @@
+package org.jboss.bigcommotion.util;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Single-pass, quote-aware tokenizer for Google Analytics CSV page-view exports.
+ * <p>
+ * Each call to {@link #nextLine()} reads one record into a reusable character buffer and records
+ * the field boundaries as it goes, so a row is only ever looked at once.  Numeric fields are decoded
+ * straight from the buffer into primitives; quoted thousands-separated integers ("1,234"),
+ * percentages (45.67%) and hh:mm:ss durations do not allocate.  Only {@link #getString(int)}
+ * creates a String.
+ * <p>
+ * Instances are not thread safe and are meant to be used for a single file.
+ */
+public class PageViewReportTokenizer {
+
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+	private static final int INITIAL_LINE_SIZE = 512;
+	private static final int MAX_FIELDS = 32;
+	private static final double[] POWERS_OF_TEN = new double[19];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++)
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+	}
+
+	private final Reader reader;
+	private final char[] readBuffer = new char[READ_BUFFER_SIZE];
+	private int readPos = 0;
+	private int readLimit = 0;
+
+	private char[] line = new char[INITIAL_LINE_SIZE];
+	private int lineLength = 0;
+	private long lineNumber = 0;
+
+	private final int[] fieldStart = new int[MAX_FIELDS];
+	private final int[] fieldEnd = new int[MAX_FIELDS];
+	private int fieldCount = 0;
+
+	public PageViewReportTokenizer(Reader reader){
+		assert reader != null : "reader must be specified";
+		this.reader = reader;
+	}
+
+	/**
+	 * Reads the next record, splitting it into fields.  Commas inside double quotes do not split
+	 * a field and a quoted field may span physical lines.
+	 * @return false when the end of the input has been reached.
+	 * @throws IOException
+	 */
+	public boolean nextLine() throws IOException {
+		lineLength = 0;
+		fieldCount = 0;
+		boolean inQuotes = false;
+		boolean sawAnything = false;
+		int start = 0;
+
+		for (;;){
+			if (readPos == readLimit && !fill()){
+				if (!sawAnything)
+					return false;
+				break;
+			}
+			char c = readBuffer[readPos++];
+			sawAnything = true;
+
+			if (c == '"'){
+				if (inQuotes && peek() == '"'){
+					// Doubled quote inside a quoted field is a literal quote.
+					readPos++;
+					append('"');
+					continue;
+				}
+				inQuotes = !inQuotes;
+				continue;
+			}
+			if (!inQuotes){
+				if (c == ','){
+					endField(start);
+					start = lineLength;
+					continue;
+				}
+				if (c == '\n')
+					break;
+				if (c == '\r'){
+					if (peek() == '\n')
+						readPos++;
+					break;
+				}
+			}
+			append(c);
+		}
+		endField(start);
+		lineNumber++;
+		return true;
+	}
+
+	/**
+	 * Skips the given number of records without splitting them into fields.
+	 * @param count number of lines to skip
+	 * @return the number of lines actually skipped.
+	 * @throws IOException
+	 */
+	public int skipLines(int count) throws IOException {
+		int skipped = 0;
+		while (skipped < count){
+			boolean sawAnything = false;
+			for (;;){
+				if (readPos == readLimit && !fill()){
+					if (sawAnything){
+						skipped++;
+						lineNumber++;
+					}
+					return skipped;
+				}
+				char c = readBuffer[readPos++];
+				sawAnything = true;
+				if (c == '\n')
+					break;
+				if (c == '\r'){
+					if (peek() == '\n')
+						readPos++;
+					break;
+				}
+			}
+			skipped++;
+			lineNumber++;
+		}
+		fieldCount = 0;
+		lineLength = 0;
+		return skipped;
+	}
+
+	/**
+	 * @return number of lines consumed so far, including skipped lines.
+	 */
+	public long getLineNumber(){
+		return lineNumber;
+	}
+
+	public int getFieldCount(){
+		return fieldCount;
+	}
+
+	/**
+	 * @return true if the current record has no content, which in GA exports separates sections.
+	 */
+	public boolean isBlankLine(){
+		return lineLength == 0;
+	}
+
+	public String getString(int field){
+		checkField(field);
+		return new String(line, fieldStart[field], fieldEnd[field] - fieldStart[field]);
+	}
+
+	/**
+	 * Decodes an integer field such as <code>1234</code> or <code>"1,234"</code>.
+	 * @throws NumberFormatException if the field is empty or contains anything other than digits,
+	 * thousands separators and a leading sign.
+	 */
+	public long getLong(int field){
+		checkField(field);
+		int pos = fieldStart[field];
+		int end = fieldEnd[field];
+		boolean negative = false;
+		if (pos < end && line[pos] == '-'){
+			negative = true;
+			pos++;
+		}
+		long value = 0;
+		int digits = 0;
+		for (; pos < end; pos++){
+			char c = line[pos];
+			if (c >= '0' && c <= '9'){
+				value = value * 10 + (c - '0');
+				digits++;
+			} else if (c != ','){
+				throw numberFormat(field);
+			}
+		}
+		if (digits == 0)
+			throw numberFormat(field);
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Decodes a percentage such as <code>45.67%</code> into 45.67.
+	 * @throws NumberFormatException if the field is not a decimal number.
+	 */
+	public float getPercentage(int field){
+		checkField(field);
+		int pos = fieldStart[field];
+		int end = fieldEnd[field];
+		if (end > pos && line[end - 1] == '%')
+			end--;
+		boolean negative = false;
+		if (pos < end && line[pos] == '-'){
+			negative = true;
+			pos++;
+		}
+		long mantissa = 0;
+		int scale = -1;
+		int digits = 0;
+		for (; pos < end; pos++){
+			char c = line[pos];
+			if (c >= '0' && c <= '9'){
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+				if (scale >= 0)
+					scale++;
+			} else if (c == '.' && scale < 0){
+				scale = 0;
+			} else if (c != ','){
+				throw numberFormat(field);
+			}
+		}
+		if (digits == 0 || digits > 18)
+			throw numberFormat(field);
+		double value = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+		return (float)(negative ? -value : value);
+	}
+
+	/**
+	 * Decodes a duration such as <code>00:01:23</code> (or <code>01:23</code>) into seconds.
+	 * @throws NumberFormatException if the field is not a colon separated duration.
+	 */
+	public int getDuration(int field){
+		checkField(field);
+		int seconds = 0;
+		int part = 0;
+		int digits = 0;
+		for (int pos = fieldStart[field]; pos < fieldEnd[field]; pos++){
+			char c = line[pos];
+			if (c >= '0' && c <= '9'){
+				part = part * 10 + (c - '0');
+				digits++;
+			} else if (c == ':' && digits > 0){
+				seconds = (seconds + part) * 60;
+				part = 0;
+				digits = 0;
+			} else {
+				throw numberFormat(field);
+			}
+		}
+		if (digits == 0)
+			throw numberFormat(field);
+		return seconds + part;
+	}
+
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	// -------------------------------------------------------------------
+
+	private boolean fill() throws IOException {
+		int read = reader.read(readBuffer, 0, readBuffer.length);
+		if (read <= 0){
+			readPos = readLimit = 0;
+			return false;
+		}
+		readPos = 0;
+		readLimit = read;
+		return true;
+	}
+
+	private int peek() throws IOException {
+		if (readPos == readLimit && !fill())
+			return -1;
+		return readBuffer[readPos];
+	}
+
+	private void append(char c){
+		if (lineLength == line.length){
+			char[] grown = new char[line.length * 2];
+			System.arraycopy(line, 0, grown, 0, lineLength);
+			line = grown;
+		}
+		line[lineLength++] = c;
+	}
+
+	private void endField(int start){
+		if (fieldCount == MAX_FIELDS)
+			return;
+		// Enclosing quotes are never copied into the line buffer, so the field is simply [start, lineLength).
+		fieldStart[fieldCount] = start;
+		fieldEnd[fieldCount] = lineLength;
+		fieldCount++;
+	}
+
+	private void checkField(int field){
+		if (field < 0 || field >= fieldCount)
+			throw new IndexOutOfBoundsException("Field " + field + " does not exist on line " + lineNumber
+					+ " which has " + fieldCount + " fields.");
+	}
+
+	private NumberFormatException numberFormat(int field){
+		return new NumberFormatException("Cannot decode field " + field + " on line " + lineNumber
+				+ ": " + new String(line, fieldStart[field], fieldEnd[field] - fieldStart[field]));
+	}
+}
@@ -0,0 +1,197 @@
+package org.jboss.bigcommotion.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.drools.core.util.DroolsStreamUtils;
+import org.kie.api.KieBase;
+import org.kie.api.KieServices;
+
+/**
+ * The "logic" KieBase of PageCleanup.drl and MetricAnalysis.xls (see META-INF/kmodule.xml),
+ * compiled once per class loader.
+ * <p>
+ * The build compiles the rules with {@link #main} and serializes the KieBase to
+ * {@value #SERIALIZED_RESOURCE}, so at runtime it is only deserialized: no DRL parsing, decision
+ * table conversion or Java compilation.  The file records the fingerprint of the rule resources it
+ * was compiled from; if it is missing or the resources have changed since, as when rules are
+ * edited in an IDE without a Maven build, the rules are compiled from the classpath instead.
+ */
+public final class PrecompiledRules {
+
+	public static final String KBASE_NAME = "logic";
+	/** Rule resources of the "logic" KieBase. */
+	public static final String[] RULE_RESOURCES = { "logic/PageCleanup.drl", "logic/MetricAnalysis.xls" };
+	public static final String SERIALIZED_RESOURCE = "logic/logic.kbase";
+
+	private static final Logger logger = Logger.getLogger(PrecompiledRules.class.getName());
+
+	private PrecompiledRules(){
+	}
+
+	/**
+	 * @return the KieBase shared by every session of this class loader, loaded on first use
+	 */
+	public static KieBase get(){
+		return Holder.KIE_BASE;
+	}
+
+	/**
+	 * @return true if {@link #get} was deserialized from the precompiled KieBase
+	 */
+	public static boolean isPrecompiled(){
+		return Holder.precompiled;
+	}
+
+	/**
+	 * @return hex encoded SHA-1 of the rule resources, which changes with any edit to them
+	 */
+	public static String getFingerprint(){
+		return Holder.FINGERPRINT;
+	}
+
+	/**
+	 * Compiles the rules from their sources on the classpath, in a container of its own.
+	 */
+	public static KieBase compile(){
+		// Drools 6.0 finds kmodule.xml through the context class loader, which on a timer thread or in
+		// the build is not necessarily the one that loaded the rules
+		Thread thread = Thread.currentThread();
+		ClassLoader previous = thread.getContextClassLoader();
+		thread.setContextClassLoader(PrecompiledRules.class.getClassLoader());
+		try {
+			return KieServices.Factory.get().newKieClasspathContainer().getKieBase(KBASE_NAME);
+		} finally {
+			thread.setContextClassLoader(previous);
+		}
+	}
+
+	/**
+	 * Reads a precompiled KieBase.
+	 * @param fingerprint fingerprint of the rule resources in use
+	 * @return the KieBase, or null if it was compiled from other rules
+	 */
+	public static KieBase load(InputStream in, String fingerprint) throws IOException {
+		assert in != null : "in must be specified";
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+		if (!data.readUTF().equals(fingerprint))
+			return null;
+		try {
+			return (KieBase) DroolsStreamUtils.streamIn(data, PrecompiledRules.class.getClassLoader(), true);
+		} catch (ClassNotFoundException cnfe){
+			throw new IOException("Cannot read the precompiled rules", cnfe);
+		}
+	}
+
+	/**
+	 * Writes a KieBase and the fingerprint of the rules it was compiled from.
+	 */
+	public static void write(KieBase kieBase, String fingerprint, File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeUTF(fingerprint);
+			DroolsStreamUtils.streamOut(out, kieBase, true);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Compiles the rules and writes the KieBase under the classes directory given, for the build.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1){
+			System.err.println("Usage: PrecompiledRules <classes directory>");
+			System.exit(1);
+		}
+		long start = System.currentTimeMillis();
+		File file = new File(args[0], SERIALIZED_RESOURCE);
+		write(compile(), fingerprint(RULE_RESOURCES), file);
+		logger.info("Precompiled the " + KBASE_NAME + " rules to " + file + " (" + file.length() / 1024 + " KB) in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	// -------------------------------------------------------------------
+
+	static String fingerprint(String[] resources) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException nsae){
+			throw new IllegalStateException("SHA-1 is not available", nsae);
+		}
+		byte[] buffer = new byte[8192];
+		for (String resource : resources){
+			InputStream in = PrecompiledRules.class.getClassLoader().getResourceAsStream(resource);
+			if (in == null)
+				throw new IOException("Cannot find " + resource + " on the classpath");
+			try {
+				int read;
+				while ((read = in.read(buffer)) != -1)
+					digest.update(buffer, 0, read);
+			} finally {
+				in.close();
+			}
+		}
+		byte[] hash = digest.digest();
+		char[] hex = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++){
+			hex[i * 2] = Character.forDigit((hash[i] >> 4) & 0xf, 16);
+			hex[i * 2 + 1] = Character.forDigit(hash[i] & 0xf, 16);
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * Loads the KieBase the first time it is asked for, once.
+	 */
+	private static final class Holder {
+
+		static final String FINGERPRINT;
+		static final KieBase KIE_BASE;
+		static boolean precompiled;
+
+		static {
+			long start = System.currentTimeMillis();
+			try {
+				FINGERPRINT = fingerprint(RULE_RESOURCES);
+			} catch (IOException ioe){
+				throw new IllegalStateException("Cannot read the page rules", ioe);
+			}
+			KieBase kieBase = null;
+			InputStream in = PrecompiledRules.class.getClassLoader().getResourceAsStream(SERIALIZED_RESOURCE);
+			if (in != null){
+				try {
+					kieBase = load(in, FINGERPRINT);
+					if (kieBase == null)
+						logger.warning(SERIALIZED_RESOURCE + " was compiled from other rules, compiling them again");
+				} catch (IOException ioe){
+					logger.log(Level.WARNING, "Cannot read " + SERIALIZED_RESOURCE + ", compiling the rules again", ioe);
+				} catch (RuntimeException re){
+					// Drools reports a KieBase serialized by another version this way
+					logger.log(Level.WARNING, "Cannot read " + SERIALIZED_RESOURCE + ", compiling the rules again", re);
+				} finally {
+					try {
+						in.close();
+					} catch (IOException ioe){
+						logger.log(Level.FINE, "Cannot close " + SERIALIZED_RESOURCE, ioe);
+					}
+				}
+			}
+			precompiled = kieBase != null;
+			KIE_BASE = precompiled ? kieBase : compile();
+			logger.info((precompiled ? "Loaded the precompiled " : "Compiled the ") + KBASE_NAME + " rules in "
+					+ (System.currentTimeMillis() - start) + " ms, fingerprint " + FINGERPRINT);
+		}
+	}
+}
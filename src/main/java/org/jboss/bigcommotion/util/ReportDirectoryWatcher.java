@@ -0,0 +1,235 @@
+package org.jboss.bigcommotion.util;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds new report files under the data root (<code>root/site/report.csv</code>) without walking
+ * the whole tree.  A WatchService reports files as they are created in the root's site
+ * directories; {@link #reconcile} is the safety net for missed or overflowed events, and only
+ * lists the site directories whose modification time has changed since it last looked.
+ * <p>
+ * Files are reported by {@link #poll} once their size and modification time have not changed
+ * for the quiet period, so a report still being copied in is not imported half written.
+ * <p>
+ * Not thread safe; the caller serializes access.
+ */
+public class ReportDirectoryWatcher {
+
+	private static final Logger logger = Logger.getLogger(ReportDirectoryWatcher.class.getName());
+
+	private final File root;
+	private final FileFilter filter;
+	private final long quietMillis;
+
+	private WatchService watchService;
+	private final Map<WatchKey, File> watchedDirs = new HashMap<WatchKey, File>();
+	// Site directory -> modification time when it was last listed
+	private final Map<File, Long> listedDirs = new HashMap<File, Long>();
+	private final Map<File, Candidate> candidates = new LinkedHashMap<File, Candidate>();
+
+	/**
+	 * @param filter accepts site directories and report files worth importing
+	 * @param quietMillis how long a file must stay unchanged before it is reported
+	 */
+	public ReportDirectoryWatcher(File root, FileFilter filter, long quietMillis){
+		assert root != null : "root must be specified";
+		assert filter != null : "filter must be specified";
+		this.root = root;
+		this.filter = filter;
+		this.quietMillis = quietMillis;
+	}
+
+	/**
+	 * Starts watching the root and its site directories.  Without a watch service (for example
+	 * on file systems that do not support one) new files are still found by {@link #reconcile}.
+	 */
+	public void start(){
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+			watch(root);
+			File[] dirs = root.listFiles();
+			if (dirs != null){
+				for (File dir : dirs){
+					if (dir.isDirectory() && filter.accept(dir))
+						watch(dir);
+				}
+			}
+		} catch (IOException ioe){
+			logger.log(Level.SEVERE, "Cannot watch " + root + ", relying on the reconcile scan", ioe);
+			close();
+		}
+	}
+
+	/**
+	 * Lists the site directories that changed since the last reconcile, and any new ones, and
+	 * queues their unseen files.  The first call lists every site directory.
+	 * @return number of directories listed
+	 */
+	public int reconcile(){
+		File[] dirs = root.listFiles();
+		if (dirs == null){
+			logger.warning("Cannot list " + root);
+			return 0;
+		}
+		int listed = 0;
+		for (File dir : dirs){
+			if (!dir.isDirectory() || !filter.accept(dir))
+				continue;
+			Long listedAt = listedDirs.get(dir);
+			if (listedAt != null && listedAt.longValue() == dir.lastModified())
+				continue;
+			if (watchService != null && !watchedDirs.containsValue(dir))
+				watch(dir);
+			list(dir);
+			listed++;
+		}
+		return listed;
+	}
+
+	/**
+	 * Drains pending watch events without blocking.  A file is first timed by the poll after it
+	 * is seen, so it is reported by a later poll at least the quiet period afterwards.
+	 * @return files that have been quiet for the quiet period, in the order they were first seen
+	 */
+	public List<File> poll(long now){
+		drainEvents();
+		List<File> ready = new ArrayList<File>();
+		for (Iterator<Map.Entry<File, Candidate>> i = candidates.entrySet().iterator(); i.hasNext();){
+			Map.Entry<File, Candidate> entry = i.next();
+			File file = entry.getKey();
+			Candidate candidate = entry.getValue();
+			if (!file.isFile()){
+				i.remove();
+				continue;
+			}
+			long length = file.length();
+			long modified = file.lastModified();
+			if (candidate.stableSince < 0 || length != candidate.length || modified != candidate.modified){
+				candidate.length = length;
+				candidate.modified = modified;
+				candidate.stableSince = now;
+			} else if (now - candidate.stableSince >= quietMillis){
+				ready.add(file);
+				i.remove();
+			}
+		}
+		return ready;
+	}
+
+	/**
+	 * Offers files again, for example after they could not be sent.
+	 */
+	public void retry(Collection<File> files){
+		for (File file : files)
+			offer(file);
+	}
+
+	/**
+	 * @return files seen but not yet quiet
+	 */
+	public int getPendingCount(){
+		return candidates.size();
+	}
+
+	public boolean isWatching(){
+		return watchService != null;
+	}
+
+	public void close(){
+		if (watchService != null){
+			try {
+				watchService.close();
+			} catch (IOException ioe){
+				logger.log(Level.FINE, "Could not close the watch service", ioe);
+			}
+			watchService = null;
+		}
+		watchedDirs.clear();
+	}
+
+	// -------------------------------------------------------------------
+
+	private void drainEvents(){
+		if (watchService == null)
+			return;
+		try {
+			WatchKey key;
+			while ((key = watchService.poll()) != null){
+				File dir = watchedDirs.get(key);
+				for (WatchEvent<?> event : key.pollEvents()){
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW){
+						// Events were lost; list every directory at the next reconcile
+						logger.warning("Watch events overflowed for " + dir);
+						listedDirs.clear();
+						continue;
+					}
+					if (dir == null)
+						continue;
+					File file = new File(dir, ((Path) event.context()).toString());
+					if (dir.equals(root)){
+						if (file.isDirectory() && filter.accept(file)){
+							watch(file);
+							// Reports copied in with the directory may predate the registration
+							list(file);
+						}
+					} else {
+						offer(file);
+					}
+				}
+				if (!key.reset())
+					watchedDirs.remove(key);
+			}
+		} catch (ClosedWatchServiceException cwse){
+			watchService = null;
+		}
+	}
+
+	private void watch(File dir){
+		try {
+			WatchKey key = dir.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			watchedDirs.put(key, dir);
+		} catch (IOException ioe){
+			logger.log(Level.WARNING, "Cannot watch " + dir + ", relying on the reconcile scan", ioe);
+		}
+	}
+
+	private void list(File dir){
+		listedDirs.put(dir, dir.lastModified());
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File file : files)
+			offer(file);
+	}
+
+	private void offer(File file){
+		if (candidates.containsKey(file) || !file.isFile() || !filter.accept(file))
+			return;
+		candidates.put(file, new Candidate());
+	}
+
+	private static class Candidate {
+		long length;
+		long modified;
+		// Set by the first poll that sees the file
+		long stableSince = -1;
+	}
+}
@@ -0,0 +1,201 @@
+package org.jboss.bigcommotion.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Opens report files whether they are plain, gzip (<code>.gz</code>) or zip (<code>.zip</code>)
+ * compressed, decoding compressed reports as they are read rather than to disk first.  A zip
+ * archive is expected to hold a single report; its first file entry is read.
+ * <p>
+ * Files are read through their channel with a large buffer, and the decompressors read through
+ * the same buffer, so a report is read from disk in a few large reads either way.
+ */
+public class ReportFiles {
+
+	public static final String GZIP_SUFFIX = ".gz";
+	public static final String ZIP_SUFFIX = ".zip";
+	static final int READ_BUFFER_SIZE = 64 * 1024;
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String DATE_FORMAT = "yyyyMMdd";
+
+	private ReportFiles(){
+	}
+
+	/**
+	 * @return true for a gzip or zip compressed report, which can only be read from the start
+	 */
+	public static boolean isCompressed(File file){
+		assert file != null : "file must be specified";
+		String name = file.getName().toLowerCase();
+		return name.endsWith(GZIP_SUFFIX) || name.endsWith(ZIP_SUFFIX);
+	}
+
+	/**
+	 * @return the report's name without its compression suffix, such as "Analytics Pages 20131101-20131130.csv"
+	 */
+	public static String reportName(File file){
+		assert file != null : "file must be specified";
+		String name = file.getName();
+		String lower = name.toLowerCase();
+		if (lower.endsWith(GZIP_SUFFIX))
+			return name.substring(0, name.length() - GZIP_SUFFIX.length());
+		if (lower.endsWith(ZIP_SUFFIX))
+			return name.substring(0, name.length() - ZIP_SUFFIX.length());
+		return name;
+	}
+
+	/**
+	 * Scrapes the file name for the start date of the report.  By default, the Google Analytics naming
+	 * convention is similar to "Analytics [site-name] Pages YYYYMMDD-YYYYMMDD" where the first date is the
+	 * start of the report and the second date is the end of the report.
+	 * @return the start date, or null if the name does not follow the convention
+	 */
+	public static Date startDateOf(String fileName){
+		assert fileName != null && !fileName.isEmpty() : "fileName must be specified";
+		String dateRange = StringUtils.substringAfterLast(fileName, " ");
+		String startDate = StringUtils.substringBefore(dateRange, "-");
+		try {
+			return new SimpleDateFormat(DATE_FORMAT).parse(startDate);
+		} catch (ParseException pe){
+			return null;
+		}
+	}
+
+	/**
+	 * Files in the data directories that are never reports.  Copies such as "report (1).csv" are not
+	 * excluded here; the ingest ledger recognizes them by their contents.
+	 */
+	public static boolean isIgnored(String fileName){
+		assert fileName != null : "fileName must be specified";
+		return StringUtils.endsWith(fileName, ".DS_Store")
+				|| StringUtils.endsWith(fileName, ".swp")
+				// A report being compressed after import
+				|| StringUtils.endsWith(fileName, TEMP_SUFFIX)
+				|| StringUtils.endsWith(fileName, "processed")
+				|| StringUtils.endsWith(fileName, "archive")
+				|| StringUtils.endsWith(fileName, "archived");
+	}
+
+	/**
+	 * Lists the reports in the site directories under <code>dataPath</code> that start on or after
+	 * <code>from</code> and before <code>to</code>, ordered by site directory and then by name.
+	 * @param site name of the only site directory to list, or null for all of them
+	 */
+	public static List<File> findReports(File dataPath, String site, Date from, Date to){
+		assert dataPath != null : "dataPath must be specified";
+		assert from != null && to != null : "from and to must be specified";
+		List<File> reports = new ArrayList<File>();
+		File[] dirs = dataPath.listFiles();
+		if (dirs == null)
+			return reports;
+		Arrays.sort(dirs);
+		for (File dir : dirs){
+			if (!dir.isDirectory() || isIgnored(dir.getName()) || (site != null && !site.equals(dir.getName())))
+				continue;
+			File[] files = dir.listFiles();
+			if (files == null)
+				continue;
+			Arrays.sort(files);
+			for (File file : files){
+				if (!file.isFile() || isIgnored(file.getName()))
+					continue;
+				Date startDate = startDateOf(file.getName());
+				if (startDate != null && !startDate.before(from) && startDate.before(to))
+					reports.add(file);
+			}
+		}
+		return reports;
+	}
+
+	/**
+	 * Opens the report's contents, decompressing as it is read.
+	 * @throws IOException if the file cannot be opened, or is a zip archive without any file in it
+	 */
+	public static InputStream open(File file) throws IOException {
+		assert file != null : "file must be specified";
+		InputStream in = new BufferedInputStream(Channels.newInputStream(new FileInputStream(file).getChannel()), READ_BUFFER_SIZE);
+		try {
+			String name = file.getName().toLowerCase();
+			if (name.endsWith(GZIP_SUFFIX))
+				return new GZIPInputStream(in, READ_BUFFER_SIZE);
+			if (name.endsWith(ZIP_SUFFIX)){
+				ZipInputStream zip = new ZipInputStream(in);
+				for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()){
+					if (!entry.isDirectory())
+						return zip;
+				}
+				throw new IOException(file + " does not contain a report");
+			}
+			return in;
+		} catch (IOException ioe){
+			in.close();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Opens the report's contents as characters, in the platform's default charset as FileReader does.
+	 */
+	public static Reader openReader(File file) throws IOException {
+		return new InputStreamReader(open(file));
+	}
+
+	/**
+	 * Replaces a plain report with a gzip compressed copy named <code>report.gz</code>, keeping its
+	 * modification time.  The copy is written beside the report and renamed into place, so a
+	 * report is never left half compressed.
+	 * @return the compressed report
+	 * @throws IOException if the copy cannot be written; the report is left as it was
+	 */
+	public static File compress(File file) throws IOException {
+		assert file != null && !isCompressed(file) : "file must be an uncompressed report";
+		File compressed = new File(file.getParentFile(), file.getName() + GZIP_SUFFIX);
+		File temp = new File(file.getParentFile(), compressed.getName() + TEMP_SUFFIX);
+		InputStream in = open(file);
+		try {
+			OutputStream out = new GZIPOutputStream(new FileOutputStream(temp), READ_BUFFER_SIZE);
+			try {
+				byte[] buffer = new byte[READ_BUFFER_SIZE];
+				int read;
+				while ((read = in.read(buffer)) != -1)
+					out.write(buffer, 0, read);
+			} finally {
+				out.close();
+			}
+		} catch (IOException ioe){
+			temp.delete();
+			throw ioe;
+		} finally {
+			in.close();
+		}
+		temp.setLastModified(file.lastModified());
+		if (!temp.renameTo(compressed)){
+			temp.delete();
+			throw new IOException("Could not rename " + temp + " to " + compressed);
+		}
+		if (!file.delete())
+			throw new IOException("Compressed " + file + " to " + compressed + " but could not remove it");
+		return compressed;
+	}
+}
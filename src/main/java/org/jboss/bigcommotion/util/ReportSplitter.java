@@ -0,0 +1,142 @@
+package org.jboss.bigcommotion.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a page-view report into byte ranges of whole lines so the ranges can be tokenized
+ * independently.  Line boundaries are found the same way {@link PageViewReportTokenizer} finds
+ * them: header lines are skipped without regard to quotes, and after the header a line break
+ * inside double quotes does not end the record.
+ * <p>
+ * Only bytes are examined, so the report must be in an ASCII compatible encoding, which the
+ * GA exports are.
+ */
+public class ReportSplitter {
+
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * A range of whole lines within a file.
+	 */
+	public static class Range {
+		private final long start;
+		private final long end;
+		private final int firstLine;
+		private final int lineCount;
+
+		Range(long start, long end, int firstLine, int lineCount){
+			this.start = start;
+			this.end = end;
+			this.firstLine = firstLine;
+			this.lineCount = lineCount;
+		}
+
+		/**
+		 * @return offset of the first byte of the range
+		 */
+		public long getStart(){
+			return start;
+		}
+
+		/**
+		 * @return offset just past the line terminator of the last line in the range
+		 */
+		public long getEnd(){
+			return end;
+		}
+
+		/**
+		 * @return one based number of the first line in the range
+		 */
+		public int getFirstLine(){
+			return firstLine;
+		}
+
+		public int getLineCount(){
+			return lineCount;
+		}
+
+		@Override
+		public String toString(){
+			return "lines " + firstLine + "-" + (firstLine + lineCount - 1) + " at bytes " + start + "-" + end;
+		}
+	}
+
+	private ReportSplitter(){
+	}
+
+	/**
+	 * @param file report to be split
+	 * @param headerLines number of lines before the first record, which are not part of any range
+	 * @param lastLine number of the last line to include
+	 * @param linesPerChunk maximum number of lines in each range
+	 * @return ranges in file order, covering lines <code>headerLines + 1</code> through <code>lastLine</code> or the end of the file
+	 * @throws IOException
+	 */
+	public static List<Range> split(File file, int headerLines, int lastLine, int linesPerChunk) throws IOException {
+		assert file != null : "file must be specified";
+		assert linesPerChunk > 0 : "linesPerChunk must be positive";
+
+		List<Range> ranges = new ArrayList<Range>();
+		PushbackInputStream in = new PushbackInputStream(new BufferedInputStream(new FileInputStream(file), READ_BUFFER_SIZE));
+		try {
+			long pos = 0;
+			long lineStart = 0;
+			int line = 0;
+			boolean inQuotes = false;
+			long chunkStart = 0;
+			int chunkFirstLine = 0;
+			int chunkLines = 0;
+
+			while (line < lastLine){
+				int b = in.read();
+				if (b == -1){
+					// A last line without a terminator still counts.
+					if (pos == lineStart)
+						break;
+				} else {
+					pos++;
+					if (b == '"' && line >= headerLines){
+						inQuotes = !inQuotes;
+						continue;
+					}
+					if (inQuotes || (b != '\n' && b != '\r'))
+						continue;
+					if (b == '\r'){
+						int next = in.read();
+						if (next == '\n')
+							pos++;
+						else if (next != -1)
+							in.unread(next);
+					}
+				}
+
+				line++;
+				if (line > headerLines){
+					if (chunkLines == 0){
+						chunkStart = lineStart;
+						chunkFirstLine = line;
+					}
+					if (++chunkLines == linesPerChunk){
+						ranges.add(new Range(chunkStart, pos, chunkFirstLine, chunkLines));
+						chunkLines = 0;
+					}
+				}
+				lineStart = pos;
+				if (b == -1)
+					break;
+			}
+			if (chunkLines > 0)
+				ranges.add(new Range(chunkStart, lineStart, chunkFirstLine, chunkLines));
+		} finally {
+			in.close();
+		}
+		return ranges;
+	}
+}
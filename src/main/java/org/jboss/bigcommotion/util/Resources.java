@@ -14,6 +14,7 @@ public class Resources {
 
 	public static final String PERSISTENCE_CONTEXT_NAME = "metrics-big-commotion";
 	public static final String PAGEVIEW_QUEUE = "queue/PageviewQueue";
+	public static final String DATASOURCE = "java:jboss/datasources/MysqlDS";
 	
 	@Produces
 	public Logger produceLogger(InjectionPoint ip){
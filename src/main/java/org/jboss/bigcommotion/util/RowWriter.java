@@ -0,0 +1,194 @@
+package org.jboss.bigcommotion.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Writes rows of a fixed set of columns as they are produced, as JSON or CSV, so results can be
+ * streamed to a client without holding them in memory.
+ * <p>
+ * JSON output is <code>{"rows":[{...},...],"next":"cursor"}</code>, where <code>next</code> is
+ * only present when there are more rows to fetch.  CSV output is a header line followed by one
+ * line per row; it has nowhere to put the cursor, which callers send another way, such as a
+ * response header.
+ */
+public abstract class RowWriter {
+
+	public static final String JSON = "json";
+	public static final String CSV = "csv";
+
+	protected final Writer out;
+	protected final String[] columns;
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+	private int rows = 0;
+
+	protected RowWriter(Writer out, String[] columns){
+		assert out != null : "out must be specified";
+		assert columns != null && columns.length > 0 : "columns must be specified";
+		this.out = out;
+		this.columns = columns;
+	}
+
+	/**
+	 * @param format {@link #JSON} or {@link #CSV}
+	 * @throws IllegalArgumentException for any other format
+	 */
+	public static RowWriter forFormat(String format, Writer out, String... columns){
+		if (format == null || JSON.equalsIgnoreCase(format))
+			return new Json(out, columns);
+		if (CSV.equalsIgnoreCase(format))
+			return new Csv(out, columns);
+		throw new IllegalArgumentException("Unknown format " + format + ", expected " + JSON + " or " + CSV);
+	}
+
+	public static String contentType(String format){
+		return CSV.equalsIgnoreCase(format) ? "text/csv" : "application/json";
+	}
+
+	public abstract void begin() throws IOException;
+
+	/**
+	 * @param values one value per column; Strings, Numbers, Dates or null
+	 */
+	public void row(Object... values) throws IOException {
+		assert values.length == columns.length : "expected " + columns.length + " values";
+		writeRow(rows++, values);
+	}
+
+	/**
+	 * @param next cursor for the following page, or null if this was the last page
+	 */
+	public abstract void end(String next) throws IOException;
+
+	public int getRowCount(){
+		return rows;
+	}
+
+	protected abstract void writeRow(int index, Object[] values) throws IOException;
+
+	protected String format(Date date){
+		return dateFormat.format(date);
+	}
+
+	private static class Json extends RowWriter {
+
+		Json(Writer out, String[] columns){
+			super(out, columns);
+		}
+
+		@Override
+		public void begin() throws IOException {
+			out.write("{\"rows\":[");
+		}
+
+		@Override
+		protected void writeRow(int index, Object[] values) throws IOException {
+			if (index > 0)
+				out.write(',');
+			out.write('{');
+			for (int i = 0; i < columns.length; i++){
+				if (i > 0)
+					out.write(',');
+				string(columns[i]);
+				out.write(':');
+				value(values[i]);
+			}
+			out.write('}');
+		}
+
+		@Override
+		public void end(String next) throws IOException {
+			out.write(']');
+			if (next != null){
+				out.write(",\"next\":");
+				string(next);
+			}
+			out.write("}\n");
+			out.flush();
+		}
+
+		private void value(Object value) throws IOException {
+			if (value == null)
+				out.write("null");
+			else if (value instanceof Number){
+				double d = ((Number) value).doubleValue();
+				out.write(Double.isNaN(d) || Double.isInfinite(d) ? "null" : value.toString());
+			} else if (value instanceof Boolean)
+				out.write(value.toString());
+			else if (value instanceof Date)
+				string(format((Date) value));
+			else
+				string(value.toString());
+		}
+
+		private void string(String value) throws IOException {
+			out.write('"');
+			for (int i = 0; i < value.length(); i++){
+				char c = value.charAt(i);
+				switch (c){
+				case '"': out.write("\\\""); break;
+				case '\\': out.write("\\\\"); break;
+				case '\n': out.write("\\n"); break;
+				case '\r': out.write("\\r"); break;
+				case '\t': out.write("\\t"); break;
+				default:
+					if (c < 0x20){
+						out.write(String.format("\\u%04x", (int) c));
+					} else {
+						out.write(c);
+					}
+				}
+			}
+			out.write('"');
+		}
+	}
+
+	private static class Csv extends RowWriter {
+
+		Csv(Writer out, String[] columns){
+			super(out, columns);
+		}
+
+		@Override
+		public void begin() throws IOException {
+			for (int i = 0; i < columns.length; i++){
+				if (i > 0)
+					out.write(',');
+				field(columns[i]);
+			}
+			out.write("\r\n");
+		}
+
+		@Override
+		protected void writeRow(int index, Object[] values) throws IOException {
+			for (int i = 0; i < values.length; i++){
+				if (i > 0)
+					out.write(',');
+				Object value = values[i];
+				if (value instanceof Date)
+					out.write(format((Date) value));
+				else if (value != null)
+					field(value.toString());
+			}
+			out.write("\r\n");
+		}
+
+		@Override
+		public void end(String next) throws IOException {
+			out.flush();
+		}
+
+		private void field(String value) throws IOException {
+			boolean quote = value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0;
+			if (!quote){
+				out.write(value);
+				return;
+			}
+			out.write('"');
+			out.write(value.replace("\"", "\"\""));
+			out.write('"');
+		}
+	}
+}
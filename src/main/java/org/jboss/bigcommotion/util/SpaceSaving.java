@@ -0,0 +1,218 @@
+package org.jboss.bigcommotion.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The heaviest ints, such as page dictionary ids weighted by pageviews, counted in a fixed number
+ * of counters with the Space-Saving algorithm.  While fewer than <code>capacity</code> keys have
+ * been seen every count is exact.  After that a new key takes over the smallest counter, and its
+ * count starts from there, so every count is an upper bound: the true weight of a key is between
+ * {@link Entry#getLowerBound} and {@link Entry#getCount}, and that of a key not kept is at most
+ * {@link #getFloor}.  For a single summary the floor is at most total weight / capacity.
+ * <p>
+ * Summaries merge keeping the same guarantees, so the top pages of a project's month can be kept
+ * on their own and combined over any range of months, sites and projects.
+ */
+public final class SpaceSaving {
+
+	public static final int DEFAULT_CAPACITY = 512;
+	private static final byte FORMAT = 1;
+
+	private static final Comparator<Entry> BY_COUNT = new Comparator<Entry>(){
+		@Override
+		public int compare(Entry left, Entry right){
+			if (left.count != right.count)
+				return left.count > right.count ? -1 : 1;
+			return left.key < right.key ? -1 : (left.key == right.key ? 0 : 1);
+		}
+	};
+	private static final Comparator<Entry> BY_COUNT_ASCENDING = Collections.reverseOrder(BY_COUNT);
+
+	private final int capacity;
+	private final Map<Integer, Entry> entries;
+	// Upper bound of the weight of any key not in entries
+	private long floor;
+	private long total;
+
+	public SpaceSaving(){
+		this(DEFAULT_CAPACITY);
+	}
+
+	public SpaceSaving(int capacity){
+		assert capacity > 0 : "capacity must be positive";
+		this.capacity = capacity;
+		this.entries = new HashMap<Integer, Entry>(capacity * 2);
+	}
+
+	/**
+	 * Reads a summary written by {@link #toBytes}.
+	 * @throws IllegalArgumentException if the bytes are not a summary
+	 */
+	public static SpaceSaving fromBytes(byte[] bytes){
+		assert bytes != null : "bytes must be specified";
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		try {
+			byte format = buffer.get();
+			if (format != FORMAT)
+				throw new IllegalArgumentException("Unknown heavy hitter summary format " + format);
+			SpaceSaving summary = new SpaceSaving(buffer.getInt());
+			summary.floor = buffer.getLong();
+			summary.total = buffer.getLong();
+			int size = buffer.getInt();
+			for (int i = 0; i < size; i++){
+				Entry entry = new Entry(buffer.getInt(), buffer.getLong(), buffer.getLong());
+				summary.entries.put(entry.key, entry);
+			}
+			return summary;
+		} catch (RuntimeException re){
+			if (re instanceof IllegalArgumentException)
+				throw re;
+			throw new IllegalArgumentException("Corrupt heavy hitter summary", re);
+		}
+	}
+
+	/**
+	 * Adds weight to a key.
+	 */
+	public void offer(int key, long weight){
+		assert weight >= 0 : "weight must not be negative";
+		total += weight;
+		Entry entry = entries.get(key);
+		if (entry != null){
+			entry.count += weight;
+			return;
+		}
+		if (entries.size() >= capacity){
+			// A scan of the counters; summaries are small and a report offers a few thousand pages
+			Entry smallest = Collections.min(entries.values(), BY_COUNT_ASCENDING);
+			entries.remove(smallest.key);
+			floor = Math.max(floor, smallest.count);
+		}
+		entries.put(key, new Entry(key, floor + weight, floor));
+	}
+
+	/**
+	 * Adds another summary's weights to this one.  Keys kept by only one of them are counted at
+	 * the other's floor, then the heaviest <code>capacity</code> are kept.
+	 */
+	public void merge(SpaceSaving other){
+		assert other != null : "other must be specified";
+		Map<Integer, Entry> merged = new HashMap<Integer, Entry>(entries.size() + other.entries.size());
+		for (Entry entry : entries.values()){
+			Entry theirs = other.entries.get(entry.key);
+			merged.put(entry.key, theirs == null
+					? new Entry(entry.key, entry.count + other.floor, entry.error + other.floor)
+					: new Entry(entry.key, entry.count + theirs.count, entry.error + theirs.error));
+		}
+		for (Entry theirs : other.entries.values()){
+			if (!entries.containsKey(theirs.key))
+				merged.put(theirs.key, new Entry(theirs.key, theirs.count + floor, theirs.error + floor));
+		}
+		long mergedFloor = floor + other.floor;
+		List<Entry> sorted = new ArrayList<Entry>(merged.values());
+		Collections.sort(sorted, BY_COUNT);
+		entries.clear();
+		for (int i = 0; i < sorted.size(); i++){
+			Entry entry = sorted.get(i);
+			if (i < capacity)
+				entries.put(entry.key, entry);
+			else
+				mergedFloor = Math.max(mergedFloor, entry.count);
+		}
+		floor = mergedFloor;
+		total += other.total;
+	}
+
+	/**
+	 * @return up to <code>limit</code> keys by descending count
+	 */
+	public List<Entry> top(int limit){
+		List<Entry> sorted = new ArrayList<Entry>(entries.values());
+		Collections.sort(sorted, BY_COUNT);
+		List<Entry> top = new ArrayList<Entry>(Math.min(limit, sorted.size()));
+		for (Entry entry : sorted.subList(0, Math.min(limit, sorted.size())))
+			top.add(new Entry(entry.key, entry.count, entry.error));
+		return top;
+	}
+
+	/**
+	 * An entry of {@link #top} whose lower bound is at least this is certainly among the heaviest
+	 * <code>limit</code> keys.
+	 * @return upper bound of the weight of every key ranked after the first <code>limit</code>
+	 */
+	public long getBoundAfter(int limit){
+		if (entries.size() <= limit)
+			return floor;
+		List<Entry> sorted = new ArrayList<Entry>(entries.values());
+		Collections.sort(sorted, BY_COUNT);
+		return Math.max(floor, sorted.get(limit).count);
+	}
+
+	/**
+	 * @return upper bound of the weight of any key not kept, and of the error of any count
+	 */
+	public long getFloor(){
+		return floor;
+	}
+
+	/**
+	 * @return total weight offered
+	 */
+	public long getTotal(){
+		return total;
+	}
+
+	public int getCapacity(){
+		return capacity;
+	}
+
+	public int size(){
+		return entries.size();
+	}
+
+	public byte[] toBytes(){
+		ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + 8 + 8 + 4 + entries.size() * (4 + 8 + 8));
+		buffer.put(FORMAT).putInt(capacity).putLong(floor).putLong(total).putInt(entries.size());
+		for (Entry entry : entries.values())
+			buffer.putInt(entry.key).putLong(entry.count).putLong(entry.error);
+		return buffer.array();
+	}
+
+	/**
+	 * A key's estimated weight, at most <code>error</code> over the true one.
+	 */
+	public static final class Entry {
+
+		private final int key;
+		private long count;
+		private final long error;
+
+		Entry(int key, long count, long error){
+			this.key = key;
+			this.count = count;
+			this.error = error;
+		}
+
+		public int getKey(){
+			return key;
+		}
+
+		public long getCount(){
+			return count;
+		}
+
+		public long getError(){
+			return error;
+		}
+
+		public long getLowerBound(){
+			return count - error;
+		}
+	}
+}
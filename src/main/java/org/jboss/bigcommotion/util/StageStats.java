@@ -0,0 +1,166 @@
+package org.jboss.bigcommotion.util;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings of one stage of the ingest pipeline: how often it ran, how long it took, how many rows
+ * it handled, and a latency histogram.  Recording is a handful of atomic increments so it can stay
+ * on in production.
+ * <p>
+ * The histogram has power-of-two millisecond buckets (under 1 ms, under 2 ms, under 4 ms, ... and
+ * one open ended bucket), so percentiles are reported as the upper bound of their bucket.
+ */
+public class StageStats {
+
+	static final int BUCKETS = 20;
+
+	private final String name;
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong rows = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+	private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+	public StageStats(String name){
+		assert name != null : "name must be specified";
+		this.name = name;
+	}
+
+	/**
+	 * @param nanos time the stage took
+	 * @param rowCount rows or files the stage handled, 0 if it does not count them
+	 */
+	public void record(long nanos, long rowCount){
+		if (nanos < 0)
+			nanos = 0;
+		count.incrementAndGet();
+		rows.addAndGet(rowCount);
+		totalNanos.addAndGet(nanos);
+		histogram.incrementAndGet(bucket(nanos / 1000000L));
+		long max;
+		while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)){
+			// retry
+		}
+	}
+
+	/**
+	 * @param start value of System.nanoTime() when the stage began
+	 */
+	public void recordSince(long start, long rowCount){
+		record(System.nanoTime() - start, rowCount);
+	}
+
+	public String getName(){
+		return name;
+	}
+
+	public Snapshot snapshot(){
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++){
+			counts[i] = histogram.get(i);
+			total += counts[i];
+		}
+		long nanos = totalNanos.get();
+		long rowCount = rows.get();
+		return new Snapshot(name, count.get(), rowCount, nanos / 1000000L, maxNanos.get() / 1000000L,
+				nanos == 0 ? 0 : rowCount * 1000000000d / nanos,
+				percentile(counts, total, 0.50), percentile(counts, total, 0.95), percentile(counts, total, 0.99));
+	}
+
+	static int bucket(long millis){
+		int bucket = 0;
+		while (millis > 0 && bucket < BUCKETS - 1){
+			millis >>= 1;
+			bucket++;
+		}
+		return bucket;
+	}
+
+	/**
+	 * @return upper bound in ms of the bucket holding the percentile, or the largest bound for the open bucket
+	 */
+	private static long percentile(long[] counts, long total, double percentile){
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(total * percentile);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++){
+			seen += counts[i];
+			if (seen >= rank)
+				return 1L << i;
+		}
+		return 1L << (BUCKETS - 1);
+	}
+
+	/**
+	 * Totals of a stage at one moment.  Exposed as composite data through JMX.
+	 */
+	public static class Snapshot {
+
+		private final String name;
+		private final long count;
+		private final long rows;
+		private final long totalMillis;
+		private final long maxMillis;
+		private final double rowsPerSecond;
+		private final long p50Millis;
+		private final long p95Millis;
+		private final long p99Millis;
+
+		@ConstructorProperties({ "name", "count", "rows", "totalMillis", "maxMillis", "rowsPerSecond", "p50Millis", "p95Millis", "p99Millis" })
+		public Snapshot(String name, long count, long rows, long totalMillis, long maxMillis, double rowsPerSecond,
+				long p50Millis, long p95Millis, long p99Millis){
+			this.name = name;
+			this.count = count;
+			this.rows = rows;
+			this.totalMillis = totalMillis;
+			this.maxMillis = maxMillis;
+			this.rowsPerSecond = rowsPerSecond;
+			this.p50Millis = p50Millis;
+			this.p95Millis = p95Millis;
+			this.p99Millis = p99Millis;
+		}
+
+		public String getName(){
+			return name;
+		}
+
+		public long getCount(){
+			return count;
+		}
+
+		public long getRows(){
+			return rows;
+		}
+
+		public long getTotalMillis(){
+			return totalMillis;
+		}
+
+		public long getMaxMillis(){
+			return maxMillis;
+		}
+
+		/**
+		 * @return rows handled per second of time spent in the stage
+		 */
+		public double getRowsPerSecond(){
+			return rowsPerSecond;
+		}
+
+		public long getP50Millis(){
+			return p50Millis;
+		}
+
+		public long getP95Millis(){
+			return p95Millis;
+		}
+
+		public long getP99Millis(){
+			return p99Millis;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package org.jboss.bigcommotion.util;
+
+import java.io.File;
+import java.util.Date;
+
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.Session;
+
+import org.jboss.bigcommotion.model.ReportChunk;
+
+/**
+ * Reads and writes the work sent to the pageview queue as MapMessages of a few primitive fields,
+ * so neither side Java-serializes objects.  The kind of work is in the {@link #TYPE} property.
+ * <p>
+ * Whole-file work is grouped by site through JMSXGroupID, so HornetQ hands each site's reports
+ * in order to a single consumer and imports of the same site do not contend for its rollup rows.
+ * Chunks are not grouped; they are meant to be parsed by several consumers at once.
+ */
+public final class WorkMessages {
+
+	public static final String TYPE = "type";
+	public static final String FILE = "file";
+	public static final String CHUNK = "chunk";
+	public static final String GROUP_ID = "JMSXGroupID";
+
+	private static final String SITE = "site";
+	private static final String PATH = "path";
+	private static final String DATE = "date";
+	private static final String IMPORT_ID = "importId";
+	private static final String LEDGER_ENTRY_ID = "ledgerEntryId";
+	private static final String CHUNK_INDEX = "chunkIndex";
+	private static final String CHUNK_COUNT = "chunkCount";
+	private static final String START_OFFSET = "startOffset";
+	private static final String END_OFFSET = "endOffset";
+	private static final String FIRST_LINE = "firstLine";
+	private static final String LINE_COUNT = "lineCount";
+	private static final String STARTED = "started";
+
+	private WorkMessages(){
+
+	}
+
+	/**
+	 * @param date start date of the report
+	 */
+	public static MapMessage createFileMessage(Session session, String site, File file, Date date) throws JMSException {
+		assert site != null : "site must be specified";
+		assert file != null : "file must be specified";
+		assert date != null : "date must be specified";
+		MapMessage message = session.createMapMessage();
+		message.setStringProperty(TYPE, FILE);
+		message.setStringProperty(GROUP_ID, site);
+		message.setString(SITE, site);
+		message.setString(PATH, file.getAbsolutePath());
+		message.setLong(DATE, date.getTime());
+		return message;
+	}
+
+	public static MapMessage createChunkMessage(Session session, ReportChunk chunk) throws JMSException {
+		assert chunk != null : "chunk must be specified";
+		MapMessage message = session.createMapMessage();
+		message.setStringProperty(TYPE, CHUNK);
+		message.setString(IMPORT_ID, chunk.getImportId());
+		if (chunk.getLedgerEntryId() != null)
+			message.setLong(LEDGER_ENTRY_ID, chunk.getLedgerEntryId());
+		message.setString(SITE, chunk.getSite());
+		message.setString(PATH, chunk.getFileName());
+		message.setLong(DATE, chunk.getDate().getTime());
+		message.setInt(CHUNK_INDEX, chunk.getChunkIndex());
+		message.setInt(CHUNK_COUNT, chunk.getChunkCount());
+		message.setLong(START_OFFSET, chunk.getStartOffset());
+		message.setLong(END_OFFSET, chunk.getEndOffset());
+		message.setInt(FIRST_LINE, chunk.getFirstLine());
+		message.setInt(LINE_COUNT, chunk.getLineCount());
+		message.setLong(STARTED, chunk.getStarted());
+		return message;
+	}
+
+	/**
+	 * @return {@link #FILE}, {@link #CHUNK}, or null for anything else
+	 */
+	public static String getType(Message message) throws JMSException {
+		if (!(message instanceof MapMessage) || !message.propertyExists(TYPE))
+			return null;
+		return message.getStringProperty(TYPE);
+	}
+
+	public static String getSite(MapMessage message) throws JMSException {
+		return message.getString(SITE);
+	}
+
+	public static File getFile(MapMessage message) throws JMSException {
+		return new File(message.getString(PATH));
+	}
+
+	public static Date getDate(MapMessage message) throws JMSException {
+		return new Date(message.getLong(DATE));
+	}
+
+	public static ReportChunk toChunk(MapMessage message) throws JMSException {
+		ReportChunk chunk = new ReportChunk();
+		chunk.setImportId(message.getString(IMPORT_ID));
+		if (message.itemExists(LEDGER_ENTRY_ID))
+			chunk.setLedgerEntryId(message.getLong(LEDGER_ENTRY_ID));
+		chunk.setSite(message.getString(SITE));
+		chunk.setFileName(message.getString(PATH));
+		chunk.setDate(new Date(message.getLong(DATE)));
+		chunk.setChunkIndex(message.getInt(CHUNK_INDEX));
+		chunk.setChunkCount(message.getInt(CHUNK_COUNT));
+		chunk.setStartOffset(message.getLong(START_OFFSET));
+		chunk.setEndOffset(message.getLong(END_OFFSET));
+		chunk.setFirstLine(message.getInt(FIRST_LINE));
+		chunk.setLineCount(message.getInt(LINE_COUNT));
+		chunk.setStarted(message.getLong(STARTED));
+		return chunk;
+	}
+}
@@ -0,0 +1,191 @@
+-- Creates the schema on a new, empty MySQL database.  It already includes every later migration, so run only
+-- this script on a new database, and only the numbered migrations not yet applied on an existing one.
+-- Hibernate validates the schema at deployment but no longer changes it; an entity change comes with a migration
+-- here and an edit to this script.
+-- WebMetric starts with a single catch-all partition; PartitionMaintenance splits monthly partitions off it
+-- from the current month on, so rows for earlier months share the first monthly partition.
+CREATE TABLE IdGenerator (
+	name VARCHAR(255) NOT NULL PRIMARY KEY,
+	nextId BIGINT
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+-- Ids of IngestLedgerEntry, DispatchRecord, ClassificationRule, ReclassificationCheckpoint, BackfillCheckpoint and StagedChunk
+-- (GenerationType.AUTO)
+CREATE TABLE hibernate_sequence (
+	next_val BIGINT
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+INSERT INTO hibernate_sequence (next_val) VALUES (1);
+
+CREATE TABLE DictionaryTerm (
+	id INT NOT NULL PRIMARY KEY,
+	kind VARCHAR(8) NOT NULL,
+	termKey VARCHAR(32) NOT NULL,
+	term VARCHAR(1024) NOT NULL,
+	CONSTRAINT UK_DICTIONARYTERM UNIQUE (kind, termKey)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE WebMetric (
+	id BIGINT NOT NULL,
+	version INT,
+	date DATE NOT NULL,
+	siteId INT,
+	pageId INT NOT NULL,
+	pageViews BIGINT,
+	uniquePageViews BIGINT,
+	averageTimeOnPage INT,
+	entrances BIGINT,
+	bounceRate FLOAT,
+	percentExit FLOAT,
+	fileId INT,
+	projectId INT,
+	PRIMARY KEY (id, date),
+	INDEX IDX_WEBMETRIC_SITE_DATE_PAGE (siteId, date, pageId),
+	INDEX IDX_WEBMETRIC_PROJECT_DATE (projectId, date),
+	INDEX IDX_WEBMETRIC_FILE (fileId)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8
+PARTITION BY RANGE COLUMNS(date) (PARTITION pmax VALUES LESS THAN (MAXVALUE));
+
+CREATE TABLE IngestLedgerEntry (
+	id BIGINT NOT NULL PRIMARY KEY,
+	version INT,
+	path VARCHAR(255) NOT NULL,
+	checksum VARCHAR(40),
+	status VARCHAR(16) NOT NULL,
+	site VARCHAR(255),
+	reportDate DATE,
+	rowCount INT,
+	durationMillis BIGINT,
+	startedAt DATETIME,
+	completedAt DATETIME,
+	note VARCHAR(255),
+	importId VARCHAR(36),
+	CONSTRAINT UK_INGESTLEDGERENTRY_PATH UNIQUE (path),
+	INDEX IDX_INGESTLEDGER_CHECKSUM (checksum)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE DispatchRecord (
+	id BIGINT NOT NULL PRIMARY KEY,
+	version INT,
+	path VARCHAR(255) NOT NULL,
+	site VARCHAR(255),
+	length BIGINT,
+	lastModified BIGINT,
+	status VARCHAR(16) NOT NULL,
+	attempts INT,
+	dispatchedAt DATETIME,
+	settledAt DATETIME,
+	CONSTRAINT UK_DISPATCHRECORD_PATH UNIQUE (path)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE ProjectMonthRollup (
+	id BIGINT NOT NULL PRIMARY KEY,
+	version INT,
+	site VARCHAR(128) NOT NULL,
+	month DATE NOT NULL,
+	pageViews BIGINT,
+	uniquePageViews BIGINT,
+	entrances BIGINT,
+	bounceRateWeight DOUBLE PRECISION,
+	percentExitWeight DOUBLE PRECISION,
+	timeOnPageWeight DOUBLE PRECISION,
+	rowCount INT,
+	project VARCHAR(128) NOT NULL,
+	CONSTRAINT UK_PROJECTMONTHROLLUP UNIQUE (site, project, month)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE PageMonthRollup (
+	id BIGINT NOT NULL PRIMARY KEY,
+	version INT,
+	site VARCHAR(128) NOT NULL,
+	month DATE NOT NULL,
+	pageViews BIGINT,
+	uniquePageViews BIGINT,
+	entrances BIGINT,
+	bounceRateWeight DOUBLE PRECISION,
+	percentExitWeight DOUBLE PRECISION,
+	timeOnPageWeight DOUBLE PRECISION,
+	rowCount INT,
+	pageKey VARCHAR(32) NOT NULL,
+	page VARCHAR(512) NOT NULL,
+	project VARCHAR(128),
+	CONSTRAINT UK_PAGEMONTHROLLUP UNIQUE (site, month, pageKey)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+-- Distinct and most viewed pages of each site/project/month, see ProjectMonthSketch
+CREATE TABLE ProjectMonthSketch (
+	id BIGINT NOT NULL PRIMARY KEY,
+	version INT,
+	site VARCHAR(128) NOT NULL,
+	project VARCHAR(128) NOT NULL,
+	month DATE NOT NULL,
+	distinctPages LONGBLOB NOT NULL,
+	topPages LONGBLOB NOT NULL,
+	CONSTRAINT UK_PROJECTMONTHSKETCH UNIQUE (site, project, month)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+-- Seeded from logic/PageClassification.rules by the application when empty
+CREATE TABLE ClassificationRule (
+	id BIGINT NOT NULL PRIMARY KEY,
+	position INT NOT NULL,
+	action VARCHAR(8) NOT NULL,
+	matchType VARCHAR(16) NOT NULL,
+	ignoreCase BIT NOT NULL,
+	site VARCHAR(128) NOT NULL,
+	whenProject VARCHAR(128) NOT NULL,
+	pattern VARCHAR(512) NOT NULL,
+	ruleValue VARCHAR(512) NOT NULL,
+	CONSTRAINT UK_CLASSIFICATIONRULE_POSITION UNIQUE (position)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE ReclassificationCheckpoint (
+	id BIGINT NOT NULL PRIMARY KEY,
+	version INT,
+	fingerprint VARCHAR(40) NOT NULL,
+	status VARCHAR(16) NOT NULL,
+	lastMetricId BIGINT,
+	scanned BIGINT,
+	changed BIGINT,
+	batches INT,
+	dirtyMonths LONGTEXT,
+	startedAt DATETIME,
+	updatedAt DATETIME,
+	completedAt DATETIME,
+	CONSTRAINT UK_RECLASSIFICATIONCHECKPOINT_FINGERPRINT UNIQUE (fingerprint)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE BackfillCheckpoint (
+	id BIGINT NOT NULL PRIMARY KEY,
+	version INT,
+	status VARCHAR(16) NOT NULL,
+	site VARCHAR(128),
+	fromMonth DATE NOT NULL,
+	toMonth DATE NOT NULL,
+	parallelism INT,
+	files INT,
+	skipped INT,
+	failed INT,
+	rowCount BIGINT,
+	startedAt DATETIME,
+	updatedAt DATETIME,
+	completedAt DATETIME
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+-- Parsed chunks of reports imported in parallel, until the last chunk arrives
+CREATE TABLE StagedChunk (
+	id BIGINT NOT NULL PRIMARY KEY,
+	importId VARCHAR(36) NOT NULL,
+	chunkIndex INT,
+	ledgerEntryId BIGINT,
+	part LONGBLOB NOT NULL,
+	created DATETIME NOT NULL,
+	CONSTRAINT UK_STAGEDCHUNK UNIQUE (importId, chunkIndex)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+-- Version of each site/month's metrics, recorded in its snapshot, see SiteMonthVersion
+CREATE TABLE SiteMonthVersion (
+	id BIGINT NOT NULL PRIMARY KEY,
+	site VARCHAR(128) NOT NULL,
+	month DATE NOT NULL,
+	version BIGINT NOT NULL,
+	CONSTRAINT UK_SITEMONTHVERSION UNIQUE (site, month)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
@@ -0,0 +1,6 @@
+-- WebMetric ids move from MySQL AUTO_INCREMENT to the IdGenerator table so Hibernate can batch inserts.
+-- Run once against an existing database before deploying; 000-schema.sql already includes it for new databases.
+-- The seed leaves a gap above the highest existing id so no block handed out by the pooled
+-- generator (allocationSize = 500) can overlap rows inserted with AUTO_INCREMENT.
+CREATE TABLE IF NOT EXISTS IdGenerator (name VARCHAR(255) NOT NULL PRIMARY KEY, nextId BIGINT);
+INSERT INTO IdGenerator (name, nextId) SELECT 'WebMetric', COALESCE(MAX(id), 0) + 1000 FROM WebMetric;
@@ -0,0 +1,32 @@
+-- WebMetric site, page, project and fileName strings move to the DictionaryTerm table; rows keep only their ids.
+-- Run once against an existing database before deploying; 000-schema.sql already includes it for new databases.
+-- Terms are keyed on MD5(term) as the application does, so WebMetric must be in utf8 for the keys to match.
+-- Distinct terms are compared as binary, since the application treats '/Foo' and '/foo' as different pages.
+-- As in 001, the IdGenerator seed leaves a gap above the highest id (allocationSize = 50).
+-- The last statement rebuilds WebMetric; allow for a copy of the table on disk while it runs.
+CREATE TABLE IF NOT EXISTS DictionaryTerm (
+	id INT NOT NULL PRIMARY KEY,
+	kind VARCHAR(8) NOT NULL,
+	termKey VARCHAR(32) NOT NULL,
+	term VARCHAR(1024) NOT NULL,
+	CONSTRAINT UK_DICTIONARYTERM UNIQUE (kind, termKey)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+SET @id = 0;
+INSERT INTO DictionaryTerm (id, kind, termKey, term)
+	SELECT @id := @id + 1, 'SITE', MD5(term), CONVERT(term USING utf8) FROM (SELECT DISTINCT BINARY site AS term FROM WebMetric WHERE site IS NOT NULL) t;
+INSERT INTO DictionaryTerm (id, kind, termKey, term)
+	SELECT @id := @id + 1, 'PAGE', MD5(term), CONVERT(term USING utf8) FROM (SELECT DISTINCT BINARY page AS term FROM WebMetric WHERE page IS NOT NULL) t;
+INSERT INTO DictionaryTerm (id, kind, termKey, term)
+	SELECT @id := @id + 1, 'PROJECT', MD5(term), CONVERT(term USING utf8) FROM (SELECT DISTINCT BINARY project AS term FROM WebMetric WHERE project IS NOT NULL) t;
+INSERT INTO DictionaryTerm (id, kind, termKey, term)
+	SELECT @id := @id + 1, 'FILE', MD5(term), CONVERT(term USING utf8) FROM (SELECT DISTINCT BINARY fileName AS term FROM WebMetric WHERE fileName IS NOT NULL) t;
+INSERT INTO IdGenerator (name, nextId) SELECT 'DictionaryTerm', COALESCE(MAX(id), 0) + 100 FROM DictionaryTerm;
+
+ALTER TABLE WebMetric ADD COLUMN siteId INT, ADD COLUMN pageId INT, ADD COLUMN projectId INT, ADD COLUMN fileId INT;
+UPDATE WebMetric m JOIN DictionaryTerm t ON t.kind = 'SITE' AND t.termKey = MD5(m.site) SET m.siteId = t.id;
+UPDATE WebMetric m JOIN DictionaryTerm t ON t.kind = 'PAGE' AND t.termKey = MD5(m.page) SET m.pageId = t.id;
+UPDATE WebMetric m JOIN DictionaryTerm t ON t.kind = 'PROJECT' AND t.termKey = MD5(m.project) SET m.projectId = t.id;
+UPDATE WebMetric m JOIN DictionaryTerm t ON t.kind = 'FILE' AND t.termKey = MD5(m.fileName) SET m.fileId = t.id;
+
+ALTER TABLE WebMetric MODIFY pageId INT NOT NULL, DROP COLUMN site, DROP COLUMN page, DROP COLUMN project, DROP COLUMN fileName;
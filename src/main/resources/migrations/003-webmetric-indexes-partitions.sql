@@ -0,0 +1,39 @@
+-- Adds the WebMetric indexes and range partitions the table by report month.  Run once, after 002, before deploying.
+-- MySQL requires the partitioning column in every unique key, so the primary key becomes (id, date); ids stay
+-- unique on their own since they come from the IdGenerator table.  Rows without a date must be fixed or removed
+-- first, as the date becomes part of the key.
+-- One partition is created per month from the oldest row to three months ahead, plus a catch-all partition;
+-- PartitionMaintenance keeps adding months after that.  A month no longer needed can then be dropped with
+--   ALTER TABLE WebMetric DROP PARTITION p201201;
+-- once its rollups are no longer wanted either, since RollupService.rebuild would find no rows for it.
+ALTER TABLE WebMetric
+	MODIFY date DATE NOT NULL,
+	DROP PRIMARY KEY,
+	ADD PRIMARY KEY (id, date),
+	ADD INDEX IDX_WEBMETRIC_SITE_DATE_PAGE (siteId, date, pageId),
+	ADD INDEX IDX_WEBMETRIC_PROJECT_DATE (projectId, date),
+	ADD INDEX IDX_WEBMETRIC_FILE (fileId);
+
+DELIMITER //
+CREATE PROCEDURE partition_webmetric()
+BEGIN
+	DECLARE month DATE;
+	DECLARE last DATE;
+	DECLARE partitions TEXT DEFAULT '';
+	SELECT DATE_FORMAT(COALESCE(MIN(date), CURDATE()), '%Y-%m-01') INTO month FROM WebMetric;
+	SET last = DATE_FORMAT(CURDATE() + INTERVAL 3 MONTH, '%Y-%m-01');
+	WHILE month <= last DO
+		SET partitions = CONCAT(partitions, 'PARTITION p', DATE_FORMAT(month, '%Y%m'),
+			' VALUES LESS THAN (''', month + INTERVAL 1 MONTH, '''), ');
+		SET month = month + INTERVAL 1 MONTH;
+	END WHILE;
+	SET @ddl = CONCAT('ALTER TABLE WebMetric PARTITION BY RANGE COLUMNS(date) (', partitions,
+		'PARTITION pmax VALUES LESS THAN (MAXVALUE))');
+	PREPARE statement FROM @ddl;
+	EXECUTE statement;
+	DEALLOCATE PREPARE statement;
+END //
+DELIMITER ;
+
+CALL partition_webmetric();
+DROP PROCEDURE partition_webmetric;
@@ -0,0 +1,33 @@
+-- Moves the page classification rules into the database.  Run once, after 003, before deploying.
+-- The application fills ClassificationRule from logic/PageClassification.rules on its first start against the
+-- empty table; from then on the rules are read from the table and replaced with PUT /rest/ops/rules.
+-- ProjectReclassifier records its progress per set of rules in ReclassificationCheckpoint.  The first start
+-- reclassifies every existing row once in the background, which also applies the rules to rows last classified
+-- by the old updates.sql statements.
+CREATE TABLE ClassificationRule (
+	id BIGINT NOT NULL PRIMARY KEY,
+	position INT NOT NULL,
+	action VARCHAR(8) NOT NULL,
+	matchType VARCHAR(16) NOT NULL,
+	ignoreCase BIT NOT NULL,
+	site VARCHAR(128) NOT NULL,
+	whenProject VARCHAR(128) NOT NULL,
+	pattern VARCHAR(512) NOT NULL,
+	ruleValue VARCHAR(512) NOT NULL,
+	CONSTRAINT UK_CLASSIFICATIONRULE_POSITION UNIQUE (position)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE ReclassificationCheckpoint (
+	id BIGINT NOT NULL PRIMARY KEY,
+	version INT,
+	fingerprint VARCHAR(40) NOT NULL,
+	status VARCHAR(16) NOT NULL,
+	lastMetricId BIGINT,
+	scanned BIGINT,
+	changed BIGINT,
+	batches INT,
+	startedAt DATETIME,
+	updatedAt DATETIME,
+	completedAt DATETIME,
+	CONSTRAINT UK_RECLASSIFICATIONCHECKPOINT_FINGERPRINT UNIQUE (fingerprint)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
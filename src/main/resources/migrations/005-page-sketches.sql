@@ -0,0 +1,14 @@
+-- Adds the per site/project/month page sketches.  Run once, after 004, before deploying.
+-- Imports maintain them from then on; sketches of months imported earlier are built from the WebMetric rows by
+-- POST /rest/rollups/rebuild, which rebuilds the rollups at the same time, or from snapshots by
+-- POST /rest/rollups/restore.  Until then the page sketch queries leave those months out.
+CREATE TABLE ProjectMonthSketch (
+	id BIGINT NOT NULL PRIMARY KEY,
+	version INT,
+	site VARCHAR(128) NOT NULL,
+	project VARCHAR(128) NOT NULL,
+	month DATE NOT NULL,
+	distinctPages LONGBLOB NOT NULL,
+	topPages LONGBLOB NOT NULL,
+	CONSTRAINT UK_PROJECTMONTHSKETCH UNIQUE (site, project, month)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
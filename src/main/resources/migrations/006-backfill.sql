@@ -0,0 +1,19 @@
+-- Adds the progress of backfills, the re-imports of archived reports started with POST /rest/ops/backfill.
+-- Run once, after 005, before deploying.  Its ids come from hibernate_sequence, which 008 creates on databases
+-- upgraded from before 001.
+CREATE TABLE BackfillCheckpoint (
+	id BIGINT NOT NULL PRIMARY KEY,
+	version INT,
+	status VARCHAR(16) NOT NULL,
+	site VARCHAR(128),
+	fromMonth DATE NOT NULL,
+	toMonth DATE NOT NULL,
+	parallelism INT,
+	files INT,
+	skipped INT,
+	failed INT,
+	rowCount BIGINT,
+	startedAt DATETIME,
+	updatedAt DATETIME,
+	completedAt DATETIME
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
@@ -0,0 +1,12 @@
+-- Keeps the parsed chunks of reports imported in parallel until every chunk has arrived, so a restart does not
+-- lose them.  Run once, after 006, before deploying, with no chunked import in progress.  Its ids come from
+-- hibernate_sequence, which 008 creates on databases upgraded from before 001.
+CREATE TABLE StagedChunk (
+	id BIGINT NOT NULL PRIMARY KEY,
+	importId VARCHAR(36) NOT NULL,
+	chunkIndex INT,
+	ledgerEntryId BIGINT,
+	part LONGBLOB NOT NULL,
+	created DATETIME NOT NULL,
+	CONSTRAINT UK_STAGEDCHUNK UNIQUE (importId, chunkIndex)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
@@ -0,0 +1,82 @@
+-- Creates the tables Hibernate used to create itself, before the schema was managed by these scripts, and the
+-- hibernate_sequence table the GenerationType.AUTO ids of IngestLedgerEntry, DispatchRecord, ClassificationRule,
+-- ReclassificationCheckpoint, BackfillCheckpoint and StagedChunk come from.  Run once, after 007, before deploying;
+-- a database upgraded from before 001 has none of them.  Tables Hibernate already created are left as they are,
+-- and the sequence starts above the ids they already hold.
+CREATE TABLE IF NOT EXISTS IngestLedgerEntry (
+	id BIGINT NOT NULL PRIMARY KEY,
+	version INT,
+	path VARCHAR(255) NOT NULL,
+	checksum VARCHAR(40),
+	status VARCHAR(16) NOT NULL,
+	site VARCHAR(255),
+	reportDate DATE,
+	rowCount INT,
+	durationMillis BIGINT,
+	startedAt DATETIME,
+	completedAt DATETIME,
+	note VARCHAR(255),
+	CONSTRAINT UK_INGESTLEDGERENTRY_PATH UNIQUE (path),
+	INDEX IDX_INGESTLEDGER_CHECKSUM (checksum)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE IF NOT EXISTS DispatchRecord (
+	id BIGINT NOT NULL PRIMARY KEY,
+	version INT,
+	path VARCHAR(255) NOT NULL,
+	site VARCHAR(255),
+	length BIGINT,
+	lastModified BIGINT,
+	status VARCHAR(16) NOT NULL,
+	attempts INT,
+	dispatchedAt DATETIME,
+	settledAt DATETIME,
+	CONSTRAINT UK_DISPATCHRECORD_PATH UNIQUE (path)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE IF NOT EXISTS ProjectMonthRollup (
+	id BIGINT NOT NULL PRIMARY KEY,
+	version INT,
+	site VARCHAR(128) NOT NULL,
+	month DATE NOT NULL,
+	pageViews BIGINT,
+	uniquePageViews BIGINT,
+	entrances BIGINT,
+	bounceRateWeight DOUBLE PRECISION,
+	percentExitWeight DOUBLE PRECISION,
+	timeOnPageWeight DOUBLE PRECISION,
+	rowCount INT,
+	project VARCHAR(128) NOT NULL,
+	CONSTRAINT UK_PROJECTMONTHROLLUP UNIQUE (site, project, month)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE IF NOT EXISTS PageMonthRollup (
+	id BIGINT NOT NULL PRIMARY KEY,
+	version INT,
+	site VARCHAR(128) NOT NULL,
+	month DATE NOT NULL,
+	pageViews BIGINT,
+	uniquePageViews BIGINT,
+	entrances BIGINT,
+	bounceRateWeight DOUBLE PRECISION,
+	percentExitWeight DOUBLE PRECISION,
+	timeOnPageWeight DOUBLE PRECISION,
+	rowCount INT,
+	pageKey VARCHAR(32) NOT NULL,
+	page VARCHAR(512) NOT NULL,
+	project VARCHAR(128),
+	CONSTRAINT UK_PAGEMONTHROLLUP UNIQUE (site, month, pageKey)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE IF NOT EXISTS hibernate_sequence (
+	next_val BIGINT
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+INSERT INTO hibernate_sequence (next_val)
+	SELECT GREATEST(
+		(SELECT COALESCE(MAX(id), 0) FROM IngestLedgerEntry),
+		(SELECT COALESCE(MAX(id), 0) FROM DispatchRecord),
+		(SELECT COALESCE(MAX(id), 0) FROM ClassificationRule),
+		(SELECT COALESCE(MAX(id), 0) FROM ReclassificationCheckpoint),
+		(SELECT COALESCE(MAX(id), 0) FROM BackfillCheckpoint),
+		(SELECT COALESCE(MAX(id), 0) FROM StagedChunk)) + 1
+	FROM DUAL WHERE NOT EXISTS (SELECT * FROM hibernate_sequence);
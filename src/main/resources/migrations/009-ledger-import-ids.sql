@@ -0,0 +1,3 @@
+-- Records which chunked import of a report its ledger entry belongs to, so the chunks of an import a later
+-- dispatch superseded are not saved as well.  Run once, after 008, before deploying.
+ALTER TABLE IngestLedgerEntry ADD COLUMN importId VARCHAR(36) AFTER note;
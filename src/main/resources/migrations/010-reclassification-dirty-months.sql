@@ -0,0 +1,3 @@
+-- Keeps the site/months a reclassification changed until their rollups are rebuilt, once every row has been
+-- visited, instead of rebuilding them after each batch.  Run once, after 009, before deploying.
+ALTER TABLE ReclassificationCheckpoint ADD COLUMN dirtyMonths LONGTEXT AFTER batches;
@@ -0,0 +1,10 @@
+-- Adds the version of each site/month's metrics, advanced by every import, rebuild and reclassification of the
+-- month and recorded in its snapshot, so a snapshot left behind by a change is never read.  Run once, after 010,
+-- before deploying.  Snapshots written before it are deleted when they are first mapped and exported again.
+CREATE TABLE SiteMonthVersion (
+	id BIGINT NOT NULL PRIMARY KEY,
+	site VARCHAR(128) NOT NULL,
+	month DATE NOT NULL,
+	version BIGINT NOT NULL,
+	CONSTRAINT UK_SITEMONTHVERSION UNIQUE (site, month)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
@@ -1 +1,13 @@
-1
+<%@ page contentType="text/plain" import="javax.naming.InitialContext,org.jboss.bigcommotion.services.StartupService" %><%
+	// 200 with "warming" while the importer warms up (queries are already served), 503 if the warm-up failed
+	StartupService startup = (StartupService) new InitialContext().lookup("java:module/StartupService");
+	StartupService.State state = startup.getState();
+	if (state == StartupService.State.FAILED)
+		response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+	out.print(state.name().toLowerCase() + "\n");
+	out.print("deployMillis " + startup.getDeployMillis() + "\n");
+	if (state == StartupService.State.READY)
+		out.print("warmupMillis " + startup.getWarmupMillis() + "\n");
+	if (state == StartupService.State.FAILED)
+		out.print("failure " + startup.getFailure() + "\n");
+%>
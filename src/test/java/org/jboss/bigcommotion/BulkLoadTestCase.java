@@ -0,0 +1,171 @@
+package org.jboss.bigcommotion;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+
+import org.jboss.bigcommotion.model.DictionaryTerm;
+import org.jboss.bigcommotion.model.IngestLedgerEntry;
+import org.jboss.bigcommotion.model.WebMetric;
+import org.jboss.bigcommotion.services.MetricBulkWriter;
+import org.jboss.bigcommotion.services.MetricDictionary;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes metrics with the original persist-everything-then-flush approach and the MetricBulkWriter
+ * modes, using an in-memory H2 database in place of MySQL.  BulkLoadBenchmark compares their
+ * insert throughput.
+ */
+public class BulkLoadTestCase extends MetricsTestSupport {
+
+	private static final int ROWS = 20000;
+
+	private static final MetricDictionary dictionary = new MetricDictionary();
+
+	@Before
+	public void deleteMetrics(){
+		EntityManager em = emf.createEntityManager();
+		em.getTransaction().begin();
+		em.createQuery("DELETE FROM WebMetric").executeUpdate();
+		em.getTransaction().commit();
+		em.close();
+	}
+
+	@Test
+	public void persistEachThenFlush(){
+		List<WebMetric> metrics = generateMetrics();
+		EntityManager em = emf.createEntityManager();
+		em.getTransaction().begin();
+		for (WebMetric metric : metrics){
+			em.persist(metric);
+		}
+		em.flush();
+		em.getTransaction().commit();
+		em.close();
+		assertRowCount(ROWS);
+	}
+
+	@Test
+	public void batchedPersist(){
+		write(MetricBulkWriter.Mode.BATCHED_PERSIST);
+	}
+
+	@Test
+	public void multiRowInsert(){
+		write(MetricBulkWriter.Mode.MULTI_ROW_INSERT);
+	}
+
+	@Test
+	public void batchedPersistShouldKeepCallerEntitiesManaged(){
+		List<WebMetric> metrics = generateMetrics().subList(0, MetricBulkWriter.DEFAULT_BATCH_SIZE * 2 + 3);
+		EntityManager em = emf.createEntityManager();
+		em.getTransaction().begin();
+		IngestLedgerEntry entry = new IngestLedgerEntry("/opt/data/jboss.org/report.csv", "checksum", "jboss.org", new Date(),
+				IngestLedgerEntry.Status.PROCESSING);
+		em.persist(entry);
+		new MetricBulkWriter(em, MetricBulkWriter.Mode.BATCHED_PERSIST, MetricBulkWriter.DEFAULT_BATCH_SIZE).write(metrics);
+		Assert.assertTrue(em.contains(entry));
+		Assert.assertFalse(em.contains(metrics.get(0)));
+		Assert.assertFalse(em.contains(metrics.get(metrics.size() - 1)));
+		em.remove(entry);
+		em.getTransaction().commit();
+		em.close();
+		assertRowCount(metrics.size());
+	}
+
+	@Test
+	public void multiRowInsertShouldKeepValues(){
+		List<WebMetric> metrics = generateMetrics().subList(0, MetricBulkWriter.DEFAULT_BATCH_SIZE + 3);
+		EntityManager em = emf.createEntityManager();
+		em.getTransaction().begin();
+		new MetricBulkWriter(em, MetricBulkWriter.Mode.MULTI_ROW_INSERT, MetricBulkWriter.DEFAULT_BATCH_SIZE).write(metrics);
+		em.getTransaction().commit();
+		em.close();
+
+		em = emf.createEntityManager();
+		WebMetric last = metrics.get(metrics.size() - 1);
+		WebMetric loaded = em.find(WebMetric.class, last.getId());
+		Assert.assertNotNull(loaded);
+		dictionary.decode(Collections.singleton(loaded));
+		Assert.assertEquals(last.getPage(), loaded.getPage());
+		Assert.assertEquals(last.getPageViews(), loaded.getPageViews());
+		Assert.assertEquals(last.getBounceRate(), loaded.getBounceRate());
+		Assert.assertEquals(last.getProject(), loaded.getProject());
+		Assert.assertEquals(last.getSite(), loaded.getSite());
+		Assert.assertEquals(last.getFileName(), loaded.getFileName());
+		em.close();
+	}
+
+	@Test
+	public void dictionaryShouldStoreEachTermOnce(){
+		List<WebMetric> metrics = generateMetrics();
+		EntityManager em = emf.createEntityManager();
+		long pages = em.createQuery("SELECT COUNT(t) FROM DictionaryTerm t WHERE t.kind = :kind", Long.class)
+				.setParameter("kind", DictionaryTerm.Kind.PAGE).getSingleResult();
+		long sites = em.createQuery("SELECT COUNT(t) FROM DictionaryTerm t WHERE t.kind = :kind", Long.class)
+				.setParameter("kind", DictionaryTerm.Kind.SITE).getSingleResult();
+		em.close();
+		Assert.assertEquals(ROWS, pages);
+		Assert.assertEquals(1, sites);
+		WebMetric first = metrics.get(0);
+		Assert.assertEquals(first.getPage(), dictionary.termOf(first.getPageId()));
+		Assert.assertEquals(first.getSiteId(), metrics.get(metrics.size() - 1).getSiteId());
+		Assert.assertEquals(first.getPageId(), dictionary.idOf(DictionaryTerm.Kind.PAGE, first.getPage()));
+	}
+
+	// -------------------------------------------------------------------
+
+	private void write(MetricBulkWriter.Mode mode){
+		List<WebMetric> metrics = generateMetrics();
+		EntityManager em = emf.createEntityManager();
+		em.getTransaction().begin();
+		int written = new MetricBulkWriter(em, mode, MetricBulkWriter.DEFAULT_BATCH_SIZE).write(metrics);
+		em.getTransaction().commit();
+		em.close();
+		Assert.assertEquals(ROWS, written);
+		assertRowCount(ROWS);
+	}
+
+	/**
+	 * @return metrics with their dictionary ids set, the terms committed before any timing starts
+	 */
+	private static List<WebMetric> generateMetrics(){
+		List<WebMetric> metrics = newMetrics();
+		EntityManager em = emf.createEntityManager();
+		em.getTransaction().begin();
+		dictionary.encode(em, metrics);
+		em.getTransaction().commit();
+		em.close();
+		return metrics;
+	}
+
+	private static List<WebMetric> newMetrics(){
+		Date date = new Date();
+		List<WebMetric> metrics = new ArrayList<WebMetric>(ROWS);
+		for (int i = 0; i < ROWS; i++){
+			WebMetric metric = new WebMetric("/opt/data/jboss.org/Analytics jboss.org Pages 20131101-20131130.csv", "jboss.org", date);
+			metric.setPage("/project" + (i % 250) + "/docs/page-" + i);
+			metric.setProject("jboss.org");
+			metric.setPageViews(100000 - i);
+			metric.setUniquePageViews(50000 - i / 2);
+			metric.setEntrances(1000 + i);
+			metric.setAverageTimeOnPage(i % 600);
+			metric.setBounceRate(i % 100 + 0.25f);
+			metric.setPercentExit(i % 50 + 0.5f);
+			metrics.add(metric);
+		}
+		return metrics;
+	}
+
+	private static void assertRowCount(long expected){
+		EntityManager em = emf.createEntityManager();
+		long count = em.createQuery("SELECT COUNT(m) FROM WebMetric m", Long.class).getSingleResult();
+		em.close();
+		Assert.assertEquals(expected, count);
+	}
+}
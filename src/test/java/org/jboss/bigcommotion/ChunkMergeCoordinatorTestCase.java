@@ -0,0 +1,186 @@
+package org.jboss.bigcommotion;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+
+import org.jboss.bigcommotion.model.IngestLedgerEntry;
+import org.jboss.bigcommotion.model.ReportChunk;
+import org.jboss.bigcommotion.model.WebMetric;
+import org.jboss.bigcommotion.services.ChunkMergeCoordinator;
+import org.jboss.bigcommotion.services.IngestLedger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Merging the chunks of a report against an in-memory H2 database, and ignoring the chunks of
+ * imports the ledger no longer shows in progress.
+ */
+public class ChunkMergeCoordinatorTestCase extends MetricsTestSupport {
+
+	private static final String SITE = "jboss.org";
+	private static final String REPORT = "/reports/Analytics jboss.org Pages 20131101-20131130.csv";
+	private static final Date MONTH = new GregorianCalendar(2013, 10, 1).getTime();
+
+	private EntityManager em;
+	private ChunkMergeCoordinator coordinator;
+
+	@Before
+	public void createCoordinator() throws Exception {
+		em = emf.createEntityManager();
+		em.getTransaction().begin();
+		em.createQuery("DELETE FROM StagedChunk").executeUpdate();
+		em.createQuery("DELETE FROM IngestLedgerEntry").executeUpdate();
+		em.getTransaction().commit();
+
+		IngestLedger ledger = new IngestLedger();
+		withLogger(ledger);
+		inject(ledger, "em", em);
+		inject(ledger, "txRegistry", new NoTransactionRegistry());
+
+		coordinator = new ChunkMergeCoordinator();
+		withLogger(coordinator);
+		inject(coordinator, "em", em);
+		inject(coordinator, "txRegistry", new NoTransactionRegistry());
+		inject(coordinator, "ledger", ledger);
+	}
+
+	@After
+	public void closeEntityManager(){
+		em.close();
+	}
+
+	@Test
+	public void lastChunkShouldMergeEveryChunkInFileOrder(){
+		IngestLedgerEntry entry = processing("first");
+
+		Assert.assertNull(submit(part(entry, "first", 1, "/hibernate")));
+		Assert.assertEquals(1, coordinator.getPendingCount());
+		Assert.assertEquals(1L, stagedCount());
+		List<WebMetric> rows = submit(part(entry, "first", 0, "/as7"));
+		Assert.assertEquals(Arrays.asList("/as7", "/hibernate"), pagesOf(rows));
+		Assert.assertEquals(0, coordinator.getPendingCount());
+		Assert.assertEquals(0L, stagedCount());
+	}
+
+	@Test
+	public void chunksOfASupersededImportShouldBeIgnored(){
+		IngestLedgerEntry entry = processing("second");
+
+		Assert.assertNull(submit(part(entry, "first", 0, "/as7")));
+		Assert.assertNull(submit(part(entry, "first", 1, "/hibernate")));
+		Assert.assertEquals(0, coordinator.getPendingCount());
+		Assert.assertEquals(0L, stagedCount());
+	}
+
+	@Test
+	public void chunkRedeliveredAfterItsImportCompletedShouldBeIgnored(){
+		IngestLedgerEntry entry = processing("first");
+		submit(part(entry, "first", 0, "/as7"));
+		submit(part(entry, "first", 1, "/hibernate"));
+		em.getTransaction().begin();
+		em.find(IngestLedgerEntry.class, entry.getId()).setStatus(IngestLedgerEntry.Status.COMPLETED);
+		em.getTransaction().commit();
+
+		Assert.assertNull(submit(part(entry, "first", 1, "/hibernate")));
+		Assert.assertEquals(0, coordinator.getPendingCount());
+		Assert.assertEquals(0L, stagedCount());
+	}
+
+	@Test
+	public void expiringAnImportShouldOnlyFailItsOwnLedgerEntry(){
+		IngestLedgerEntry entry = processing("first");
+		submit(part(entry, "first", 0, "/as7"));
+		stale();
+		expire();
+		Assert.assertEquals(IngestLedgerEntry.Status.FAILED, em.find(IngestLedgerEntry.class, entry.getId()).getStatus());
+
+		// Dispatched again while a chunk of the first import was staged
+		entry = processing("second");
+		submit(part(entry, "second", 0, "/as7"));
+		em.getTransaction().begin();
+		em.find(IngestLedgerEntry.class, entry.getId()).setImportId("third");
+		em.getTransaction().commit();
+		stale();
+		expire();
+		Assert.assertEquals(IngestLedgerEntry.Status.PROCESSING, em.find(IngestLedgerEntry.class, entry.getId()).getStatus());
+		Assert.assertEquals(0L, stagedCount());
+	}
+
+	// -------------------------------------------------------------------
+
+	private IngestLedgerEntry processing(String importId){
+		em.getTransaction().begin();
+		List<IngestLedgerEntry> existing = em.createQuery("SELECT e FROM IngestLedgerEntry e", IngestLedgerEntry.class).getResultList();
+		IngestLedgerEntry entry = existing.isEmpty()
+				? new IngestLedgerEntry(REPORT, "0123456789abcdef0123456789abcdef01234567", SITE, MONTH, IngestLedgerEntry.Status.PROCESSING)
+				: existing.get(0);
+		entry.setStatus(IngestLedgerEntry.Status.PROCESSING);
+		entry.setImportId(importId);
+		if (existing.isEmpty())
+			em.persist(entry);
+		em.getTransaction().commit();
+		em.clear();
+		return entry;
+	}
+
+	private static ChunkMergeCoordinator.Part part(IngestLedgerEntry entry, String importId, int chunkIndex, String page){
+		ReportChunk chunk = new ReportChunk();
+		chunk.setImportId(importId);
+		chunk.setLedgerEntryId(entry.getId());
+		chunk.setSite(SITE);
+		chunk.setFileName(REPORT);
+		chunk.setDate(MONTH);
+		chunk.setChunkIndex(chunkIndex);
+		chunk.setChunkCount(2);
+		chunk.setFirstLine(chunkIndex * 10 + 1);
+		chunk.setLineCount(10);
+		WebMetric metric = new WebMetric(REPORT, SITE, MONTH);
+		metric.setPage(page);
+		metric.setPageViews(100);
+		return new ChunkMergeCoordinator.Part(chunk, Arrays.asList(metric), 0);
+	}
+
+	private List<WebMetric> submit(ChunkMergeCoordinator.Part part){
+		em.getTransaction().begin();
+		List<WebMetric> rows = coordinator.submit(part);
+		em.getTransaction().commit();
+		em.clear();
+		return rows;
+	}
+
+	private void expire(){
+		em.getTransaction().begin();
+		coordinator.expire();
+		em.getTransaction().commit();
+		em.clear();
+	}
+
+	/**
+	 * Ages the staged chunks past the pending timeout.
+	 */
+	private void stale(){
+		em.getTransaction().begin();
+		em.createQuery("UPDATE StagedChunk s SET s.created = :created")
+				.setParameter("created", new GregorianCalendar(2014, 0, 1).getTime())
+				.executeUpdate();
+		em.getTransaction().commit();
+	}
+
+	private long stagedCount(){
+		return em.createQuery("SELECT COUNT(s) FROM StagedChunk s", Long.class).getSingleResult();
+	}
+
+	private static List<String> pagesOf(List<WebMetric> rows){
+		List<String> pages = new ArrayList<String>();
+		for (WebMetric row : rows)
+			pages.add(row.getPage());
+		return pages;
+	}
+}
@@ -0,0 +1,151 @@
+package org.jboss.bigcommotion;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.jboss.bigcommotion.util.ColumnarQuery;
+import org.jboss.bigcommotion.util.MetricColumns;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Ensures parallel group-by scans over column blocks give the same totals and top groups as adding
+ * the rows up one by one, over two years of two sites.
+ */
+public class ColumnarQueryTestCase {
+
+	private static final int SITES = 2;
+	private static final int MONTHS = 24;
+	private static final int ROWS_PER_MONTH = 20000;
+	private static final int PAGES = 30000;
+	private static final int PROJECTS = 40;
+
+	private static List<MetricColumns> blocks;
+	private static ForkJoinPool pool;
+
+	@BeforeClass
+	public static void loadBlocks(){
+		Random random = new Random(42);
+		blocks = new ArrayList<MetricColumns>();
+		for (int site = 1; site <= SITES; site++){
+			for (int month = 0; month < MONTHS; month++){
+				MetricColumns.Builder builder = new MetricColumns.Builder(site, 201201 + month / 12 * 100 + month % 12);
+				for (int row = 0; row < ROWS_PER_MONTH; row++){
+					// Skewed towards low page ids, like real traffic
+					int page = 1000 + (int) (PAGES * Math.pow(random.nextDouble(), 3));
+					long views = 1 + random.nextInt(500);
+					builder.append(page, 100 + page % PROJECTS, views, views / 2, random.nextInt(50), random.nextInt(300),
+							random.nextInt(10) == 0 ? null : Float.valueOf(random.nextFloat() * 100),
+							Float.valueOf(random.nextFloat() * 100));
+				}
+				blocks.add(builder.build());
+			}
+		}
+		pool = new ForkJoinPool();
+	}
+
+	@AfterClass
+	public static void shutdown(){
+		pool.shutdown();
+	}
+
+	@Test
+	public void monthKeysShouldRoundTrip(){
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(2013, Calendar.NOVEMBER, 17, 13, 5);
+		Assert.assertEquals(201311, MetricColumns.monthKey(calendar.getTime()));
+		calendar.set(2013, Calendar.NOVEMBER, 1, 0, 0);
+		Assert.assertEquals(calendar.getTime(), MetricColumns.monthOf(201311));
+	}
+
+	@Test
+	public void topPagesShouldMatchRowByRowTotals(){
+		List<ColumnarQuery.Group> top = new ColumnarQuery(ColumnarQuery.GroupBy.PAGE, ColumnarQuery.Measure.PAGE_VIEWS,
+				null, null, 100).execute(blocks, pool);
+
+		Map<Integer, long[]> expected = naive(ColumnarQuery.GroupBy.PAGE, null);
+		List<Map.Entry<Integer, long[]>> ranked = new ArrayList<Map.Entry<Integer, long[]>>(expected.entrySet());
+		Collections.sort(ranked, new Comparator<Map.Entry<Integer, long[]>>(){
+			@Override
+			public int compare(Map.Entry<Integer, long[]> a, Map.Entry<Integer, long[]> b){
+				if (a.getValue()[0] != b.getValue()[0])
+					return a.getValue()[0] > b.getValue()[0] ? -1 : 1;
+				return a.getKey().compareTo(b.getKey());
+			}
+		});
+		Assert.assertEquals(100, top.size());
+		for (int i = 0; i < top.size(); i++){
+			ColumnarQuery.Group group = top.get(i);
+			Map.Entry<Integer, long[]> row = ranked.get(i);
+			Assert.assertEquals(row.getKey().intValue(), group.getKey());
+			Assert.assertEquals(row.getValue()[0], group.getPageViews());
+			Assert.assertEquals(row.getValue()[1], group.getUniquePageViews());
+			Assert.assertEquals(row.getValue()[2], group.getEntrances());
+			Assert.assertEquals(row.getValue()[3], group.getRowCount());
+		}
+	}
+
+	@Test
+	public void projectFilterShouldOnlyCountItsRows(){
+		List<Integer> projects = Arrays.asList(Integer.valueOf(105), Integer.valueOf(117));
+		List<ColumnarQuery.Group> months = new ColumnarQuery(ColumnarQuery.GroupBy.MONTH, ColumnarQuery.Measure.ROWS,
+				projects, null, MONTHS).execute(blocks, pool);
+		Map<Integer, long[]> expected = naive(ColumnarQuery.GroupBy.MONTH, projects);
+		Assert.assertEquals(MONTHS, months.size());
+		for (ColumnarQuery.Group month : months){
+			long[] totals = expected.get(Integer.valueOf(month.getKey()));
+			Assert.assertEquals(totals[0], month.getPageViews());
+			Assert.assertEquals(totals[3], month.getRowCount());
+			Assert.assertTrue(month.getBounceRate() > 0 && month.getBounceRate() < 100);
+		}
+
+		List<ColumnarQuery.Group> sites = new ColumnarQuery(ColumnarQuery.GroupBy.SITE, ColumnarQuery.Measure.PAGE_VIEWS,
+				null, null, 10).execute(blocks, pool);
+		Assert.assertEquals(SITES, sites.size());
+		Assert.assertEquals(SITES * MONTHS * ROWS_PER_MONTH, sites.get(0).getRowCount() + sites.get(1).getRowCount());
+	}
+
+	@Test
+	public void unknownProjectShouldMatchNothing(){
+		List<ColumnarQuery.Group> groups = new ColumnarQuery(ColumnarQuery.GroupBy.PROJECT, ColumnarQuery.Measure.PAGE_VIEWS,
+				new ArrayList<Integer>(), null, 10).execute(blocks, pool);
+		Assert.assertTrue(groups.isEmpty());
+	}
+
+	// -------------------------------------------------------------------
+
+	/**
+	 * @return pageviews, unique pageviews, entrances and rows by group, added up row by row
+	 */
+	private static Map<Integer, long[]> naive(ColumnarQuery.GroupBy groupBy, List<Integer> projects){
+		Map<Integer, long[]> totals = new HashMap<Integer, long[]>();
+		for (MetricColumns block : blocks){
+			for (int row = 0; row < block.size(); row++){
+				if (projects != null && !projects.contains(Integer.valueOf(block.projectId(row))))
+					continue;
+				Integer key = Integer.valueOf(groupBy == ColumnarQuery.GroupBy.PAGE ? block.pageId(row) : block.getMonth());
+				long[] sums = totals.get(key);
+				if (sums == null){
+					sums = new long[4];
+					totals.put(key, sums);
+				}
+				sums[0] += block.pageViews(row);
+				sums[1] += block.uniquePageViews(row);
+				sums[2] += block.entrances(row);
+				sums[3]++;
+			}
+		}
+		return totals;
+	}
+}
@@ -0,0 +1,94 @@
+package org.jboss.bigcommotion;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import javax.persistence.EntityManager;
+
+import org.jboss.bigcommotion.model.IngestLedgerEntry;
+import org.jboss.bigcommotion.services.IngestLedger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Telling whether a report changed on disk since its import, against an in-memory H2 database.
+ */
+public class IngestLedgerTestCase extends MetricsTestSupport {
+
+	private static final String SITE = "jboss.org";
+	private static final String REPORT = "Analytics jboss.org Pages 20131101-20131130.csv";
+	private static final Date MONTH = new GregorianCalendar(2013, 10, 1).getTime();
+
+	private File dir;
+	private EntityManager em;
+	private IngestLedger ledger;
+
+	@Before
+	public void createLedger() throws Exception {
+		dir = File.createTempFile("reports", "");
+		dir.delete();
+		dir.mkdir();
+
+		em = emf.createEntityManager();
+		em.getTransaction().begin();
+		em.createQuery("DELETE FROM IngestLedgerEntry").executeUpdate();
+		em.getTransaction().commit();
+
+		ledger = new IngestLedger();
+		withLogger(ledger);
+		inject(ledger, "em", em);
+	}
+
+	@After
+	public void closeEntityManager(){
+		em.close();
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void reportRewrittenSinceItsImportShouldBeChanged() throws IOException {
+		File report = report("November");
+		imported(report, IngestLedger.checksum(report));
+		Assert.assertFalse(ledger.isChanged(report));
+
+		report("November, downloaded again");
+		Assert.assertTrue(ledger.isChanged(report));
+	}
+
+	@Test
+	public void reportWithoutAChecksumShouldNotBeChanged() throws IOException {
+		File report = report("November");
+		Assert.assertFalse(ledger.isChanged(report));
+
+		imported(report, null);
+		Assert.assertFalse(ledger.isChanged(report));
+	}
+
+	// -------------------------------------------------------------------
+
+	private File report(String contents) throws IOException {
+		File file = new File(dir, REPORT);
+		Writer out = new FileWriter(file);
+		try {
+			out.write(contents);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private void imported(File file, String checksum){
+		em.getTransaction().begin();
+		em.persist(new IngestLedgerEntry(file.getAbsolutePath(), checksum, SITE, MONTH, IngestLedgerEntry.Status.COMPLETED));
+		em.getTransaction().commit();
+		em.clear();
+	}
+}
@@ -0,0 +1,116 @@
+package org.jboss.bigcommotion;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.jboss.bigcommotion.util.ColumnarQuery;
+import org.jboss.bigcommotion.util.MetricColumns;
+import org.jboss.bigcommotion.util.MetricSnapshot;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Ensures a block reads back the same from its snapshot file, narrowed columns included, that
+ * queries over the mapped file match the heap block, and that damaged files are rejected.
+ */
+public class MetricSnapshotTestCase {
+
+	private File dir;
+
+	@Before
+	public void createDirectory() throws IOException {
+		dir = File.createTempFile("snapshots", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@After
+	public void deleteDirectory(){
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void snapshotShouldReadBackEveryColumn() throws IOException {
+		Random random = new Random(7);
+		MetricColumns.Builder builder = new MetricColumns.Builder(12, 201311);
+		for (int row = 0; row < 50000; row++){
+			builder.append(100000 + random.nextInt(60000), 42, random.nextInt(200), random.nextInt(100),
+					row == 7 ? 5000000000L : random.nextInt(10), random.nextInt(600),
+					row % 9 == 0 ? null : Float.valueOf(random.nextFloat() * 100), Float.valueOf(row % 100));
+		}
+		MetricColumns heap = builder.build();
+		File file = new File(dir, MetricSnapshot.fileName(heap.getSiteId(), heap.getMonth()));
+		long bytes = MetricSnapshot.write(heap, 5, file);
+
+		Assert.assertEquals(file.length(), bytes);
+		Assert.assertEquals(1, dir.listFiles().length);
+		// Pages and counts narrow to one or two bytes and the constant project to none; one large
+		// entrance count keeps that column at eight
+		Assert.assertTrue(bytes < heap.getMemoryBytes() * 3 / 5);
+		MetricSnapshot snapshot = MetricSnapshot.open(file);
+		Assert.assertEquals(12, snapshot.getSiteId());
+		Assert.assertEquals(201311, snapshot.getMonth());
+		Assert.assertEquals(heap.size(), snapshot.size());
+		Assert.assertEquals(5, snapshot.getMonthVersion());
+		for (int row = 0; row < heap.size(); row++){
+			Assert.assertEquals(heap.pageId(row), snapshot.pageId(row));
+			Assert.assertEquals(heap.projectId(row), snapshot.projectId(row));
+			Assert.assertEquals(heap.pageViews(row), snapshot.pageViews(row));
+			Assert.assertEquals(heap.uniquePageViews(row), snapshot.uniquePageViews(row));
+			Assert.assertEquals(heap.entrances(row), snapshot.entrances(row));
+			Assert.assertEquals(heap.averageTimeOnPage(row), snapshot.averageTimeOnPage(row));
+			Assert.assertEquals(Float.floatToIntBits(heap.bounceRate(row)), Float.floatToIntBits(snapshot.bounceRate(row)));
+			Assert.assertEquals(heap.percentExit(row), snapshot.percentExit(row), 0f);
+		}
+		Assert.assertTrue(Float.isNaN(snapshot.bounceRate(0)));
+
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			ColumnarQuery query = new ColumnarQuery(ColumnarQuery.GroupBy.PAGE, ColumnarQuery.Measure.PAGE_VIEWS, null, null, 20);
+			List<ColumnarQuery.Group> fromHeap = query.execute(Collections.singletonList(heap), pool);
+			List<ColumnarQuery.Group> fromSnapshot = query.execute(Collections.<MetricColumns>singletonList(snapshot), pool);
+			Assert.assertEquals(fromHeap.size(), fromSnapshot.size());
+			for (int i = 0; i < fromHeap.size(); i++){
+				Assert.assertEquals(fromHeap.get(i).getKey(), fromSnapshot.get(i).getKey());
+				Assert.assertEquals(fromHeap.get(i).getPageViews(), fromSnapshot.get(i).getPageViews());
+				Assert.assertEquals(fromHeap.get(i).getBounceRate(), fromSnapshot.get(i).getBounceRate(), 0f);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void emptyMonthShouldHaveAnEmptySnapshot() throws IOException {
+		File file = new File(dir, MetricSnapshot.fileName(3, 201401));
+		MetricSnapshot.write(new MetricColumns.Builder(3, 201401).build(), 0, file);
+		MetricSnapshot snapshot = MetricSnapshot.open(file);
+		Assert.assertEquals(0, snapshot.size());
+		Assert.assertEquals(201401, snapshot.getMonth());
+	}
+
+	@Test(expected = IOException.class)
+	public void truncatedSnapshotShouldBeRejected() throws IOException {
+		MetricColumns.Builder builder = new MetricColumns.Builder(3, 201401);
+		for (int row = 0; row < 1000; row++)
+			builder.append(row, 1, row * 1000, row, 0, 30, Float.valueOf(50f), Float.valueOf(20f));
+		File file = new File(dir, MetricSnapshot.fileName(3, 201401));
+		MetricSnapshot.write(builder.build(), 0, file);
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.setLength(file.length() - 100);
+		} finally {
+			out.close();
+		}
+		MetricSnapshot.open(file);
+	}
+}
@@ -0,0 +1,143 @@
+package org.jboss.bigcommotion;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.logging.Logger;
+
+import javax.ejb.SessionContext;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+/**
+ * Runs services outside the container.  Tests of services that use the database extend it for the
+ * in-memory H2 database of the metrics-test persistence unit, created once per test class; the
+ * static methods wire services together the way the container would, fields set as it would inject
+ * them and @PostConstruct methods called by name.
+ */
+public abstract class MetricsTestSupport {
+
+	static final String PERSISTENCE_UNIT = "metrics-test";
+
+	protected static EntityManagerFactory emf;
+
+	@BeforeClass
+	public static void createEntityManagerFactory(){
+		emf = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT);
+	}
+
+	@AfterClass
+	public static void closeEntityManagerFactory(){
+		emf.close();
+	}
+
+	static <T> T inject(T bean, String fieldName, Object value){
+		try {
+			Field field = bean.getClass().getDeclaredField(fieldName);
+			field.setAccessible(true);
+			field.set(bean, value);
+			return bean;
+		} catch (Exception e){
+			throw new IllegalStateException("Cannot set " + fieldName + " on " + bean.getClass().getName(), e);
+		}
+	}
+
+	static <T> T withLogger(T bean){
+		return inject(bean, "logger", Logger.getLogger(bean.getClass().getName()));
+	}
+
+	static <T> T postConstruct(T bean, String methodName){
+		try {
+			Method method = bean.getClass().getDeclaredMethod(methodName);
+			method.setAccessible(true);
+			method.invoke(bean);
+			return bean;
+		} catch (Exception e){
+			throw new IllegalStateException("Cannot call " + methodName + " on " + bean.getClass().getName(), e);
+		}
+	}
+
+	/**
+	 * @return a session context whose business object is the bean itself, so calls a bean makes
+	 * through the container to its own REQUIRES_NEW methods join the test's transaction
+	 */
+	static SessionContext selfContext(final Object bean){
+		return (SessionContext) Proxy.newProxyInstance(MetricsTestSupport.class.getClassLoader(), new Class<?>[] { SessionContext.class },
+				new InvocationHandler(){
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args){
+						if (method.getName().equals("getBusinessObject"))
+							return bean;
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	/**
+	 * @return a session context that marks the entity manager's transaction for rollback, as the
+	 * container would the bean's
+	 */
+	static SessionContext rollbackContext(final EntityManager em){
+		return (SessionContext) Proxy.newProxyInstance(MetricsTestSupport.class.getClassLoader(), new Class<?>[] { SessionContext.class },
+				new InvocationHandler(){
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args){
+						if (method.getName().equals("setRollbackOnly")){
+							em.getTransaction().setRollbackOnly();
+							return null;
+						}
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	/**
+	 * Stands in for the JTA registry when the entity manager is resource local: there is never a
+	 * current transaction, so services apply their after-commit work at once.
+	 */
+	static class NoTransactionRegistry implements TransactionSynchronizationRegistry {
+
+		@Override
+		public Object getTransactionKey(){
+			return null;
+		}
+
+		@Override
+		public void putResource(Object key, Object value){
+			throw new IllegalStateException("No transaction");
+		}
+
+		@Override
+		public Object getResource(Object key){
+			return null;
+		}
+
+		@Override
+		public void registerInterposedSynchronization(Synchronization sync){
+			throw new IllegalStateException("No transaction");
+		}
+
+		@Override
+		public int getTransactionStatus(){
+			return Status.STATUS_NO_TRANSACTION;
+		}
+
+		@Override
+		public void setRollbackOnly(){
+			throw new IllegalStateException("No transaction");
+		}
+
+		@Override
+		public boolean getRollbackOnly(){
+			return false;
+		}
+	}
+}
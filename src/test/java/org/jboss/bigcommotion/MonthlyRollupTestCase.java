@@ -0,0 +1,97 @@
+package org.jboss.bigcommotion;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.jboss.bigcommotion.model.MonthlyRollup;
+import org.jboss.bigcommotion.model.PageMonthRollup;
+import org.jboss.bigcommotion.model.ProjectMonthRollup;
+import org.jboss.bigcommotion.model.WebMetric;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Ensures rollups weight rates by pageviews and give the same totals however the rows are split
+ * between imports.
+ */
+public class MonthlyRollupTestCase {
+
+	@Test
+	public void ratesShouldBeWeightedByPageViews() throws Exception {
+		Date month = date("2013-11-01");
+		ProjectMonthRollup rollup = new ProjectMonthRollup("jboss.org", "weld", month);
+		rollup.add(metric("/weld", 900, 10f, 20f, 30));
+		rollup.add(metric("/weld/docs", 100, 50f, 60f, 130));
+
+		Assert.assertEquals(1000, rollup.getPageViews());
+		Assert.assertEquals(14f, rollup.getBounceRate(), 0.0001f);
+		Assert.assertEquals(24f, rollup.getPercentExit(), 0.0001f);
+		Assert.assertEquals(40, rollup.getAverageTimeOnPage());
+		Assert.assertEquals(2, rollup.getRowCount());
+	}
+
+	@Test
+	public void splittingRowsShouldNotChangeTotals() throws Exception {
+		Date month = date("2013-11-01");
+		List<WebMetric> metrics = new ArrayList<WebMetric>();
+		for (int i = 0; i < 100; i++)
+			metrics.add(metric("/page" + i, 10 + i * 7, i % 100, (i * 3) % 100, i % 60));
+
+		ProjectMonthRollup all = new ProjectMonthRollup("jboss.org", "weld", month);
+		for (WebMetric metric : metrics)
+			all.add(metric);
+
+		ProjectMonthRollup first = new ProjectMonthRollup("jboss.org", "weld", month);
+		ProjectMonthRollup second = new ProjectMonthRollup("jboss.org", "weld", month);
+		for (int i = 0; i < metrics.size(); i++)
+			(i % 3 == 0 ? first : second).add(metrics.get(i));
+		second.add(first);
+
+		Assert.assertEquals(all.getPageViews(), second.getPageViews());
+		Assert.assertEquals(all.getUniquePageViews(), second.getUniquePageViews());
+		Assert.assertEquals(all.getEntrances(), second.getEntrances());
+		Assert.assertEquals(all.getBounceRate(), second.getBounceRate(), 0.0001f);
+		Assert.assertEquals(all.getPercentExit(), second.getPercentExit(), 0.0001f);
+		Assert.assertEquals(all.getRowCount(), second.getRowCount());
+	}
+
+	@Test
+	public void emptyRollupShouldHaveZeroRates() throws Exception {
+		ProjectMonthRollup rollup = new ProjectMonthRollup("jboss.org", "weld", date("2013-11-01"));
+		Assert.assertEquals(0f, rollup.getBounceRate(), 0f);
+		Assert.assertEquals(0, rollup.getAverageTimeOnPage());
+	}
+
+	@Test
+	public void monthsShouldStartOnTheFirst() throws Exception {
+		Assert.assertEquals(date("2013-11-01"), MonthlyRollup.monthOf(date("2013-11-17")));
+		Assert.assertEquals(date("2014-01-01"), MonthlyRollup.nextMonth(date("2013-12-31")));
+		Assert.assertEquals(date("2013-11-01"), new PageMonthRollup("jboss.org", "/weld", date("2013-11-30")).getMonth());
+	}
+
+	@Test
+	public void pageKeysShouldBeStable(){
+		Assert.assertEquals(32, PageMonthRollup.keyOf("/weld").length());
+		Assert.assertEquals(PageMonthRollup.keyOf("/weld"), PageMonthRollup.keyOf("/weld"));
+		Assert.assertFalse(PageMonthRollup.keyOf("/weld").equals(PageMonthRollup.keyOf("/Weld")));
+	}
+
+	private static WebMetric metric(String page, long pageViews, float bounceRate, float percentExit, int timeOnPage) throws Exception {
+		WebMetric metric = new WebMetric("Analytics jboss.org Pages 20131101-20131130.csv", "jboss.org", date("2013-11-01"));
+		metric.setPage(page);
+		metric.setProject("weld");
+		metric.setPageViews(pageViews);
+		metric.setUniquePageViews(pageViews / 2);
+		metric.setEntrances(pageViews / 3);
+		metric.setBounceRate(bounceRate);
+		metric.setPercentExit(percentExit);
+		metric.setAverageTimeOnPage(timeOnPage);
+		return metric;
+	}
+
+	private static Date date(String date) throws Exception {
+		return new SimpleDateFormat("yyyy-MM-dd").parse(date);
+	}
+}
@@ -0,0 +1,103 @@
+package org.jboss.bigcommotion;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jboss.bigcommotion.util.PageClassifier;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Ensures logic/PageClassification.rules reproduces the rewrites that used to be hardcoded in
+ * AnalyticsPageViewParser and the project assignments that used to be run from updates.sql.
+ */
+public class PageClassifierTestCase {
+
+	private static PageClassifier classifier;
+
+	@BeforeClass
+	public static void loadRules() throws IOException {
+		classifier = PageClassifier.fromClasspath(PageClassifier.DEFAULT_RULES);
+	}
+
+	@Test
+	public void downloadPagesShouldBeConsolidated(){
+		Assert.assertEquals("/jbossas/downloads", classifier.normalize("jboss.org", "/jbossorg-downloads/jboss-6.0.0.final"));
+		Assert.assertEquals("/tools/download", classifier.normalize("jboss.org", "/tools/download/4.1.html"));
+		Assert.assertEquals("/Tools/Download/4.1", classifier.normalize("jboss.org", "/Tools/Download/4.1"));
+	}
+
+	@Test
+	public void onlyRootShouldKeepTrailingSlash(){
+		Assert.assertEquals("/", classifier.normalize("jboss.org", "/"));
+		Assert.assertEquals("/weld/docs", classifier.normalize("jboss.org", "/weld/docs/"));
+	}
+
+	@Test
+	public void substringRulesShouldMatchAnywhere(){
+		Assert.assertEquals("drools", classifier.classify("jboss.org", "jboss.org", "/community/Drools/docs"));
+		Assert.assertEquals("jbossas", classifier.classify("jboss.org", "jboss.org", "/x/jbossapplicationserver7/downloads"));
+	}
+
+	@Test
+	public void prefixRulesShouldOnlyMatchAtStart(){
+		Assert.assertEquals("JBossWay", classifier.classify("jboss.org", "jboss.org", "/developer/quickstarts"));
+		Assert.assertEquals("jboss.org", classifier.classify("jboss.org", "jboss.org", "/about/developer"));
+	}
+
+	@Test
+	public void rulesShouldRespectSiteAndProject(){
+		Assert.assertEquals("EAP", classifier.classify("www.jboss.org", "www.jboss.org", "/products/eap/download"));
+		Assert.assertEquals("EAP", classifier.classify("jboss.org", "jboss.org", "/docs/EAPdocumentation"));
+		Assert.assertEquals("jboss.org", classifier.classify("jboss.org", "jboss.org", "/docs/eapdocumentation"));
+		// Already classified by the decision table, so the jboss.org-only rules leave it alone.
+		Assert.assertEquals("jbossas", classifier.classify("jboss.org", "jbossas", "/weld"));
+		Assert.assertEquals("hibernate", classifier.classify("hibernate.org", "hibernate", "/weld"));
+	}
+
+	@Test
+	public void firstMatchingRuleShouldWinForUnclassifiedPages(){
+		// Matches both /seam and /weld; /seam comes first in the rules.
+		Assert.assertEquals("seam", classifier.classify("jboss.org", "jboss.org", "/weld/seam"));
+	}
+
+	@Test
+	public void overlappingPatternsShouldAllBeFound() throws IOException {
+		PageClassifier overlapping = new PageClassifier(PageClassifier.parse(new StringReader(
+				"project contains * p1 /abcd first\n"
+				+ "project contains * p1 /bc   second\n"
+				+ "project contains * * cd    third\n")));
+		Assert.assertEquals("second", overlapping.classify("s", "p1", "/x/bc"));
+		Assert.assertEquals("p1", overlapping.classify("s", "p1", "/xbc"));
+		// "cd" is only reachable through the failure links out of "/abcd", and is applied after "first".
+		Assert.assertEquals("third", overlapping.classify("s", "p1", "/abcd"));
+		Assert.assertEquals("p1", overlapping.classify("s", "p1", "/BC"));
+	}
+
+	@Test
+	public void rulesShouldReadBackFromTheirLines() throws IOException {
+		StringBuilder lines = new StringBuilder();
+		for (PageClassifier.Rule rule : classifier.getRules())
+			lines.append(rule.toLine()).append('\n');
+		PageClassifier copy = new PageClassifier(PageClassifier.parse(new StringReader(lines.toString())));
+		Assert.assertEquals(classifier.getRules().size(), copy.getRules().size());
+		Assert.assertEquals(classifier.getFingerprint(), copy.getFingerprint());
+	}
+
+	@Test
+	public void fingerprintShouldChangeWithRuleOrder(){
+		List<PageClassifier.Rule> reordered = new ArrayList<PageClassifier.Rule>(classifier.getRules());
+		Collections.swap(reordered, 3, 4);
+		Assert.assertEquals(40, classifier.getFingerprint().length());
+		Assert.assertFalse(classifier.getFingerprint().equals(new PageClassifier(reordered).getFingerprint()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void malformedRuleShouldBeRejected() throws IOException {
+		PageClassifier.parse(new StringReader("project like * * /x y\n"));
+	}
+}
@@ -0,0 +1,157 @@
+package org.jboss.bigcommotion;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.jboss.bigcommotion.util.HyperLogLog;
+import org.jboss.bigcommotion.util.SpaceSaving;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Ensures page sketches merged over months stay within their stated error bounds against exact
+ * counts, and read back unchanged from their bytes.
+ */
+public class PageSketchTestCase {
+
+	private static final int MONTHS = 24;
+	private static final int PAGES_PER_MONTH = 2500;
+	private static final int PAGES = 60000;
+
+	@Test
+	public void distinctPagesShouldBeWithinTheStandardError(){
+		Random random = new Random(11);
+		Set<Integer> exact = new HashSet<Integer>();
+		HyperLogLog merged = new HyperLogLog();
+		for (int month = 0; month < MONTHS; month++){
+			HyperLogLog sketch = new HyperLogLog();
+			for (int row = 0; row < PAGES_PER_MONTH; row++){
+				int page = random.nextInt(PAGES);
+				exact.add(page);
+				sketch.add(page);
+			}
+			merged.merge(sketch);
+		}
+		long estimate = merged.cardinality();
+		Assert.assertEquals(exact.size(), estimate, exact.size() * merged.getStandardError() * 3);
+	}
+
+	@Test
+	public void fewPagesShouldBeCountedAlmostExactly(){
+		HyperLogLog sketch = new HyperLogLog();
+		for (int page = 1000; page < 1040; page++){
+			sketch.add(page);
+			sketch.add(page);
+		}
+		Assert.assertEquals(40, sketch.cardinality(), 1);
+	}
+
+	@Test
+	public void sketchesShouldReadBackFromBytes(){
+		HyperLogLog sparse = new HyperLogLog();
+		HyperLogLog dense = new HyperLogLog();
+		SpaceSaving summary = new SpaceSaving(16);
+		for (int page = 0; page < 100; page++){
+			sparse.add(page);
+			summary.offer(page, page * 10);
+		}
+		for (int page = 0; page < 50000; page++)
+			dense.add(page);
+
+		byte[] sparseBytes = sparse.toBytes();
+		Assert.assertTrue(sparseBytes.length < (1 << HyperLogLog.DEFAULT_PRECISION) / 2);
+		Assert.assertEquals(sparse.cardinality(), HyperLogLog.fromBytes(sparseBytes).cardinality());
+		Assert.assertEquals(dense.cardinality(), HyperLogLog.fromBytes(dense.toBytes()).cardinality());
+
+		SpaceSaving copy = SpaceSaving.fromBytes(summary.toBytes());
+		Assert.assertEquals(summary.getTotal(), copy.getTotal());
+		Assert.assertEquals(summary.getFloor(), copy.getFloor());
+		List<SpaceSaving.Entry> expected = summary.top(16);
+		List<SpaceSaving.Entry> actual = copy.top(16);
+		for (int i = 0; i < expected.size(); i++){
+			Assert.assertEquals(expected.get(i).getKey(), actual.get(i).getKey());
+			Assert.assertEquals(expected.get(i).getCount(), actual.get(i).getCount());
+			Assert.assertEquals(expected.get(i).getError(), actual.get(i).getError());
+		}
+	}
+
+	@Test
+	public void summaryUnderCapacityShouldBeExact(){
+		SpaceSaving summary = new SpaceSaving(100);
+		for (int page = 0; page < 100; page++){
+			summary.offer(page, page);
+			summary.offer(page, 1);
+		}
+		Assert.assertEquals(0, summary.getFloor());
+		List<SpaceSaving.Entry> top = summary.top(3);
+		Assert.assertEquals(99, top.get(0).getKey());
+		Assert.assertEquals(100, top.get(0).getCount());
+		Assert.assertEquals(0, top.get(0).getError());
+		Assert.assertEquals(97, top.get(2).getKey());
+	}
+
+	@Test
+	public void mergedTopPagesShouldBoundTrueCounts(){
+		Random random = new Random(5);
+		Map<Integer, Long> exact = new HashMap<Integer, Long>();
+		SpaceSaving merged = new SpaceSaving();
+		for (int month = 0; month < MONTHS; month++){
+			// Each month's report views a few pages heavily and many a little, as real ones do
+			SpaceSaving sketch = new SpaceSaving();
+			for (int row = 0; row < PAGES_PER_MONTH; row++){
+				int page = (int) (PAGES * Math.pow(random.nextDouble(), 3));
+				long pageViews = 1 + (long) (100000 / (1 + page));
+				Long total = exact.get(page);
+				exact.put(page, total == null ? pageViews : total + pageViews);
+				sketch.offer(page, pageViews);
+			}
+			merged.merge(sketch);
+		}
+
+		long total = 0;
+		for (Long pageViews : exact.values())
+			total += pageViews;
+		Assert.assertEquals(total, merged.getTotal());
+
+		int limit = 100;
+		List<SpaceSaving.Entry> top = merged.top(merged.size());
+		Set<Integer> kept = new HashSet<Integer>();
+		for (SpaceSaving.Entry entry : top){
+			long pageViews = exact.get(entry.getKey());
+			Assert.assertTrue("page " + entry.getKey() + " counted below its pageviews", entry.getCount() >= pageViews);
+			Assert.assertTrue("page " + entry.getKey() + " bounded above its pageviews", entry.getLowerBound() <= pageViews);
+			kept.add(entry.getKey());
+		}
+		for (Map.Entry<Integer, Long> page : exact.entrySet()){
+			if (!kept.contains(page.getKey()))
+				Assert.assertTrue("page " + page.getKey() + " missing", page.getValue() <= merged.getFloor());
+		}
+
+		List<Map.Entry<Integer, Long>> ranked = new ArrayList<Map.Entry<Integer, Long>>(exact.entrySet());
+		Collections.sort(ranked, new Comparator<Map.Entry<Integer, Long>>(){
+			@Override
+			public int compare(Map.Entry<Integer, Long> left, Map.Entry<Integer, Long> right){
+				return right.getValue().compareTo(left.getValue());
+			}
+		});
+		Set<Integer> exactTop = new HashSet<Integer>();
+		for (Map.Entry<Integer, Long> page : ranked.subList(0, limit))
+			exactTop.add(page.getKey());
+		long boundAfter = merged.getBoundAfter(limit);
+		int found = 0;
+		for (SpaceSaving.Entry entry : merged.top(limit)){
+			if (exactTop.contains(entry.getKey()))
+				found++;
+			if (entry.getLowerBound() >= boundAfter)
+				Assert.assertTrue("page " + entry.getKey() + " guaranteed but not in the top " + limit, exactTop.contains(entry.getKey()));
+		}
+		Assert.assertTrue(found >= limit * 9 / 10);
+	}
+}
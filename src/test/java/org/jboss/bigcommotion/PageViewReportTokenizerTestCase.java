@@ -0,0 +1,216 @@
+package org.jboss.bigcommotion;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Scanner;
+
+import org.jboss.bigcommotion.util.PageViewReportTokenizer;
+import org.jboss.bigcommotion.util.Resources;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Ensures the GA report tokenizer decodes the same values the old Scanner based parser did, on
+ * synthetic exports.  Its throughput is measured by TokenizerBenchmark.
+ */
+public class PageViewReportTokenizerTestCase {
+
+	private static final String REGEX_COMMAS_AND_QUOTES = ",(?=([^\"]*\"[^\"]*\")*[^\"]*$)";
+	private static final int HEADER_LINES = 7;
+	private static final int SYNTHETIC_ROWS = 200000;
+	// The Scanner's lookahead regex is quadratic in the input it has buffered, so the baseline gets a smaller export.
+	private static final int BASELINE_ROWS = 500;
+
+	private static String syntheticExport;
+	private static String baselineExport;
+
+	@BeforeClass
+	public static void generateExports(){
+		syntheticExport = generateExport(SYNTHETIC_ROWS);
+		baselineExport = generateExport(BASELINE_ROWS);
+	}
+
+	@Test
+	public void quotedThousandsShouldDecodeToLong() throws IOException {
+		PageViewReportTokenizer tokenizer = tokenize("/,\"1,234,567\",42,00:01:23,\"12,345\",45.67%,50.12%,$0.00\n");
+		Assert.assertEquals(8, tokenizer.getFieldCount());
+		Assert.assertEquals("/", tokenizer.getString(0));
+		Assert.assertEquals(1234567L, tokenizer.getLong(1));
+		Assert.assertEquals(42L, tokenizer.getLong(2));
+		Assert.assertEquals(83, tokenizer.getDuration(3));
+		Assert.assertEquals(12345L, tokenizer.getLong(4));
+		Assert.assertEquals(45.67f, tokenizer.getPercentage(5), 0.0f);
+		Assert.assertEquals(50.12f, tokenizer.getPercentage(6), 0.0f);
+	}
+
+	@Test
+	public void commasInsideQuotesShouldNotSplit() throws IOException {
+		PageViewReportTokenizer tokenizer = tokenize("\"/search?q=a,b\",1,\"say \"\"hi\"\"\"\r\n");
+		Assert.assertEquals(3, tokenizer.getFieldCount());
+		Assert.assertEquals("/search?q=a,b", tokenizer.getString(0));
+		Assert.assertEquals("say \"hi\"", tokenizer.getString(2));
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void nonNumericFieldShouldNotDecode() throws IOException {
+		tokenize("/,n/a\n").getLong(1);
+	}
+
+	@Test
+	public void blankLineShouldEndPageSection() throws IOException {
+		PageViewReportTokenizer tokenizer = new PageViewReportTokenizer(new StringReader("/,1\n\nDay Index,Pageviews"));
+		Assert.assertTrue(tokenizer.nextLine());
+		Assert.assertTrue(tokenizer.nextLine());
+		Assert.assertTrue(tokenizer.isBlankLine());
+		Assert.assertEquals(1, tokenizer.getFieldCount());
+		Assert.assertTrue(tokenizer.nextLine());
+		Assert.assertEquals(2, tokenizer.getFieldCount());
+		Assert.assertFalse(tokenizer.nextLine());
+		Assert.assertEquals(3, tokenizer.getLineNumber());
+	}
+
+	@Test
+	public void tokenizerShouldMatchScannerPath() throws Exception {
+		double[] scannerTotals = scanWithScanner(baselineExport);
+		double[] tokenizerTotals = scanWithTokenizer(baselineExport);
+
+		Assert.assertEquals("rows", BASELINE_ROWS, tokenizerTotals[0], 0.0);
+		Assert.assertEquals("rows", scannerTotals[0], tokenizerTotals[0], 0.0);
+		Assert.assertEquals("pageviews", scannerTotals[1], tokenizerTotals[1], 0.0);
+		Assert.assertEquals("entrances", scannerTotals[2], tokenizerTotals[2], 0.0);
+		Assert.assertEquals("bounce rate", scannerTotals[3], tokenizerTotals[3], 0.01);
+	}
+
+	@Test
+	public void tokenizerShouldReadEveryRowOfALargeExport() throws Exception {
+		double[] totals = scanWithTokenizer(syntheticExport);
+
+		long pageViews = 0;
+		for (int i = 0; i < SYNTHETIC_ROWS; i++)
+			pageViews += 10000000L - i * 37L;
+		Assert.assertEquals("rows", SYNTHETIC_ROWS, totals[0], 0.0);
+		Assert.assertEquals("pageviews", pageViews, totals[1], 0.0);
+	}
+
+	// -------------------------------------------------------------------
+
+	private static String generateExport(int rows){
+		StringBuilder sb = new StringBuilder(rows * 96);
+		sb.append("# ----------------------------------------\n");
+		sb.append("# jboss.org\n");
+		sb.append("# Pages\n");
+		sb.append("# 20131101-20131130\n");
+		sb.append("# ----------------------------------------\n");
+		sb.append("\n");
+		sb.append("Page,Pageviews,Unique Pageviews,Avg. Time on Page,Entrances,Bounce Rate,% Exit,Page Value\n");
+		for (int i = 0; i < rows; i++){
+			long views = 10000000L - i * 37L;
+			sb.append("/project").append(i % 250).append("/docs/page-").append(i).append(".html?ref=").append(i % 7);
+			sb.append(',').append(quotedThousands(views));
+			sb.append(',').append(quotedThousands(views / 2));
+			sb.append(",00:0").append(i % 10).append(':').append(10 + i % 50);
+			sb.append(',').append(quotedThousands(views / 3));
+			sb.append(',').append(i % 100).append('.').append(i % 10).append(i % 7).append('%');
+			sb.append(',').append((i * 3) % 100).append('.').append(i % 9).append("0%");
+			sb.append(",$0.00\n");
+		}
+		sb.append("\n");
+		sb.append("Day Index,Pageviews\n");
+		return sb.toString();
+	}
+
+	private static String quotedThousands(long value){
+		String digits = Long.toString(value);
+		if (digits.length() <= 3)
+			return digits;
+		StringBuilder sb = new StringBuilder("\"");
+		int lead = digits.length() % 3;
+		if (lead > 0)
+			sb.append(digits, 0, lead);
+		for (int i = lead; i < digits.length(); i += 3){
+			if (i > 0)
+				sb.append(',');
+			sb.append(digits, i, i + 3);
+		}
+		return sb.append('"').toString();
+	}
+
+	private static PageViewReportTokenizer tokenize(String line) throws IOException {
+		PageViewReportTokenizer tokenizer = new PageViewReportTokenizer(new StringReader(line));
+		Assert.assertTrue(tokenizer.nextLine());
+		return tokenizer;
+	}
+
+	/**
+	 * Runs the old Scanner loop on a thread with a large stack; the lookahead regex recurses once per
+	 * quoted field left in its buffer and overflows the default stack on larger exports.
+	 */
+	private static double[] scanWithScanner(final String export) throws InterruptedException {
+		final double[][] result = new double[1][];
+		Thread thread = new Thread(null, new Runnable(){
+			@Override
+			public void run(){
+				result[0] = scannerLoop(export);
+			}
+		}, "scanner-baseline", 256L * 1024 * 1024);
+		thread.start();
+		thread.join();
+		Assert.assertNotNull("Scanner baseline did not complete", result[0]);
+		return result[0];
+	}
+
+	/**
+	 * The tokenizing loop AnalyticsPageViewParser used before PageViewReportTokenizer.
+	 */
+	private static double[] scannerLoop(String export){
+		double[] totals = new double[4];
+		Scanner scanner = new Scanner(new StringReader(export));
+		for (int i = 0; i < HEADER_LINES; i++)
+			scanner.nextLine();
+		scanner.useDelimiter(REGEX_COMMAS_AND_QUOTES);
+		filescan:
+			while (scanner.hasNextLine()){
+				while (scanner.hasNext()){
+					try {
+						scanner.next();
+						long pageViews = Resources.stripQuotes(scanner.next());
+						Resources.stripQuotes(scanner.next());
+						scanner.next();
+						long entrances = Resources.stripQuotes(scanner.next());
+						Float bounceRate = Resources.parsePercentage(scanner.next());
+						Resources.parsePercentage(scanner.next());
+						scanner.nextLine();
+						totals[0]++;
+						totals[1] += pageViews;
+						totals[2] += entrances;
+						totals[3] += bounceRate.floatValue();
+					} catch (java.util.NoSuchElementException nse){
+						break filescan;
+					} catch (NumberFormatException nfe){
+						break filescan;
+					}
+				}
+			}
+		scanner.close();
+		return totals;
+	}
+
+	private static double[] scanWithTokenizer(String export) throws IOException {
+		double[] totals = new double[4];
+		PageViewReportTokenizer tokenizer = new PageViewReportTokenizer(new StringReader(export));
+		tokenizer.skipLines(HEADER_LINES);
+		while (tokenizer.nextLine() && tokenizer.getFieldCount() >= 7){
+			tokenizer.getString(0);
+			totals[0]++;
+			totals[1] += tokenizer.getLong(1);
+			tokenizer.getLong(2);
+			tokenizer.getDuration(3);
+			totals[2] += tokenizer.getLong(4);
+			totals[3] += tokenizer.getPercentage(5);
+			tokenizer.getPercentage(6);
+		}
+		tokenizer.close();
+		return totals;
+	}
+}
@@ -0,0 +1,169 @@
+package org.jboss.bigcommotion;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+
+import org.jboss.bigcommotion.model.DictionaryTerm;
+import org.jboss.bigcommotion.model.ReclassificationCheckpoint;
+import org.jboss.bigcommotion.model.WebMetric;
+import org.jboss.bigcommotion.services.DictionaryService;
+import org.jboss.bigcommotion.services.IngestMetrics;
+import org.jboss.bigcommotion.services.MetricBulkWriter;
+import org.jboss.bigcommotion.services.MetricDictionary;
+import org.jboss.bigcommotion.services.MetricRuleEngine;
+import org.jboss.bigcommotion.services.ProjectReclassifier;
+import org.jboss.bigcommotion.services.RollupService;
+import org.jboss.bigcommotion.util.PageClassifier;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Reclassification passes over metrics in an in-memory H2 database, with the page rules of the
+ * deployment and classification rules given by each test.  Rollup rebuilds are recorded rather
+ * than made.
+ */
+public class ProjectReclassifierTestCase extends MetricsTestSupport {
+
+	private static final String SITE = "jboss.org";
+	private static final String FILE = "/opt/data/jboss.org/Analytics jboss.org Pages 20131101-20131130.csv";
+	private static final Date MONTH = new GregorianCalendar(2013, 10, 1).getTime();
+
+	private static final MetricDictionary terms = new MetricDictionary();
+
+	private EntityManager em;
+	private ProjectReclassifier reclassifier;
+	private final List<String> rebuilt = new ArrayList<String>();
+
+	@Before
+	public void createReclassifier() throws Exception {
+		em = emf.createEntityManager();
+		em.getTransaction().begin();
+		em.createQuery("DELETE FROM WebMetric").executeUpdate();
+		em.createQuery("DELETE FROM ReclassificationCheckpoint").executeUpdate();
+		em.getTransaction().commit();
+
+		MetricRuleEngine ruleEngine = new MetricRuleEngine();
+		withLogger(ruleEngine);
+		inject(ruleEngine, "ingestMetrics", new IngestMetrics());
+		postConstruct(ruleEngine, "setup");
+
+		reclassifier = new ProjectReclassifier();
+		withLogger(reclassifier);
+		inject(reclassifier, "em", em);
+		inject(reclassifier, "ruleEngine", ruleEngine);
+		inject(reclassifier, "rollups", new RollupService(){
+			@Override
+			public int recompute(String site, Date month){
+				rebuilt.add(site + " " + month.getTime());
+				return 0;
+			}
+
+			@Override
+			public void changed(String site, Collection<Date> months){
+				// Versions are covered by RollupServiceTestCase
+			}
+		});
+		inject(reclassifier, "dictionary", new DictionaryService(){
+			@Override
+			public String termOf(Integer id){
+				return terms.termOf(id);
+			}
+
+			@Override
+			public Integer encode(DictionaryTerm.Kind kind, String term){
+				Integer id = terms.idOf(kind, term);
+				if (id == null)
+					terms.remember(kind, terms.insert(em, kind, Collections.singleton(term)));
+				return terms.idOf(kind, term);
+			}
+		});
+	}
+
+	@After
+	public void closeEntityManager(){
+		em.close();
+	}
+
+	@Test
+	public void decisionTableProjectsShouldSurviveAPass(){
+		// Assigned by MetricAnalysis.xls on import; no classification rule mentions it
+		importMetrics(metric("/as7", "jbossas"));
+
+		ReclassificationCheckpoint checkpoint = reclassifyAll(new PageClassifier(Collections.<PageClassifier.Rule>emptyList()));
+		Assert.assertEquals(1, checkpoint.getScanned());
+		Assert.assertEquals(0, checkpoint.getChanged());
+		Assert.assertEquals("jbossas", projectOf("/as7"));
+		Assert.assertTrue(rebuilt.isEmpty());
+	}
+
+	@Test
+	public void changedMonthsShouldBeRebuiltOnceAtTheEnd(){
+		List<WebMetric> metrics = new ArrayList<WebMetric>();
+		for (int i = 0; i < 3 * 500 / 2; i++)
+			metrics.add(metric("/docs/page-" + i, "jboss.org"));
+		importMetrics(metrics.toArray(new WebMetric[metrics.size()]));
+
+		PageClassifier classifier = new PageClassifier(Collections.singletonList(new PageClassifier.Rule(PageClassifier.Action.PROJECT,
+				PageClassifier.Match.STARTS_WITH, false, null, null, "/docs/", "docs")));
+		Assert.assertEquals(ReclassificationCheckpoint.Status.RUNNING, reclassify(classifier).getStatus());
+		Assert.assertEquals(ReclassificationCheckpoint.Status.RUNNING, reclassify(classifier).getStatus());
+		Assert.assertTrue(rebuilt.isEmpty());
+		ReclassificationCheckpoint checkpoint = reclassifyAll(classifier);
+		Assert.assertEquals(metrics.size(), checkpoint.getChanged());
+		Assert.assertEquals(0, checkpoint.getDirtyMonthCount());
+		Assert.assertEquals(Collections.singletonList(SITE + " " + MONTH.getTime()), rebuilt);
+		Assert.assertEquals("docs", projectOf("/docs/page-7"));
+	}
+
+	// -------------------------------------------------------------------
+
+	private static WebMetric metric(String page, String project){
+		WebMetric metric = new WebMetric(FILE, SITE, MONTH);
+		metric.setPage(page);
+		metric.setProject(project);
+		metric.setPageViews(100);
+		return metric;
+	}
+
+	private void importMetrics(WebMetric... metrics){
+		List<WebMetric> rows = new ArrayList<WebMetric>();
+		Collections.addAll(rows, metrics);
+		em.getTransaction().begin();
+		terms.encode(em, rows);
+		new MetricBulkWriter(em, MetricBulkWriter.Mode.BATCHED_PERSIST, MetricBulkWriter.DEFAULT_BATCH_SIZE).write(rows);
+		em.getTransaction().commit();
+		em.clear();
+	}
+
+	private ReclassificationCheckpoint reclassify(PageClassifier classifier){
+		em.getTransaction().begin();
+		ReclassificationCheckpoint checkpoint = reclassifier.reclassifyBatch(classifier);
+		em.getTransaction().commit();
+		return checkpoint;
+	}
+
+	private ReclassificationCheckpoint reclassifyAll(PageClassifier classifier){
+		for (int batch = 0; batch < 100; batch++){
+			ReclassificationCheckpoint checkpoint = reclassify(classifier);
+			if (checkpoint.getStatus() != ReclassificationCheckpoint.Status.RUNNING)
+				return checkpoint;
+		}
+		throw new AssertionError("reclassification did not complete");
+	}
+
+	private String projectOf(String page){
+		em.clear();
+		Integer projectId = em.createQuery("SELECT m.projectId FROM WebMetric m WHERE m.pageId = :pageId", Integer.class)
+				.setParameter("pageId", terms.idOf(DictionaryTerm.Kind.PAGE, page))
+				.getSingleResult();
+		return terms.termOf(projectId);
+	}
+}
@@ -0,0 +1,47 @@
+package org.jboss.bigcommotion;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.jboss.bigcommotion.services.QueryCache;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Ensures cached query results are identified by all their parameters and only evicted for the
+ * site and months they read.
+ */
+public class QueryCacheKeyTestCase {
+
+	@Test
+	public void keysShouldMatchOnEveryParameter() throws Exception {
+		QueryCache.Key key = new QueryCache.Key("topPages", "jboss.org", date("2013-11-01"), date("2013-11-01"), null, 0L, 50);
+		Assert.assertEquals(key, new QueryCache.Key("topPages", "jboss.org", date("2013-11-20"), date("2013-11-20"), null, 0L, 50));
+		Assert.assertEquals(key.hashCode(), new QueryCache.Key("topPages", "jboss.org", date("2013-11-20"), date("2013-11-20"), null, 0L, 50).hashCode());
+		Assert.assertFalse(key.equals(new QueryCache.Key("topPages", "jboss.org", date("2013-11-01"), date("2013-11-01"), null, 0L, 100)));
+		Assert.assertFalse(key.equals(new QueryCache.Key("topPages", "wildfly.org", date("2013-11-01"), date("2013-11-01"), null, 0L, 50)));
+		Assert.assertFalse(key.equals(new QueryCache.Key("siteMonths", "jboss.org", date("2013-11-01"), date("2013-11-01"), null, 0L, 50)));
+	}
+
+	@Test
+	public void keysShouldCoverOnlyTheirSiteAndMonths() throws Exception {
+		QueryCache.Key key = new QueryCache.Key("projectMonths", "jboss.org", date("2013-03-01"), date("2013-06-01"), "weld");
+		Assert.assertTrue(key.covers("jboss.org", date("2013-03-01")));
+		Assert.assertTrue(key.covers("jboss.org", date("2013-06-30")));
+		Assert.assertFalse(key.covers("jboss.org", date("2013-02-28")));
+		Assert.assertFalse(key.covers("jboss.org", date("2013-07-01")));
+		Assert.assertFalse(key.covers("wildfly.org", date("2013-04-01")));
+	}
+
+	@Test
+	public void keysShouldListTheMonthsTheyCover() throws Exception {
+		QueryCache.Key key = new QueryCache.Key("projectMonths", "jboss.org", date("2013-11-15"), date("2014-02-01"), "weld");
+		Assert.assertEquals(Arrays.asList(date("2013-11-01").getTime(), date("2013-12-01").getTime(), date("2014-01-01").getTime(),
+				date("2014-02-01").getTime()), key.months());
+	}
+
+	private static Date date(String date) throws Exception {
+		return new SimpleDateFormat("yyyy-MM-dd").parse(date);
+	}
+}
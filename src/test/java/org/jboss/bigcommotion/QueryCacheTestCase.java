@@ -0,0 +1,77 @@
+package org.jboss.bigcommotion;
+
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.jboss.bigcommotion.services.QueryCache;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Ensures an invalidation evicts the cached results of its site and months, and only those, using
+ * a local Infinispan container in place of the server's.
+ */
+public class QueryCacheTestCase {
+
+	private EmbeddedCacheManager container;
+	private QueryCache queryCache;
+
+	@Before
+	public void createCache() throws Exception {
+		container = new DefaultCacheManager();
+		queryCache = new QueryCache();
+		MetricsTestSupport.withLogger(queryCache);
+		MetricsTestSupport.inject(queryCache, "container", container);
+		MetricsTestSupport.inject(queryCache, "txRegistry", new MetricsTestSupport.NoTransactionRegistry());
+		queryCache.setup();
+	}
+
+	@After
+	public void stopCache(){
+		queryCache.shutdown();
+		container.stop();
+	}
+
+	@Test
+	public void invalidationShouldEvictOnlyResultsOfItsMonths() throws Exception {
+		QueryCache.Key november = new QueryCache.Key("siteMonths", "jboss.org", date("2013-11-01"), date("2013-11-01"));
+		QueryCache.Key year = new QueryCache.Key("siteMonths", "jboss.org", date("2013-01-01"), date("2013-12-01"));
+		QueryCache.Key december = new QueryCache.Key("siteMonths", "jboss.org", date("2013-12-01"), date("2013-12-01"));
+		QueryCache.Key otherSite = new QueryCache.Key("siteMonths", "wildfly.org", date("2013-11-01"), date("2013-11-01"));
+		AtomicInteger runs = new AtomicInteger();
+		for (QueryCache.Key key : new QueryCache.Key[] { november, year, december, otherSite })
+			queryCache.get(key, counting(runs));
+		Assert.assertEquals(4, runs.get());
+		Assert.assertEquals(4, queryCache.getSize());
+
+		queryCache.invalidate("jboss.org", Collections.singleton(date("2013-11-20")));
+		Assert.assertEquals(2, queryCache.getSize());
+		for (QueryCache.Key key : new QueryCache.Key[] { december, otherSite })
+			queryCache.get(key, counting(runs));
+		Assert.assertEquals(4, runs.get());
+		for (QueryCache.Key key : new QueryCache.Key[] { november, year })
+			queryCache.get(key, counting(runs));
+		Assert.assertEquals(6, runs.get());
+	}
+
+	// -------------------------------------------------------------------
+
+	private static QueryCache.Query<String> counting(final AtomicInteger runs){
+		return new QueryCache.Query<String>(){
+			@Override
+			public String run(){
+				return "run " + runs.incrementAndGet();
+			}
+		};
+	}
+
+	private static Date date(String date) throws Exception {
+		return new SimpleDateFormat("yyyy-MM-dd").parse(date);
+	}
+}
@@ -0,0 +1,249 @@
+package org.jboss.bigcommotion;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.jboss.bigcommotion.model.DictionaryTerm;
+import org.jboss.bigcommotion.model.IngestLedgerEntry;
+import org.jboss.bigcommotion.model.WebMetric;
+import org.jboss.bigcommotion.services.AnalyticsPageViewParser;
+import org.jboss.bigcommotion.services.BackfillService;
+import org.jboss.bigcommotion.services.DictionaryService;
+import org.jboss.bigcommotion.services.IngestLedger;
+import org.jboss.bigcommotion.services.IngestMetrics;
+import org.jboss.bigcommotion.services.MetricBulkWriter;
+import org.jboss.bigcommotion.services.MetricDictionary;
+import org.jboss.bigcommotion.services.RollupService;
+import org.jboss.bigcommotion.util.ReportFiles;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Re-imports of reports for a backfill against an in-memory H2 database: which earlier rows a
+ * replacement deletes, which reports it skips, and which it leaves for a resumed backfill.  Rollup
+ * rebuilds are recorded rather than made.
+ */
+public class ReplaceMetricsTestCase extends MetricsTestSupport {
+
+	private static final String SITE = "jboss.org";
+	private static final String REPORT = "Analytics jboss.org Pages 20131101-20131130.csv";
+	private static final String OTHER_REPORT = "Analytics jboss.org Pages 20131101-20131115.csv";
+	private static final Date MONTH = new GregorianCalendar(2013, 10, 1).getTime();
+	private static final Date IMPORTED = new GregorianCalendar(2014, 0, 2).getTime();
+
+	private static final MetricDictionary terms = new MetricDictionary();
+
+	private File dir;
+	private EntityManager em;
+	private AnalyticsPageViewParser parser;
+	private IngestLedger ledger;
+	private final List<Date> rebuilt = new ArrayList<Date>();
+
+	@Before
+	public void createParser() throws Exception {
+		dir = File.createTempFile("reports", "");
+		dir.delete();
+		dir.mkdir();
+
+		em = emf.createEntityManager();
+		em.getTransaction().begin();
+		em.createQuery("DELETE FROM WebMetric").executeUpdate();
+		em.createQuery("DELETE FROM IngestLedgerEntry").executeUpdate();
+		em.getTransaction().commit();
+
+		ledger = new IngestLedger();
+		withLogger(ledger);
+		inject(ledger, "em", em);
+		inject(ledger, "txRegistry", new NoTransactionRegistry());
+
+		parser = new AnalyticsPageViewParser();
+		withLogger(parser);
+		inject(parser, "em", em);
+		inject(parser, "context", rollbackContext(em));
+		inject(parser, "ledger", ledger);
+		inject(parser, "ingestMetrics", new IngestMetrics());
+		inject(parser, "rollups", new RollupService(){
+			@Override
+			public int recompute(String site, Date month){
+				rebuilt.add(month);
+				return 0;
+			}
+		});
+		inject(parser, "dictionary", new DictionaryService(){
+			@Override
+			public void encode(Collection<WebMetric> metrics){
+				terms.encode(em, metrics);
+			}
+
+			@Override
+			public Integer idOf(DictionaryTerm.Kind kind, String term){
+				return terms.idOf(kind, term);
+			}
+		});
+	}
+
+	@After
+	public void closeEntityManager(){
+		em.close();
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void replaceShouldDeleteOnlyThatReportsRows() throws IOException {
+		File plain = report(REPORT, "November");
+		File other = report(OTHER_REPORT, "First half of November");
+		imported(plain, "/as7", "/hibernate");
+		imported(other, "/infinispan");
+		File compressed = ReportFiles.compress(plain);
+
+		Assert.assertEquals(1, replace(compressed, metric(compressed, "/as7")));
+		// The rows of the plain report the compressed copy was made from go too
+		Assert.assertEquals(Collections.<String>emptyList(), pagesOf(plain));
+		Assert.assertEquals(Arrays.asList("/as7"), pagesOf(compressed));
+		Assert.assertEquals(Arrays.asList("/infinispan"), pagesOf(other));
+		Assert.assertEquals(IngestLedgerEntry.Status.DUPLICATE, entryOf(plain).getStatus());
+		Assert.assertEquals(IngestLedgerEntry.Status.COMPLETED, entryOf(compressed).getStatus());
+		Assert.assertEquals(1, entryOf(compressed).getRowCount());
+		Assert.assertEquals(IngestLedgerEntry.Status.COMPLETED, entryOf(other).getStatus());
+		Assert.assertEquals(Collections.singletonList(MONTH), rebuilt);
+	}
+
+	@Test
+	public void copyOfAReportOnDiskShouldBeSkipped() throws IOException {
+		File original = report(REPORT, "November");
+		File copy = report(REPORT.replace(".csv", " (1).csv"), "November");
+		imported(original, "/as7", "/hibernate");
+
+		Assert.assertEquals(-1, replace(copy, metric(copy, "/as7")));
+		Assert.assertEquals(Arrays.asList("/as7", "/hibernate"), pagesOf(original));
+		Assert.assertEquals(Collections.<String>emptyList(), pagesOf(copy));
+		Assert.assertNull(entryOf(copy));
+		Assert.assertEquals(IngestLedgerEntry.Status.COMPLETED, entryOf(original).getStatus());
+		Assert.assertTrue(rebuilt.isEmpty());
+	}
+
+	@Test
+	public void resumedBackfillShouldOnlySkipReportsReplacedSinceItStarted() throws IOException {
+		File first = report(REPORT, "November");
+		File second = report(OTHER_REPORT, "First half of November");
+		imported(first, "/as7");
+		imported(second, "/infinispan");
+
+		Date started = new Date();
+		Assert.assertEquals(1, replace(first, metric(first, "/as7")));
+		Assert.assertEquals(Collections.singleton(first.getAbsolutePath()), ledger.findCompletedSince(started));
+		Assert.assertEquals(new HashSet<String>(Arrays.asList(first.getAbsolutePath(), second.getAbsolutePath())),
+				ledger.findCompletedSince(IMPORTED));
+	}
+
+	@Test
+	public void replacementOverTheRowLimitShouldChangeNothing() throws IOException {
+		File report = report(REPORT, "November");
+		imported(report, "/as7", "/hibernate");
+
+		System.setProperty(BackfillService.MAX_ROWS_PROPERTY, "2");
+		try {
+			Assert.assertEquals(-1, replace(report, metric(report, "/as7")));
+		} finally {
+			System.clearProperty(BackfillService.MAX_ROWS_PROPERTY);
+		}
+		Assert.assertEquals(Arrays.asList("/as7", "/hibernate"), pagesOf(report));
+		Assert.assertEquals(IngestLedgerEntry.Status.COMPLETED, entryOf(report).getStatus());
+		Assert.assertEquals(IMPORTED, entryOf(report).getCompletedAt());
+		Assert.assertTrue(rebuilt.isEmpty());
+	}
+
+	// -------------------------------------------------------------------
+
+	private File report(String name, String contents) throws IOException {
+		File file = new File(dir, name);
+		Writer out = new FileWriter(file);
+		try {
+			out.write(contents);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static WebMetric metric(File file, String page){
+		WebMetric metric = new WebMetric(file.getAbsolutePath(), SITE, MONTH);
+		metric.setPage(page);
+		metric.setProject("jboss.org");
+		metric.setPageViews(100);
+		return metric;
+	}
+
+	/**
+	 * Saves the rows and completed ledger entry of an earlier import of the report.
+	 */
+	private void imported(File file, String... pages) throws IOException {
+		List<WebMetric> metrics = new ArrayList<WebMetric>();
+		for (String page : pages)
+			metrics.add(metric(file, page));
+		IngestLedgerEntry entry = new IngestLedgerEntry(file.getAbsolutePath(), IngestLedger.checksum(file), SITE, MONTH,
+				IngestLedgerEntry.Status.COMPLETED);
+		entry.setRowCount(metrics.size());
+		entry.setCompletedAt(IMPORTED);
+		em.getTransaction().begin();
+		terms.encode(em, metrics);
+		new MetricBulkWriter(em, MetricBulkWriter.Mode.BATCHED_PERSIST, MetricBulkWriter.DEFAULT_BATCH_SIZE).write(metrics);
+		em.persist(entry);
+		em.getTransaction().commit();
+		em.clear();
+	}
+
+	/**
+	 * Re-imports the report in a transaction, the way reimportFile does.
+	 */
+	private int replace(File file, WebMetric... metrics){
+		Map<String, WebMetric> byPage = new HashMap<String, WebMetric>();
+		for (WebMetric metric : metrics)
+			byPage.put(metric.getPage(), metric);
+		em.getTransaction().begin();
+		int saved = parser.replaceMetrics(SITE, file, MONTH, byPage, System.currentTimeMillis());
+		if (em.getTransaction().getRollbackOnly())
+			em.getTransaction().rollback();
+		else
+			em.getTransaction().commit();
+		em.clear();
+		return saved;
+	}
+
+	private List<String> pagesOf(File file){
+		Integer fileId = terms.idOf(DictionaryTerm.Kind.FILE, file.getAbsolutePath());
+		if (fileId == null)
+			return Collections.emptyList();
+		List<String> pages = new ArrayList<String>();
+		for (Integer pageId : em.createQuery("SELECT m.pageId FROM WebMetric m WHERE m.fileId = :fileId ORDER BY m.id", Integer.class)
+				.setParameter("fileId", fileId)
+				.getResultList())
+			pages.add(terms.termOf(pageId));
+		return pages;
+	}
+
+	private IngestLedgerEntry entryOf(File file){
+		List<IngestLedgerEntry> entries = em.createQuery("SELECT e FROM IngestLedgerEntry e WHERE e.path = :path", IngestLedgerEntry.class)
+				.setParameter("path", file.getAbsolutePath())
+				.getResultList();
+		return entries.isEmpty() ? null : entries.get(0);
+	}
+}
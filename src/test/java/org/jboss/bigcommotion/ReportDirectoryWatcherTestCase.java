@@ -0,0 +1,110 @@
+package org.jboss.bigcommotion;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+import org.jboss.bigcommotion.util.ReportDirectoryWatcher;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Ensures reports are only handed out once they stop changing and that the reconcile scan skips
+ * site directories that have not changed.
+ */
+public class ReportDirectoryWatcherTestCase {
+
+	private static final long QUIET = 5000;
+
+	private File root;
+	private File site;
+	private ReportDirectoryWatcher watcher;
+
+	@Before
+	public void setup() throws IOException {
+		root = File.createTempFile("metrics-watch", "");
+		root.delete();
+		site = new File(root, "jboss.org");
+		site.mkdirs();
+		watcher = new ReportDirectoryWatcher(root, new FileFilter(){
+			@Override
+			public boolean accept(File file){
+				return !file.getName().endsWith(".swp");
+			}
+		}, QUIET);
+	}
+
+	@After
+	public void cleanup(){
+		watcher.close();
+		for (File file : site.listFiles())
+			file.delete();
+		site.delete();
+		root.delete();
+	}
+
+	@Test
+	public void reportsShouldWaitForTheQuietPeriod() throws Exception {
+		File report = write(new File(site, "Analytics jboss.org Pages 20131101-20131130.csv"), "a");
+		write(new File(site, "report.csv.swp"), "a");
+		Assert.assertEquals(1, watcher.reconcile());
+
+		Assert.assertTrue(watcher.poll(1000).isEmpty());
+		Assert.assertTrue(watcher.poll(1000 + QUIET - 1).isEmpty());
+		List<File> ready = watcher.poll(1000 + QUIET);
+		Assert.assertEquals(1, ready.size());
+		Assert.assertEquals(report, ready.get(0));
+		Assert.assertEquals(0, watcher.getPendingCount());
+	}
+
+	@Test
+	public void growingReportsShouldRestartTheQuietPeriod() throws Exception {
+		File report = write(new File(site, "Analytics jboss.org Pages 20131101-20131130.csv"), "a");
+		watcher.reconcile();
+		watcher.poll(1000);
+		write(report, "ab");
+		Assert.assertTrue(watcher.poll(1000 + QUIET).isEmpty());
+		Assert.assertEquals(1, watcher.poll(1000 + QUIET * 2).size());
+	}
+
+	@Test
+	public void reconcileShouldSkipUnchangedDirectories() throws Exception {
+		write(new File(site, "Analytics jboss.org Pages 20131101-20131130.csv"), "a");
+		Assert.assertEquals(1, watcher.reconcile());
+		Assert.assertEquals(0, watcher.reconcile());
+
+		write(new File(site, "Analytics jboss.org Pages 20131201-20131231.csv"), "a");
+		site.setLastModified(site.lastModified() + 2000);
+		Assert.assertEquals(1, watcher.reconcile());
+		Assert.assertEquals(2, watcher.getPendingCount());
+	}
+
+	@Test
+	public void watchedReportsShouldBeFoundWithoutReconcile() throws Exception {
+		watcher.start();
+		watcher.reconcile();
+		File report = write(new File(site, "Analytics jboss.org Pages 20131101-20131130.csv"), "a");
+		// Watch events are delivered asynchronously, and some platforms poll for them
+		for (int i = 0; i < 100 && watcher.getPendingCount() == 0; i++){
+			Thread.sleep(100);
+			watcher.poll(0);
+		}
+		Assert.assertEquals(1, watcher.getPendingCount());
+		watcher.poll(1);
+		Assert.assertEquals(report, watcher.poll(1 + QUIET).get(0));
+	}
+
+	private static File write(File file, String contents) throws IOException {
+		FileWriter writer = new FileWriter(file);
+		try {
+			writer.write(contents);
+		} finally {
+			writer.close();
+		}
+		return file;
+	}
+}
@@ -0,0 +1,165 @@
+package org.jboss.bigcommotion;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.jboss.bigcommotion.services.IngestLedger;
+import org.jboss.bigcommotion.util.ReportFiles;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Ensures plain, gzip and zip reports read back the same, that compressing an imported report
+ * keeps its contents, checksum and modification time, and that reports are listed by start date.
+ */
+public class ReportFilesTestCase {
+
+	private static final String REPORT_NAME = "Analytics jboss.org Pages 20131101-20131130.csv";
+
+	private File dir;
+	private byte[] csv;
+
+	@Before
+	public void writeReport() throws IOException {
+		StringBuilder report = new StringBuilder();
+		report.append("# jboss.org\r\n");
+		report.append("Page,Pageviews,Unique Pageviews,Avg. Time on Page,Entrances,Bounce Rate,% Exit,Page Value\r\n");
+		for (int i = 0; i < 5000; i++)
+			report.append("/page/").append(i).append(",\"1,").append(100 + i % 900).append("\",").append(i).append(",00:01:05,1,45.67%,12.50%,$0.00\r\n");
+		csv = report.toString().getBytes("US-ASCII");
+		dir = File.createTempFile("reports", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@After
+	public void deleteReports(){
+		for (File file : dir.listFiles()){
+			if (file.isDirectory()){
+				for (File report : file.listFiles())
+					report.delete();
+			}
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void compressedReportsShouldReadLikePlainOnes() throws IOException {
+		File plain = write(REPORT_NAME, csv);
+
+		ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+		OutputStream gzip = new GZIPOutputStream(gzipped);
+		gzip.write(csv);
+		gzip.close();
+		File gz = write(REPORT_NAME + ".gz", gzipped.toByteArray());
+
+		ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(zipped);
+		zip.putNextEntry(new ZipEntry("reports/"));
+		zip.closeEntry();
+		zip.putNextEntry(new ZipEntry("reports/" + REPORT_NAME));
+		zip.write(csv);
+		zip.closeEntry();
+		zip.close();
+		File zipFile = write("Analytics jboss.org Pages 20131101-20131130.ZIP", zipped.toByteArray());
+
+		Assert.assertFalse(ReportFiles.isCompressed(plain));
+		Assert.assertTrue(ReportFiles.isCompressed(gz));
+		Assert.assertTrue(ReportFiles.isCompressed(zipFile));
+		Assert.assertEquals(REPORT_NAME, ReportFiles.reportName(gz));
+		Assert.assertArrayEquals(csv, read(plain));
+		Assert.assertArrayEquals(csv, read(gz));
+		Assert.assertArrayEquals(csv, read(zipFile));
+		Assert.assertEquals(IngestLedger.checksum(plain), IngestLedger.checksum(gz));
+		Assert.assertEquals(IngestLedger.checksum(plain), IngestLedger.checksum(zipFile));
+	}
+
+	@Test
+	public void compressingShouldReplaceTheReport() throws IOException {
+		File plain = write(REPORT_NAME, csv);
+		long lastModified = (plain.lastModified() / 1000 - 3600) * 1000;
+		plain.setLastModified(lastModified);
+		String checksum = IngestLedger.checksum(plain);
+
+		File compressed = ReportFiles.compress(plain);
+
+		Assert.assertFalse(plain.exists());
+		Assert.assertEquals(REPORT_NAME + ".gz", compressed.getName());
+		Assert.assertEquals(1, dir.listFiles().length);
+		Assert.assertTrue(compressed.length() < csv.length / 4);
+		Assert.assertEquals(lastModified, compressed.lastModified());
+		Assert.assertArrayEquals(csv, read(compressed));
+		Assert.assertEquals(checksum, IngestLedger.checksum(compressed));
+	}
+
+	@Test(expected = IOException.class)
+	public void emptyZipShouldBeRejected() throws IOException {
+		ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(zipped);
+		zip.putNextEntry(new ZipEntry("reports/"));
+		zip.closeEntry();
+		zip.close();
+		ReportFiles.open(write("empty.zip", zipped.toByteArray())).close();
+	}
+
+	@Test
+	public void reportsShouldBeFoundBySiteAndStartDate() throws IOException, ParseException {
+		new File(dir, "jboss.org").mkdir();
+		new File(dir, "hibernate.org").mkdir();
+		File october = write("jboss.org/Analytics jboss.org Pages 20131001-20131031.csv", csv);
+		File november = write("jboss.org/Analytics jboss.org Pages 20131101-20131130.csv.gz", csv);
+		File december = write("jboss.org/Analytics jboss.org Pages 20131201-20131231.csv", csv);
+		write("jboss.org/Analytics jboss.org Pages 20131101-20131130.csv.gz.tmp", csv);
+		write("jboss.org/notes.txt", csv);
+		File hibernate = write("hibernate.org/Analytics hibernate.org Pages 20131115-20131130.zip", csv);
+		write(REPORT_NAME, csv);
+
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+		Assert.assertEquals(format.parse("20131115"), ReportFiles.startDateOf(hibernate.getName()));
+		Assert.assertNull(ReportFiles.startDateOf("notes.txt"));
+		Assert.assertEquals(Arrays.asList(hibernate, november),
+				ReportFiles.findReports(dir, null, format.parse("20131101"), format.parse("20131201")));
+		Assert.assertEquals(Arrays.asList(october, november, december),
+				ReportFiles.findReports(dir, "jboss.org", format.parse("20130101"), format.parse("20140101")));
+	}
+
+	// -------------------------------------------------------------------
+
+	private File write(String name, byte[] contents) throws IOException {
+		File file = new File(dir, name);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(contents);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static byte[] read(File file) throws IOException {
+		ByteArrayOutputStream contents = new ByteArrayOutputStream();
+		InputStream in = ReportFiles.open(file);
+		try {
+			byte[] buffer = new byte[1000];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				contents.write(buffer, 0, read);
+		} finally {
+			in.close();
+		}
+		return contents.toByteArray();
+	}
+}
@@ -0,0 +1,120 @@
+package org.jboss.bigcommotion;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.bigcommotion.util.PageViewReportTokenizer;
+import org.jboss.bigcommotion.util.ReportSplitter;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Ensures tokenizing the ranges produced by ReportSplitter one at a time yields the same records
+ * as tokenizing the whole report.
+ */
+public class ReportSplitterTestCase {
+
+	private static final int HEADER_LINES = 7;
+
+	private File report;
+
+	@Before
+	public void writeReport() throws IOException {
+		StringBuilder csv = new StringBuilder();
+		csv.append("# ----------------------------------------\r\n");
+		csv.append("# jboss.org\r\n");
+		csv.append("# Pages\r\n");
+		csv.append("# 20131101-20131130\r\n");
+		csv.append("# \"unbalanced quote in the header\r\n");
+		csv.append("\r\n");
+		csv.append("Page,Pageviews,Unique Pageviews,Avg. Time on Page,Entrances,Bounce Rate,% Exit,Page Value\r\n");
+		for (int i = 0; i < 1234; i++){
+			if (i % 100 == 7)
+				csv.append("\"/search?q=a,b\r\nc").append(i).append("\"");
+			else
+				csv.append("/page/").append(i);
+			csv.append(",\"1,").append(100 + i % 900).append("\",").append(i).append(",00:01:05,").append(i % 10)
+				.append(",45.67%,12.50%,$0.00\n");
+		}
+		csv.append("\r\n");
+		csv.append("Day Index,Pageviews\r\n");
+		csv.append("11/1/13,\"12,345\"\r\n");
+		csv.append("11/2/13,\"12,346\"");
+
+		report = File.createTempFile("Analytics jboss.org Pages ", ".csv");
+		OutputStream out = new FileOutputStream(report);
+		try {
+			out.write(csv.toString().getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+	}
+
+	@After
+	public void deleteReport(){
+		report.delete();
+	}
+
+	@Test
+	public void rangesShouldReproduceWholeFile() throws IOException {
+		List<String> expected = new ArrayList<String>();
+		PageViewReportTokenizer tokenizer = new PageViewReportTokenizer(new FileReader(report));
+		tokenizer.skipLines(HEADER_LINES);
+		while (tokenizer.getLineNumber() < 2506 && tokenizer.nextLine())
+			expected.add(tokenizer.getLineNumber() + ":" + record(tokenizer));
+		tokenizer.close();
+
+		for (int linesPerChunk : new int[] { 1, 7, 100, 500, 5000 }){
+			List<ReportSplitter.Range> ranges = ReportSplitter.split(report, HEADER_LINES, 2506, linesPerChunk);
+			List<String> actual = new ArrayList<String>();
+			int nextLine = HEADER_LINES + 1;
+			for (ReportSplitter.Range range : ranges){
+				Assert.assertEquals(nextLine, range.getFirstLine());
+				Assert.assertTrue(range.getLineCount() <= linesPerChunk);
+				PageViewReportTokenizer chunk = new PageViewReportTokenizer(new InputStreamReader(new ByteArrayInputStream(read(range))));
+				while (chunk.nextLine())
+					actual.add((range.getFirstLine() - 1 + chunk.getLineNumber()) + ":" + record(chunk));
+				Assert.assertEquals(range.getLineCount(), chunk.getLineNumber());
+				nextLine += range.getLineCount();
+			}
+			Assert.assertEquals("linesPerChunk " + linesPerChunk, expected, actual);
+		}
+	}
+
+	@Test
+	public void lastLineShouldBoundTheRanges() throws IOException {
+		List<ReportSplitter.Range> ranges = ReportSplitter.split(report, HEADER_LINES, 100, 30);
+		Assert.assertEquals(4, ranges.size());
+		ReportSplitter.Range last = ranges.get(ranges.size() - 1);
+		Assert.assertEquals(100, last.getFirstLine() + last.getLineCount() - 1);
+	}
+
+	private byte[] read(ReportSplitter.Range range) throws IOException {
+		byte[] bytes = new byte[(int) (range.getEnd() - range.getStart())];
+		RandomAccessFile in = new RandomAccessFile(report, "r");
+		try {
+			in.seek(range.getStart());
+			in.readFully(bytes);
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+
+	private static String record(PageViewReportTokenizer tokenizer){
+		StringBuilder record = new StringBuilder();
+		for (int i = 0; i < tokenizer.getFieldCount(); i++)
+			record.append('[').append(tokenizer.getString(i)).append(']');
+		return record.toString();
+	}
+}
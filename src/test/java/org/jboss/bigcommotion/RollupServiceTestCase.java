@@ -0,0 +1,257 @@
+package org.jboss.bigcommotion;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.jboss.bigcommotion.model.DictionaryTerm;
+import org.jboss.bigcommotion.model.MonthlyRollup;
+import org.jboss.bigcommotion.model.PageMonthRollup;
+import org.jboss.bigcommotion.model.ProjectMonthRollup;
+import org.jboss.bigcommotion.model.ProjectMonthSketch;
+import org.jboss.bigcommotion.model.WebMetric;
+import org.jboss.bigcommotion.services.ColumnarMetricStore;
+import org.jboss.bigcommotion.services.DictionaryService;
+import org.jboss.bigcommotion.services.MetricBulkWriter;
+import org.jboss.bigcommotion.services.MetricDictionary;
+import org.jboss.bigcommotion.services.QueryCache;
+import org.jboss.bigcommotion.services.RollupService;
+import org.jboss.bigcommotion.util.MetricColumns;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Totals of the rollups imports add to, and of those rebuilt from the WebMetric rows, using an
+ * in-memory H2 database in place of MySQL.  Calls the service directly, so its REQUIRES_NEW methods
+ * join the test's transaction.
+ */
+public class RollupServiceTestCase extends MetricsTestSupport {
+
+	private static final String SITE = "jboss.org";
+	private static final Date MONTH = new GregorianCalendar(2013, 10, 1).getTime();
+
+	private static final MetricDictionary terms = new MetricDictionary();
+
+	private EntityManager em;
+	private RollupService rollups;
+
+	@Before
+	public void createService() throws Exception {
+		em = emf.createEntityManager();
+		em.getTransaction().begin();
+		em.createQuery("DELETE FROM WebMetric").executeUpdate();
+		em.createQuery("DELETE FROM ProjectMonthRollup").executeUpdate();
+		em.createQuery("DELETE FROM PageMonthRollup").executeUpdate();
+		em.createQuery("DELETE FROM ProjectMonthSketch").executeUpdate();
+		em.createQuery("DELETE FROM SiteMonthVersion").executeUpdate();
+		em.getTransaction().commit();
+
+		rollups = new RollupService();
+		withLogger(rollups);
+		inject(rollups, "em", em);
+		inject(rollups, "context", selfContext(rollups));
+		inject(rollups, "queryCache", new QueryCache(){
+			@Override
+			public void invalidate(String site, Collection<Date> months){
+				// No Infinispan container outside the server
+			}
+		});
+		inject(rollups, "columnarStore", new ColumnarMetricStore(){
+			@Override
+			public void invalidate(String site, Collection<Date> months){
+				// Nothing is cached outside the server
+			}
+		});
+		inject(rollups, "dictionary", new DictionaryService(){
+			@Override
+			public Integer idOf(DictionaryTerm.Kind kind, String term){
+				return terms.idOf(kind, term);
+			}
+
+			@Override
+			public String termOf(Integer id){
+				return terms.termOf(id);
+			}
+
+			@Override
+			public void decode(Collection<WebMetric> metrics){
+				terms.decode(metrics);
+			}
+		});
+	}
+
+	@After
+	public void closeEntityManager(){
+		em.close();
+	}
+
+	@Test
+	public void applyShouldAddImportsOfTheSameMonth(){
+		importMetrics(metrics(0, 100));
+		importMetrics(metrics(50, 150));
+
+		Map<String, ProjectMonthRollup> projects = projectRollups();
+		Assert.assertEquals(2, projects.size());
+		Assert.assertEquals(expectedPageViews(0, 100, 0) + expectedPageViews(50, 150, 0), projects.get("hibernate").getPageViews());
+		Assert.assertEquals(expectedPageViews(0, 100, 1) + expectedPageViews(50, 150, 1), projects.get("infinispan").getPageViews());
+		Assert.assertEquals(200, projects.get("hibernate").getRowCount() + projects.get("infinispan").getRowCount());
+
+		Map<String, PageMonthRollup> pages = pageRollups();
+		Assert.assertEquals(150, pages.size());
+		Assert.assertEquals(pageViews(10), pages.get("/page-10").getPageViews());
+		Assert.assertEquals(2 * pageViews(60), pages.get("/page-60").getPageViews());
+		Assert.assertEquals(pageViews(120), pages.get("/page-120").getPageViews());
+
+		List<ProjectMonthSketch> sketches = rollups.findProjectSketches(SITE, MONTH);
+		Assert.assertEquals(2, sketches.size());
+		long total = 0;
+		for (ProjectMonthSketch sketch : sketches)
+			total += sketch.getTopPages().getTotal();
+		Assert.assertEquals(projects.get("hibernate").getPageViews() + projects.get("infinispan").getPageViews(), total);
+	}
+
+	@Test
+	public void rebuildShouldMatchApply(){
+		importMetrics(metrics(0, 100));
+		importMetrics(metrics(100, 180));
+		Map<String, ProjectMonthRollup> applied = projectRollups();
+		Map<String, PageMonthRollup> appliedPages = pageRollups();
+
+		em.getTransaction().begin();
+		Assert.assertEquals(180, rollups.recompute(SITE, MONTH));
+		em.getTransaction().commit();
+		em.clear();
+
+		Map<String, ProjectMonthRollup> rebuilt = projectRollups();
+		Assert.assertEquals(applied.keySet(), rebuilt.keySet());
+		for (String project : applied.keySet()){
+			Assert.assertEquals(applied.get(project).getPageViews(), rebuilt.get(project).getPageViews());
+			Assert.assertEquals(applied.get(project).getUniquePageViews(), rebuilt.get(project).getUniquePageViews());
+			Assert.assertEquals(applied.get(project).getEntrances(), rebuilt.get(project).getEntrances());
+			Assert.assertEquals(applied.get(project).getRowCount(), rebuilt.get(project).getRowCount());
+		}
+		Map<String, PageMonthRollup> rebuiltPages = pageRollups();
+		Assert.assertEquals(appliedPages.keySet(), rebuiltPages.keySet());
+		for (String page : appliedPages.keySet())
+			Assert.assertEquals(appliedPages.get(page).getPageViews(), rebuiltPages.get(page).getPageViews());
+		Assert.assertEquals(2, rollups.findProjectSketches(SITE, MONTH).size());
+	}
+
+	@Test
+	public void restoreShouldLeaveRowsWithoutAPageOutOfPageRollupsAndSketches(){
+		List<WebMetric> metrics = metrics(0, 1);
+		em.getTransaction().begin();
+		terms.encode(em, metrics);
+		em.getTransaction().commit();
+		int projectId = metrics.get(0).getProjectId().intValue();
+		MetricColumns columns = new MetricColumns.Builder(metrics.get(0).getSiteId().intValue(), MetricColumns.monthKey(MONTH))
+				.append(metrics.get(0).getPageId().intValue(), projectId, pageViews(0), 500, 0, 10, null, null)
+				.append(MetricColumns.NO_ID, projectId, 40, 20, 0, 10, null, null)
+				.build();
+
+		em.getTransaction().begin();
+		Assert.assertEquals(2, rollups.restore(SITE, MONTH, columns));
+		em.getTransaction().commit();
+		em.clear();
+
+		Assert.assertEquals(pageViews(0) + 40, projectRollups().get("hibernate").getPageViews());
+		Assert.assertEquals(Collections.singleton("/page-0"), pageRollups().keySet());
+		List<ProjectMonthSketch> sketches = rollups.findProjectSketches(SITE, MONTH);
+		Assert.assertEquals(1, sketches.size());
+		Assert.assertEquals(1, sketches.get(0).getTopPages().size());
+		Assert.assertEquals(pageViews(0), sketches.get(0).getTopPages().getTotal());
+	}
+
+	@Test
+	public void changesShouldAdvanceTheMonthVersion(){
+		Assert.assertEquals(0, rollups.findVersion(SITE, MONTH));
+		importMetrics(metrics(0, 100));
+		Assert.assertEquals(1, rollups.findVersion(SITE, MONTH));
+		importMetrics(metrics(50, 150));
+		Assert.assertEquals(2, rollups.findVersion(SITE, MONTH));
+
+		em.getTransaction().begin();
+		rollups.recompute(SITE, MONTH);
+		rollups.changed(SITE, Collections.singleton(MONTH));
+		em.getTransaction().commit();
+		em.clear();
+		Assert.assertEquals(4, rollups.findVersion(SITE, MONTH));
+		Assert.assertEquals(0, rollups.findVersion(SITE, MonthlyRollup.nextMonth(MONTH)));
+
+		// Restoring from a snapshot leaves the metrics, and so the snapshot, as they were
+		em.getTransaction().begin();
+		rollups.restore(SITE, MONTH, new MetricColumns.Builder(terms.idOf(DictionaryTerm.Kind.SITE, SITE).intValue(),
+				MetricColumns.monthKey(MONTH)).build());
+		em.getTransaction().commit();
+		Assert.assertEquals(4, rollups.findVersion(SITE, MONTH));
+	}
+
+	// -------------------------------------------------------------------
+
+	/**
+	 * Saves and rolls up one import's metrics in a transaction, the way AnalyticsPageViewParser does.
+	 */
+	private void importMetrics(List<WebMetric> metrics){
+		em.getTransaction().begin();
+		terms.encode(em, metrics);
+		new MetricBulkWriter(em, MetricBulkWriter.Mode.BATCHED_PERSIST, MetricBulkWriter.DEFAULT_BATCH_SIZE).write(metrics);
+		rollups.apply(metrics);
+		em.getTransaction().commit();
+		em.clear();
+	}
+
+	/**
+	 * @return one metric per page from <code>first</code> up to <code>last</code>, even pages in
+	 * hibernate and odd ones in infinispan
+	 */
+	private static List<WebMetric> metrics(int first, int last){
+		List<WebMetric> metrics = new ArrayList<WebMetric>();
+		for (int i = first; i < last; i++){
+			WebMetric metric = new WebMetric("/opt/data/jboss.org/report-" + first + ".csv", SITE, MONTH);
+			metric.setPage("/page-" + i);
+			metric.setProject(i % 2 == 0 ? "hibernate" : "infinispan");
+			metric.setPageViews(pageViews(i));
+			metric.setUniquePageViews(pageViews(i) / 2);
+			metric.setEntrances(i);
+			metric.setBounceRate(Float.valueOf(i % 100));
+			metric.setPercentExit(Float.valueOf(i % 50));
+			metrics.add(metric);
+		}
+		return metrics;
+	}
+
+	private static long pageViews(int page){
+		return 1000 + page;
+	}
+
+	private static long expectedPageViews(int first, int last, int parity){
+		long total = 0;
+		for (int i = first; i < last; i++)
+			if (i % 2 == parity)
+				total += pageViews(i);
+		return total;
+	}
+
+	private Map<String, ProjectMonthRollup> projectRollups(){
+		Map<String, ProjectMonthRollup> projects = new HashMap<String, ProjectMonthRollup>();
+		for (ProjectMonthRollup rollup : rollups.findProjectRollups(SITE, MonthlyRollup.monthOf(MONTH)))
+			projects.put(rollup.getProject(), rollup);
+		return projects;
+	}
+
+	private Map<String, PageMonthRollup> pageRollups(){
+		Map<String, PageMonthRollup> pages = new HashMap<String, PageMonthRollup>();
+		for (PageMonthRollup rollup : rollups.findPageRollups(SITE, MonthlyRollup.monthOf(MONTH)))
+			pages.put(rollup.getPage(), rollup);
+		return pages;
+	}
+}
@@ -0,0 +1,54 @@
+package org.jboss.bigcommotion;
+
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+
+import org.jboss.bigcommotion.util.RowWriter;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Ensures exported rows are escaped for JSON and CSV and that the paging cursor is only written
+ * when there is another page.
+ */
+public class RowWriterTestCase {
+
+	@Test
+	public void jsonShouldEscapeAndCarryCursor() throws Exception {
+		StringWriter out = new StringWriter();
+		RowWriter writer = RowWriter.forFormat("json", out, "page", "pageViews", "date", "bounceRate");
+		writer.begin();
+		writer.row("/a \"quoted\"\\page", 12L, new SimpleDateFormat("yyyy-MM-dd").parse("2013-11-05"), null);
+		writer.row("/b", 3L, null, 1.5f);
+		writer.end("3:42");
+
+		Assert.assertEquals("{\"rows\":[{\"page\":\"/a \\\"quoted\\\"\\\\page\",\"pageViews\":12,\"date\":\"2013-11-05\",\"bounceRate\":null},"
+				+ "{\"page\":\"/b\",\"pageViews\":3,\"date\":null,\"bounceRate\":1.5}],\"next\":\"3:42\"}\n", out.toString());
+		Assert.assertEquals(2, writer.getRowCount());
+	}
+
+	@Test
+	public void jsonShouldOmitCursorOnLastPage() throws Exception {
+		StringWriter out = new StringWriter();
+		RowWriter writer = RowWriter.forFormat(null, out, "page");
+		writer.begin();
+		writer.end(null);
+		Assert.assertEquals("{\"rows\":[]}\n", out.toString());
+	}
+
+	@Test
+	public void csvShouldQuoteSeparators() throws Exception {
+		StringWriter out = new StringWriter();
+		RowWriter writer = RowWriter.forFormat("CSV", out, "page", "pageViews");
+		writer.begin();
+		writer.row("/a,b", 1L);
+		writer.row("say \"hi\"", null);
+		writer.end(null);
+		Assert.assertEquals("page,pageViews\r\n\"/a,b\",1\r\n\"say \"\"hi\"\"\",\r\n", out.toString());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownFormatShouldBeRejected(){
+		RowWriter.forFormat("xml", new StringWriter(), "page");
+	}
+}
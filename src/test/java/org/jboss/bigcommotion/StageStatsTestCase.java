@@ -0,0 +1,50 @@
+package org.jboss.bigcommotion;
+
+import org.jboss.bigcommotion.util.StageStats;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Ensures stage timings add up and percentiles land on the right histogram bucket.
+ */
+public class StageStatsTestCase {
+
+	private static final long MILLIS = 1000000L;
+
+	@Test
+	public void emptyStageShouldReportZeros(){
+		StageStats.Snapshot snapshot = new StageStats("rules").snapshot();
+		Assert.assertEquals("rules", snapshot.getName());
+		Assert.assertEquals(0, snapshot.getCount());
+		Assert.assertEquals(0, snapshot.getP99Millis());
+		Assert.assertEquals(0d, snapshot.getRowsPerSecond(), 0d);
+	}
+
+	@Test
+	public void totalsAndThroughputShouldAddUp(){
+		StageStats stats = new StageStats("persist");
+		stats.record(500 * MILLIS, 1000);
+		stats.record(1500 * MILLIS, 3000);
+		StageStats.Snapshot snapshot = stats.snapshot();
+		Assert.assertEquals(2, snapshot.getCount());
+		Assert.assertEquals(4000, snapshot.getRows());
+		Assert.assertEquals(2000, snapshot.getTotalMillis());
+		Assert.assertEquals(1500, snapshot.getMaxMillis());
+		Assert.assertEquals(2000d, snapshot.getRowsPerSecond(), 0.001d);
+	}
+
+	@Test
+	public void percentilesShouldBeUpperBoundOfTheirBucket(){
+		StageStats stats = new StageStats("tokenize");
+		for (int i = 0; i < 94; i++)
+			stats.record(3 * MILLIS, 0);
+		for (int i = 0; i < 5; i++)
+			stats.record(100 * MILLIS, 0);
+		stats.record(5000 * MILLIS, 0);
+		StageStats.Snapshot snapshot = stats.snapshot();
+		Assert.assertEquals(4, snapshot.getP50Millis());
+		Assert.assertEquals(128, snapshot.getP95Millis());
+		Assert.assertEquals(128, snapshot.getP99Millis());
+		Assert.assertEquals(5000, snapshot.getMaxMillis());
+	}
+}
@@ -1,6 +1,15 @@
 package org.jboss.bigcommotion;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.jboss.bigcommotion.model.WebMetric;
+import org.jboss.bigcommotion.util.PrecompiledRules;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -8,9 +17,11 @@ import org.junit.Test;
 import org.junit.Assert;
 
 
+import org.kie.api.KieBase;
 import org.kie.api.KieServices;
 import org.kie.api.runtime.KieContainer;
 import org.kie.api.runtime.KieSession;
+import org.kie.api.runtime.StatelessKieSession;
 
 
 
@@ -76,4 +87,66 @@ public class TestDrools {
 		Assert.assertEquals("QueryStrings should be removed", metric.getPage(), "as/download");		
 	}
 
+	@Test
+	public void testBatchedExecutionMatchesPerRowExecution(){
+		String[] pages = {"/as7.html", "as/download?1234", "/products/eap/overview.html", "/drools/docs?x=1", "/weld"};
+		List<WebMetric> batch = new ArrayList<WebMetric>();
+		List<WebMetric> single = new ArrayList<WebMetric>();
+		for (String page : pages){
+			batch.add(newMetric(page));
+			single.add(newMetric(page));
+		}
+
+		StatelessKieSession sSession = kContainer.newStatelessKieSession("webmetrics-stateless");
+		sSession.execute(batch);
+		for (WebMetric metric : single){
+			kContainer.newStatelessKieSession("webmetrics-stateless").execute(Arrays.asList(new Object[]{metric}));
+		}
+
+		for (int i = 0; i < pages.length; i++){
+			Assert.assertEquals("page for " + pages[i], single.get(i).getPage(), batch.get(i).getPage());
+			Assert.assertEquals("project for " + pages[i], single.get(i).getProject(), batch.get(i).getProject());
+		}
+	}
+
+	@Test
+	public void testPrecompiledKieBaseMatchesCompiledRules() throws IOException {
+		String[] pages = {"/as7.html", "as/download?1234", "/products/eap/overview.html", "/drools/docs?x=1", "/weld"};
+		File file = File.createTempFile("logic", ".kbase");
+		KieBase precompiled;
+		try {
+			PrecompiledRules.write(PrecompiledRules.compile(), "fingerprint", file);
+			InputStream in = new FileInputStream(file);
+			try {
+				precompiled = PrecompiledRules.load(in, "fingerprint");
+			} finally {
+				in.close();
+			}
+			in = new FileInputStream(file);
+			try {
+				Assert.assertNull("rules compiled from other sources should not load", PrecompiledRules.load(in, "other"));
+			} finally {
+				in.close();
+			}
+		} finally {
+			file.delete();
+		}
+
+		for (String page : pages){
+			WebMetric expected = newMetric(page);
+			WebMetric actual = newMetric(page);
+			kContainer.newStatelessKieSession("webmetrics-stateless").execute(Arrays.asList(new Object[]{expected}));
+			precompiled.newStatelessKieSession().execute(Arrays.asList(new Object[]{actual}));
+			Assert.assertEquals("page for " + page, expected.getPage(), actual.getPage());
+			Assert.assertEquals("project for " + page, expected.getProject(), actual.getProject());
+		}
+	}
+
+	private WebMetric newMetric(String page){
+		WebMetric metric = new WebMetric(file,site,null);
+		metric.setProject("jboss.org");
+		metric.setPage(page);
+		return metric;
+	}
+
 }
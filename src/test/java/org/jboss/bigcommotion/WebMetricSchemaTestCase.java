@@ -0,0 +1,167 @@
+package org.jboss.bigcommotion;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+
+import org.jboss.bigcommotion.model.WebMetric;
+import org.jboss.bigcommotion.services.MetricBulkWriter;
+import org.jboss.bigcommotion.services.PartitionMaintenance;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks the WebMetric indexes against the lookups the application makes, on four years of
+ * generated metrics in an in-memory H2 database in place of MySQL.  Each lookup is planned without
+ * its index, then with it, and both plans are asserted.
+ * <p>
+ * Partitioning is MySQL only.  The statement that adds partitions is checked here, and, given a
+ * MySQL database with the WebMetric table and its driver on the test classpath, that a month's
+ * lookup reads only that month's partition:
+ * <pre>
+ * mvn test -Dtest=WebMetricSchemaTestCase -Dmetrics.test.mysql.url=jdbc:mysql://localhost/metrics \
+ *     -Dmetrics.test.mysql.user=metrics -Dmetrics.test.mysql.password=...
+ * </pre>
+ * Without <code>metrics.test.mysql.url</code> that check is skipped.
+ */
+public class WebMetricSchemaTestCase extends MetricsTestSupport {
+
+	private static final int YEARS = 4;
+	private static final int SITES = 3;
+	private static final int PROJECTS = 20;
+	private static final int PAGES = 400;
+	private static final String MYSQL_URL_PROPERTY = "metrics.test.mysql.url";
+	// A copy of WebMetric, with its partitioning, so the check leaves the real table alone
+	private static final String PARTITION_CHECK_TABLE = "WebMetricPartitionCheck";
+
+	// The month lookups of RollupService.rebuild, a project across a year, and a report file's rows
+	private static final String SITE_MONTH = "SELECT pageId, pageViews FROM WebMetric WHERE siteId = 2 AND date >= '2012-06-01' AND date < '2012-07-01'";
+	private static final String PROJECT_YEAR = "SELECT SUM(pageViews) FROM WebMetric WHERE projectId = 7 AND date >= '2013-01-01' AND date < '2014-01-01'";
+	private static final String FILE = "SELECT COUNT(*) FROM WebMetric WHERE fileId = 30";
+
+	@BeforeClass
+	public static void generateMetrics(){
+		Calendar month = Calendar.getInstance();
+		month.clear();
+		month.set(2011, Calendar.JANUARY, 1);
+		List<WebMetric> metrics = new ArrayList<WebMetric>(SITES * PAGES);
+		EntityManager em = emf.createEntityManager();
+		em.getTransaction().begin();
+		em.createQuery("DELETE FROM WebMetric").executeUpdate();
+		MetricBulkWriter writer = new MetricBulkWriter(em, MetricBulkWriter.Mode.MULTI_ROW_INSERT, MetricBulkWriter.DEFAULT_BATCH_SIZE);
+		int file = 0;
+		for (int m = 0; m < YEARS * 12; m++){
+			Date date = month.getTime();
+			for (int site = 1; site <= SITES; site++){
+				file++;
+				for (int page = 1; page <= PAGES; page++){
+					WebMetric metric = new WebMetric();
+					metric.setDate(date);
+					metric.setSiteId(site);
+					metric.setPageId(page);
+					metric.setProjectId(page % PROJECTS);
+					metric.setFileId(file);
+					metric.setPageViews(page * 10 + m);
+					metric.setBounceRate(40f);
+					metric.setPercentExit(30f);
+					metrics.add(metric);
+				}
+			}
+			writer.write(metrics);
+			metrics.clear();
+			month.add(Calendar.MONTH, 1);
+		}
+		em.createNativeQuery("ANALYZE").executeUpdate();
+		em.getTransaction().commit();
+		em.close();
+	}
+
+	@Test
+	public void siteMonthShouldUseSiteDatePageIndex(){
+		compare(SITE_MONTH, "IDX_WEBMETRIC_SITE_DATE_PAGE", "siteId, date, pageId");
+	}
+
+	@Test
+	public void projectRangeShouldUseProjectDateIndex(){
+		compare(PROJECT_YEAR, "IDX_WEBMETRIC_PROJECT_DATE", "projectId, date");
+	}
+
+	@Test
+	public void fileShouldUseFileIndex(){
+		compare(FILE, "IDX_WEBMETRIC_FILE", "fileId");
+	}
+
+	@Test
+	public void monthShouldReadOnlyItsPartition() throws Exception {
+		String url = System.getProperty(MYSQL_URL_PROPERTY);
+		Assume.assumeNotNull(url);
+		SimpleDateFormat day = new SimpleDateFormat("yyyy-MM-dd");
+		Connection connection = DriverManager.getConnection(url, System.getProperty("metrics.test.mysql.user"),
+				System.getProperty("metrics.test.mysql.password"));
+		try {
+			Statement statement = connection.createStatement();
+			try {
+				statement.executeUpdate("DROP TABLE IF EXISTS " + PARTITION_CHECK_TABLE);
+				statement.executeUpdate("CREATE TABLE " + PARTITION_CHECK_TABLE + " LIKE WebMetric");
+				// Back to the single catch-all partition of 000-schema.sql, whatever the application added since
+				statement.executeUpdate("ALTER TABLE " + PARTITION_CHECK_TABLE + " PARTITION BY RANGE COLUMNS(date) (PARTITION pmax VALUES LESS THAN (MAXVALUE))");
+				statement.executeUpdate(PartitionMaintenance.reorganizeStatement(day.parse("2013-11-01"), day.parse("2014-01-01"))
+						.replace("ALTER TABLE WebMetric ", "ALTER TABLE " + PARTITION_CHECK_TABLE + " "));
+				ResultSet plan = statement.executeQuery("EXPLAIN PARTITIONS " + SITE_MONTH.replace("WebMetric", PARTITION_CHECK_TABLE)
+						.replace("2012-06-01", "2013-12-01").replace("2012-07-01", "2014-01-01"));
+				Assert.assertTrue(plan.next());
+				Assert.assertEquals("p201312", plan.getString("partitions"));
+				plan.close();
+			} finally {
+				statement.executeUpdate("DROP TABLE IF EXISTS " + PARTITION_CHECK_TABLE);
+				statement.close();
+			}
+		} finally {
+			connection.close();
+		}
+	}
+
+	@Test
+	public void partitionsShouldBeSplitOffTheCatchAll() throws Exception {
+		SimpleDateFormat day = new SimpleDateFormat("yyyy-MM-dd");
+		String ddl = PartitionMaintenance.reorganizeStatement(day.parse("2013-11-01"), day.parse("2014-01-01"));
+		Assert.assertEquals("ALTER TABLE WebMetric REORGANIZE PARTITION pmax INTO ("
+				+ "PARTITION p201311 VALUES LESS THAN ('2013-12-01'), "
+				+ "PARTITION p201312 VALUES LESS THAN ('2014-01-01'), "
+				+ "PARTITION p201401 VALUES LESS THAN ('2014-02-01'), "
+				+ "PARTITION pmax VALUES LESS THAN (MAXVALUE))", ddl);
+	}
+
+	// -------------------------------------------------------------------
+
+	/**
+	 * Plans the query without the index, then with it again.
+	 */
+	private static void compare(String sql, String index, String columns){
+		EntityManager em = emf.createEntityManager();
+		em.getTransaction().begin();
+		em.createNativeQuery("DROP INDEX " + index).executeUpdate();
+		String before = plan(em, sql);
+		em.createNativeQuery("CREATE INDEX " + index + " ON WebMetric (" + columns + ")").executeUpdate();
+		String after = plan(em, sql);
+		em.getTransaction().commit();
+		em.close();
+
+		Assert.assertTrue(before, before.toLowerCase().contains("tablescan"));
+		Assert.assertTrue(after, after.toUpperCase().contains(index));
+	}
+
+	private static String plan(EntityManager em, String sql){
+		return String.valueOf(em.createNativeQuery("EXPLAIN " + sql).getSingleResult());
+	}
+}
@@ -0,0 +1,113 @@
+package org.jboss.bigcommotion;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jms.MapMessage;
+import javax.jms.Session;
+
+import org.jboss.bigcommotion.model.ReportChunk;
+import org.jboss.bigcommotion.util.WorkMessages;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Ensures work descriptors survive the trip through a MapMessage and that only whole-file work
+ * is grouped by site.
+ */
+public class WorkMessagesTestCase {
+
+	@Test
+	public void fileWorkShouldRoundTripAndBeGroupedBySite() throws Exception {
+		Date date = new Date(1383264000000L);
+		File file = new File("/opt/data/jboss.org/Analytics jboss.org Pages 20131101-20131130.csv");
+		MapMessage message = WorkMessages.createFileMessage(session(), "jboss.org", file, date);
+
+		Assert.assertEquals(WorkMessages.FILE, WorkMessages.getType(message));
+		Assert.assertEquals("jboss.org", message.getStringProperty(WorkMessages.GROUP_ID));
+		Assert.assertEquals("jboss.org", WorkMessages.getSite(message));
+		Assert.assertEquals(file.getAbsoluteFile(), WorkMessages.getFile(message));
+		Assert.assertEquals(date, WorkMessages.getDate(message));
+	}
+
+	@Test
+	public void chunksShouldRoundTripUngrouped() throws Exception {
+		ReportChunk chunk = new ReportChunk();
+		chunk.setImportId("import-1");
+		chunk.setLedgerEntryId(42L);
+		chunk.setSite("jboss.org");
+		chunk.setFileName("/opt/data/jboss.org/report.csv");
+		chunk.setDate(new Date(1383264000000L));
+		chunk.setChunkIndex(3);
+		chunk.setChunkCount(7);
+		chunk.setStartOffset(1000L);
+		chunk.setEndOffset(2000L);
+		chunk.setFirstLine(120);
+		chunk.setLineCount(500);
+		chunk.setStarted(123456789L);
+		MapMessage message = WorkMessages.createChunkMessage(session(), chunk);
+
+		Assert.assertEquals(WorkMessages.CHUNK, WorkMessages.getType(message));
+		Assert.assertFalse(message.propertyExists(WorkMessages.GROUP_ID));
+		ReportChunk copy = WorkMessages.toChunk(message);
+		Assert.assertEquals("import-1", copy.getImportId());
+		Assert.assertEquals(Long.valueOf(42L), copy.getLedgerEntryId());
+		Assert.assertEquals("jboss.org", copy.getSite());
+		Assert.assertEquals("/opt/data/jboss.org/report.csv", copy.getFileName());
+		Assert.assertEquals(chunk.getDate(), copy.getDate());
+		Assert.assertEquals(3, copy.getChunkIndex());
+		Assert.assertEquals(7, copy.getChunkCount());
+		Assert.assertEquals(1000L, copy.getStartOffset());
+		Assert.assertEquals(2000L, copy.getEndOffset());
+		Assert.assertEquals(120, copy.getFirstLine());
+		Assert.assertEquals(500, copy.getLineCount());
+		Assert.assertEquals(123456789L, copy.getStarted());
+	}
+
+	@Test
+	public void otherMessagesShouldHaveNoType() throws Exception {
+		Assert.assertNull(WorkMessages.getType(session().createMapMessage()));
+	}
+
+	/**
+	 * A session whose MapMessages keep their body and properties in hash maps.
+	 */
+	private static Session session(){
+		return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[] { Session.class }, new InvocationHandler(){
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args){
+				if (!method.getName().equals("createMapMessage"))
+					throw new UnsupportedOperationException(method.getName());
+				return mapMessage();
+			}
+		});
+	}
+
+	private static MapMessage mapMessage(){
+		final Map<String, Object> body = new HashMap<String, Object>();
+		final Map<String, Object> properties = new HashMap<String, Object>();
+		return (MapMessage) Proxy.newProxyInstance(MapMessage.class.getClassLoader(), new Class<?>[] { MapMessage.class }, new InvocationHandler(){
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args){
+				String name = method.getName();
+				if (name.equals("itemExists"))
+					return body.containsKey(args[0]);
+				if (name.equals("propertyExists"))
+					return properties.containsKey(args[0]);
+				Map<String, Object> values = name.endsWith("Property") ? properties : body;
+				if (name.startsWith("set")){
+					values.put((String) args[0], args[1]);
+					return null;
+				}
+				if (name.startsWith("get"))
+					return values.get(args[0]);
+				throw new UnsupportedOperationException(name);
+			}
+		});
+	}
+}